@@ -326,6 +326,14 @@ static vector<string> GetArgumentArray() {
   if (globals->options.watchfs) {
     result.push_back("--watchfs");
   }
+  if (globals->options.compact_skyframe_graph) {
+    result.push_back("--experimental_compact_skyframe_graph");
+  }
+  if (globals->options.skyframe_eviction_heap_percent) {
+    result.push_back("--experimental_skyframe_eviction_heap_percent=" +
+                     std::to_string(
+                         globals->options.skyframe_eviction_heap_percent));
+  }
   if (globals->options.fatal_event_bus_exceptions) {
     result.push_back("--fatal_event_bus_exceptions");
   } else {
@@ -1147,34 +1155,87 @@ static string BuildServerRequest() {
   return request;
 }
 
-// Performs all I/O for a single client request to the server, and
-// shuts down the client (by exit or signal).
-static void SendServerRequest(void) ATTRIBUTE_NORETURN;
-static void SendServerRequest(void) {
-  int socket = -1;
+// Returns true if the working directory of the server that is connected to
+// 'socket' is the workspace, and sets globals->server_pid to its pid.
+static bool ServerCwdIsWorkspace(int socket) {
+  globals->server_pid = GetPeerProcessId(socket);
+
+  // Check for deleted server cwd:
+  string server_cwd = GetProcessCWD(globals->server_pid);
+  if (server_cwd.empty() ||  // GetProcessCWD failed
+      server_cwd != globals->workspace ||  // changed
+      server_cwd.find(" (deleted)") != string::npos) {  // deleted.
+    // There's a distant possibility that the two paths look the same yet are
+    // actually different because the two processes have different mount
+    // tables.
+    if (VerboseLogging()) {
+      fprintf(stderr, "Server's cwd moved or deleted (%s).\n",
+              server_cwd.c_str());
+    }
+    return false;
+  }
+  return true;
+}
+
+// Connects to the server, starting it if needed and killing it first if its
+// cwd is not the workspace. Requires the server lock.
+static int ConnectToUsableServer() {
   while (true) {
-    socket = ConnectToServer(true);
-    globals->server_pid = GetPeerProcessId(socket);
-
-    // Check for deleted server cwd:
-    string server_cwd = GetProcessCWD(globals->server_pid);
-    if (server_cwd.empty() ||  // GetProcessCWD failed
-        server_cwd != globals->workspace ||  // changed
-        server_cwd.find(" (deleted)") != string::npos) {  // deleted.
-      // There's a distant possibility that the two paths look the same yet are
-      // actually different because the two processes have different mount
-      // tables.
-      if (VerboseLogging()) {
-        fprintf(stderr, "Server's cwd moved or deleted (%s).\n",
-                server_cwd.c_str());
-      }
-      close(socket);
-      KillRunningServer(globals->server_pid);
-    } else {
-      break;
+    int socket = ConnectToServer(true);
+    if (ServerCwdIsWorkspace(socket)) {
+      return socket;
     }
+    close(socket);
+    KillRunningServer(globals->server_pid);
   }
+}
 
+// Returns true if the server may run the command without holding the
+// exclusive lock of its output base: it runs such commands next to a build
+// when it can, and otherwise serializes them with the other commands itself.
+static bool CommandMayRunConcurrently() {
+  if (globals->options.batch) {
+    return false;
+  }
+  string command = globals->option_processor.GetCommand();
+  return command == "info" || command == "version" || command == "query";
+}
+
+// Connects to the running server without taking the server lock, returning
+// the socket, or -1 if there is no server that can run the request as it is.
+// Never starts, kills or restarts a server, so that it can be done while
+// another client holds the lock; if this returns -1, the client needs to take
+// the lock and go the usual way.
+static int ConnectToReusableServer() {
+  string installation_path = globals->options.output_base + "/install";
+  char prev_installation[PATH_MAX + 1] = "";  // NULs the whole array
+  if (readlink(installation_path.c_str(),
+               prev_installation, PATH_MAX) == -1 ||
+      prev_installation != globals->options.install_base) {
+    return -1;
+  }
+
+  int socket = ConnectToServer(false);
+  if (socket == -1) {
+    return -1;
+  }
+
+  string cmdline_path = globals->options.output_base + "/server/cmdline";
+  string joined_arguments;
+  if (!ReadFile(cmdline_path, &joined_arguments) ||
+      ServerNeedsToBeKilled(blaze_util::Split(joined_arguments, '\0'),
+                            GetArgumentArray()) ||
+      !ServerCwdIsWorkspace(socket)) {
+    close(socket);
+    return -1;
+  }
+  return socket;
+}
+
+// Performs all I/O for a single client request to the server connected to
+// 'socket', and shuts down the client (by exit or signal).
+static void SendServerRequest(int socket) ATTRIBUTE_NORETURN;
+static void SendServerRequest(int socket) {
   FILE *fp = fdopen(socket, "r");  // use buffering for reads--it's faster
 
   if (VerboseLogging()) {
@@ -1605,6 +1666,13 @@ int main(int argc, const char *argv[]) {
   const string self_path = GetSelfPath();
   ComputeBaseDirectories(self_path);
 
+  if (CommandMayRunConcurrently()) {
+    int socket = ConnectToReusableServer();
+    if (socket != -1) {
+      SendServerRequest(socket);
+    }
+  }
+
   AcquireLock();
 
   WarnFilesystemType(globals->options.output_base);
@@ -1619,7 +1687,7 @@ int main(int argc, const char *argv[]) {
                   globals->options.io_nice_level);
     StartStandalone();
   } else {
-    SendServerRequest();
+    SendServerRequest(ConnectToUsableServer());
   }
   return 0;
 }
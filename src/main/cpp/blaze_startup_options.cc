@@ -52,6 +52,8 @@ BlazeStartupOptions::BlazeStartupOptions(const BlazeStartupOptions &rhs)
       skyframe(rhs.skyframe),
       blaze_cpu(rhs.blaze_cpu),
       watchfs(rhs.watchfs),
+      compact_skyframe_graph(rhs.compact_skyframe_graph),
+      skyframe_eviction_heap_percent(rhs.skyframe_eviction_heap_percent),
       allow_configurable_attributes(rhs.allow_configurable_attributes),
       option_sources(rhs.option_sources),
       webstatus_port(rhs.webstatus_port),
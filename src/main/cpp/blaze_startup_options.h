@@ -153,6 +153,14 @@ class BlazeStartupOptions {
   // If true, Blaze will listen to OS-level file change notifications.
   bool watchfs;
 
+  // If true, the Skyframe graph stores its edges compactly, saving memory at
+  // some cost in speed.
+  bool compact_skyframe_graph;
+
+  // Percentage of the heap above which the server evicts cold Skyframe
+  // values, or 0 to never evict them.
+  int skyframe_eviction_heap_percent;
+
   // Temporary experimental flag that permits configurable attribute syntax
   // in BUILD files. This will be removed when configurable attributes is
   // a more stable feature.
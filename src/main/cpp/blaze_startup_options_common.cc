@@ -50,6 +50,8 @@ void BlazeStartupOptions::Init() {
   max_idle_secs = testing ? 5 : (3 * 3600);
   webstatus_port = 0;
   watchfs = false;
+  compact_skyframe_graph = false;
+  skyframe_eviction_heap_percent = 0;
 }
 
 string BlazeStartupOptions::GetHostJavabase() {
@@ -80,6 +82,8 @@ void BlazeStartupOptions::Copy(
   lhs->blaze_cpu = rhs.blaze_cpu;
   lhs->webstatus_port = rhs.webstatus_port;
   lhs->watchfs = rhs.watchfs;
+  lhs->compact_skyframe_graph = rhs.compact_skyframe_graph;
+  lhs->skyframe_eviction_heap_percent = rhs.skyframe_eviction_heap_percent;
   lhs->allow_configurable_attributes = rhs.allow_configurable_attributes;
   lhs->fatal_event_bus_exceptions = rhs.fatal_event_bus_exceptions;
   lhs->option_sources = rhs.option_sources;
@@ -206,6 +210,20 @@ blaze_exit_code::ExitCode BlazeStartupOptions::ProcessArg(
   } else if (GetNullaryOption(arg, "--watchfs")) {
     watchfs = true;
     option_sources["watchfs"] = rcfile;
+  } else if (GetNullaryOption(arg, "--experimental_compact_skyframe_graph")) {
+    compact_skyframe_graph = true;
+    option_sources["experimental_compact_skyframe_graph"] = rcfile;
+  } else if ((value = GetUnaryOption(arg, next_arg,
+              "--experimental_skyframe_eviction_heap_percent")) != NULL) {
+    if (!blaze_util::safe_strto32(value, &skyframe_eviction_heap_percent) ||
+        skyframe_eviction_heap_percent < 0 ||
+        skyframe_eviction_heap_percent > 100) {
+      blaze_util::StringPrintf(error,
+          "Invalid argument to --experimental_skyframe_eviction_heap_percent: "
+          "'%s'. Must be a percentage, or 0 to disable eviction.\n", value);
+      return blaze_exit_code::BAD_ARGV;
+    }
+    option_sources["experimental_skyframe_eviction_heap_percent"] = rcfile;
   } else if ((value = GetUnaryOption(
       arg, next_arg, "--use_webstatusserver")) != NULL) {
     if (!blaze_util::safe_strto32(value, &webstatus_port) ||
@@ -28,6 +28,7 @@ import com.google.devtools.build.lib.syntax.Label;
 import com.google.devtools.build.lib.syntax.SkylarkCallable;
 import com.google.devtools.build.lib.syntax.SkylarkModule;
 import com.google.devtools.build.lib.util.FileType;
+import com.google.devtools.build.lib.vfs.Canonicalizer;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
@@ -84,7 +85,7 @@ public class Artifact implements FileType.HasFilename, ActionInput {
       } else if (b == null) {
         return -1;
       } else {
-        return a.execPath.compareTo(b.execPath);
+        return a.getExecPath().compareTo(b.getExecPath());
       }
     }
   };
@@ -114,7 +115,11 @@ public class Artifact implements FileType.HasFilename, ActionInput {
 
   private final Path path;
   private final Root root;
-  private final PathFragment execPath;
+  // Null until requested if it is the exec path of the root followed by the root-relative path,
+  // as for all the artifacts created by the ArtifactFactory. Most derived artifacts exist in
+  // several configurations that only differ by their roots, so deriving the exec path on demand
+  // and interning the root-relative path saves memory during the analysis phase.
+  private PathFragment execPath;
   private final PathFragment rootRelativePath;
   // Non-final only for use when dealing with deserialized artifacts.
   private ArtifactOwner owner;
@@ -148,16 +153,25 @@ public class Artifact implements FileType.HasFilename, ActionInput {
     }
     this.path = path;
     this.root = root;
-    this.execPath = execPath;
-    // These two lines establish the invariant that
-    // execPath == rootRelativePath <=> execPath.equals(rootRelativePath)
-    // This is important for isSourceArtifact.
     PathFragment rootRel = path.relativeTo(root.getPath());
     if (!execPath.endsWith(rootRel)) {
       throw new IllegalArgumentException(execPath + ": illegal execPath doesn't end with "
           + rootRel + " at " + path + " with root " + root);
     }
-    this.rootRelativePath = rootRel.equals(execPath) ? execPath : rootRel;
+    // These lines establish the invariant that
+    // execPath == rootRelativePath <=> execPath.equals(rootRelativePath)
+    // This is important for isSourceArtifact.
+    if (rootRel.equals(execPath)) {
+      this.rootRelativePath = execPath;
+      this.execPath = execPath;
+    } else {
+      this.rootRelativePath = Canonicalizer.fragments().intern(rootRel);
+      PathFragment rootExecPath = root.getExecPath();
+      boolean derivable = execPath.segmentCount()
+          == rootExecPath.segmentCount() + rootRel.segmentCount()
+          && execPath.startsWith(rootExecPath);
+      this.execPath = derivable ? null : execPath;
+    }
     this.owner = Preconditions.checkNotNull(owner, path);
   }
 
@@ -280,7 +294,13 @@ public class Artifact implements FileType.HasFilename, ActionInput {
    * directory for this build.
    */
   public final PathFragment getExecPath() {
-    return execPath;
+    PathFragment result = execPath;
+    if (result == null) {
+      // Racing threads compute equal fragments, and PathFragment is safe to publish.
+      result = root.getExecPath().getRelative(rootRelativePath);
+      execPath = result;
+    }
+    return result;
   }
 
   /**
@@ -436,7 +456,7 @@ public class Artifact implements FileType.HasFilename, ActionInput {
       return "[" + root + "]" + rootRelativePath;
     } else {
       // Derived Artifact: path and root are under execRoot
-      PathFragment execRoot = trimTail(path.asFragment(), execPath);
+      PathFragment execRoot = trimTail(path.asFragment(), getExecPath());
       return "[[" + execRoot + "]" + root.getPath().asFragment().relativeTo(execRoot) + "]"
           + rootRelativePath;
     }
@@ -449,7 +469,7 @@ public class Artifact implements FileType.HasFilename, ActionInput {
     // In theory, it should be enough to serialize execPath and rootRelativePath (which is a suffix
     // of execPath). However, in practice there is code around that uses other attributes which
     // needs cleaning up.
-    String result = execPath + " /" + rootRelativePath.toString().length();
+    String result = getExecPath() + " /" + rootRelativePath.toString().length();
     if (getOwner() != null) {
       result += " " + getOwner();
     }
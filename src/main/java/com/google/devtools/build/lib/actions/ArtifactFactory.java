@@ -47,23 +47,27 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
   /**
    * The main Path to source artifact cache. There will always be exactly one canonical
    * artifact for a given source path.
+   *
+   * <p>Source artifacts are looked up and created concurrently by all the action threads while
+   * scanning includes and .d files, so this map is not guarded by the lock of the factory.
    */
-  private final Map<PathFragment, Artifact> pathToSourceArtifact = new HashMap<>();
+  private final ConcurrentMap<PathFragment, Artifact> pathToSourceArtifact =
+      new ConcurrentHashMap<>();
 
   /**
    * Map of package names to source root paths so that we can create source
    * artifact paths given execPaths in the symlink forest.
    */
-  private ImmutableMap<PackageIdentifier, Root> packageRoots;
+  private volatile ImmutableMap<PackageIdentifier, Root> packageRoots;
 
   /**
    * Reverse-ordered list of derived roots for use in looking up or (in rare cases) creating
    * derived artifacts from execPaths. The reverse order is only significant for overlapping roots
    * so that the longest is found first.
    */
-  private ImmutableCollection<Root> derivedRoots = ImmutableList.of();
+  private volatile ImmutableCollection<Root> derivedRoots = ImmutableList.of();
 
-  private ArtifactIdRegistry artifactIdRegistry = new ArtifactIdRegistry();
+  private volatile ArtifactIdRegistry artifactIdRegistry = new ArtifactIdRegistry();
 
   /**
    * Constructs a new artifact factory that will use a given execution root when
@@ -186,7 +190,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * setting the <code>root</code> and <code>execPath</code> to the
    * specified values.
    */
-  private synchronized Artifact getArtifact(Path path, Root root, PathFragment execPath,
+  private Artifact getArtifact(Path path, Root root, PathFragment execPath,
       ArtifactOwner owner, @Nullable SpecialArtifactType type) {
     Preconditions.checkNotNull(root);
     Preconditions.checkNotNull(execPath);
@@ -195,24 +199,28 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
       return createArtifact(path, root, execPath, owner, type);
     }
 
-    Artifact artifact = pathToSourceArtifact.get(execPath);
-
-    if (artifact == null || !Objects.equals(artifact.getArtifactOwner(), owner)) {
+    while (true) {
+      Artifact artifact = pathToSourceArtifact.get(execPath);
+      if (artifact != null && Objects.equals(artifact.getArtifactOwner(), owner)) {
+        // TODO(bazel-team): Maybe we should check for equality of the fileset bit. However, that
+        // would require us to differentiate between artifact-creating and artifact-getting calls
+        // to getDerivedArtifact().
+        Preconditions.checkState(root.equals(artifact.getRoot()),
+            "root for path %s changed from %s to %s", path, artifact.getRoot(), root);
+        Preconditions.checkState(execPath.equals(artifact.getExecPath()),
+            "execPath for path %s changed from %s to %s", path, artifact.getExecPath(), execPath);
+        return artifact;
+      }
       // There really should be a safety net that makes it impossible to create two Artifacts
       // with the same exec path but a different Owner, but we also need to reuse Artifacts from
-      // previous builds.
-      artifact = createArtifact(path, root, execPath, owner, type);
-      pathToSourceArtifact.put(execPath, artifact);
-    } else {
-      // TODO(bazel-team): Maybe we should check for equality of the fileset bit. However, that
-      // would require us to differentiate between artifact-creating and artifact-getting calls to
-      // getDerivedArtifact().
-      Preconditions.checkState(root.equals(artifact.getRoot()),
-          "root for path %s changed from %s to %s", path, artifact.getRoot(), root);
-      Preconditions.checkState(execPath.equals(artifact.getExecPath()),
-          "execPath for path %s changed from %s to %s", path, artifact.getExecPath(), execPath);
+      // previous builds. If another thread got there first, look again at what it stored.
+      Artifact newArtifact = createArtifact(path, root, execPath, owner, type);
+      if (artifact == null
+          ? pathToSourceArtifact.putIfAbsent(execPath, newArtifact) == null
+          : pathToSourceArtifact.replace(execPath, artifact, newArtifact)) {
+        return newArtifact;
+      }
     }
-    return artifact;
   }
 
   private Artifact createArtifact(Path path, Root root, PathFragment execPath, ArtifactOwner owner,
@@ -226,7 +234,33 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
   }
 
   @Override
-  public synchronized Artifact resolveSourceArtifact(PathFragment execPath) {
+  public Artifact resolveSourceArtifact(PathFragment execPath) {
+    return resolveSourceArtifact(execPath, null);
+  }
+
+  @Override
+  public Map<PathFragment, Artifact> resolveSourceArtifacts(Iterable<PathFragment> execPaths) {
+    Map<PathFragment, Artifact> result = new HashMap<>();
+    // Included files tend to come from a few directories, so only probe the packages once per
+    // directory.
+    Map<PathFragment, Root> directoryRoots = new HashMap<>();
+    for (PathFragment execPath : execPaths) {
+      if (!result.containsKey(execPath)) {
+        result.put(execPath, resolveSourceArtifact(execPath, directoryRoots));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resolves a source artifact like {@link #resolveSourceArtifact(PathFragment)}.
+   *
+   * @param directoryRoots if not null, the source roots found so far for parent directories of
+   *     exec paths, including null values for the directories that are not in any known package
+   */
+  @Nullable
+  private Artifact resolveSourceArtifact(PathFragment execPath,
+      @Nullable Map<PathFragment, Root> directoryRoots) {
     execPath = execPath.normalize();
     if (execPath.containsUplevelReferences()) {
       // Source exec paths cannot escape the source root.
@@ -241,20 +275,40 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
     if (findDerivedRoot(execRoot.getRelative(execPath)) != null) {
       return null;
     }
-    // Must be a new source artifact, so probe the known packages to find the longest package
-    // prefix, and then use the corresponding source root to create a new artifact.
-    for (PathFragment dir = execPath.getParentDirectory(); dir != null;
-         dir = dir.getParentDirectory()) {
+    PathFragment parent = execPath.getParentDirectory();
+    Root sourceRoot;
+    if (directoryRoots == null) {
+      sourceRoot = findSourceRoot(parent);
+    } else if (directoryRoots.containsKey(parent)) {
+      sourceRoot = directoryRoots.get(parent);
+    } else {
+      sourceRoot = findSourceRoot(parent);
+      directoryRoots.put(parent, sourceRoot);
+    }
+    if (sourceRoot == null) {
+      return null;  // not a path that we can find...
+    }
+    return getSourceArtifact(execPath, sourceRoot, ArtifactOwner.NULL_OWNER);
+  }
+
+  /**
+   * Probes the known packages to find the longest package prefix of the given directory, and
+   * returns the corresponding source root, or null if it is not in any known package.
+   */
+  @Nullable
+  private Root findSourceRoot(@Nullable PathFragment directory) {
+    ImmutableMap<PackageIdentifier, Root> packageRoots = this.packageRoots;
+    for (PathFragment dir = directory; dir != null; dir = dir.getParentDirectory()) {
       Root sourceRoot = packageRoots.get(PackageIdentifier.createInDefaultRepo(dir));
       if (sourceRoot != null) {
-        return getSourceArtifact(execPath, sourceRoot, ArtifactOwner.NULL_OWNER);
+        return sourceRoot;
       }
     }
-    return null;  // not a path that we can find...
+    return null;
   }
 
   @Override
-  public synchronized Map<PathFragment, Artifact> resolveSourceArtifacts(
+  public Map<PathFragment, Artifact> resolveSourceArtifacts(
       Iterable<PathFragment> execPaths, PackageRootResolver resolver)
           throws PackageRootResolutionException {
     Map<PathFragment, Artifact> result = new HashMap<>();
@@ -305,7 +359,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * @return the root for the path or null if no root can be determined
    */
   @VisibleForTesting  // for our own unit tests only.
-  synchronized Root findDerivedRoot(Path path) {
+  Root findDerivedRoot(Path path) {
     for (Root prefix : derivedRoots) {
       if (path.startsWith(prefix.getPath())) {
         return prefix;
@@ -317,7 +371,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
   /**
    * Returns all source artifacts created by the artifact factory.
    */
-  public synchronized Iterable<Artifact> getSourceArtifacts() {
+  public Iterable<Artifact> getSourceArtifacts() {
     return ImmutableList.copyOf(pathToSourceArtifact.values());
   }
 
@@ -58,6 +58,19 @@ public interface ArtifactResolver {
    */
   Artifact resolveSourceArtifact(PathFragment execPath);
 
+  /**
+   * Resolves source Artifacts given execRoot-relative paths, like calling {@link
+   * #resolveSourceArtifact} for each of them, but without probing the known packages more than
+   * once for the paths in the same directory, e.g. the files included by a compilation.
+   *
+   * <p>Never creates or returns derived artifacts, only source artifacts.
+   *
+   * @param execPaths the exec paths of the artifacts to resolve
+   * @return a map from each of the given exec paths to an existing or new source Artifact, or to
+   *         null if the root can not be determined and the artifact did not exist before
+   */
+  Map<PathFragment, Artifact> resolveSourceArtifacts(Iterable<PathFragment> execPaths);
+
   /**
    * Resolves source Artifacts given execRoot-relative paths.
    *
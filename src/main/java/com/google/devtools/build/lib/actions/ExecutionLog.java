@@ -0,0 +1,699 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.devtools.build.lib.actions.cache.Metadata;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.Pair;
+import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * Writes a log of the actions of a build to a compact binary file, and compares such logs offline.
+ *
+ * <p>The log records every action that was executed, along with the reason the action cache gave
+ * for executing it and how long it took, and every action that was a cache hit, each with the
+ * metadata of its inputs and outputs. {@link #diff} matches the actions of two logs by their
+ * primary output, and explains why the actions of the second one were executed.
+ *
+ * <p>The action threads only collect the artifacts of an action and their metadata, most of which
+ * the action cache checker just looked up, and hand them over to a writer thread through a bounded
+ * queue. If the writer cannot keep up, records are dropped rather than slowing down the build, and
+ * their number is written at the end of the log.
+ *
+ * <p>The writer flushes the log whenever it is idle, and the log is not compressed, so that the
+ * records written before a crash can still be read.
+ * Strings and files, an exec path with its metadata, are written once the first time they are
+ * seen and referred to by index afterwards, so an input shared by many actions costs a byte or
+ * two per action.
+ *
+ * <p>Format:
+ * <pre>
+ *   int32: magic token (ExecutionLog.MAGIC)
+ *   int32: format version (ExecutionLog.VERSION)
+ *   list of records, each made of:
+ *     int32: length of the rest of the record, or -1 after the last record
+ *     VarInt: type of the record, followed by:
+ *       STRING: the UTF-8 bytes of the next string
+ *       FILE: VarInt: index of the string of its exec path
+ *             VarInt: length of its digest, followed by the digest, or 0 if it has none
+ *             VarLong: its modification time plus 1, or 0 if it has no metadata
+ *       ACTION: VarInt: flags (EXECUTED)
+ *               VarInt: index of the string of its mnemonic
+ *               VarInt: index of the string of its owner's label
+ *               VarInt: index of the string of its key
+ *               VarInt: index of the string of the reason it was executed plus 1, or 0
+ *               VarLong: start of its execution, in milliseconds since the log was opened
+ *               VarLong: duration of its execution in milliseconds, or 0 if it was cached
+ *               VarInt: number of inputs, followed by the index of the file of each
+ *               VarInt: number of outputs, followed by the index of the file of each
+ *       DROPPED: VarLong: number of actions dropped because the queue was full
+ * </pre>
+ */
+@ThreadSafe
+public final class ExecutionLog {
+
+  static final int MAGIC = 0x45784c67;
+  static final int VERSION = 1;
+
+  private static final int END = -1;
+
+  private static final int STRING = 0;
+  private static final int FILE = 1;
+  private static final int ACTION = 2;
+  private static final int DROPPED = 3;
+
+  private static final int EXECUTED = 1;
+
+  /** Number of actions waiting to be written above which more actions are dropped. */
+  private static final int QUEUE_CAPACITY = 4096;
+
+  /** An action to be written, with the data collected on the action thread. */
+  private static final class Record {
+    private final Action action;
+    @Nullable private final String reason;
+    private final long startMillis;
+    private final long durationMillis;
+    private final Artifact[] files;
+    private final Metadata[] metadata;
+    private final int inputCount;
+
+    private Record(Action action, @Nullable String reason, long startMillis, long durationMillis,
+        Artifact[] files, Metadata[] metadata, int inputCount) {
+      this.action = action;
+      this.reason = reason;
+      this.startMillis = startMillis;
+      this.durationMillis = durationMillis;
+      this.files = files;
+      this.metadata = metadata;
+      this.inputCount = inputCount;
+    }
+  }
+
+  private static final Record END_OF_LOG = new Record(null, null, 0, 0, null, null, 0);
+
+  /** The reason and time of an execution, until the outputs of the action are known. */
+  private static final class PendingExecution {
+    private final String reason;
+    private volatile long startNanos;
+    private volatile long durationNanos;
+
+    private PendingExecution(String reason) {
+      this.reason = reason;
+    }
+  }
+
+  private final long startNanos;
+  private final DataOutputStream out;
+  private final BlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final ConcurrentMap<Action, PendingExecution> pendingExecutions =
+      new ConcurrentHashMap<>();
+  private final AtomicLong droppedRecords = new AtomicLong();
+  private final Thread writerThread;
+
+  // Only accessed by the writer thread, then by close() once it is over.
+  private final Map<String, Integer> stringIndices = new HashMap<>();
+  private final Map<Pair<PathFragment, Metadata>, Integer> fileIndices = new HashMap<>();
+  private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+  private final ByteBuffer varLongSink = ByteBuffer.allocate(VarInt.MAX_VARLONG_SIZE);
+  private IOException writeError;
+
+  private ExecutionLog(OutputStream stream) {
+    this.startNanos = System.nanoTime();
+    this.out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+    this.writerThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        writeRecords();
+      }
+    }, "execution-log-writer");
+    writerThread.setDaemon(true);
+  }
+
+  /** Starts writing a log to {@code stream}, which is closed by {@link #close}. */
+  public static ExecutionLog open(OutputStream stream) throws IOException {
+    ExecutionLog log = new ExecutionLog(stream);
+    log.out.writeInt(MAGIC);
+    log.out.writeInt(VERSION);
+    log.writerThread.start();
+    return log;
+  }
+
+  /** Records that {@code action} was a cache hit. */
+  public void logCacheHit(Action action, MetadataHandler metadataHandler) {
+    enqueue(action, null, System.nanoTime(), 0, metadataHandler);
+  }
+
+  /**
+   * Records that the action cache requires {@code action} to be executed, for {@code reason}. The
+   * action is only written once it is reported by {@link #logExecuted}.
+   */
+  public void logCacheMiss(Action action, String reason) {
+    pendingExecutions.put(action, new PendingExecution(reason));
+  }
+
+  /** Records that executing {@code action} started at {@code startNanos} and took so long. */
+  public void logExecutionTime(Action action, long startNanos, long durationNanos) {
+    PendingExecution execution = pendingExecutions.get(action);
+    if (execution != null) {
+      execution.startNanos = startNanos;
+      execution.durationNanos = durationNanos;
+    }
+  }
+
+  /**
+   * Records that {@code action} was executed successfully, {@code metadataHandler} knowing the
+   * metadata of its outputs and of all the inputs it turned out to have.
+   */
+  public void logExecuted(Action action, MetadataHandler metadataHandler) {
+    PendingExecution execution = pendingExecutions.remove(action);
+    if (execution == null) {
+      execution = new PendingExecution("unknown");
+      execution.startNanos = System.nanoTime();
+    }
+    enqueue(action, execution.reason, execution.startNanos, execution.durationNanos,
+        metadataHandler);
+  }
+
+  private void enqueue(Action action, @Nullable String reason, long startNanos,
+      long durationNanos, MetadataHandler metadataHandler) {
+    if (queue.remainingCapacity() == 0) {
+      // Spare the lookups of the metadata of an action that would be dropped anyway.
+      droppedRecords.incrementAndGet();
+      return;
+    }
+    // Only collect the references here, strings are built by the writer thread.
+    List<Artifact> files = new ArrayList<>();
+    Iterables.addAll(files, action.getInputs());
+    int inputCount = files.size();
+    Iterables.addAll(files, action.getOutputs());
+    Metadata[] metadata = new Metadata[files.size()];
+    for (int i = 0; i < metadata.length; i++) {
+      metadata[i] = metadataHandler.getMetadataMaybe(files.get(i));
+    }
+    Record record = new Record(action, reason,
+        TimeUnit.NANOSECONDS.toMillis(startNanos - this.startNanos),
+        TimeUnit.NANOSECONDS.toMillis(durationNanos),
+        files.toArray(new Artifact[files.size()]), metadata, inputCount);
+    if (!queue.offer(record)) {
+      droppedRecords.incrementAndGet();
+    }
+  }
+
+  /** Returns the number of actions that were not written because the writer fell behind. */
+  public long getDroppedRecords() {
+    return droppedRecords.get();
+  }
+
+  /**
+   * Writes the remaining actions and closes the log. Must only be called once no more actions are
+   * logged.
+   *
+   * @throws IOException if the log could not be written
+   */
+  public void close() throws IOException {
+    // The writer drains the queue, so this does not wait long even if the build was interrupted.
+    Uninterruptibles.putUninterruptibly(queue, END_OF_LOG);
+    Uninterruptibles.joinUninterruptibly(writerThread);
+    pendingExecutions.clear();
+    try {
+      if (writeError != null) {
+        throw writeError;
+      }
+      startRecord(DROPPED);
+      putVarLong(droppedRecords.get());
+      endRecord();
+      out.writeInt(END);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void writeRecords() {
+    while (true) {
+      Record record;
+      try {
+        record = queue.take();
+      } catch (InterruptedException e) {
+        // Nothing interrupts this thread but a dying server, which does not need the log.
+        return;
+      }
+      if (record == END_OF_LOG) {
+        break;
+      }
+      if (writeError == null) {
+        try {
+          write(record);
+          if (queue.isEmpty()) {
+            // Keep the file up to date while the build waits for actions.
+            out.flush();
+          }
+        } catch (IOException e) {
+          writeError = e;
+        } catch (RuntimeException e) {
+          // Keep draining the queue, so that close() does not wait forever.
+          writeError = new IOException(e);
+        }
+      }
+    }
+  }
+
+  private void write(Record record) throws IOException {
+    Action action = record.action;
+    Label label = action.getOwner().getLabel();
+    int mnemonic = getStringIndex(action.getMnemonic());
+    int owner = getStringIndex(label == null ? "" : label.toString());
+    int key = getStringIndex(action.getKey());
+    int reason = record.reason == null ? 0 : getStringIndex(record.reason) + 1;
+    int[] files = new int[record.files.length];
+    for (int i = 0; i < files.length; i++) {
+      files[i] = getFileIndex(record.files[i].getExecPath(), record.metadata[i]);
+    }
+
+    startRecord(ACTION);
+    putVarInt(record.reason == null ? 0 : EXECUTED);
+    putVarInt(mnemonic);
+    putVarInt(owner);
+    putVarInt(key);
+    putVarInt(reason);
+    putVarLong(record.startMillis);
+    putVarLong(record.durationMillis);
+    putVarInt(record.inputCount);
+    for (int i = 0; i < record.inputCount; i++) {
+      putVarInt(files[i]);
+    }
+    putVarInt(files.length - record.inputCount);
+    for (int i = record.inputCount; i < files.length; i++) {
+      putVarInt(files[i]);
+    }
+    endRecord();
+  }
+
+  private int getStringIndex(String string) throws IOException {
+    Integer index = stringIndices.get(string);
+    if (index == null) {
+      index = stringIndices.size();
+      stringIndices.put(string, index);
+      startRecord(STRING);
+      body.write(string.getBytes(StandardCharsets.UTF_8));
+      endRecord();
+    }
+    return index;
+  }
+
+  private int getFileIndex(PathFragment execPath, @Nullable Metadata metadata) throws IOException {
+    Pair<PathFragment, Metadata> file = Pair.of(execPath, metadata);
+    Integer index = fileIndices.get(file);
+    if (index == null) {
+      int path = getStringIndex(execPath.getPathString());
+      index = fileIndices.size();
+      fileIndices.put(file, index);
+      startRecord(FILE);
+      putVarInt(path);
+      if (metadata != null && metadata.digest != null) {
+        putVarInt(metadata.digest.length);
+        body.write(metadata.digest);
+      } else {
+        putVarInt(0);
+      }
+      putVarLong(metadata == null ? 0 : metadata.mtime + 1);
+      endRecord();
+    }
+    return index;
+  }
+
+  private void startRecord(int type) throws IOException {
+    body.reset();
+    putVarInt(type);
+  }
+
+  private void putVarInt(int value) throws IOException {
+    VarInt.putVarInt(value, body);
+  }
+
+  private void putVarLong(long value) {
+    varLongSink.clear();
+    VarInt.putVarLong(value, varLongSink);
+    body.write(varLongSink.array(), 0, varLongSink.position());
+  }
+
+  private void endRecord() throws IOException {
+    out.writeInt(body.size());
+    body.writeTo(out);
+  }
+
+  /** A file read from a log: an exec path and the metadata it had. */
+  public static final class FileEntry {
+    private final String execPath;
+    @Nullable private final Metadata metadata;
+
+    private FileEntry(String execPath, @Nullable Metadata metadata) {
+      this.execPath = execPath;
+      this.metadata = metadata;
+    }
+
+    public String getExecPath() {
+      return execPath;
+    }
+
+    /** Returns the metadata of the file, or null if it could not be determined. */
+    @Nullable
+    public Metadata getMetadata() {
+      return metadata;
+    }
+
+    @Override
+    public String toString() {
+      return execPath + " (" + (metadata == null ? "no metadata" : metadata) + ")";
+    }
+  }
+
+  /** An action read from a log. */
+  public static final class ActionEntry {
+    private final String mnemonic;
+    private final String owner;
+    private final String key;
+    @Nullable private final String reason;
+    private final long startMillis;
+    private final long durationMillis;
+    private final ImmutableList<FileEntry> inputs;
+    private final ImmutableList<FileEntry> outputs;
+
+    private ActionEntry(String mnemonic, String owner, String key, @Nullable String reason,
+        long startMillis, long durationMillis, ImmutableList<FileEntry> inputs,
+        ImmutableList<FileEntry> outputs) {
+      this.mnemonic = mnemonic;
+      this.owner = owner;
+      this.key = key;
+      this.reason = reason;
+      this.startMillis = startMillis;
+      this.durationMillis = durationMillis;
+      this.inputs = inputs;
+      this.outputs = outputs;
+    }
+
+    public String getMnemonic() {
+      return mnemonic;
+    }
+
+    /** Returns the label of the owner of the action, or the empty string if it has none. */
+    public String getOwner() {
+      return owner;
+    }
+
+    public String getKey() {
+      return key;
+    }
+
+    public boolean wasExecuted() {
+      return reason != null;
+    }
+
+    /** Returns the reason the action cache gave for executing the action, or null if it did not. */
+    @Nullable
+    public String getReason() {
+      return reason;
+    }
+
+    public long getStartMillis() {
+      return startMillis;
+    }
+
+    public long getDurationMillis() {
+      return durationMillis;
+    }
+
+    public ImmutableList<FileEntry> getInputs() {
+      return inputs;
+    }
+
+    public ImmutableList<FileEntry> getOutputs() {
+      return outputs;
+    }
+
+    /** Returns the exec path of the primary output, by which actions are matched across logs. */
+    public String getPrimaryOutput() {
+      return outputs.isEmpty() ? "" : outputs.get(0).getExecPath();
+    }
+  }
+
+  /** The actions of a log, as returned by {@link #read}. */
+  public static final class Contents {
+    private final List<ActionEntry> actions = new ArrayList<>();
+    private long droppedRecords;
+    private boolean complete;
+
+    /** Returns the actions in the order they were written. */
+    public List<ActionEntry> getActions() {
+      return actions;
+    }
+
+    /** Returns the number of actions that were not written because the writer fell behind. */
+    public long getDroppedRecords() {
+      return droppedRecords;
+    }
+
+    /** Returns whether the log was closed, rather than cut short by a crash. */
+    public boolean isComplete() {
+      return complete;
+    }
+  }
+
+  /**
+   * Reads the log from {@code stream}, and closes it. A log that is cut short is read up to its
+   * last complete record.
+   *
+   * @throws IOException if the stream cannot be read or does not contain a log
+   */
+  public static Contents read(InputStream stream) throws IOException {
+    Contents contents = new Contents();
+    List<String> strings = new ArrayList<>();
+    List<FileEntry> files = new ArrayList<>();
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(stream, 65536))) {
+      try {
+        if (in.readInt() != MAGIC) {
+          throw new IOException("not an execution log");
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+          throw new IOException("unsupported execution log version " + version);
+        }
+      } catch (EOFException e) {
+        throw new IOException("not an execution log", e);
+      }
+      byte[] record = new byte[256];
+      while (true) {
+        int length;
+        try {
+          length = in.readInt();
+          if (length == END) {
+            contents.complete = true;
+            break;
+          }
+          if (length < 0) {
+            throw new IOException("corrupted execution log");
+          }
+          if (length > record.length) {
+            record = new byte[Math.max(length, record.length * 2)];
+          }
+          in.readFully(record, 0, length);
+        } catch (EOFException e) {
+          break;
+        }
+        ByteBuffer source = ByteBuffer.wrap(record, 0, length);
+        try {
+          readRecord(source, contents, strings, files);
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+          throw new IOException("corrupted execution log", e);
+        }
+      }
+    }
+    return contents;
+  }
+
+  private static void readRecord(ByteBuffer source, Contents contents, List<String> strings,
+      List<FileEntry> files) {
+    int type = VarInt.getVarInt(source);
+    switch (type) {
+      case STRING:
+        strings.add(new String(source.array(), source.position(), source.remaining(),
+            StandardCharsets.UTF_8));
+        break;
+      case FILE:
+        String execPath = strings.get(VarInt.getVarInt(source));
+        byte[] digest = new byte[VarInt.getVarInt(source)];
+        source.get(digest);
+        long mtime = VarInt.getVarLong(source);
+        Metadata metadata = null;
+        if (digest.length > 0) {
+          metadata = new Metadata(digest);
+        } else if (mtime > 0) {
+          metadata = new Metadata(mtime - 1);
+        }
+        files.add(new FileEntry(execPath, metadata));
+        break;
+      case ACTION:
+        int flags = VarInt.getVarInt(source);
+        String mnemonic = strings.get(VarInt.getVarInt(source));
+        String owner = strings.get(VarInt.getVarInt(source));
+        String key = strings.get(VarInt.getVarInt(source));
+        int reason = VarInt.getVarInt(source);
+        long startMillis = VarInt.getVarLong(source);
+        long durationMillis = VarInt.getVarLong(source);
+        ImmutableList<FileEntry> inputs = readFiles(source, files);
+        ImmutableList<FileEntry> outputs = readFiles(source, files);
+        Preconditions.checkArgument(((flags & EXECUTED) != 0) == (reason > 0));
+        contents.actions.add(new ActionEntry(mnemonic, owner, key,
+            reason == 0 ? null : strings.get(reason - 1), startMillis, durationMillis, inputs,
+            outputs));
+        break;
+      case DROPPED:
+        contents.droppedRecords += VarInt.getVarLong(source);
+        break;
+      default:
+        throw new IllegalArgumentException("unknown record type " + type);
+    }
+  }
+
+  private static ImmutableList<FileEntry> readFiles(ByteBuffer source, List<FileEntry> files) {
+    int count = VarInt.getVarInt(source);
+    ImmutableList.Builder<FileEntry> builder = ImmutableList.builder();
+    for (int i = 0; i < count; i++) {
+      builder.add(files.get(VarInt.getVarInt(source)));
+    }
+    return builder.build();
+  }
+
+  private static final Ordering<Map.Entry<String, Long>> BY_COUNT =
+      new Ordering<Map.Entry<String, Long>>() {
+        @Override
+        public int compare(Map.Entry<String, Long> a, Map.Entry<String, Long> b) {
+          return Longs.compare(b.getValue(), a.getValue());
+        }
+      };
+
+  /**
+   * Prints why the actions executed in {@code after} were executed, comparing each with the action
+   * that had the same primary output in {@code before}: whether it was executed or cached there,
+   * whether its key changed, and which of its inputs were added, removed or changed.
+   */
+  public static void diff(Contents before, Contents after, PrintStream out) {
+    Map<String, ActionEntry> beforeActions = new HashMap<>();
+    for (ActionEntry action : before.getActions()) {
+      beforeActions.put(action.getPrimaryOutput(), action);
+    }
+    Map<String, Long> reasons = new LinkedHashMap<>();
+    long executed = 0;
+    long executedMillis = 0;
+    for (ActionEntry action : after.getActions()) {
+      if (!action.wasExecuted()) {
+        continue;
+      }
+      executed++;
+      executedMillis += action.getDurationMillis();
+      Long count = reasons.get(action.getReason());
+      reasons.put(action.getReason(), count == null ? 1 : count + 1);
+
+      out.println(String.format("%s %s (%s, %d ms): %s", action.getMnemonic(),
+          action.getPrimaryOutput(), action.getOwner(), action.getDurationMillis(),
+          action.getReason()));
+      ActionEntry beforeAction = beforeActions.get(action.getPrimaryOutput());
+      if (beforeAction == null) {
+        out.println("  not in the first log");
+        continue;
+      }
+      if (beforeAction.wasExecuted()) {
+        out.println("  also executed in the first log: " + beforeAction.getReason());
+      }
+      if (!beforeAction.getKey().equals(action.getKey())) {
+        out.println("  action key changed");
+      }
+      printFileChanges("input", beforeAction.getInputs(), action.getInputs(), out);
+    }
+
+    out.println();
+    out.println(String.format("%d of %d actions executed in the second log, in %d ms",
+        executed, after.getActions().size(), executedMillis));
+    for (Map.Entry<String, Long> reason : BY_COUNT.sortedCopy(reasons.entrySet())) {
+      out.println(String.format("%8d %s", reason.getValue(), reason.getKey()));
+    }
+    printWarnings("first", before, out);
+    printWarnings("second", after, out);
+  }
+
+  private static void printFileChanges(String kind, List<FileEntry> before, List<FileEntry> after,
+      PrintStream out) {
+    Map<String, FileEntry> beforeFiles = new LinkedHashMap<>();
+    for (FileEntry file : before) {
+      beforeFiles.put(file.getExecPath(), file);
+    }
+    for (FileEntry file : after) {
+      FileEntry beforeFile = beforeFiles.remove(file.getExecPath());
+      if (beforeFile == null) {
+        out.println("  " + kind + " added: " + file);
+      } else if (!Objects.equals(beforeFile.getMetadata(), file.getMetadata())) {
+        out.println("  " + kind + " changed: " + file.getExecPath() + ": "
+            + beforeFile.getMetadata() + " -> " + file.getMetadata());
+      }
+    }
+    for (FileEntry file : beforeFiles.values()) {
+      out.println("  " + kind + " removed: " + file);
+    }
+  }
+
+  private static void printWarnings(String name, Contents contents, PrintStream out) {
+    if (contents.getDroppedRecords() > 0) {
+      out.println(String.format("Warning: %d actions are missing from the %s log",
+          contents.getDroppedRecords(), name));
+    }
+    if (!contents.isComplete()) {
+      out.println("Warning: the " + name + " log is incomplete");
+    }
+  }
+}
@@ -26,16 +26,18 @@ public class AnalysisPhaseCompleteEvent {
   private final Collection<ConfiguredTarget> targets;
   private final long timeInMs;
   private int targetsVisited;
+  private int targetsReused;
 
   /**
    * Construct the event.
    * @param targets The set of active targets that remain.
    */
   public AnalysisPhaseCompleteEvent(Collection<? extends ConfiguredTarget> targets,
-      int targetsVisited, long timeInMs) {
+      int targetsVisited, int targetsReused, long timeInMs) {
     this.timeInMs = timeInMs;
     this.targets = ImmutableList.copyOf(targets);
     this.targetsVisited = targetsVisited;
+    this.targetsReused = targetsReused;
   }
 
   /**
@@ -53,6 +55,14 @@ public class AnalysisPhaseCompleteEvent {
     return targetsVisited;
   }
 
+  /**
+   * @return The number of targets that were invalidated, but found up to date without being
+   *     visited again
+   */
+  public int getTargetsReused() {
+    return targetsReused;
+  }
+
   public long getTimeInMs() {
     return timeInMs;
   }
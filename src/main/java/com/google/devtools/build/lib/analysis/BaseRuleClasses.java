@@ -77,7 +77,7 @@ public class BaseRuleClasses {
    * Implementation for the :action_listener attribute.
    */
   private static final LateBoundLabelList<BuildConfiguration> ACTION_LISTENER =
-      new LateBoundLabelList<BuildConfiguration>() {
+      new LateBoundLabelList<BuildConfiguration>(BuildConfiguration.class) {
     @Override
     public List<Label> getDefault(Rule rule, BuildConfiguration configuration) {
       // action_listeners are special rules; they tell the build system to add extra_actions to
@@ -89,7 +89,8 @@ public class BaseRuleClasses {
   };
 
   private static final LateBoundLabelList<BuildConfiguration> COVERAGE_SUPPORT =
-      new LateBoundLabelList<BuildConfiguration>(ImmutableList.of(COVERAGE_SUPPORT_LABEL)) {
+      new LateBoundLabelList<BuildConfiguration>(ImmutableList.of(COVERAGE_SUPPORT_LABEL),
+          BuildConfiguration.class) {
         @Override
         public List<Label> getDefault(Rule rule, BuildConfiguration configuration) {
           return configuration.isCodeCoverageEnabled()
@@ -99,7 +100,8 @@ public class BaseRuleClasses {
       };
 
   private static final LateBoundLabelList<BuildConfiguration> COVERAGE_REPORT_GENERATOR =
-      new LateBoundLabelList<BuildConfiguration>(ImmutableList.of(COVERAGE_SUPPORT_LABEL)) {
+      new LateBoundLabelList<BuildConfiguration>(ImmutableList.of(COVERAGE_SUPPORT_LABEL),
+          BuildConfiguration.class) {
         @Override
         public List<Label> getDefault(Rule rule, BuildConfiguration configuration) {
           return configuration.isCodeCoverageEnabled()
@@ -112,7 +114,7 @@ public class BaseRuleClasses {
    * Implementation for the :run_under attribute.
    */
   private static final LateBoundLabel<BuildConfiguration> RUN_UNDER =
-      new LateBoundLabel<BuildConfiguration>() {
+      new LateBoundLabel<BuildConfiguration>(BuildConfiguration.class) {
         @Override
         public Label getDefault(Rule rule, BuildConfiguration configuration) {
           RunUnder runUnder = configuration.getRunUnder();
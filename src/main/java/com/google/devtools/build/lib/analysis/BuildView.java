@@ -18,7 +18,9 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Throwables;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -28,6 +30,7 @@ import com.google.common.collect.Lists;
 import com.google.common.collect.Multimaps;
 import com.google.common.collect.Sets;
 import com.google.common.eventbus.EventBus;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actions.ActionGraph;
 import com.google.devtools.build.lib.actions.Artifact;
@@ -43,8 +46,11 @@ import com.google.devtools.build.lib.analysis.config.ConfigMatchingProvider;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.collect.nestedset.Order;
+import com.google.devtools.build.lib.concurrent.ExecutorShutdownUtil;
+import com.google.devtools.build.lib.concurrent.Sharder;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.StoredEventHandler;
@@ -75,6 +81,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionsBase;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -83,6 +90,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import javax.annotation.Nullable;
@@ -190,6 +199,9 @@ public class BuildView {
 
   private static Logger LOG = Logger.getLogger(BuildView.class.getName());
 
+  /** The least number of top-level targets whose extra actions are worth a separate thread. */
+  private static final int MIN_TOP_LEVEL_TARGETS_PER_SHARD = 100;
+
   private final BlazeDirectories directories;
 
   private final SkyframeExecutor skyframeExecutor;
@@ -238,6 +250,14 @@ public class BuildView {
     return skyframeBuildView.getEvaluatedTargetKeys().size();
   }
 
+  /**
+   * The number of targets that were invalidated in the last analysis run, but found up to date
+   * without being evaluated again.
+   */
+  public int getTargetsReused() {
+    return skyframeBuildView.getReusedTargetCount();
+  }
+
   /**
    * Returns true iff Skyframe was invalidated during the analysis phase.
    * TODO(bazel-team): Remove this once we do not need to keep legacy in sync with Skyframe.
@@ -628,7 +648,7 @@ public class BuildView {
           filterTestsByTargets(configuredTargets, Sets.newHashSet(testsToRun)));
     }
 
-    Set<Artifact> artifactsToBuild = new HashSet<>();
+    ImmutableSet.Builder<Artifact> artifactsToBuild = ImmutableSet.builder();
     Set<ConfiguredTarget> parallelTests = new HashSet<>();
     Set<ConfiguredTarget> exclusiveTests = new HashSet<>();
     Collection<Artifact> buildInfoArtifacts;
@@ -660,7 +680,7 @@ public class BuildView {
             : "execution phase succeeded, but not all targets were analyzed")
           : "execution phase succeeded, but there were loading phase errors";
     return new AnalysisResult(configuredTargets, allTargetsToTest, error, getActionGraph(),
-        artifactsToBuild, parallelTests, exclusiveTests, topLevelOptions);
+        artifactsToBuild.build(), parallelTests, exclusiveTests, topLevelOptions);
   }
 
   private static NestedSet<Artifact> getBaselineCoverageArtifacts(
@@ -677,8 +697,68 @@ public class BuildView {
     return baselineCoverageArtifacts.build();
   }
 
-  private void addExtraActionsIfRequested(BuildView.Options viewOptions,
-      Set<Artifact> artifactsToBuild, Iterable<ConfiguredTarget> topLevelTargets) {
+  private static void addExtraActionsIfRequested(BuildView.Options viewOptions,
+      ImmutableSet.Builder<Artifact> artifactsToBuild,
+      Collection<ConfiguredTarget> topLevelTargets) throws InterruptedException {
+    int numJobs = Math.min(Runtime.getRuntime().availableProcessors(),
+        topLevelTargets.size() / MIN_TOP_LEVEL_TARGETS_PER_SHARD);
+    addExtraActionsIfRequested(viewOptions, artifactsToBuild, topLevelTargets, numJobs);
+  }
+
+  /**
+   * Adds the extra action artifacts of {@code topLevelTargets} that match the extra action filter
+   * to {@code artifactsToBuild}. The provider lookups and the walks of the nested sets are split by
+   * top-level target across {@code numJobs} threads. The sets of the dependencies that several
+   * shards share are walked by each of them, but only filtered by the first one.
+   */
+  @VisibleForTesting
+  static void addExtraActionsIfRequested(BuildView.Options viewOptions,
+      ImmutableSet.Builder<Artifact> artifactsToBuild,
+      Collection<ConfiguredTarget> topLevelTargets, int numJobs) throws InterruptedException {
+    Set<ExtraArtifactSet> visitedSets = Sets.newConcurrentHashSet();
+    if (numJobs <= 1) {
+      collectExtraArtifacts(viewOptions, topLevelTargets, visitedSets, artifactsToBuild);
+      return;
+    }
+    Sharder<ConfiguredTarget> shards = new Sharder<>(numJobs, topLevelTargets.size());
+    for (ConfiguredTarget topLevel : topLevelTargets) {
+      shards.add(topLevel);
+    }
+    ThrowableRecordingRunnableWrapper wrapper =
+        new ThrowableRecordingRunnableWrapper("BuildView#addExtraActionsIfRequested");
+    ExecutorService executor = Executors.newFixedThreadPool(numJobs,
+        new ThreadFactoryBuilder().setNameFormat("Extra action artifacts %d").build());
+    List<ImmutableList.Builder<Artifact>> shardArtifacts = new ArrayList<>();
+    for (List<ConfiguredTarget> shard : shards) {
+      ImmutableList.Builder<Artifact> artifacts = ImmutableList.builder();
+      shardArtifacts.add(artifacts);
+      executor.execute(wrapper.wrap(
+          extraArtifactCollection(viewOptions, shard, visitedSets, artifacts)));
+    }
+    boolean interrupted = ExecutorShutdownUtil.interruptibleShutdown(executor);
+    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
+    if (interrupted) {
+      throw new InterruptedException();
+    }
+    for (ImmutableList.Builder<Artifact> artifacts : shardArtifacts) {
+      artifactsToBuild.addAll(artifacts.build());
+    }
+  }
+
+  private static Runnable extraArtifactCollection(final BuildView.Options viewOptions,
+      final List<ConfiguredTarget> topLevelTargets, final Set<ExtraArtifactSet> visitedSets,
+      final ImmutableList.Builder<Artifact> artifacts) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        collectExtraArtifacts(viewOptions, topLevelTargets, visitedSets, artifacts);
+      }
+    };
+  }
+
+  private static void collectExtraArtifacts(BuildView.Options viewOptions,
+      Iterable<ConfiguredTarget> topLevelTargets, Set<ExtraArtifactSet> visitedSets,
+      ImmutableCollection.Builder<Artifact> artifacts) {
     NestedSetBuilder<ExtraArtifactSet> builder = NestedSetBuilder.stableOrder();
     for (ConfiguredTarget topLevel : topLevelTargets) {
       ExtraActionArtifactsProvider provider = topLevel.getProvider(
@@ -694,9 +774,12 @@ public class BuildView {
 
     RegexFilter filter = viewOptions.extraActionFilter;
     for (ExtraArtifactSet set : builder.build()) {
+      if (!visitedSets.add(set)) {
+        continue;
+      }
       boolean filterMatches = filter == null || filter.isIncluded(set.getLabel().toString());
       if (filterMatches) {
-        artifactsToBuild.addAll(set.getArtifacts());
+        artifacts.addAll(set.getArtifacts());
       }
     }
   }
@@ -19,6 +19,8 @@ import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import com.google.devtools.build.lib.Constants;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.analysis.RuleConfiguredTarget.Mode;
@@ -35,13 +37,17 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.Set;
+import java.util.TreeSet;
 
 import javax.annotation.Nullable;
 import javax.annotation.concurrent.Immutable;
@@ -295,37 +301,49 @@ public final class Runfiles {
   @VisibleForTesting
   static Map<PathFragment, Artifact> filterListForObscuringSymlinks(
       EventHandler eventHandler, Location location, Map<PathFragment, Artifact> workingManifest) {
-    Map<PathFragment, Artifact> newManifest = new HashMap<>();
-
-    outer:
-    for (Iterator<Entry<PathFragment, Artifact>> i = workingManifest.entrySet().iterator();
-         i.hasNext(); ) {
-      Entry<PathFragment, Artifact> entry = i.next();
-      PathFragment source = entry.getKey();
-      Artifact symlink = entry.getValue();
-      // drop nested entries; warn if this changes anything
-      int n = source.segmentCount();
-      for (int j = 1; j < n; ++j) {
-        PathFragment prefix = source.subFragment(0, n - j);
-        Artifact ancestor = workingManifest.get(prefix);
-        if (ancestor != null) {
-          // This is an obscuring symlink, so just drop it and move on if there's no reporter.
-          if (eventHandler == null) {
-            continue outer;
-          }
-          PathFragment suffix = source.subFragment(n - j, n);
-          Path viaAncestor = ancestor.getPath().getRelative(suffix);
-          Path expected = symlink.getPath();
-          if (!viaAncestor.equals(expected)) {
-            eventHandler.handle(Event.warn(location, "runfiles symlink " + source + " -> "
-                + expected + " obscured by " + prefix + " -> " + ancestor.getPath()));
-          }
-          continue outer;
+    Map<PathFragment, Artifact> newManifest = new HashMap<>(workingManifest);
+    removeObscuredEntries(eventHandler, location, newManifest, sortedPaths(newManifest));
+    return newManifest;
+  }
+
+  /**
+   * Removes the entries of the manifest that are below the path of another entry, and replaces
+   * their paths by null in {@code sortedPaths}, which must hold the paths of the manifest in
+   * order.
+   *
+   * <p>In that order, the paths below a path immediately follow it, so the longest path above each
+   * entry is found on a stack of the preceding paths without looking up all its prefixes.
+   */
+  private static void removeObscuredEntries(EventHandler eventHandler, Location location,
+      Map<PathFragment, Artifact> manifest, PathFragment[] sortedPaths) {
+    Deque<PathFragment> ancestors = new ArrayDeque<>();
+    List<PathFragment> obscured = new ArrayList<>();
+    for (int i = 0; i < sortedPaths.length; i++) {
+      PathFragment source = sortedPaths[i];
+      while (!ancestors.isEmpty() && !source.startsWith(ancestors.peek())) {
+        ancestors.pop();
+      }
+      PathFragment prefix = ancestors.peek();
+      if (source.segmentCount() > 0) {
+        ancestors.push(source);
+      }
+      if (prefix == null) {
+        continue;
+      }
+      // This is an obscuring symlink, so drop it and warn if this changes anything.
+      obscured.add(source);
+      sortedPaths[i] = null;
+      if (eventHandler != null) {
+        Artifact ancestor = manifest.get(prefix);
+        Path viaAncestor = ancestor.getPath().getRelative(source.relativeTo(prefix));
+        Path expected = manifest.get(source).getPath();
+        if (!viaAncestor.equals(expected)) {
+          eventHandler.handle(Event.warn(location, "runfiles symlink " + source + " -> "
+              + expected + " obscured by " + prefix + " -> " + ancestor.getPath()));
         }
       }
-      newManifest.put(entry.getKey(), entry.getValue());
     }
-    return newManifest;
+    manifest.keySet().removeAll(obscured);
   }
 
   /**
@@ -340,7 +358,38 @@ public final class Runfiles {
    */
   public Map<PathFragment, Artifact> getRunfilesInputs(EventHandler eventHandler,
       Location location) throws IOException {
-    Map<PathFragment, Artifact> manifest = getSymlinksAsMap();
+    final Map<PathFragment, Artifact> result = new HashMap<>();
+    visitRunfilesInputs(eventHandler, location, new RunfilesInputVisitor() {
+      @Override
+      public void visit(PathFragment path, @Nullable Artifact artifact) {
+        result.put(path, artifact);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Receives the entries of a runfiles tree.
+   */
+  public interface RunfilesInputVisitor {
+    /**
+     * Receives the path of an entry and the artifact it links to, or null for an empty file.
+     */
+    void visit(PathFragment path, @Nullable Artifact artifact) throws IOException;
+  }
+
+  /**
+   * Passes the entries of {@link #getRunfilesInputs} to the visitor in the order of their paths,
+   * without building that map. The entries of the source tree and the root symlinks are sorted
+   * separately and merged on the fly, so that writing a large manifest does not need more than
+   * one map of the source tree entries.
+   */
+  public void visitRunfilesInputs(EventHandler eventHandler, Location location,
+      RunfilesInputVisitor visitor) throws IOException {
+    Map<PathFragment, Artifact> manifest = new HashMap<>();
+    for (SymlinkEntry entry : symlinks) {
+      manifest.put(entry.getPath(), entry.getArtifact());
+    }
     // Add unconditional artifacts (committed to inclusion on construction of runfiles).
     for (Artifact artifact : getUnconditionalArtifactsWithoutMiddlemen()) {
       manifest.put(artifact.getRootRelativePath(), artifact);
@@ -364,33 +413,65 @@ public final class Runfiles {
       }
     }
 
-    manifest = filterListForObscuringSymlinks(eventHandler, location, manifest);
+    PathFragment[] paths = sortedPaths(manifest);
+    removeObscuredEntries(eventHandler, location, manifest, paths);
 
     // TODO(bazel-team): Create /dev/null-like Artifact to avoid nulls?
-    for (PathFragment extraPath : emptyFilesSupplier.getExtraPaths(manifest.keySet())) {
+    Set<PathFragment> emptyFiles = new TreeSet<>();
+    Iterables.addAll(emptyFiles, emptyFilesSupplier.getExtraPaths(manifest.keySet()));
+    for (PathFragment extraPath : emptyFiles) {
       manifest.put(extraPath, null);
     }
-
-    PathFragment path = new PathFragment(suffix);
-    Map<PathFragment, Artifact> result = new HashMap<>();
-    for (Map.Entry<PathFragment, Artifact> entry : manifest.entrySet()) {
-      result.put(path.getRelative(entry.getKey()), entry.getValue());
+    PathFragment[] sourcePaths = new PathFragment[manifest.size()];
+    int sourceCount = 0;
+    PeekingIterator<PathFragment> extraPaths = Iterators.peekingIterator(emptyFiles.iterator());
+    for (PathFragment path : paths) {
+      if (path == null) {
+        continue;
+      }
+      while (extraPaths.hasNext() && extraPaths.peek().compareTo(path) < 0) {
+        sourcePaths[sourceCount++] = extraPaths.next();
+      }
+      if (extraPaths.hasNext() && extraPaths.peek().equals(path)) {
+        // The empty file has replaced the entry with the same path in the manifest.
+        extraPaths.next();
+      }
+      sourcePaths[sourceCount++] = path;
+    }
+    while (extraPaths.hasNext()) {
+      sourcePaths[sourceCount++] = extraPaths.next();
     }
 
     // Finally add symlinks outside the source tree on top of everything else.
-    for (Map.Entry<PathFragment, Artifact> entry : getRootSymlinksAsMap().entrySet()) {
-      PathFragment mappedPath = entry.getKey();
-      Artifact mappedArtifact = entry.getValue();
-      if (result.put(mappedPath, mappedArtifact) != null) {
+    Map<PathFragment, Artifact> rootManifest = getRootSymlinksAsMap();
+    PathFragment[] rootPaths = sortedPaths(rootManifest);
+    PathFragment prefix = new PathFragment(suffix);
+    int j = 0;
+    for (int i = 0; i < sourceCount; i++) {
+      PathFragment path = prefix.getRelative(sourcePaths[i]);
+      Artifact artifact = manifest.get(sourcePaths[i]);
+      for (; j < rootPaths.length && rootPaths[j].compareTo(path) < 0; j++) {
+        visitor.visit(rootPaths[j], rootManifest.get(rootPaths[j]));
+      }
+      if (j < rootPaths.length && rootPaths[j].equals(path)) {
         // Emit warning if we overwrote something and we're capable of emitting warnings.
-        if (eventHandler != null) {
-          eventHandler.handle(Event.warn(location, "overwrote " + mappedPath + " symlink mapping "
-              + "with root symlink to " + mappedArtifact));
+        if (artifact != null && eventHandler != null) {
+          eventHandler.handle(Event.warn(location, "overwrote " + path + " symlink mapping "
+              + "with root symlink to " + rootManifest.get(path)));
         }
+        continue;
       }
+      visitor.visit(path, artifact);
+    }
+    for (; j < rootPaths.length; j++) {
+      visitor.visit(rootPaths[j], rootManifest.get(rootPaths[j]));
     }
+  }
 
-    return result;
+  private static PathFragment[] sortedPaths(Map<PathFragment, Artifact> manifest) {
+    PathFragment[] paths = manifest.keySet().toArray(new PathFragment[manifest.size()]);
+    Arrays.sort(paths);
+    return paths;
   }
 
   /**
@@ -30,11 +30,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -109,22 +105,35 @@ public class SourceManifestAction extends AbstractFileWriteAction {
   @VisibleForTesting
   public void writeOutputFile(OutputStream out, EventHandler eventHandler)
       throws IOException {
-    writeFile(out, runfiles.getRunfilesInputs(eventHandler, getOwner().getLocation()));
+    writeFile(out, eventHandler);
   }
 
   @Override
-  public DeterministicWriter newDeterministicWriter(EventHandler eventHandler, Executor executor)
-      throws IOException {
-    final Map<PathFragment, Artifact> runfilesInputs =
-        runfiles.getRunfilesInputs(eventHandler, getOwner().getLocation());
+  public DeterministicWriter newDeterministicWriter(final EventHandler eventHandler,
+      Executor executor) throws IOException {
     return new DeterministicWriter() {
+      private EventHandler warningHandler = eventHandler;
+
       @Override
       public void writeOutputFile(OutputStream out) throws IOException {
-        writeFile(out, runfilesInputs);
+        writeFile(out, warningHandler);
+        // Report the warnings about the runfiles only once, even if the file is compared with the
+        // existing output before being written.
+        warningHandler = null;
       }
     };
   }
 
+  /**
+   * Keeps the manifest of the previous execution if it is unchanged. Since the symlink tree is
+   * recreated from the manifest, not rewriting an unchanged one keeps its modification time and
+   * lets the symlink tree action be skipped.
+   */
+  @Override
+  protected boolean keepsUnchangedOutput() {
+    return true;
+  }
+
   @Override
   public boolean isRemotable() {
     // There is little gain to remoting these, since they include absolute path names inline.
@@ -146,32 +155,23 @@ public class SourceManifestAction extends AbstractFileWriteAction {
   }
 
   /**
-   * Sort the entries in both the normal and root manifests and write the output
-   * file.
+   * Writes the entries of both the normal and root manifests to the output file, in the order of
+   * their paths, as they are produced by {@link Runfiles#visitRunfilesInputs}.
    *
-   * @param out is the message stream to write errors to.
-   * @param output The actual mapping of the output manifest.
+   * @param out the output file
+   * @param eventHandler is the message stream to write warnings to, or null
    * @throws IOException
    */
-  private void writeFile(OutputStream out, Map<PathFragment, Artifact> output) throws IOException {
-    Writer manifestFile = new BufferedWriter(new OutputStreamWriter(out, ISO_8859_1));
-
-    Comparator<Map.Entry<PathFragment, Artifact>> fragmentComparator =
-          new Comparator<Map.Entry<PathFragment, Artifact>>() {
-      @Override
-      public int compare(Map.Entry<PathFragment, Artifact> path1,
-                         Map.Entry<PathFragment, Artifact> path2) {
-        return path1.getKey().compareTo(path2.getKey());
-      }
-    };
-
-    List<Map.Entry<PathFragment, Artifact>> sortedManifest = new ArrayList<>(output.entrySet());
-    Collections.sort(sortedManifest, fragmentComparator);
-
-    for (Map.Entry<PathFragment, Artifact> line : sortedManifest) {
-      manifestWriter.writeEntry(manifestFile, line.getKey(), line.getValue());
-    }
-
+  private void writeFile(OutputStream out, @Nullable EventHandler eventHandler)
+      throws IOException {
+    final Writer manifestFile = new BufferedWriter(new OutputStreamWriter(out, ISO_8859_1));
+    runfiles.visitRunfilesInputs(eventHandler, getOwner().getLocation(),
+        new Runfiles.RunfilesInputVisitor() {
+          @Override
+          public void visit(PathFragment path, @Nullable Artifact artifact) throws IOException {
+            manifestWriter.writeEntry(manifestFile, path, artifact);
+          }
+        });
     manifestFile.flush();
   }
 
@@ -261,7 +261,6 @@ public class SourceManifestAction extends AbstractFileWriteAction {
           throws IOException {
         manifestWriter.append(rootRelativePath.getPathString());
         manifestWriter.append('\n');
-        manifestWriter.flush();
       }
 
       @Override
@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.analysis.actions;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.actions.AbstractAction;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.ActionExecutionException;
@@ -26,8 +27,12 @@ import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 /**
@@ -83,6 +88,45 @@ public abstract class AbstractFileWriteAction extends AbstractAction {
   public abstract DeterministicWriter newDeterministicWriter(EventHandler eventHandler,
       Executor executor) throws IOException, InterruptedException, ExecException;
 
+  /**
+   * Returns whether the output of the previous execution is kept, and only rewritten if its
+   * contents change. This keeps the modification time of unchanged outputs, at the cost of
+   * generating the contents twice when they do change. The default implementation returns false.
+   */
+  protected boolean keepsUnchangedOutput() {
+    return false;
+  }
+
+  @Override
+  protected void deleteOutputs(Path execRoot) throws IOException {
+    if (!keepsUnchangedOutput() || !getPrimaryOutput().getPath().isFile(Symlinks.NOFOLLOW)) {
+      super.deleteOutputs(execRoot);
+    }
+  }
+
+  /**
+   * Returns whether the output file already holds the bytes that {@code writer} writes, in which
+   * case it is not written again. If the output is kept, the bytes are compared with the existing
+   * file while they are generated, without holding either in memory.
+   *
+   * @param writer the writer returned by {@link #newDeterministicWriter}
+   * @throws IOException if the output file cannot be read
+   */
+  public boolean isOutputUpToDate(DeterministicWriter writer) throws IOException {
+    if (!keepsUnchangedOutput()) {
+      return false;
+    }
+    Path path = getPrimaryOutput().getPath();
+    if (!path.isFile(Symlinks.NOFOLLOW)) {
+      return false;
+    }
+    try (InputStream in = new BufferedInputStream(path.getInputStream())) {
+      ComparingOutputStream out = new ComparingOutputStream(in);
+      writer.writeOutputFile(out);
+      return out.matchesEntireInput();
+    }
+  }
+
   /**
    * This hook is called after the File has been successfully written to disk.
    *
@@ -139,4 +183,51 @@ public abstract class AbstractFileWriteAction extends AbstractAction {
   public interface DeterministicWriter {
     public void writeOutputFile(OutputStream out) throws IOException;
   }
+
+  /**
+   * An output stream that compares the bytes written to it with those read from an input stream.
+   */
+  private static final class ComparingOutputStream extends OutputStream {
+    private final InputStream expected;
+    private byte[] buffer = new byte[0];
+    private boolean matches = true;
+
+    ComparingOutputStream(InputStream expected) {
+      this.expected = expected;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (matches && expected.read() != (b & 0xff)) {
+        matches = false;
+      }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      if (!matches) {
+        return;
+      }
+      if (buffer.length < len) {
+        buffer = new byte[len];
+      }
+      if (ByteStreams.read(expected, buffer, 0, len) != len) {
+        matches = false;
+        return;
+      }
+      for (int i = 0; i < len; i++) {
+        if (buffer[i] != b[off + i]) {
+          matches = false;
+          return;
+        }
+      }
+    }
+
+    /**
+     * Returns whether the bytes written so far are the entire contents of the input stream.
+     */
+    boolean matchesEntireInput() throws IOException {
+      return matches && expected.read() == -1;
+    }
+  }
 }
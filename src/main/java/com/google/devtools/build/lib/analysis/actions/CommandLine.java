@@ -19,6 +19,9 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.collect.CollectionUtils;
+import com.google.devtools.build.lib.util.Fingerprint;
+
+import java.io.IOException;
 
 /**
  * A representation of a command line to be executed by a SpawnAction.
@@ -29,6 +32,26 @@ public abstract class CommandLine {
    */
   public abstract Iterable<String> arguments();
 
+  /**
+   * Receives the arguments of a command line one at a time.
+   */
+  public interface ArgumentVisitor {
+    void visit(String argument) throws IOException;
+  }
+
+  /**
+   * Passes the arguments of the command line to the visitor in order.
+   *
+   * <p>By default, this method iterates over {@link #arguments}. Command lines that compute their
+   * arguments pass them as they are computed, so that long command lines, like those written to
+   * parameter files, are never held in memory as a whole.
+   */
+  public void visitArguments(ArgumentVisitor visitor) throws IOException {
+    for (String argument : arguments()) {
+      visitor.visit(argument);
+    }
+  }
+
   /**
    * Returns whether the command line represents a shell command with the given shell executable.
    * This is used to give better error messages.
@@ -39,6 +62,16 @@ public abstract class CommandLine {
     return false;
   }
 
+  /**
+   * Adds the command line to the fingerprint of an action key.
+   *
+   * <p>By default, this method adds all arguments. Command lines that share parts with the command
+   * lines of other actions may add digests of these parts that they compute only once.
+   */
+  public void addToFingerprint(Fingerprint fingerprint) {
+    fingerprint.addStrings(arguments());
+  }
+
   /**
    * A default implementation of a command line backed by a copy of the given list of arguments.
    */
@@ -88,6 +121,20 @@ public abstract class CommandLine {
         return Iterables.concat(executableArgs, commandLine.arguments());
       }
 
+      @Override
+      public void visitArguments(ArgumentVisitor visitor) throws IOException {
+        for (String argument : executableArgs) {
+          visitor.visit(argument);
+        }
+        commandLine.visitArguments(visitor);
+      }
+
+      @Override
+      public void addToFingerprint(Fingerprint fingerprint) {
+        fingerprint.addStrings(executableArgs);
+        commandLine.addToFingerprint(fingerprint);
+      }
+
       @Override
       public boolean isShellCommand() {
         return isShellCommand;
@@ -109,6 +156,13 @@ public abstract class CommandLine {
         }
         return builder.build();
       }
+
+      @Override
+      public void visitArguments(ArgumentVisitor visitor) throws IOException {
+        for (CharSequence arg : arguments) {
+          visitor.visit(arg.toString());
+        }
+      }
     };
   }
 
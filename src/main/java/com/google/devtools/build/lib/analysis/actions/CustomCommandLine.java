@@ -15,14 +15,20 @@
 package com.google.devtools.build.lib.analysis.actions;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.collect.CollectionUtils;
 import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -34,6 +40,77 @@ public final class CustomCommandLine extends CommandLine {
 
   private abstract static class ArgvFragment {
     abstract void eval(ImmutableList.Builder<String> builder);
+
+    /**
+     * Passes the arguments to the visitor. By default, evaluates them into a list first; fragments
+     * backed by sequences pass them one at a time instead.
+     */
+    void visit(ArgumentVisitor visitor) throws IOException {
+      ImmutableList.Builder<String> builder = ImmutableList.builder();
+      eval(builder);
+      for (String argument : builder.build()) {
+        visitor.visit(argument);
+      }
+    }
+
+    /**
+     * Adds the arguments to the fingerprint of an action key. By default, adds their number and
+     * the arguments; fragments that add something else start with a negative number instead.
+     */
+    void addToFingerprint(Fingerprint fingerprint) {
+      ImmutableList.Builder<String> builder = ImmutableList.builder();
+      eval(builder);
+      fingerprint.addStrings(builder.build());
+    }
+  }
+
+  /**
+   * The digests of the string forms of the items of the nested sets in command lines, computed
+   * once per nested set. Nested sets of copts, include directories or classpaths are shared by many
+   * actions, which then add a digest to their keys rather than all the items.
+   */
+  private static final LoadingCache<NestedSet<?>, byte[]> NESTED_SET_DIGESTS =
+      CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<NestedSet<?>, byte[]>() {
+        @Override
+        public byte[] load(NestedSet<?> set) {
+          return computeDigest(set, /*execPaths=*/false);
+        }
+      });
+
+  /** Like {@link #NESTED_SET_DIGESTS}, for the exec paths of nested sets of artifacts. */
+  private static final LoadingCache<NestedSet<?>, byte[]> NESTED_SET_EXEC_PATH_DIGESTS =
+      CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<NestedSet<?>, byte[]>() {
+        @Override
+        public byte[] load(NestedSet<?> set) {
+          return computeDigest(set, /*execPaths=*/true);
+        }
+      });
+
+  /**
+   * Returns the digest of the string forms of the items of {@code sequence}, or of the exec paths
+   * of the artifacts in it other than middlemen if {@code execPaths}. Null items are skipped.
+   */
+  private static byte[] digest(Iterable<?> sequence, boolean execPaths) {
+    if (sequence instanceof NestedSet) {
+      return (execPaths ? NESTED_SET_EXEC_PATH_DIGESTS : NESTED_SET_DIGESTS)
+          .getUnchecked((NestedSet<?>) sequence);
+    }
+    return computeDigest(sequence, execPaths);
+  }
+
+  private static byte[] computeDigest(Iterable<?> sequence, boolean execPaths) {
+    Fingerprint fingerprint = new Fingerprint();
+    for (Object item : execPaths ? toExecPaths(sequence) : sequence) {
+      if (item != null) {
+        fingerprint.addString(item.toString());
+      }
+    }
+    return fingerprint.digestAndReset();
+  }
+
+  @SuppressWarnings("unchecked")
+  private static Iterable<String> toExecPaths(Iterable<?> artifacts) {
+    return Artifact.toExecPaths((Iterable<Artifact>) artifacts);
   }
 
   // It's better to avoid anonymous classes if we want to serialize command lines
@@ -49,6 +126,17 @@ public final class CustomCommandLine extends CommandLine {
     void eval(ImmutableList.Builder<String> builder) {
       builder.add(arg.toString());
     }
+
+    @Override
+    void visit(ArgumentVisitor visitor) throws IOException {
+      visitor.visit(arg.toString());
+    }
+
+    @Override
+    void addToFingerprint(Fingerprint fingerprint) {
+      fingerprint.addInt(1);
+      fingerprint.addString(arg.toString());
+    }
   }
 
   private static final class JoinExecPathsArg extends ArgvFragment {
@@ -65,6 +153,13 @@ public final class CustomCommandLine extends CommandLine {
     void eval(ImmutableList.Builder<String> builder) {
       builder.add(Artifact.joinExecPaths(delimiter, artifacts));
     }
+
+    @Override
+    void addToFingerprint(Fingerprint fingerprint) {
+      fingerprint.addInt(-1);
+      fingerprint.addString(delimiter);
+      fingerprint.addBytes(digest(artifacts, /*execPaths=*/true));
+    }
   }
 
   private static final class PathWithTemplateArg extends ArgvFragment {
@@ -110,6 +205,13 @@ public final class CustomCommandLine extends CommandLine {
       builder.addAll(argv());
     }
 
+    @Override
+    void visit(ArgumentVisitor visitor) throws IOException {
+      for (String argument : argv()) {
+        visitor.visit(argument);
+      }
+    }
+
     public abstract Iterable<String> argv();
   }
 
@@ -127,6 +229,13 @@ public final class CustomCommandLine extends CommandLine {
     void eval(ImmutableList.Builder<String> builder) {
       builder.add(Joiner.on(delimiter).join(paths));
     }
+
+    @Override
+    void addToFingerprint(Fingerprint fingerprint) {
+      fingerprint.addInt(-2);
+      fingerprint.addString(delimiter);
+      fingerprint.addBytes(digest(paths, /*execPaths=*/false));
+    }
   }
 
   /**
@@ -144,7 +253,10 @@ public final class CustomCommandLine extends CommandLine {
    * consider using "before" only but storing the strings pre-formated in a {@link NestedSet}.
    */
   private static final class InterspersingArgs extends ArgvFragment {
+    // The artifacts themselves rather than their exec paths if execPaths, so that nested sets of
+    // artifacts are digested once.
     private final Iterable<?> sequence;
+    private final boolean execPaths;
     private final String beforeEach;
     private final String formatEach;
 
@@ -152,8 +264,10 @@ public final class CustomCommandLine extends CommandLine {
      * Do not call from outside this class because this does not guarantee that {@code sequence} is
      * immutable.
      */
-    private InterspersingArgs(Iterable<?> sequence, String beforeEach, String formatEach) {
+    private InterspersingArgs(Iterable<?> sequence, boolean execPaths, String beforeEach,
+        String formatEach) {
       this.sequence = sequence;
+      this.execPaths = execPaths;
       this.beforeEach = beforeEach;
       this.formatEach = formatEach;
     }
@@ -161,18 +275,18 @@ public final class CustomCommandLine extends CommandLine {
     static InterspersingArgs fromStrings(
         Iterable<?> sequence, String beforeEach, String formatEach) {
       return new InterspersingArgs(
-          CollectionUtils.makeImmutable(sequence), beforeEach, formatEach);
+          CollectionUtils.makeImmutable(sequence), /*execPaths=*/false, beforeEach, formatEach);
     }
 
     static InterspersingArgs fromExecPaths(
         Iterable<Artifact> sequence, String beforeEach, String formatEach) {
       return new InterspersingArgs(
-          Artifact.toExecPaths(CollectionUtils.makeImmutable(sequence)), beforeEach, formatEach);
+          CollectionUtils.makeImmutable(sequence), /*execPaths=*/true, beforeEach, formatEach);
     }
 
     @Override
     void eval(ImmutableList.Builder<String> builder) {
-      for (Object item : sequence) {
+      for (Object item : execPaths ? toExecPaths(sequence) : sequence) {
         if (item == null) {
           continue;
         }
@@ -180,13 +294,38 @@ public final class CustomCommandLine extends CommandLine {
         if (beforeEach != null) {
           builder.add(beforeEach);
         }
-        String arg = item.toString();
-        if (formatEach != null) {
-          arg = String.format(formatEach, arg);
+        builder.add(format(item));
+      }
+    }
+
+    @Override
+    void visit(ArgumentVisitor visitor) throws IOException {
+      for (Object item : execPaths ? toExecPaths(sequence) : sequence) {
+        if (item == null) {
+          continue;
         }
-        builder.add(arg);
+
+        if (beforeEach != null) {
+          visitor.visit(beforeEach);
+        }
+        visitor.visit(format(item));
       }
     }
+
+    private String format(Object item) {
+      String arg = item.toString();
+      return formatEach != null ? String.format(formatEach, arg) : arg;
+    }
+
+    @Override
+    void addToFingerprint(Fingerprint fingerprint) {
+      fingerprint.addInt(-3);
+      fingerprint.addBoolean(beforeEach != null);
+      fingerprint.addString(Strings.nullToEmpty(beforeEach));
+      fingerprint.addBoolean(formatEach != null);
+      fingerprint.addString(Strings.nullToEmpty(formatEach));
+      fingerprint.addBytes(digest(sequence, execPaths));
+    }
   }
 
   /**
@@ -355,4 +494,24 @@ public final class CustomCommandLine extends CommandLine {
     }
     return builder.build();
   }
+
+  @Override
+  public void visitArguments(ArgumentVisitor visitor) throws IOException {
+    for (ArgvFragment arg : arguments) {
+      arg.visit(visitor);
+    }
+  }
+
+  /**
+   * Adds the fragments of the command line to the fingerprint. The fragments backed by nested sets
+   * add digests of the nested sets, which are computed once for all command lines that share
+   * them, so that the time to compute an action key depends on the arguments of the action alone.
+   */
+  @Override
+  public void addToFingerprint(Fingerprint fingerprint) {
+    fingerprint.addInt(arguments.size());
+    for (ArgvFragment arg : arguments) {
+      arg.addToFingerprint(fingerprint);
+    }
+  }
 }
@@ -27,6 +27,7 @@ import com.google.devtools.build.lib.util.ShellEscaper;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.nio.charset.Charset;
 
 /**
@@ -74,10 +75,10 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
       public void writeOutputFile(OutputStream out) throws IOException {
         switch (type) {
           case SHELL_QUOTED :
-            writeContentQuoted(out);
+            writeContent(out, true);
             break;
           case UNQUOTED :
-            writeContentUnquoted(out);
+            writeContent(out, false);
             break;
           default :
             throw new AssertionError();
@@ -87,28 +88,30 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
   }
 
   /**
-   * Writes the arguments from the list into the parameter file.
+   * Writes the arguments from the command line into the parameter file, with shell quoting (if
+   * required) if {@code quoted}. The arguments are encoded one at a time as the command line
+   * computes them, so that the whole list of arguments is never held in memory.
    */
-  private void writeContentUnquoted(OutputStream outputStream) throws IOException {
-    OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
-    for (String line : commandLine.arguments()) {
-      out.write(line);
-      out.write('\n');
-    }
+  private void writeContent(OutputStream outputStream, final boolean quoted) throws IOException {
+    final Writer out = new OutputStreamWriter(outputStream, charset);
+    commandLine.visitArguments(new CommandLine.ArgumentVisitor() {
+      @Override
+      public void visit(String argument) throws IOException {
+        out.write(quoted ? ShellEscaper.escapeString(argument) : argument);
+        out.write('\n');
+      }
+    });
     out.flush();
   }
 
   /**
-   * Writes the arguments from the list into the parameter file with shell
-   * quoting (if required).
+   * Keeps the parameter file of the previous execution if it is unchanged, so that it is compared
+   * with the new contents rather than rewritten when the action is executed again, for instance
+   * after the action cache was lost.
    */
-  private void writeContentQuoted(OutputStream outputStream) throws IOException {
-    OutputStreamWriter out = new OutputStreamWriter(outputStream, charset);
-    for (String line : ShellEscaper.escapeAll(commandLine.arguments())) {
-      out.write(line);
-      out.write('\n');
-    }
-    out.flush();
+  @Override
+  protected boolean keepsUnchangedOutput() {
+    return true;
   }
 
   @Override
@@ -116,7 +119,9 @@ public final class ParameterFileWriteAction extends AbstractFileWriteAction {
     Fingerprint f = new Fingerprint();
     f.addString(GUID);
     f.addString(String.valueOf(makeExecutable));
-    f.addStrings(commandLine.arguments());
+    f.addString(type.toString());
+    f.addString(charset.name());
+    commandLine.addToFingerprint(f);
     return f.hexDigestAndReset();
   }
 }
@@ -274,7 +274,7 @@ public class SpawnAction extends AbstractAction {
   protected String computeKey() {
     Fingerprint f = new Fingerprint();
     f.addString(GUID);
-    f.addStrings(argv.arguments());
+    argv.addToFingerprint(f);
     f.addString(getMnemonic());
     f.addInt(inputManifests.size());
     for (Map.Entry<PathFragment, Artifact> input : inputManifests.entrySet()) {
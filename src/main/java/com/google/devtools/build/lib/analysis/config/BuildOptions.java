@@ -195,6 +195,21 @@ public final class BuildOptions implements Cloneable, Serializable {
     return fragmentOptionsMap.values();
   }
 
+  /**
+   * Returns a copy of these options in which the options of the given classes are reset to their
+   * default values. Classes that aren't part of this collection are ignored.
+   */
+  public BuildOptions resetToDefaults(Set<Class<? extends FragmentOptions>> optionsClasses) {
+    Builder builder = builder();
+    for (Map.Entry<Class<? extends FragmentOptions>, FragmentOptions> entry :
+        fragmentOptionsMap.entrySet()) {
+      builder.add(optionsClasses.contains(entry.getKey())
+          ? Options.getDefaults(entry.getKey())
+          : entry.getValue());
+    }
+    return builder.build();
+  }
+
   /**
    * Creates a copy of the BuildOptions object that contains copies of the FragmentOptions.
    */
@@ -20,6 +20,7 @@ import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.ConfigurationCollectionFactory;
@@ -27,10 +28,13 @@ import com.google.devtools.build.lib.analysis.config.BuildConfiguration.Fragment
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.events.EventHandler;
 
+import java.lang.reflect.Method;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -49,6 +53,14 @@ import javax.annotation.Nullable;
  */
 @ThreadCompatible // safe as long as separate instances are used
 public final class ConfigurationFactory {
+  /**
+   * The methods of {@link Fragment} whose results {@link BuildConfiguration} merges across all of
+   * its fragments.
+   */
+  private static final ImmutableSet<String> MERGED_FRAGMENT_METHODS = ImmutableSet.of(
+      "addGlobalMakeVariables", "getCommandLineDefines", "setupShellEnvironment",
+      "getCoverageLabels", "getCoverageReportGeneratorLabels", "getCoverageEnvironment");
+
   private final List<ConfigurationFragmentFactory> configurationFragmentFactories;
   private final ConfigurationCollectionFactory configurationCollectionFactory;
 
@@ -144,6 +156,46 @@ public final class ConfigurationFactory {
     return configuration;
   }
 
+  /**
+   * Trims the options to the fragments in {@code fragments}: the options that only the factories
+   * of other fragments require are reset to their defaults, so that changing them doesn't change
+   * the configurations created from the result. The core {@link BuildConfiguration.Options}, the
+   * options that no factory declares and the options of the fragments that every rule may read
+   * through the configuration (see {@link #isReadByEveryRule}) are kept as is.
+   */
+  public BuildOptions trimOptions(BuildOptions buildOptions,
+      Set<Class<? extends Fragment>> fragments) {
+    Set<Class<? extends FragmentOptions>> requiredOptions = new HashSet<>();
+    Set<Class<? extends FragmentOptions>> unusedOptions = new HashSet<>();
+    for (ConfigurationFragmentFactory factory : configurationFragmentFactories) {
+      if (fragments.contains(factory.creates()) || isReadByEveryRule(factory.creates())) {
+        requiredOptions.addAll(factory.requiredOptions());
+      } else {
+        unusedOptions.addAll(factory.requiredOptions());
+      }
+    }
+    unusedOptions.removeAll(requiredOptions);
+    unusedOptions.remove(BuildConfiguration.Options.class);
+    return unusedOptions.isEmpty() ? buildOptions : buildOptions.resetToDefaults(unusedOptions);
+  }
+
+  /**
+   * Returns true if the fragment adds to the values that {@link BuildConfiguration} merges across
+   * all of its fragments, such as the Make variables (e.g. {@code $(JAVABASE)}), the shell
+   * environment or the coverage labels. Any rule may read those, whether or not it declares the
+   * fragment, so trimming the fragment would silently change them to their defaults.
+   */
+  @VisibleForTesting
+  static boolean isReadByEveryRule(Class<? extends Fragment> fragment) {
+    for (Method method : fragment.getMethods()) {
+      if (MERGED_FRAGMENT_METHODS.contains(method.getName())
+          && method.getDeclaringClass() != Fragment.class) {
+        return true;
+      }
+    }
+    return false;
+  }
+
   public List<ConfigurationFragmentFactory> getFactories() {
     return configurationFragmentFactories;
   }
@@ -40,6 +40,11 @@ public interface ConfigurationFragmentFactory {
 
   /**
    * Returns the option classes needed to load this fragment.
+   *
+   * <p>The fragment is created from options in which all other options, except the core
+   * {@link BuildConfiguration.Options}, are reset to their defaults, so that it can be shared by
+   * the configurations that only differ in those. The factory must not read any other options,
+   * either directly or through the fragments it depends on.
    */
   ImmutableSet<Class<? extends FragmentOptions>> requiredOptions();
 }
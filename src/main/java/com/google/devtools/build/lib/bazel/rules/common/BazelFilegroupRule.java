@@ -22,6 +22,7 @@ import static com.google.devtools.build.lib.packages.Type.STRING;
 import com.google.devtools.build.lib.analysis.BaseRuleClasses;
 import com.google.devtools.build.lib.analysis.RuleDefinition;
 import com.google.devtools.build.lib.analysis.RuleDefinitionEnvironment;
+import com.google.devtools.build.lib.bazel.rules.BazelConfiguration;
 import com.google.devtools.build.lib.packages.RuleClass;
 import com.google.devtools.build.lib.packages.RuleClass.Builder;
 import com.google.devtools.build.lib.rules.filegroup.Filegroup;
@@ -35,6 +36,9 @@ public final class BazelFilegroupRule implements RuleDefinition {
   public RuleClass build(Builder builder, RuleDefinitionEnvironment env) {
     // filegroup ignores any filtering set with setSrcsAllowedFiles.
     return builder
+        // No fragment is read, but an empty declaration would mean all of them. The Bazel fragment
+        // does not depend on any option.
+        .requiresConfigurationFragments(BazelConfiguration.class)
         /*<!-- #BLAZE_RULE(filegroup).ATTRIBUTE(srcs) -->
         The list of targets that are members of the file group.
         ${SYNOPSIS}
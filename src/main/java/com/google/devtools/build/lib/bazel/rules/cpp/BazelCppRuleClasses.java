@@ -142,7 +142,7 @@ public class BazelCppRuleClasses {
   public static final String CROSSTOOL_LABEL = "//tools/defaults:crosstool";
 
   public static final LateBoundLabel<BuildConfiguration> CC_TOOLCHAIN =
-      new LateBoundLabel<BuildConfiguration>(CROSSTOOL_LABEL) {
+      new LateBoundLabel<BuildConfiguration>(CROSSTOOL_LABEL, CppConfiguration.class) {
         @Override
         public Label getDefault(Rule rule, BuildConfiguration configuration) {
           return configuration.getFragment(CppConfiguration.class).getCcToolchainRuleLabel();
@@ -150,7 +150,7 @@ public class BazelCppRuleClasses {
       };
 
   public static final LateBoundLabel<BuildConfiguration> DEFAULT_MALLOC =
-      new LateBoundLabel<BuildConfiguration>() {
+      new LateBoundLabel<BuildConfiguration>(CppConfiguration.class) {
         @Override
         public Label getDefault(Rule rule, BuildConfiguration configuration) {
           return configuration.getFragment(CppConfiguration.class).customMalloc();
@@ -158,7 +158,7 @@ public class BazelCppRuleClasses {
       };
 
   public static final LateBoundLabel<BuildConfiguration> STL =
-      new LateBoundLabel<BuildConfiguration>() {
+      new LateBoundLabel<BuildConfiguration>(CppConfiguration.class) {
         @Override
         public Label getDefault(Rule rule, BuildConfiguration configuration) {
           return getStl(rule, configuration);
@@ -169,7 +169,7 @@ public class BazelCppRuleClasses {
    * Implementation for the :lipo_context_collector attribute.
    */
   public static final LateBoundLabel<BuildConfiguration> LIPO_CONTEXT_COLLECTOR =
-      new LateBoundLabel<BuildConfiguration>() {
+      new LateBoundLabel<BuildConfiguration>(CppConfiguration.class) {
     @Override
     public Label getDefault(Rule rule, BuildConfiguration configuration) {
       // This attribute connects a target to the LIPO context target configured with the
@@ -267,6 +267,7 @@ public class BazelCppRuleClasses {
     @Override
     public RuleClass build(Builder builder, RuleDefinitionEnvironment env) {
       return builder
+          .requiresConfigurationFragments(CppConfiguration.class)
           /*<!-- #BLAZE_RULE($cc_decl_rule).ATTRIBUTE(abi)[DEPRECATED] -->
            Platform-specific information string which is used in combination
             with <code>abi_deps</code>.
@@ -684,7 +685,7 @@ public class BazelCppRuleClasses {
    * Implementation for the :lipo_context attribute.
    */
   private static final LateBoundLabel<BuildConfiguration> LIPO_CONTEXT =
-      new LateBoundLabel<BuildConfiguration>() {
+      new LateBoundLabel<BuildConfiguration>(CppConfiguration.class) {
     @Override
     public Label getDefault(Rule rule, BuildConfiguration configuration) {
       Label result = configuration.getFragment(CppConfiguration.class).getLipoContextLabel();
@@ -120,6 +120,16 @@ public class BuildRequest implements OptionsClassProvider {
             + "Has no effect if --explain is not enabled.")
     public boolean verboseExplanations;
 
+    @Option(name = "experimental_execution_log",
+            defaultValue = "null",
+            category = "verbosity",
+            converter = OptionsUtils.PathFragmentConverter.class,
+            help = "Writes a compact binary log of the executed and cached actions of the build, "
+            + "with the reasons they were executed and their inputs and outputs, to the specified "
+            + "file. The diff-execution-logs command tells why actions re-ran between two "
+            + "builds.")
+    public PathFragment executionLogPath;
+
     @Deprecated
     @Option(name = "dump_makefile",
             defaultValue = "false",
@@ -252,6 +262,16 @@ public class BuildRequest implements OptionsClassProvider {
             help = "Check for modifications made to the output files of a build. Consider setting "
                 + "this flag to false to see the effect on incremental build times.")
     public boolean checkOutputFiles;
+
+    @Option(name = "experimental_trim_configurations",
+            defaultValue = "false",
+            category = "undocumented",
+            help = "Reset the options that only configuration fragments which none of the "
+                + "requested targets transitively require depend on to their defaults, so that "
+                + "changing them keeps the analysis cache. Only takes effect if all rules in the "
+                + "transitive closure declare the fragments they require. Fragments that supply "
+                + "Make variables, which any rule may expand, are never trimmed.")
+    public boolean trimConfigurations;
   }
 
   /**
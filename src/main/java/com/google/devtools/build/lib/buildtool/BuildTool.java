@@ -174,6 +174,9 @@ public class BuildTool {
               + "'test' right now!");
         }
       }
+      if (request.getBuildOptions().trimConfigurations) {
+        buildOptions = trimBuildOptions(buildOptions, loadingResult);
+      }
       configurations = getConfigurations(buildOptions, request.getMultiCpus(),
           request.getViewOptions().keepGoing);
 
@@ -378,6 +381,25 @@ public class BuildTool {
     return result;
   }
 
+  /**
+   * Resets the options that only fragments which the targets to analyze don't require depend on,
+   * so that changing them yields the same configurations, and thus reuses the configured targets.
+   */
+  private BuildOptions trimBuildOptions(BuildOptions buildOptions, LoadingResult loadingResult)
+      throws InterruptedException {
+    Set<Class<? extends BuildConfiguration.Fragment>> fragments = runtime.getSkyframeExecutor()
+        .getTransitiveConfigurationFragments(loadingResult.getTargets());
+    if (fragments == null) {
+      return buildOptions;
+    }
+    BuildOptions trimmedOptions =
+        runtime.getConfigurationFactory().trimOptions(buildOptions, fragments);
+    if (trimmedOptions != buildOptions) {
+      LOG.info("Configurations trimmed to " + fragments.size() + " fragments");
+    }
+    return trimmedOptions;
+  }
+
   private final BuildConfigurationCollection getConfigurations(BuildOptions buildOptions,
       Set<String> multiCpu, boolean keepGoing)
       throws InvalidConfigurationException, InterruptedException {
@@ -451,8 +473,12 @@ public class BuildTool {
         getEventBus());
 
     // TODO(bazel-team): Merge these into one event.
+    int targetsVisited = getView().getTargetsVisited();
+    int targetsReused = getView().getTargetsReused();
+    LOG.info(String.format("Analysis recomputed %d configured targets and reused %d invalidated "
+        + "ones", targetsVisited, targetsReused));
     getEventBus().post(new AnalysisPhaseCompleteEvent(analysisResult.getTargetsToBuild(),
-        getView().getTargetsVisited(), timer.stop().elapsed(TimeUnit.MILLISECONDS)));
+        targetsVisited, targetsReused, timer.stop().elapsed(TimeUnit.MILLISECONDS)));
     getEventBus().post(new TestFilteringCompleteEvent(analysisResult.getTargetsToBuild(),
         analysisResult.getTargetsToTest()));
 
@@ -36,6 +36,7 @@ import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.BlazeExecutor;
 import com.google.devtools.build.lib.actions.BuildFailedException;
 import com.google.devtools.build.lib.actions.ExecException;
+import com.google.devtools.build.lib.actions.ExecutionLog;
 import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.Executor.ActionContext;
@@ -354,6 +355,8 @@ public class ExecutionTool {
     ExplanationHandler explanationHandler =
         installExplanationHandler(request.getBuildOptions().explanationPath,
                                   request.getOptionsDescription());
+    ExecutionLog executionLog =
+        openExecutionLog(request.getBuildOptions().executionLogPath, skyframeExecutor);
 
     Set<ConfiguredTarget> builtTargets = new HashSet<>();
     boolean interrupted = false;
@@ -401,6 +404,10 @@ public class ExecutionTool {
       interrupted = true;
       throw e;
     } finally {
+      if (executionLog != null) {
+        closeExecutionLog(request.getBuildOptions().executionLogPath, executionLog,
+            skyframeExecutor);
+      }
       runtime.recordLastExecutionTime();
       if (request.isRunningInEmacs()) {
         request.getOutErr().printErrLn("blaze: Leaving directory `" + getExecRoot() + "/'");
@@ -556,6 +563,50 @@ public class ExecutionTool {
     }
   }
 
+  /**
+   * If a path is supplied, opens an execution log and has Skyframe write the actions of the build
+   * to it. Returns the log on success. Reports a warning and returns null otherwise.
+   */
+  private ExecutionLog openExecutionLog(PathFragment executionLogPath,
+      SkyframeExecutor skyframeExecutor) {
+    if (executionLogPath == null) {
+      return null;
+    }
+    ExecutionLog executionLog;
+    try {
+      executionLog =
+          ExecutionLog.open(getWorkspace().getRelative(executionLogPath).getOutputStream());
+    } catch (IOException e) {
+      getReporter().handle(Event.warn(String.format(
+          "Cannot write execution log to file '%s': %s", executionLogPath, e.getMessage())));
+      return null;
+    }
+    getReporter().handle(Event.info("Writing execution log to '" + executionLogPath + "'"));
+    skyframeExecutor.setExecutionLog(executionLog);
+    return executionLog;
+  }
+
+  /**
+   * Stops logging the actions of the build and closes the execution log, reporting a warning if
+   * it is incomplete.
+   */
+  private void closeExecutionLog(PathFragment executionLogPath, ExecutionLog executionLog,
+      SkyframeExecutor skyframeExecutor) {
+    skyframeExecutor.setExecutionLog(null);
+    try {
+      executionLog.close();
+    } catch (IOException e) {
+      getReporter().handle(Event.warn(String.format(
+          "Cannot write execution log to file '%s': %s", executionLogPath, e.getMessage())));
+      return;
+    }
+    if (executionLog.getDroppedRecords() > 0) {
+      getReporter().handle(Event.warn(String.format(
+          "%d actions are missing from execution log '%s' because it could not be written fast "
+          + "enough", executionLog.getDroppedRecords(), executionLogPath)));
+    }
+  }
+
   /**
    * An ErrorEventListener implementation that records DEPCHECKER events into a log
    * file, iff the --explain flag is specified during a build.
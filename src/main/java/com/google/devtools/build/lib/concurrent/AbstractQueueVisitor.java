@@ -20,14 +20,17 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
+import java.util.Comparator;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * AbstractQueueVisitor is a wrapper around {@link ThreadPoolExecutor} which
@@ -82,6 +85,9 @@ public class AbstractQueueVisitor {
   private final Object zeroRemainingTasks = new Object();
   private long remainingTasks = 0;
 
+  // Number of tasks enqueued so far, used to run tasks of equal priority in order.
+  private final AtomicLong enqueuedTasks = new AtomicLong();
+
   // Map of thread ==> number of jobs executing in the thread.
   // Currently used only for interrupt handling.
   private final Map<Thread, Long> jobs = Maps.newConcurrentMap();
@@ -265,6 +271,36 @@ public class AbstractQueueVisitor {
     return new LinkedBlockingQueue<>();
   }
 
+  /**
+   * A task that runs before the waiting tasks of lower priority, if the thread pool of the visitor
+   * uses a {@link #newPrioritizedWorkQueue prioritized work queue}.
+   */
+  public interface PrioritizedRunnable extends Runnable {
+    /** Returns the priority of the task. Tasks of equal priority run in the order enqueued. */
+    int getPriority();
+  }
+
+  /**
+   * Returns a work queue for a thread pool given to a visitor, which runs the waiting {@link
+   * PrioritizedRunnable}s of highest priority first. Other tasks have priority 0. Only tasks
+   * enqueued through visitors may be executed by such a thread pool.
+   */
+  public static BlockingQueue<Runnable> newPrioritizedWorkQueue() {
+    return new PriorityBlockingQueue<>(64, BY_PRIORITY);
+  }
+
+  private static final Comparator<Runnable> BY_PRIORITY = new Comparator<Runnable>() {
+    @Override
+    public int compare(Runnable a, Runnable b) {
+      WrappedRunnable wrappedA = (WrappedRunnable) a;
+      WrappedRunnable wrappedB = (WrappedRunnable) b;
+      if (wrappedA.priority != wrappedB.priority) {
+        return wrappedA.priority > wrappedB.priority ? -1 : 1;
+      }
+      return Long.compare(wrappedA.sequenceNumber, wrappedB.sequenceNumber);
+    }
+  };
+
   /**
    * Executes all tasks on the queue, and optionally shuts the pool down and deletes it.
    *
@@ -323,46 +359,62 @@ public class AbstractQueueVisitor {
     }
   }
 
-  private Runnable wrapRunnable(final Runnable runnable, final AtomicBoolean ranTask) {
+  private Runnable wrapRunnable(Runnable runnable, AtomicBoolean ranTask) {
     synchronized (zeroRemainingTasks) {
       remainingTasks++;
     }
-    return new Runnable() {
-      @Override
-      public void run() {
-        Thread thread = null;
-        boolean addedJob = false;
-        try {
-          ranTask.set(true);
-          thread = Thread.currentThread();
-          addJob(thread);
-          addedJob = true;
-          if (blockNewActions()) {
-            // Make any newly enqueued tasks quickly die. We check after adding to the jobs map so
-            // that if another thread is racing to kill this thread and didn't make it before this
-            // conditional, it will be able to find and kill this thread anyway.
-            return;
+    return new WrappedRunnable(runnable, ranTask);
+  }
+
+  private final class WrappedRunnable implements Runnable {
+    private final Runnable runnable;
+    private final AtomicBoolean ranTask;
+    private final int priority;
+    private final long sequenceNumber;
+
+    private WrappedRunnable(Runnable runnable, AtomicBoolean ranTask) {
+      this.runnable = runnable;
+      this.ranTask = ranTask;
+      this.priority = runnable instanceof PrioritizedRunnable
+          ? ((PrioritizedRunnable) runnable).getPriority()
+          : 0;
+      this.sequenceNumber = enqueuedTasks.getAndIncrement();
+    }
+
+    @Override
+    public void run() {
+      Thread thread = null;
+      boolean addedJob = false;
+      try {
+        ranTask.set(true);
+        thread = Thread.currentThread();
+        addJob(thread);
+        addedJob = true;
+        if (blockNewActions()) {
+          // Make any newly enqueued tasks quickly die. We check after adding to the jobs map so
+          // that if another thread is racing to kill this thread and didn't make it before this
+          // conditional, it will be able to find and kill this thread anyway.
+          return;
+        }
+        runnable.run();
+      } catch (Throwable e) {
+        synchronized (AbstractQueueVisitor.this) {
+          if (unhandled == null) { // save only the first one.
+            unhandled = e;
+            exceptionLatch.countDown();
           }
-          runnable.run();
-        } catch (Throwable e) {
-          synchronized (AbstractQueueVisitor.this) {
-            if (unhandled == null) { // save only the first one.
-              unhandled = e;
-              exceptionLatch.countDown();
-            }
-            markToStopAllJobsIfNeeded(e);
+          markToStopAllJobsIfNeeded(e);
+        }
+      } finally {
+        try {
+          if (thread != null && addedJob) {
+            removeJob(thread);
           }
         } finally {
-          try {
-            if (thread != null && addedJob) {
-              removeJob(thread);
-            }
-          } finally {
-            decrementRemainingTasks();
-          }
+          decrementRemainingTasks();
         }
       }
-    };
+    }
   }
 
   private final void addJob(Thread thread) {
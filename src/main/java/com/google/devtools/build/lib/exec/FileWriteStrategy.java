@@ -22,6 +22,7 @@ import com.google.devtools.build.lib.actions.ExecutionStrategy;
 import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.analysis.actions.AbstractFileWriteAction;
+import com.google.devtools.build.lib.analysis.actions.AbstractFileWriteAction.DeterministicWriter;
 import com.google.devtools.build.lib.analysis.actions.FileWriteActionContext;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.util.io.FileOutErr;
@@ -48,8 +49,14 @@ public final class FileWriteStrategy implements FileWriteActionContext {
     EventHandler reporter = executor == null ? null : executor.getEventHandler();
     try {
       Path outputPath = Iterables.getOnlyElement(action.getOutputs()).getPath();
-      try (OutputStream out = new BufferedOutputStream(outputPath.getOutputStream())) {
-        action.newDeterministicWriter(reporter, executor).writeOutputFile(out);
+      DeterministicWriter writer = action.newDeterministicWriter(reporter, executor);
+      if (!action.isOutputUpToDate(writer)) {
+        // Outputs that are compared are not deleted before the action executes, and they were
+        // made read-only by the previous execution.
+        outputPath.delete();
+        try (OutputStream out = new BufferedOutputStream(outputPath.getOutputStream())) {
+          writer.writeOutputFile(out);
+        }
       }
       if (action.makeExecutable()) {
         outputPath.setExecutable(true);
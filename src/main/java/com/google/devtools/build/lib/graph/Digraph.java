@@ -14,6 +14,7 @@
 
 package com.google.devtools.build.lib.graph;
 
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Ordering;
@@ -651,6 +652,76 @@ public final class Digraph<T> implements Cloneable {
     return order;
   }
 
+  /**
+   * Returns the nodes whose labels are in {@code subset} in the order that
+   * {@code extractSubgraph(subset).getTopologicalOrder(edgeOrder)} returns,
+   * but without copying the graph: the edges of the subgraph are found as
+   * they are needed, by walking the nodes outside of the subset.
+   *
+   * @param subset a subset of the labels of this graph
+   * @param edgeOrder the ordering in which edges originating from the same
+   *     node of the subgraph are visited.
+   * @return The nodes of the subgraph, in a topological order
+   */
+  public List<Node<T>> getTopologicalOrder(Set<T> subset, Comparator<T> edgeOrder) {
+    Comparator<Node<T>> nodeOrder = Ordering.from(edgeOrder).onResultOf(
+        new Function<Node<T>, T>() {
+          @Override
+          public T apply(Node<T> node) {
+            return node.getLabel();
+          }
+        });
+    List<Node<T>> startNodes = new ArrayList<>();
+    for (T label : subset) {
+      Node<T> node = getNodeMaybe(label);
+      if (node != null) {
+        startNodes.add(node);
+      }
+    }
+    Collections.sort(startNodes, nodeOrder);
+
+    Set<Node<T>> marked = new HashSet<>();
+    List<Node<T>> order = new ArrayList<>();
+    for (Node<T> node : startNodes) {
+      visitSubgraphPostorder(node, subset, nodeOrder, marked, order);
+    }
+    Collections.reverse(order);
+    return order;
+  }
+
+  private void visitSubgraphPostorder(Node<T> node, Set<T> subset,
+      Comparator<Node<T>> nodeOrder, Set<Node<T>> marked, List<Node<T>> order) {
+    if (!marked.add(node)) {
+      return;
+    }
+    List<Node<T>> successors = new ArrayList<>(getSubgraphSuccessors(node, subset));
+    Collections.sort(successors, nodeOrder);
+    for (Node<T> successor : successors) {
+      visitSubgraphPostorder(successor, subset, nodeOrder, marked, order);
+    }
+    order.add(node);
+  }
+
+  /**
+   * Returns the successors of {@code node} in {@code extractSubgraph(subset)}:
+   * the nodes of the subset that {@code node} reaches through nodes outside of
+   * the subset only.
+   */
+  private Set<Node<T>> getSubgraphSuccessors(Node<T> node, Set<T> subset) {
+    Set<Node<T>> successors = new HashSet<>();
+    Set<Node<T>> visited = new HashSet<>();
+    List<Node<T>> worklist = new ArrayList<>(node.getSuccessors());
+    while (!worklist.isEmpty()) {
+      Node<T> next = worklist.remove(worklist.size() - 1);
+      if (subset.contains(next.getLabel())) {
+        successors.add(next);
+      } else if (visited.add(next)) {
+        worklist.addAll(next.getSuccessors());
+      }
+    }
+    return successors;
+  }
+
   /**
    * Returns the nodes of an acyclic graph in post-order.
    */
@@ -796,7 +796,8 @@ public final class Attribute implements Comparable<Attribute> {
 
     /**
      * Returns the set of required configuration fragments, i.e., fragments that will be accessed by
-     * the code.
+     * the code. An empty set means that they are not declared, so the code may access any of them.
+     * Code that only reads the configuration itself declares {@code BuildConfiguration}.
      */
     Set<Class<?>> getRequiredConfigurationFragments();
 
@@ -825,6 +826,10 @@ public final class Attribute implements Comparable<Attribute> {
       this((Label) null);
     }
 
+    public LateBoundLabel(Class<?>... requiredConfigurationFragments) {
+      this((Label) null, requiredConfigurationFragments);
+    }
+
     public LateBoundLabel(Label label) {
       this.label = label;
       this.requiredConfigurationFragments = ImmutableSet.of();
@@ -868,13 +873,19 @@ public final class Attribute implements Comparable<Attribute> {
    */
   public abstract static class LateBoundLabelList<T> implements LateBoundDefault<T> {
     private final ImmutableList<Label> labels;
+    private final ImmutableSet<Class<?>> requiredConfigurationFragments;
 
     public LateBoundLabelList() {
-      this.labels = ImmutableList.of();
+      this(ImmutableList.<Label>of());
+    }
+
+    public LateBoundLabelList(Class<?>... requiredConfigurationFragments) {
+      this(ImmutableList.<Label>of(), requiredConfigurationFragments);
     }
 
-    public LateBoundLabelList(List<Label> labels) {
+    public LateBoundLabelList(List<Label> labels, Class<?>... requiredConfigurationFragments) {
       this.labels = ImmutableList.copyOf(labels);
+      this.requiredConfigurationFragments = ImmutableSet.copyOf(requiredConfigurationFragments);
     }
 
     @Override
@@ -884,7 +895,7 @@ public final class Attribute implements Comparable<Attribute> {
 
     @Override
     public ImmutableSet<Class<?>> getRequiredConfigurationFragments() {
-      return ImmutableSet.of();
+      return requiredConfigurationFragments;
     }
 
     @Override
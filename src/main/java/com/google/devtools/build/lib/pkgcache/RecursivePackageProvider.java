@@ -14,9 +14,15 @@
 package com.google.devtools.build.lib.pkgcache;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.packages.NoSuchPackageException;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
 
+import java.util.Map;
+
 /**
  * Support for resolving {@code package/...} target patterns.
  */
@@ -30,4 +36,14 @@ public interface RecursivePackageProvider extends PackageProvider {
    */
   Iterable<PathFragment> getPackagesUnderDirectory(RootedPath directory,
       ImmutableSet<PathFragment> excludedSubdirectories);
+
+  /**
+   * Returns the packages with the given names, like calling {@link #getPackage} for each of them,
+   * but lets implementations fetch them all at once. Packages that contain errors are returned.
+   *
+   * @throws NoSuchPackageException if one of the packages could not be found.
+   * @throws InterruptedException if the package loading was interrupted.
+   */
+  Map<PackageIdentifier, Package> bulkGetPackages(EventHandler eventHandler,
+      Iterable<PackageIdentifier> pkgIds) throws NoSuchPackageException, InterruptedException;
 }
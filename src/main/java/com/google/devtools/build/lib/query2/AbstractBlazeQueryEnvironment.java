@@ -37,6 +37,7 @@ import com.google.devtools.build.lib.syntax.Label;
 import com.google.devtools.build.lib.util.BinaryPredicate;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
@@ -58,7 +59,7 @@ public abstract class AbstractBlazeQueryEnvironment<T> implements QueryEnvironme
   protected final boolean strictScope;
 
   protected final BinaryPredicate<Rule, Attribute> dependencyFilter;
-  private final Predicate<Label> labelFilter;
+  protected final Predicate<Label> labelFilter;
 
   private final Set<Setting> settings;
   private final List<QueryFunction> extraFunctions;
@@ -183,6 +184,24 @@ public abstract class AbstractBlazeQueryEnvironment<T> implements QueryEnvironme
 
   public abstract Target getTarget(Label label) throws TargetNotFoundException, QueryException;
 
+  @Override
+  public Collection<T> getFwdDeps(Iterable<T> targets) {
+    List<T> result = new ArrayList<>();
+    for (T target : targets) {
+      result.addAll(getFwdDeps(target));
+    }
+    return result;
+  }
+
+  @Override
+  public Collection<T> getReverseDeps(Iterable<T> targets) {
+    List<T> result = new ArrayList<>();
+    for (T target : targets) {
+      result.addAll(getReverseDeps(target));
+    }
+    return result;
+  }
+
   @Override
   public Set<T> getVariable(String name) {
     return letBindings.get(name);
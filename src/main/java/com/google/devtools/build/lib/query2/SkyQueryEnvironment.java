@@ -15,17 +15,29 @@ package com.google.devtools.build.lib.query2;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
+import com.google.common.base.Throwables;
+import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.google.devtools.build.lib.cmdline.ResolvedTargets;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
 import com.google.devtools.build.lib.cmdline.TargetPattern;
+import com.google.devtools.build.lib.concurrent.ExecutorShutdownUtil;
+import com.google.devtools.build.lib.concurrent.MoreFutures;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.graph.Digraph;
+import com.google.devtools.build.lib.packages.NoSuchTargetException;
 import com.google.devtools.build.lib.packages.NoSuchThingException;
 import com.google.devtools.build.lib.packages.Package;
 import com.google.devtools.build.lib.packages.Rule;
@@ -42,15 +54,13 @@ import com.google.devtools.build.lib.skyframe.SkyFunctions;
 import com.google.devtools.build.lib.skyframe.TargetPatternValue;
 import com.google.devtools.build.lib.skyframe.TransitiveTargetValue;
 import com.google.devtools.build.lib.syntax.Label;
-import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -58,8 +68,13 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import javax.annotation.Nullable;
 
 /**
  * {@link AbstractBlazeQueryEnvironment} that introspects the Skyframe graph to find forward and
@@ -68,7 +83,15 @@ import javax.annotation.Nullable;
  * even if the full closure isn't needed.
  */
 public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
+  // Maximum number of targets whose deps are fetched from the graph in a single batch.
+  private static final int BATCH_SIZE = 10000;
+
   private WalkableGraph graph;
+  // Thread pool used to process batches of graph lookups in parallel. Only set while a query is
+  // being evaluated.
+  private ListeningExecutorService executor;
+  // The graph is not modified during a query, so the allowed deps of each rule can be cached.
+  private final Map<Label, Set<Label>> allowedDepsCache = new ConcurrentHashMap<>();
 
   private final BlazeTargetAccessor accessor = new BlazeTargetAccessor(this);
   private final int loadingPhaseThreads;
@@ -99,6 +122,7 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
 
   private void init() throws InterruptedException {
     graph = graphFactory.prepareAndGet(universeScope, loadingPhaseThreads, eventHandler);
+    allowedDepsCache.clear();
   }
 
   @Override
@@ -113,106 +137,175 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
     } catch (InterruptedException e) {
       throw new QueryException(e.getMessage());
     }
-    return super.evaluateQuery(expr);
+    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(loadingPhaseThreads,
+        loadingPhaseThreads, 1L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+        new ThreadFactoryBuilder().setNameFormat("SkyQuery graph visitor %d").build());
+    // Do not consume threads when not in use.
+    threadPool.allowCoreThreadTimeOut(true);
+    executor = MoreExecutors.listeningDecorator(threadPool);
+    try {
+      return super.evaluateQuery(expr);
+    } finally {
+      ExecutorShutdownUtil.interruptibleShutdown(executor);
+      executor = null;
+    }
   }
 
   private static SkyKey transformToKey(Target value) {
     return TransitiveTargetValue.key(value.getLabel());
   }
 
-  @Nullable
-  private Target transformToValue(SkyKey key) {
-    SkyFunctionName functionName = key.functionName();
-    if (!functionName.equals(SkyFunctions.TRANSITIVE_TARGET)) {
-      return null;
+  private Set<Label> getAllowedDeps(Rule rule) {
+    Set<Label> allowedLabels = allowedDepsCache.get(rule.getLabel());
+    if (allowedLabels == null) {
+      ImmutableSet.Builder<Label> builder = ImmutableSet.builder();
+      builder.addAll(rule.getLabels(dependencyFilter));
+      builder.addAll(rule.getVisibility().getDependencyLabels());
+      // We should add deps from aspects, otherwise they are going to be filtered out.
+      builder.addAll(rule.getAspectLabelsSuperset(dependencyFilter));
+      allowedLabels = builder.build();
+      // Racing threads compute equal sets, so it does not matter which one wins.
+      allowedDepsCache.put(rule.getLabel(), allowedLabels);
+    }
+    return allowedLabels;
+  }
+
+  /**
+   * Returns the direct (reverse) deps of each of the given targets, filtered according to the
+   * query's dependency filter. Graph lookups are done in batches of {@link #BATCH_SIZE} targets,
+   * which are processed in parallel when there is more than one batch.
+   */
+  private Map<Target, Collection<Target>> getDepsByTarget(Iterable<Target> targets,
+      final boolean forward) {
+    List<Target> targetList = ImmutableSet.copyOf(targets).asList();
+    if (targetList.size() <= BATCH_SIZE || executor == null) {
+      return getDepsByTargetBatch(targetList, forward);
+    }
+    List<ListenableFuture<Map<Target, Collection<Target>>>> futures = new ArrayList<>();
+    for (final List<Target> batch : Lists.partition(targetList, BATCH_SIZE)) {
+      futures.add(executor.submit(new Callable<Map<Target, Collection<Target>>>() {
+        @Override
+        public Map<Target, Collection<Target>> call() {
+          return getDepsByTargetBatch(batch, forward);
+        }
+      }));
     }
+    Map<Target, Collection<Target>> result = Maps.newHashMapWithExpectedSize(targetList.size());
     try {
-      return getTarget(((Label) key.argument()));
-    } catch (QueryException | TargetNotFoundException e) {
-      // Any problems with targets were already reported during #buildTransitiveClosure.
-      return null;
+      for (Map<Target, Collection<Target>> batchResult : Uninterruptibles.getUninterruptibly(
+          MoreFutures.<Map<Target, Collection<Target>>>allAsListOrCancelAll(futures))) {
+        result.putAll(batchResult);
+      }
+    } catch (ExecutionException e) {
+      throw Throwables.propagate(e.getCause());
     }
+    return result;
   }
 
-  private Collection<Target> getRawFwdDeps(Target target) {
-    return makeTargets(graph.getDirectDeps(transformToKey(target)));
+  private Map<Target, Collection<Target>> getDepsByTargetBatch(List<Target> targets,
+      boolean forward) {
+    Map<SkyKey, Target> keyToTarget = Maps.newHashMapWithExpectedSize(targets.size());
+    for (Target target : targets) {
+      keyToTarget.put(transformToKey(target), target);
+    }
+    Map<SkyKey, Iterable<SkyKey>> keyToDepKeys = forward
+        ? graph.getDirectDeps(keyToTarget.keySet())
+        : graph.getReverseDeps(keyToTarget.keySet());
+    Map<SkyKey, Target> depKeyToTarget =
+        makeTargetsFromSkyKeys(Iterables.concat(keyToDepKeys.values()));
+    Map<Target, Collection<Target>> result = Maps.newHashMapWithExpectedSize(targets.size());
+    for (Map.Entry<SkyKey, Iterable<SkyKey>> entry : keyToDepKeys.entrySet()) {
+      Target target = keyToTarget.get(entry.getKey());
+      ImmutableSet.Builder<Target> deps = ImmutableSet.builder();
+      for (SkyKey depKey : entry.getValue()) {
+        Target dep = depKeyToTarget.get(depKey);
+        // Some values may be filtered out because they are not Targets.
+        if (dep != null && isAllowedEdge(forward ? target : dep, forward ? dep : target)) {
+          deps.add(dep);
+        }
+      }
+      result.put(target, deps.build());
+    }
+    return result;
   }
 
-  private Collection<Target> getRawReverseDeps(Target target) {
-    return makeTargets(graph.getReverseDeps(transformToKey(target)));
+  private boolean isAllowedEdge(Target from, Target to) {
+    return !(from instanceof Rule) || getAllowedDeps((Rule) from).contains(to.getLabel());
   }
 
-  private Set<Label> getAllowedDeps(Rule rule) {
-    Set<Label> allowedLabels = new HashSet<>(rule.getLabels(dependencyFilter));
-    allowedLabels.addAll(rule.getVisibility().getDependencyLabels());
-    // We should add deps from aspects, otherwise they are going to be filtered out.
-    allowedLabels.addAll(rule.getAspectLabelsSuperset(dependencyFilter));
-    return allowedLabels;
+  private Collection<Target> concatDeps(Iterable<Target> targets,
+      Map<Target, Collection<Target>> depsByTarget) {
+    List<Target> result = new ArrayList<>();
+    for (Target target : targets) {
+      result.addAll(depsByTarget.get(target));
+    }
+    return result;
   }
 
   @Override
   public Collection<Target> getFwdDeps(Target target) {
-    Collection<Target> unfilteredDeps = getRawFwdDeps(target);
-    if (!(target instanceof Rule)) {
-      return getRawFwdDeps(target);
-    }
-    final Set<Label> allowedLabels = getAllowedDeps((Rule) target);
-    return Collections2.filter(unfilteredDeps,
-        new Predicate<Target>() {
-          @Override
-          public boolean apply(Target target) {
-            return allowedLabels.contains(target.getLabel());
-          }
-        });
+    return getDepsByTarget(ImmutableList.of(target), /*forward=*/true).get(target);
   }
 
   @Override
-  public Collection<Target> getReverseDeps(final Target target) {
-    return Collections2.filter(getRawReverseDeps(target), new Predicate<Target>() {
-      @Override
-      public boolean apply(Target parent) {
-        return !(parent instanceof Rule)
-            || getAllowedDeps((Rule) parent).contains(target.getLabel());
-      }
-    });
+  public Collection<Target> getReverseDeps(Target target) {
+    return getDepsByTarget(ImmutableList.of(target), /*forward=*/false).get(target);
+  }
+
+  @Override
+  public Collection<Target> getFwdDeps(Iterable<Target> targets) {
+    return concatDeps(targets, getDepsByTarget(targets, /*forward=*/true));
   }
 
+  @Override
+  public Collection<Target> getReverseDeps(Iterable<Target> targets) {
+    return concatDeps(targets, getDepsByTarget(targets, /*forward=*/false));
+  }
+
+  // Implemented with a level-by-level breadth-first search, so that each level is fetched from the
+  // graph in as few batches as possible.
   @Override
   public Set<Target> getTransitiveClosure(Set<Target> targets) {
-    Set<Target> visited = new HashSet<>();
-    List<Target> result = new ArrayList<>(targets);
-    int i = 0;
-    while (i < result.size()) {
-      for (Target dep : getFwdDeps(result.get(i))) {
+    // Keep the breadth-first order, so that the results are deterministic.
+    Set<Target> visited = new LinkedHashSet<>(targets);
+    Collection<Target> current = targets;
+    while (!current.isEmpty()) {
+      List<Target> next = new ArrayList<>();
+      for (Target dep : getFwdDeps(current)) {
         if (visited.add(dep)) {
-          result.add(dep);
+          next.add(dep);
         }
       }
-      i++;
+      current = next;
     }
-    return ImmutableSet.copyOf(result);
+    return ImmutableSet.copyOf(visited);
   }
 
-  // Implemented with a breadth-first search.
+  // Implemented with a level-by-level breadth-first search.
   @Override
   public Set<Target> getNodesOnPath(Target from, Target to) {
     // Tree of nodes visited so far.
     Map<Target, Target> nodeToParent = new HashMap<>();
-    // Contains all nodes left to visit in a (LIFO) stack.
-    Deque<Target> toVisit = new ArrayDeque<>();
-    toVisit.add(from);
     nodeToParent.put(from, null);
-    while (!toVisit.isEmpty()) {
-      Target current = toVisit.removeFirst();
-      if (to.equals(current)) {
-        return ImmutableSet.copyOf(Digraph.getPathToTreeNode(nodeToParent, to));
-      }
-      for (Target dep : getFwdDeps(current)) {
-        if (!nodeToParent.containsKey(dep)) {
-          nodeToParent.put(dep, current);
-          toVisit.addFirst(dep);
+    if (from.equals(to)) {
+      return ImmutableSet.of(from);
+    }
+    Collection<Target> current = ImmutableList.of(from);
+    while (!current.isEmpty()) {
+      Map<Target, Collection<Target>> depsByTarget = getDepsByTarget(current, /*forward=*/true);
+      List<Target> next = new ArrayList<>();
+      for (Target node : current) {
+        for (Target dep : depsByTarget.get(node)) {
+          if (!nodeToParent.containsKey(dep)) {
+            nodeToParent.put(dep, node);
+            if (to.equals(dep)) {
+              return ImmutableSet.copyOf(Digraph.getPathToTreeNode(nodeToParent, to));
+            }
+            next.add(dep);
+          }
         }
       }
+      current = next;
     }
     // Note that the only current caller of this method checks first to see if there is a path
     // before calling this method. It is not clear what the return value should be here.
@@ -391,16 +484,48 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target> {
     return result;
   }
 
-  private Set<Target> makeTargets(Iterable<SkyKey> keys) {
-    ImmutableSet.Builder<Target> builder = ImmutableSet.builder();
+  /**
+   * Returns the targets corresponding to the given {@link TransitiveTargetValue} keys. Keys of
+   * other types, and keys whose targets are out of scope or could not be loaded, are omitted from
+   * the result. Packages are looked up in the graph as a single batch.
+   *
+   * @throws IllegalStateException if the package of one of the targets is not in the graph, which
+   *     would mean that the graph is inconsistent
+   */
+  private Map<SkyKey, Target> makeTargetsFromSkyKeys(Iterable<SkyKey> keys) {
+    Multimap<SkyKey, SkyKey> packageKeyToTargetKeys = HashMultimap.create();
     for (SkyKey key : keys) {
-      Target value = transformToValue(key);
-      if (value != null) {
-        // Some values may be filtered out because they are not Targets.
-        builder.add(value);
+      if (!key.functionName().equals(SkyFunctions.TRANSITIVE_TARGET)) {
+        continue;
+      }
+      Label label = (Label) key.argument();
+      if (!labelFilter.apply(label)) {
+        continue;
+      }
+      packageKeyToTargetKeys.put(PackageValue.key(label.getPackageIdentifier()), key);
+    }
+    Map<SkyKey, SkyValue> packageValues =
+        graph.getSuccessfulValues(packageKeyToTargetKeys.keySet());
+    for (SkyKey packageKey : packageKeyToTargetKeys.keySet()) {
+      // Packages that failed to load were already reported during #buildTransitiveClosure, but a
+      // target whose package is not in the graph at all cannot have been.
+      if (!packageValues.containsKey(packageKey) && !graph.exists(packageKey)) {
+        throw new IllegalStateException("Package " + packageKey.argument() + " of "
+            + packageKeyToTargetKeys.get(packageKey) + " is not in the graph");
       }
     }
-    return builder.build();
+    Map<SkyKey, Target> result = new HashMap<>();
+    for (Map.Entry<SkyKey, SkyValue> entry : packageValues.entrySet()) {
+      Package pkg = ((PackageValue) entry.getValue()).getPackage();
+      for (SkyKey targetKey : packageKeyToTargetKeys.get(entry.getKey())) {
+        try {
+          result.put(targetKey, pkg.getTarget(((Label) targetKey.argument()).getName()));
+        } catch (NoSuchTargetException e) {
+          // Any problems with targets were already reported during #buildTransitiveClosure.
+        }
+      }
+    }
+    return result;
   }
 
   private void checkExistence(SkyKey key) throws QueryException {
@@ -19,8 +19,9 @@ import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Argument;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.ArgumentType;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 
@@ -65,17 +66,19 @@ public class AllPathsFunction implements QueryFunction {
 
     Set<T> reachableFromX = env.getTransitiveClosure(fromValue);
     Set<T> result = intersection(reachableFromX, toValue);
-    LinkedList<T> worklist = new LinkedList<>(result);
+    Collection<T> worklist = new ArrayList<>(result);
 
-    T n;
-    while ((n = worklist.poll()) != null) {
-      for (T np : env.getReverseDeps(n)) {
+    // Expand the worklist one level at a time so that the environment can batch its graph lookups.
+    while (!worklist.isEmpty()) {
+      List<T> next = new ArrayList<>();
+      for (T np : env.getReverseDeps(worklist)) {
         if (reachableFromX.contains(np)) {
           if (result.add(np)) {
-            worklist.add(np);
+            next.add(np);
           }
         }
       }
+      worklist = next;
     }
     return result;
   }
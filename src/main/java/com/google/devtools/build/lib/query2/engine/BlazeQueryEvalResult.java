@@ -16,7 +16,11 @@ package com.google.devtools.build.lib.query2.engine;
 
 import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.graph.Digraph;
+import com.google.devtools.build.lib.graph.Node;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
 
 /** {@link QueryEvalResult} along with a digraph giving the structure of the results. */
@@ -33,4 +37,17 @@ public class BlazeQueryEvalResult<T> extends QueryEvalResult<T> {
   public Digraph<T> getResultGraph() {
     return graph.extractSubgraph(resultSet);
   }
+
+  /**
+   * Returns the elements of the result in the topological order of {@link #getResultGraph},
+   * without extracting the result graph from the possibly much larger graph that was walked to
+   * evaluate the query.
+   */
+  public List<T> getOrderedResult(Comparator<T> edgeOrder) {
+    List<T> result = new ArrayList<>();
+    for (Node<T> node : graph.getTopologicalOrder(resultSet, edgeOrder)) {
+      result.add(node.getLabel());
+    }
+    return result;
+  }
 }
@@ -65,17 +65,16 @@ final class DepsFunction implements QueryFunction {
 
     // We need to iterate depthBound + 1 times.
     for (int i = 0; i <= depthBound; i++) {
-      List<T> next = new ArrayList<>();
+      List<T> toVisit = new ArrayList<>();
       for (T node : current) {
-        if (!visited.add(node)) {
-          // Already visited; if we see a node in a later round, then we don't need to visit it
-          // again, because the depth at which we see it at must be greater than or equal to the
-          // last visit.
-          continue;
+        // If a node was already visited, we don't need to visit it again, because the depth at
+        // which we see it at must be greater than or equal to the last visit.
+        if (visited.add(node)) {
+          toVisit.add(node);
         }
-
-        next.addAll(env.getFwdDeps(node));
       }
+      // Fetch the whole level at once so that the environment can batch its graph lookups.
+      Collection<T> next = env.getFwdDeps(toVisit);
       if (next.isEmpty()) {
         // Exit when there are no more nodes to visit.
         break;
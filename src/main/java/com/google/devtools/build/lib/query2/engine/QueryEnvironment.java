@@ -158,6 +158,20 @@ public interface QueryEnvironment<T> {
   /** Returns the direct reverse dependencies of the specified target. */
   Collection<T> getReverseDeps(T target);
 
+  /**
+   * Returns the direct forward dependencies of all of the specified targets. Environments that
+   * can fetch dependencies in bulk should override this to do so; the result may contain
+   * duplicates if several targets share a dependency.
+   */
+  Collection<T> getFwdDeps(Iterable<T> targets);
+
+  /**
+   * Returns the direct reverse dependencies of all of the specified targets. Environments that
+   * can fetch dependencies in bulk should override this to do so; the result may contain
+   * duplicates if several targets share a reverse dependency.
+   */
+  Collection<T> getReverseDeps(Iterable<T> targets);
+
   /**
    * Returns the forward transitive closure of all of the targets in
    * "targets".  Callers must ensure that {@link #buildTransitiveClosure}
@@ -71,7 +71,7 @@ final class RdepsFunction implements QueryFunction {
 
     // We need to iterate depthBound + 1 times.
     for (int i = 0; i <= depthBound; i++) {
-      List<T> next = new ArrayList<>();
+      List<T> toVisit = new ArrayList<>();
       for (T node : current) {
         if (!reachableFromUniverse.contains(node)) {
           // Traversed outside the transitive closure of the universe.
@@ -85,8 +85,10 @@ final class RdepsFunction implements QueryFunction {
           continue;
         }
 
-        next.addAll(env.getReverseDeps(node));
+        toVisit.add(node);
       }
+      // Fetch the whole level at once so that the environment can batch its graph lookups.
+      Collection<T> next = env.getReverseDeps(toVisit);
       if (next.isEmpty()) {
         // Exit when there are no more nodes to visit.
         break;
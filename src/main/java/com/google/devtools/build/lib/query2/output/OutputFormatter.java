@@ -64,6 +64,7 @@ public abstract class OutputFormatter implements Serializable {
     GRAPH,
     XML,
     PROTO,
+    STREAMED_PROTO,
     RECORD,
   }
 
@@ -102,7 +103,8 @@ public abstract class OutputFormatter implements Serializable {
         new LocationOutputFormatter(),
         new GraphOutputFormatter(),
         new XmlOutputFormatter(),
-        new ProtoOutputFormatter());
+        new ProtoOutputFormatter(),
+        new StreamedProtoOutputFormatter());
   }
 
   public static String formatterNames(Iterable<OutputFormatter> formatters) {
@@ -161,6 +163,15 @@ public abstract class OutputFormatter implements Serializable {
         AspectResolver aspectResolver) throws IOException, InterruptedException;
   }
 
+  /**
+   * Returns the targets of the given result graph in a topological order that is deterministic
+   * with respect to the labels of the targets.
+   */
+  protected static Iterable<Target> getOrderedTargets(Digraph<Target> result) {
+    return Iterables.transform(
+        result.getTopologicalOrder(new TargetOrdering()), EXTRACT_NODE_LABEL);
+  }
+
   /**
    * Returns the user-visible name of the output formatter.
    */
@@ -198,9 +209,7 @@ public abstract class OutputFormatter implements Serializable {
     @Override
     public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
         AspectResolver aspectResolver) {
-      Iterable<Target> ordered = Iterables.transform(
-          result.getTopologicalOrder(new TargetOrdering()), EXTRACT_NODE_LABEL);
-      outputUnordered(options, ordered, out, aspectResolver);
+      outputUnordered(options, getOrderedTargets(result), out, aspectResolver);
     }
   }
 
@@ -240,9 +249,7 @@ public abstract class OutputFormatter implements Serializable {
     @Override
     public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
         AspectResolver aspectResolver) {
-      Iterable<Target> ordered = Iterables.transform(
-          result.getTopologicalOrder(new TargetOrdering()), EXTRACT_NODE_LABEL);
-      outputUnordered(options, ordered, out, aspectResolver);
+      outputUnordered(options, getOrderedTargets(result), out, aspectResolver);
     }
   }
 
@@ -271,9 +278,7 @@ public abstract class OutputFormatter implements Serializable {
     @Override
     public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
         AspectResolver aspectResolver) {
-      Iterable<Target> ordered = Iterables.transform(
-          result.getTopologicalOrder(new TargetOrdering()), EXTRACT_NODE_LABEL);
-      outputUnordered(options, ordered, out, aspectResolver);
+      outputUnordered(options, getOrderedTargets(result), out, aspectResolver);
     }
   }
 
@@ -332,9 +337,7 @@ public abstract class OutputFormatter implements Serializable {
     @Override
     public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
         AspectResolver aspectResolver) {
-      Iterable<Target> ordered = Iterables.transform(
-          result.getTopologicalOrder(new TargetOrdering()), EXTRACT_NODE_LABEL);
-      outputUnordered(options, ordered, out, aspectResolver);
+      outputUnordered(options, getOrderedTargets(result), out, aspectResolver);
     }
   }
 
@@ -38,6 +38,7 @@ import com.google.devtools.build.lib.query2.proto.proto2api.Build;
 import com.google.devtools.build.lib.syntax.Label;
 import com.google.devtools.build.lib.syntax.SkylarkEnvironment;
 import com.google.devtools.build.lib.util.BinaryPredicate;
+import com.google.protobuf.CodedOutputStream;
 
 import java.io.IOException;
 import java.io.PrintStream;
@@ -51,6 +52,9 @@ import java.util.Set;
  * of a query result and outputs the proto bytes to the output print stream.
  * By taking the bytes and calling {@code mergeFrom()} on a
  * {@code Build.QueryResult} object the full result can be reconstructed.
+ *
+ * <p>Targets are serialized and written one at a time, so memory use does not grow with the size
+ * of the result.
  */
 public class ProtoOutputFormatter extends OutputFormatter implements UnorderedFormatter {
 
@@ -72,19 +76,28 @@ public class ProtoOutputFormatter extends OutputFormatter implements UnorderedFo
     return "proto";
   }
 
+  /**
+   * Records the options and aspect resolver used by {@link #toTargetProtoBuffer}.
+   */
+  protected void setOptions(QueryOptions options, AspectResolver aspectResolver) {
+    this.relativeLocations = options.relativeLocations;
+    this.aspectResolver = aspectResolver;
+    setDependencyFilter(options);
+  }
+
   @Override
   public void outputUnordered(QueryOptions options, Iterable<Target> result, PrintStream out,
       AspectResolver aspectResolver) throws IOException, InterruptedException {
-    relativeLocations = options.relativeLocations;
-    this.aspectResolver = aspectResolver;
-    setDependencyFilter(options);
+    setOptions(options, aspectResolver);
 
-    Build.QueryResult.Builder queryResult = Build.QueryResult.newBuilder();
+    // Writing each target as one occurrence of the repeated QueryResult.target field produces
+    // exactly the bytes of a serialized Build.QueryResult, without having to hold the messages
+    // for all of the targets in memory at once.
+    CodedOutputStream codedOut = CodedOutputStream.newInstance(out);
     for (Target target : result) {
-      addTarget(queryResult, target);
+      codedOut.writeMessage(Build.QueryResult.TARGET_FIELD_NUMBER, toTargetProtoBuffer(target));
     }
-
-    queryResult.build().writeTo(out);
+    codedOut.flush();
   }
 
   @Override
@@ -93,17 +106,6 @@ public class ProtoOutputFormatter extends OutputFormatter implements UnorderedFo
     outputUnordered(options, result.getLabels(), out, aspectResolver);
   }
 
-  /**
-   * Add the target to the query result.
-   * @param queryResult The query result that contains all rule, input and
-   *   output targets.
-   * @param target The query target being converted to a protocol buffer.
-   */
-  private void addTarget(Build.QueryResult.Builder queryResult, Target target)
-      throws InterruptedException {
-    queryResult.addTarget(toTargetProtoBuffer(target));
-  }
-
   /**
    * Converts a logical Target object into a Target protobuffer.
    */
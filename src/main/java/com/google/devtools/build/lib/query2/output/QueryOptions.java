@@ -39,7 +39,7 @@ public class QueryOptions extends OptionsBase {
       category = "query",
       help = "The format in which the query results should be printed."
           + " Allowed values are: label, label_kind, minrank, maxrank, package, location, graph,"
-          + " xml, proto, record.")
+          + " xml, proto, streamed_proto, record.")
   public String outputFormat;
 
   @Option(name = "order_results",
@@ -47,7 +47,7 @@ public class QueryOptions extends OptionsBase {
       category = "query",
       help = "Output the results in dependency-ordered (default) or unordered fashion. The"
           + " unordered output is faster but only supported when --output is one of label,"
-          + " label_kind, location, package, proto, record, xml.")
+          + " label_kind, location, package, proto, streamed_proto, record, xml.")
   public boolean orderResults;
 
   @Option(name = "keep_going",
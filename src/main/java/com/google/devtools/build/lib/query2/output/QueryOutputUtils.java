@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.query2.output;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.query2.engine.BlazeQueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
+import com.google.devtools.build.lib.query2.output.OutputFormatter.TargetOrdering;
 import com.google.devtools.build.lib.query2.output.OutputFormatter.UnorderedFormatter;
 
 import java.io.IOException;
@@ -33,7 +34,13 @@ public class QueryOutputUtils {
   public static void output(QueryOptions queryOptions, QueryEvalResult<Target> result,
       OutputFormatter formatter, PrintStream outputStream, AspectResolver aspectResolver)
       throws IOException, InterruptedException {
-    if (orderResults(queryOptions, formatter)) {
+    if (orderResults(queryOptions, formatter) && formatter instanceof UnorderedFormatter) {
+      // The formatter only needs the order of the results, which is computed without extracting
+      // the result graph.
+      ((UnorderedFormatter) formatter).outputUnordered(queryOptions,
+          ((BlazeQueryEvalResult<Target>) result).getOrderedResult(new TargetOrdering()),
+          outputStream, aspectResolver);
+    } else if (orderResults(queryOptions, formatter)) {
       formatter.output(queryOptions, ((BlazeQueryEvalResult<Target>) result).getResultGraph(),
           outputStream, aspectResolver);
     } else {
@@ -0,0 +1,43 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import com.google.devtools.build.lib.packages.Target;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * An output formatter that outputs a stream of length-delimited {@code Build.Target} protocol
+ * buffers, one per target in the query result. Each record can be read back with
+ * {@code Build.Target.parseDelimitedFrom()}, so consumers can process the result incrementally
+ * instead of parsing a single {@code Build.QueryResult} message.
+ */
+class StreamedProtoOutputFormatter extends ProtoOutputFormatter {
+
+  @Override
+  public String getName() {
+    return "streamed_proto";
+  }
+
+  @Override
+  public void outputUnordered(QueryOptions options, Iterable<Target> result, PrintStream out,
+      AspectResolver aspectResolver) throws IOException, InterruptedException {
+    setOptions(options, aspectResolver);
+    for (Target target : result) {
+      toTargetProtoBuffer(target).writeDelimitedTo(out);
+    }
+    out.flush();
+  }
+}
@@ -13,6 +13,10 @@
 // limitations under the License.
 package com.google.devtools.build.lib.query2.output;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.graph.Digraph;
@@ -31,31 +35,36 @@ import com.google.devtools.build.lib.syntax.Label;
 import com.google.devtools.build.lib.util.BinaryPredicate;
 import com.google.devtools.build.lib.util.Pair;
 
-import org.w3c.dom.DOMException;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-
+import java.io.BufferedWriter;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.TransformerFactoryConfigurationError;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 /**
- * An output formatter that prints the result as XML.
+ * An output formatter that prints the result as XML. Each target is written to the output stream
+ * with an {@link XMLStreamWriter} as soon as it is reached, so memory use does not grow with the
+ * size of the result.
+ *
+ * <p>The layout is the one of the DOM serializer that this formatter used to print a whole
+ * document with: attributes sorted by name, four spaces of indentation per level, and empty
+ * elements written as {@code <element/>}.
  */
 class XmlOutputFormatter extends OutputFormatter implements OutputFormatter.UnorderedFormatter {
 
+  private static final String XML_DECLARATION =
+      "<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>";
+
   private boolean xmlLineNumbers;
   private boolean showDefaultValues;
   private boolean relativeLocations;
@@ -69,47 +78,39 @@ class XmlOutputFormatter extends OutputFormatter implements OutputFormatter.Unor
 
   @Override
   public void outputUnordered(QueryOptions options, Iterable<Target> result, PrintStream out,
-      AspectResolver aspectResolver) throws InterruptedException {
+      AspectResolver aspectResolver) throws IOException, InterruptedException {
     this.xmlLineNumbers = options.xmlLineNumbers;
     this.showDefaultValues = options.xmlShowDefaultValues;
     this.relativeLocations = options.relativeLocations;
     this.dependencyFilter = OutputFormatter.getDependencyFilter(options);
     this.aspectResolver = aspectResolver;
-    Document doc;
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8));
+    writer.write(XML_DECLARATION);
+    writer.write('\n');
     try {
-      DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-      doc = factory.newDocumentBuilder().newDocument();
-    } catch (ParserConfigurationException e) {
-      // This shouldn't be possible: all the configuration is hard-coded.
-      throw new IllegalStateException("XML output failed",  e);
-    }
-    doc.setXmlVersion("1.1");
-    Element queryElem = doc.createElement("query");
-    queryElem.setAttribute("version", "2");
-    doc.appendChild(queryElem);
-    for (Target target : result) {
-      queryElem.appendChild(createTargetElement(doc, target));
-    }
-    try {
-      Transformer transformer = TransformerFactory.newInstance().newTransformer();
-      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-      transformer.transform(new DOMSource(doc), new StreamResult(out));
-    } catch (TransformerFactoryConfigurationError | TransformerException e) {
-      // This shouldn't be possible: all the configuration is hard-coded.
-      throw new IllegalStateException("XML output failed",  e);
+      ElementWriter xml = new ElementWriter(XMLOutputFactory.newInstance()
+          .createXMLStreamWriter(new AttributeValueEscaper(writer)));
+      xml.startElement("query");
+      xml.attribute("version", "2");
+      for (Target target : result) {
+        writeTargetElement(xml, target);
+      }
+      xml.endElement();
+      xml.finish();
+    } catch (XMLStreamException e) {
+      throw new IOException("XML output failed", e);
     }
+    writer.flush();
   }
 
   @Override
   public void output(QueryOptions options, Digraph<Target> result, PrintStream out,
-      AspectResolver aspectResolver) throws InterruptedException {
-    Iterable<Target> ordered = Iterables.transform(
-        result.getTopologicalOrder(new TargetOrdering()), OutputFormatter.EXTRACT_NODE_LABEL);
-    outputUnordered(options, ordered, out, aspectResolver);
+      AspectResolver aspectResolver) throws IOException, InterruptedException {
+    outputUnordered(options, getOrderedTargets(result), out, aspectResolver);
   }
 
   /**
-   * Creates and returns a new DOM tree for the specified build target.
+   * Writes the element for the specified build target.
    *
    * XML structure:
    * - element tag is &lt;source-file>, &lt;generated-file> or &lt;rule
@@ -117,22 +118,18 @@ class XmlOutputFormatter extends OutputFormatter implements OutputFormatter.Unor
    *   {@link Target#getTargetKind()}.
    * - 'name' attribute is target's label.
    * - 'location' attribute is consistent with output of --output location.
-   * - rule attributes are represented in the DOM structure.
-   * @throws InterruptedException 
+   * - rule attributes are represented as child elements.
    */
-  private Element createTargetElement(Document doc, Target target)
-      throws InterruptedException {
-    Element elem;
+  private void writeTargetElement(ElementWriter xml, Target target)
+      throws InterruptedException, XMLStreamException {
     if (target instanceof Rule) {
       Rule rule = (Rule) target;
-      elem = doc.createElement("rule");
-      elem.setAttribute("class", rule.getRuleClass());
+      startTargetElement(xml, "rule", target);
+      xml.attribute("class", rule.getRuleClass());
       for (Attribute attr: rule.getAttributes()) {
         Pair<Iterable<Object>, AttributeValueSource> values = getAttributeValues(rule, attr);
         if (values.second == AttributeValueSource.RULE || showDefaultValues) {
-          Element attrElem = createValueElement(doc, attr.getType(), values.first);
-          attrElem.setAttribute("name", attr.getName());
-          elem.appendChild(attrElem);
+          writeValueElement(xml, attr.getName(), attr.getType(), values.first);
         }
       }
 
@@ -141,75 +138,62 @@ class XmlOutputFormatter extends OutputFormatter implements OutputFormatter.Unor
       // may also (depending on options) include implicit outputs,
       // host-configuration outputs, and default values.
       for (Label label : rule.getLabels(dependencyFilter)) {
-        Element inputElem = doc.createElement("rule-input");
-        inputElem.setAttribute("name", label.toString());
-        elem.appendChild(inputElem);
+        writeNamedElement(xml, "rule-input", label.toString());
       }
       for (Label label : aspectResolver.computeAspectDependencies(target).values()) {
-        Element inputElem = doc.createElement("rule-input");
-        inputElem.setAttribute("name", label.toString());
-        elem.appendChild(inputElem);
+        writeNamedElement(xml, "rule-input", label.toString());
       }
       for (OutputFile outputFile: rule.getOutputFiles()) {
-        Element outputElem = doc.createElement("rule-output");
-        outputElem.setAttribute("name", outputFile.getLabel().toString());
-        elem.appendChild(outputElem);
+        writeNamedElement(xml, "rule-output", outputFile.getLabel().toString());
       }
       for (String feature : rule.getFeatures()) {
-        Element outputElem = doc.createElement("rule-default-setting");
-        outputElem.setAttribute("name", feature);
-        elem.appendChild(outputElem);
+        writeNamedElement(xml, "rule-default-setting", feature);
       }
     } else if (target instanceof PackageGroup) {
       PackageGroup packageGroup = (PackageGroup) target;
-      elem = doc.createElement("package-group");
-      elem.setAttribute("name", packageGroup.getName());
-      Element includes = createValueElement(doc,
+      startTargetElement(xml, "package-group", target);
+      writeValueElement(xml, "includes",
           com.google.devtools.build.lib.packages.Type.LABEL_LIST,
           packageGroup.getIncludes());
-      includes.setAttribute("name", "includes");
-      elem.appendChild(includes);
-      Element packages = createValueElement(doc,
+      writeValueElement(xml, "packages",
           com.google.devtools.build.lib.packages.Type.STRING_LIST,
           packageGroup.getContainedPackages());
-      packages.setAttribute("name", "packages");
-      elem.appendChild(packages);
     } else if (target instanceof OutputFile) {
       OutputFile outputFile = (OutputFile) target;
-      elem = doc.createElement("generated-file");
-      elem.setAttribute("generating-rule",
-                        outputFile.getGeneratingRule().getLabel().toString());
+      startTargetElement(xml, "generated-file", target);
+      xml.attribute("generating-rule", outputFile.getGeneratingRule().getLabel().toString());
     } else if (target instanceof InputFile) {
-      elem = doc.createElement("source-file");
+      startTargetElement(xml, "source-file", target);
       InputFile inputFile = (InputFile) target;
       if (inputFile.getName().equals("BUILD")) {
-        addSubincludedFilesToElement(doc, elem, inputFile);
-        addSkylarkFilesToElement(doc, elem, inputFile);
-        addFeaturesToElement(doc, elem, inputFile);
+        writeSubincludedFiles(xml, inputFile);
+        writeSkylarkFiles(xml, inputFile);
+        writeFeatures(xml, inputFile);
       }
 
-      addPackageGroupsToElement(doc, elem, inputFile);
+      writePackageGroups(xml, inputFile);
     } else if (target instanceof EnvironmentGroup) {
       EnvironmentGroup envGroup = (EnvironmentGroup) target;
-      elem = doc.createElement("environment-group");
-      elem.setAttribute("name", envGroup.getName());
-      Element environments = createValueElement(doc,
+      startTargetElement(xml, "environment-group", target);
+      writeValueElement(xml, "environments",
           com.google.devtools.build.lib.packages.Type.LABEL_LIST,
           envGroup.getEnvironments());
-      environments.setAttribute("name", "environments");
-      elem.appendChild(environments);
-      Element defaults = createValueElement(doc,
+      writeValueElement(xml, "defaults",
           com.google.devtools.build.lib.packages.Type.LABEL_LIST,
           envGroup.getDefaults());
-      defaults.setAttribute("name", "defaults");
-      elem.appendChild(defaults);
     } else if (target instanceof FakeSubincludeTarget) {
-      elem = doc.createElement("source-file");
+      startTargetElement(xml, "source-file", target);
     } else {
       throw new IllegalArgumentException(target.toString());
     }
+    xml.endElement();
+  }
 
-    elem.setAttribute("name", target.getLabel().toString());
+  /** Starts the element of a target and writes its 'name' and 'location' attributes. */
+  private void startTargetElement(ElementWriter xml, String name, Target target)
+      throws XMLStreamException {
+    xml.startElement(name);
+    xml.attribute("name", target.getLabel().toString());
     String location = getLocation(target, relativeLocations);
     if (!xmlLineNumbers) {
       int firstColon = location.indexOf(':');
@@ -218,71 +202,69 @@ class XmlOutputFormatter extends OutputFormatter implements OutputFormatter.Unor
       }
     }
 
-    elem.setAttribute("location", location);
-    return elem;
+    xml.attribute("location", location);
+  }
+
+  /** Writes an element without children whose only attribute is 'name'. */
+  private static void writeNamedElement(ElementWriter xml, String elementName, String name)
+      throws XMLStreamException {
+    xml.startElement(elementName);
+    xml.attribute("name", name);
+    xml.endElement();
   }
 
-  private void addPackageGroupsToElement(Document doc, Element parent, Target target) {
+  private void writePackageGroups(ElementWriter xml, Target target) throws XMLStreamException {
     for (Label visibilityDependency : target.getVisibility().getDependencyLabels()) {
-      Element elem = doc.createElement("package-group");
-      elem.setAttribute("name", visibilityDependency.toString());
-      parent.appendChild(elem);
+      writeNamedElement(xml, "package-group", visibilityDependency.toString());
     }
 
     for (Label visibilityDeclaration : target.getVisibility().getDeclaredLabels()) {
-      Element elem = doc.createElement("visibility-label");
-      elem.setAttribute("name", visibilityDeclaration.toString());
-      parent.appendChild(elem);
+      writeNamedElement(xml, "visibility-label", visibilityDeclaration.toString());
     }
   }
 
-  private void addFeaturesToElement(Document doc, Element parent, InputFile inputFile) {
+  private void writeFeatures(ElementWriter xml, InputFile inputFile) throws XMLStreamException {
     for (String feature : inputFile.getPackage().getFeatures()) {
-      Element elem = doc.createElement("feature");
-      elem.setAttribute("name", feature);
-      parent.appendChild(elem);
+      writeNamedElement(xml, "feature", feature);
     }
   }
 
-  private void addSubincludedFilesToElement(Document doc, Element parent, InputFile inputFile)
-      throws InterruptedException {
+  private void writeSubincludedFiles(ElementWriter xml, InputFile inputFile)
+      throws InterruptedException, XMLStreamException {
     Iterable<Label> dependencies = aspectResolver.computeBuildFileDependencies(
             inputFile.getPackage(), BuildFileDependencyMode.SUBINCLUDE);
 
     for (Label subinclude : dependencies) {
-      Element elem = doc.createElement("subinclude");
-      elem.setAttribute("name", subinclude.toString());
-      parent.appendChild(elem);
+      writeNamedElement(xml, "subinclude", subinclude.toString());
     }
   }
 
-  private void addSkylarkFilesToElement(Document doc, Element parent, InputFile inputFile)
-      throws InterruptedException {
+  private void writeSkylarkFiles(ElementWriter xml, InputFile inputFile)
+      throws InterruptedException, XMLStreamException {
     Iterable<Label> dependencies = aspectResolver.computeBuildFileDependencies(
         inputFile.getPackage(), BuildFileDependencyMode.SKYLARK);
 
     for (Label skylarkFileDep : dependencies) {
-      Element elem = doc.createElement("load");
-      elem.setAttribute("name", skylarkFileDep.toString());
-      parent.appendChild(elem);
+      writeNamedElement(xml, "load", skylarkFileDep.toString());
     }
   }
 
   /**
-   * Creates and returns a new DOM tree for the specified attribute values.
-   * For non-configurable attributes, this is a single value. For configurable
-   * attributes, this contains one value for each configuration.
+   * Writes the element for the specified attribute values, with a 'name' attribute unless
+   * {@code name} is null. For non-configurable attributes, this is a single value. For
+   * configurable attributes, this contains one value for each configuration.
    * (Only toplevel values are named attributes; list elements are unnamed.)
    *
    * <p>In the case of configurable attributes, multi-value attributes (e.g. lists)
    * merge all configured lists into an aggregate flattened list. Single-value attributes
-   * simply refrain to set a value and annotate the DOM element as configurable.
+   * simply refrain to set a value and annotate the element as configurable.
    *
    * <P>(The ungainly qualified class name is required to avoid ambiguity with
    * OutputFormatter.Type.)
    */
-  private static Element createValueElement(Document doc,
-      com.google.devtools.build.lib.packages.Type<?> type, Iterable<Object> values) {
+  private static void writeValueElement(ElementWriter xml, String name,
+      com.google.devtools.build.lib.packages.Type<?> type, Iterable<Object> values)
+      throws XMLStreamException {
     // "Import static" with method scope:
     com.google.devtools.build.lib.packages.Type<?>
         FILESET_ENTRY = com.google.devtools.build.lib.packages.Type.FILESET_ENTRY,
@@ -290,99 +272,206 @@ class XmlOutputFormatter extends OutputFormatter implements OutputFormatter.Unor
         LICENSE       = com.google.devtools.build.lib.packages.Type.LICENSE,
         STRING_LIST   = com.google.devtools.build.lib.packages.Type.STRING_LIST;
 
-    final Element elem;
     final boolean hasMultipleValues = Iterables.size(values) > 1;
     com.google.devtools.build.lib.packages.Type<?> elemType = type.getListElementType();
     if (elemType != null) { // it's a list (includes "distribs")
-      elem = doc.createElement("list");
+      startValueElement(xml, "list", name);
       for (Object value : values) {
         for (Object elemValue : (Collection<?>) value) {
-          elem.appendChild(createValueElement(doc, elemType, elemValue));
+          writeValueElement(xml, null, elemType, elemValue);
         }
       }
     } else if (type instanceof com.google.devtools.build.lib.packages.Type.DictType) {
       Set<Object> visitedValues = new HashSet<>();
-      elem = doc.createElement("dict");
+      startValueElement(xml, "dict", name);
       com.google.devtools.build.lib.packages.Type.DictType<?, ?> dictType =
           (com.google.devtools.build.lib.packages.Type.DictType<?, ?>) type;
       for (Object value : values) {
         for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
           if (visitedValues.add(entry.getKey())) {
-            Element pairElem = doc.createElement("pair");
-            elem.appendChild(pairElem);
-            pairElem.appendChild(createValueElement(doc,
-                    dictType.getKeyType(), entry.getKey()));
-            pairElem.appendChild(createValueElement(doc,
-                    dictType.getValueType(), entry.getValue()));
+            xml.startElement("pair");
+            writeValueElement(xml, null, dictType.getKeyType(), entry.getKey());
+            writeValueElement(xml, null, dictType.getValueType(), entry.getValue());
+            xml.endElement();
           }
         }
       }
     } else if (type == LICENSE) {
-      elem = createSingleValueElement(doc, "license", hasMultipleValues);
+      startSingleValueElement(xml, "license", name, hasMultipleValues);
       if (!hasMultipleValues) {
         License license = (License) Iterables.getOnlyElement(values);
-
-        Element exceptions = createValueElement(doc, LABEL_LIST, license.getExceptions());
-        exceptions.setAttribute("name", "exceptions");
-        elem.appendChild(exceptions);
-
-        Element licenseTypes = createValueElement(doc, STRING_LIST, license.getLicenseTypes());
-        licenseTypes.setAttribute("name", "license-types");
-        elem.appendChild(licenseTypes);
+        writeValueElement(xml, "exceptions", LABEL_LIST, license.getExceptions());
+        writeValueElement(xml, "license-types", STRING_LIST, license.getLicenseTypes());
       }
     } else if (type == FILESET_ENTRY) {
       // Fileset entries: not configurable.
       FilesetEntry filesetEntry = (FilesetEntry) Iterables.getOnlyElement(values);
-      elem = doc.createElement("fileset-entry");
-      elem.setAttribute("srcdir",  filesetEntry.getSrcLabel().toString());
-      elem.setAttribute("destdir",  filesetEntry.getDestDir().toString());
-      elem.setAttribute("symlinks", filesetEntry.getSymlinkBehavior().toString());
-      elem.setAttribute("strip_prefix", filesetEntry.getStripPrefix());
+      startValueElement(xml, "fileset-entry", name);
+      xml.attribute("srcdir",  filesetEntry.getSrcLabel().toString());
+      xml.attribute("destdir",  filesetEntry.getDestDir().toString());
+      xml.attribute("symlinks", filesetEntry.getSymlinkBehavior().toString());
+      xml.attribute("strip_prefix", filesetEntry.getStripPrefix());
 
       if (filesetEntry.getExcludes() != null) {
-        Element excludes =
-            createValueElement(doc, LABEL_LIST, filesetEntry.getExcludes());
-        excludes.setAttribute("name", "excludes");
-        elem.appendChild(excludes);
+        writeValueElement(xml, "excludes", LABEL_LIST, filesetEntry.getExcludes());
       }
       if (filesetEntry.getFiles() != null) {
-        Element files = createValueElement(doc, LABEL_LIST, filesetEntry.getFiles());
-        files.setAttribute("name", "files");
-        elem.appendChild(files);
+        writeValueElement(xml, "files", LABEL_LIST, filesetEntry.getFiles());
       }
     } else { // INTEGER STRING LABEL DISTRIBUTION OUTPUT
-      elem = createSingleValueElement(doc, type.toString(), hasMultipleValues);
+      startSingleValueElement(xml, type.toString(), name, hasMultipleValues);
       if (!hasMultipleValues && !Iterables.isEmpty(values)) {
         Object value = Iterables.getOnlyElement(values);
         // Values such as those of attribute "linkstamp" may be null.
         if (value != null) {
-          try {
-            elem.setAttribute("value", value.toString());
-          } catch (DOMException e) {
-            elem.setAttribute("value", "[[[ERROR: could not be encoded as XML]]]");
-          }
+          xml.attribute("value", value.toString());
         }
       }
     }
-    return elem;
+    xml.endElement();
+  }
+
+  private static void writeValueElement(ElementWriter xml, String name,
+      com.google.devtools.build.lib.packages.Type<?> type, Object value)
+      throws XMLStreamException {
+    writeValueElement(xml, name, type, ImmutableList.of(value));
   }
 
-  private static Element createValueElement(Document doc,
-        com.google.devtools.build.lib.packages.Type<?> type, Object value) {
-    return createValueElement(doc, type, ImmutableList.of(value));
+  private static void startValueElement(ElementWriter xml, String elementName, String name)
+      throws XMLStreamException {
+    xml.startElement(elementName);
+    if (name != null) {
+      xml.attribute("name", name);
+    }
   }
 
   /**
-   * Creates the given DOM element, adding <code>configurable="yes"</code> if it represents
+   * Starts the given element, adding <code>configurable="yes"</code> if it represents
    * a configurable single-value attribute (configurable list attributes simply have their
    * lists merged into an aggregate flat list).
    */
-  private static Element createSingleValueElement(Document doc, String name,
-      boolean configurable) {
-    Element elem = doc.createElement(name);
+  private static void startSingleValueElement(ElementWriter xml, String elementName, String name,
+      boolean configurable) throws XMLStreamException {
+    startValueElement(xml, elementName, name);
     if (configurable) {
-      elem.setAttribute("configurable", "yes");
+      xml.attribute("configurable", "yes");
+    }
+  }
+
+  /**
+   * Writes indented elements to an {@link XMLStreamWriter}. The start tag of an element is held
+   * back until its first child or its end, so that its attributes can be written in order of
+   * their names and an element without children can be written as an empty element.
+   */
+  private static final class ElementWriter {
+    private static final String INDENT = "    ";
+
+    private final XMLStreamWriter writer;
+    private final Map<String, String> pendingAttributes = new TreeMap<>();
+    private String pendingElement;
+    private int depth = 0;
+
+    ElementWriter(XMLStreamWriter writer) {
+      this.writer = writer;
+    }
+
+    /** Starts a child of the current element, or the root element. */
+    void startElement(String name) throws XMLStreamException {
+      writePendingStartTag();
+      if (depth > 0) {
+        writer.writeCharacters("\n" + Strings.repeat(INDENT, depth));
+      }
+      pendingElement = name;
+      depth++;
+    }
+
+    /** Sets an attribute of the element that was started last. */
+    void attribute(String name, String value) {
+      Preconditions.checkState(pendingElement != null, "%s=%s", name, value);
+      pendingAttributes.put(name, value);
+    }
+
+    void endElement() throws XMLStreamException {
+      depth--;
+      if (pendingElement != null) {
+        writer.writeEmptyElement(pendingElement);
+        writePendingAttributes();
+      } else {
+        writer.writeCharacters("\n" + Strings.repeat(INDENT, depth));
+        writer.writeEndElement();
+      }
+    }
+
+    /** Ends the document after the end of the root element. */
+    void finish() throws XMLStreamException {
+      Preconditions.checkState(depth == 0, depth);
+      writer.writeCharacters("\n");
+      writer.flush();
+    }
+
+    private void writePendingStartTag() throws XMLStreamException {
+      if (pendingElement != null) {
+        writer.writeStartElement(pendingElement);
+        writePendingAttributes();
+      }
+    }
+
+    private void writePendingAttributes() throws XMLStreamException {
+      for (Map.Entry<String, String> attribute : pendingAttributes.entrySet()) {
+        writer.writeAttribute(attribute.getKey(), attribute.getValue());
+      }
+      pendingAttributes.clear();
+      pendingElement = null;
+    }
+  }
+
+  /**
+   * Writes control characters such as line breaks and tabs in attribute values as character
+   * references. {@link XMLStreamWriter} writes them as they are, and XML parsers would turn them
+   * into spaces. Relies on the values already being escaped otherwise, so that a quote always
+   * delimits a value and an angle bracket outside of values always starts or ends a tag.
+   */
+  private static final class AttributeValueEscaper extends FilterWriter {
+    private boolean inTag = false;
+    private boolean inValue = false;
+
+    AttributeValueEscaper(Writer out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      if (inValue) {
+        if (c == '"') {
+          inValue = false;
+        } else if (c < ' ') {
+          out.write("&#" + c + ";");
+          return;
+        }
+      } else if (inTag) {
+        if (c == '"') {
+          inValue = true;
+        } else if (c == '>') {
+          inTag = false;
+        }
+      } else if (c == '<') {
+        inTag = true;
+      }
+      out.write(c);
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        write(cbuf[i]);
+      }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        write(str.charAt(i));
+      }
     }
-    return elem;
   }
 }
@@ -29,9 +29,12 @@ import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.collect.nestedset.Order;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -54,6 +57,9 @@ public final class CppCompilationContext implements TransitiveInfoProvider {
   private final Artifact picHeaderModule;
   private final ImmutableSet<Artifact> compilationPrerequisites;
 
+  // Computed on first use; see getDeclaredIncludesDigest().
+  private volatile byte[] declaredIncludesDigest;
+
   private CppCompilationContext(CommandLineContext commandLineContext,
       List<DepsContext> depsContexts, CppModuleMap cppModuleMap, Artifact headerModule,
       Artifact picHeaderModule) {
@@ -214,6 +220,37 @@ public final class CppCompilationContext implements TransitiveInfoProvider {
     return builder.build();
   }
 
+  /**
+   * Returns the declared header files in an order that is stable between builds.
+   */
+  List<PathFragment> getDeclaredIncludeSrcsInStableOrder() {
+    List<PathFragment> paths = new ArrayList<>();
+    for (Artifact declaredIncludeSrc : getDeclaredIncludeSrcs()) {
+      paths.add(declaredIncludeSrc.getExecPath());
+    }
+    Collections.sort(paths); // Order is not important, but stability is.
+    return paths;
+  }
+
+  /**
+   * Returns a digest of the declared include directories, the declared include warn directories
+   * and the declared headers, for the keys of the compile actions. All compile actions of a
+   * target share their context, so it is computed only once for all of them. The returned array
+   * must not be modified.
+   */
+  byte[] getDeclaredIncludesDigest() {
+    byte[] digest = declaredIncludesDigest;
+    if (digest == null) {
+      Fingerprint f = new Fingerprint();
+      f.addPaths(getDeclaredIncludeDirs());
+      f.addPaths(getDeclaredIncludeWarnDirs());
+      f.addPaths(getDeclaredIncludeSrcsInStableOrder());
+      digest = f.digestAndReset();
+      declaredIncludesDigest = digest;
+    }
+    return digest;
+  }
+
   /**
    * Returns the immutable pairs of (header file, pregrepped header file).
    */
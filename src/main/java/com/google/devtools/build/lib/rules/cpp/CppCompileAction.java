@@ -873,6 +873,8 @@ public class CppCompileAction extends AbstractAction implements IncludeScannable
       // Check inclusions.
       IncludeProblems problems = new IncludeProblems();
       Map<PathFragment, Artifact> allowedDerivedInputsMap = getAllowedDerivedInputsMap();
+      List<PathFragment> dependencies = new ArrayList<>();
+      List<PathFragment> sourceDependencies = new ArrayList<>();
       for (PathFragment execPath : depSet.getDependencies()) {
         if (execPath.isAbsolute()) {
           // Absolute includes from system paths are ignored.
@@ -890,9 +892,18 @@ public class CppCompileAction extends AbstractAction implements IncludeScannable
             continue;
           }
         }
+        dependencies.add(execPath);
+        if (!allowedDerivedInputsMap.containsKey(execPath)) {
+          sourceDependencies.add(execPath);
+        }
+      }
+      // Resolve all the included source files at once.
+      Map<PathFragment, Artifact> sourceArtifacts =
+          artifactResolver.resolveSourceArtifacts(sourceDependencies);
+      for (PathFragment execPath : dependencies) {
         Artifact artifact = allowedDerivedInputsMap.get(execPath);
         if (artifact == null) {
-          artifact = artifactResolver.resolveSourceArtifact(execPath);
+          artifact = sourceArtifacts.get(execPath);
         }
         if (artifact != null) {
           inputs.add(artifact);
@@ -1017,12 +1028,7 @@ public class CppCompileAction extends AbstractAction implements IncludeScannable
    * that is stable between builds.
    */
   protected final List<PathFragment> getDeclaredIncludeSrcsInStableOrder() {
-    List<PathFragment> paths = new ArrayList<>();
-    for (Artifact declaredIncludeSrc : context.getDeclaredIncludeSrcs()) {
-      paths.add(declaredIncludeSrc.getExecPath());
-    }
-    Collections.sort(paths); // Order is not important, but stability is.
-    return paths;
+    return context.getDeclaredIncludeSrcsInStableOrder();
   }
 
   @Override
@@ -1055,11 +1061,10 @@ public class CppCompileAction extends AbstractAction implements IncludeScannable
      * command and hence the contents of the object file.  But we need to
      * also make sure that we reexecute the action if any of the fields
      * that affect whether validateIncludes() will report an error or warning
-     * have changed, otherwise we might miss some errors.
+     * have changed, otherwise we might miss some errors. They are the same for all actions of a
+     * target, so the context digests them once for all of them.
      */
-    f.addPaths(context.getDeclaredIncludeDirs());
-    f.addPaths(context.getDeclaredIncludeWarnDirs());
-    f.addPaths(getDeclaredIncludeSrcsInStableOrder());
+    f.addBytes(context.getDeclaredIncludesDigest());
     f.addPaths(getExtraSystemIncludePrefixes());
     return f.hexDigestAndReset();
   }
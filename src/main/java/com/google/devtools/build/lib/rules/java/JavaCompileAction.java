@@ -389,7 +389,7 @@ public class JavaCompileAction extends AbstractAction {
   protected String computeKey() {
     Fingerprint f = new Fingerprint();
     f.addString(GUID);
-    f.addStrings(commandLine.arguments());
+    commandLine.addToFingerprint(f);
     return f.hexDigestAndReset();
   }
 
@@ -21,6 +21,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Flushables;
 import com.google.devtools.build.lib.Constants;
 import com.google.devtools.build.lib.events.Event;
@@ -94,6 +95,7 @@ public class BlazeCommandDispatcher {
 
   private final BlazeRuntime runtime;
   private final Map<String, BlazeCommand> commandsByName = new LinkedHashMap<>();
+  private final CommandLock commandLock = new CommandLock();
 
   private OutputStream logOutputStream = null;
 
@@ -258,9 +260,111 @@ public class BlazeCommandDispatcher {
    * Executes a single command. Returns the Unix exit status for the Blaze
    * client process, or throws {@link ShutdownBlazeServerException} to
    * indicate that a command wants to shutdown the Blaze server.
+   *
+   * <p>This method may be called from several threads at once: invocations for
+   * which {@link #canRunConcurrently} holds run right away, all others wait
+   * for the previous such invocation to finish (see {@link CommandLock}).
    */
   public int exec(List<String> args, OutErr originalOutErr, long firstContactTime)
       throws ShutdownBlazeServerException {
+    OptionsParser concurrentOptions = parseConcurrentOptions(args);
+    if (concurrentOptions != null) {
+      return execConcurrently(args.get(0), concurrentOptions, originalOutErr);
+    }
+
+    if (!commandLock.acquireExclusive()) {
+      return serverShuttingDown(originalOutErr);
+    }
+    try {
+      return execExclusively(args, originalOutErr, firstContactTime);
+    } finally {
+      commandLock.releaseExclusive();
+    }
+  }
+
+  /**
+   * Returns whether the given command line can be executed concurrently with
+   * other commands, i.e. it names a {@link ConcurrentBlazeCommand} that accepts
+   * the given options.
+   */
+  public boolean canRunConcurrently(List<String> args) {
+    return parseConcurrentOptions(args) != null;
+  }
+
+  /**
+   * Parses the options of a command line that can be executed concurrently
+   * with other commands. Returns null if the command line cannot be executed
+   * concurrently, including if its options do not parse; the exclusive path
+   * reports such errors.
+   */
+  private OptionsParser parseConcurrentOptions(List<String> args) {
+    if (args.isEmpty()) {
+      return null;
+    }
+    BlazeCommand command = commandsByName.get(args.get(0));
+    if (!(command instanceof ConcurrentBlazeCommand)) {
+      return null;
+    }
+    Command commandAnnotation = command.getClass().getAnnotation(Command.class);
+    OutErr discardingOutErr =
+        OutErr.create(ByteStreams.nullOutputStream(), ByteStreams.nullOutputStream());
+    try {
+      OptionsParser optionsParser = createOptionsParser(command);
+      checkOptions(optionsParser, commandAnnotation, args, new ArrayList<String>(),
+          discardingOutErr);
+      return ((ConcurrentBlazeCommand) command).canRunConcurrently(runtime, optionsParser,
+              commandLock.isHeldExclusively())
+          ? optionsParser
+          : null;
+    } catch (OptionsParsingException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Executes a {@link ConcurrentBlazeCommand} without waiting for the command
+   * currently holding the server, if any.
+   */
+  private int execConcurrently(String commandName, OptionsParser optionsParser,
+      OutErr originalOutErr) {
+    if (!commandLock.acquireShared()) {
+      return serverShuttingDown(originalOutErr);
+    }
+    ConcurrentBlazeCommand command = (ConcurrentBlazeCommand) commandsByName.get(commandName);
+    Command commandAnnotation = command.getClass().getAnnotation(Command.class);
+    OutErr outErr = originalOutErr;
+    BlazeCommandEventHandler.Options eventHandlerOptions =
+        optionsParser.getOptions(BlazeCommandEventHandler.Options.class);
+    if (!eventHandlerOptions.useColor()) {
+      if (!commandAnnotation.binaryStdOut()) {
+        outErr = ansiStripOut(outErr);
+      }
+      if (!commandAnnotation.binaryStdErr()) {
+        outErr = ansiStripErr(outErr);
+      }
+    }
+    try {
+      return command.execConcurrently(runtime, optionsParser, outErr).getNumericExitCode();
+    } catch (RuntimeException e) {
+      // Unlike in the exclusive case, the runtime was not touched; there is no
+      // need to restart the server.
+      BugReport.printBug(outErr, e);
+      return ExitCode.BLAZE_INTERNAL_ERROR.getNumericExitCode();
+    } finally {
+      Flushables.flushQuietly(outErr.getOutputStream());
+      Flushables.flushQuietly(outErr.getErrorStream());
+      commandLock.releaseShared();
+    }
+  }
+
+  private static int serverShuttingDown(OutErr outErr) {
+    outErr.printErrLn(
+        String.format("The %s server is shutting down; please retry.", Constants.PRODUCT_NAME));
+    return ExitCode.LOCAL_ENVIRONMENTAL_ERROR.getNumericExitCode();
+  }
+
+  private int execExclusively(List<String> args, OutErr originalOutErr, long firstContactTime)
+      throws ShutdownBlazeServerException {
     // Record the start time for the profiler and the timestamp granularity monitor. Do not put
     // anything before this!
     long execStartTimeNanos = runtime.getClock().nanoTime();
@@ -692,9 +796,11 @@ public class BlazeCommandDispatcher {
   /**
    * Shuts down all the registered commands to give them a chance to cleanup or
    * close resources. Should be called by the owner of this command dispatcher
-   * in all termination cases.
+   * in all termination cases. Waits for commands that are still running
+   * concurrently to finish; commands started afterwards fail.
    */
   public void shutdown() {
+    commandLock.close();
     closeSilently(logOutputStream);
     logOutputStream = null;
   }
@@ -70,9 +70,12 @@ import com.google.devtools.build.lib.profiler.Profiler.ProfiledTaskKinds;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.query2.output.OutputFormatter;
 import com.google.devtools.build.lib.rules.test.CoverageReportActionFactory;
+import com.google.devtools.build.lib.runtime.commands.AnalyzeGraphCommand;
 import com.google.devtools.build.lib.runtime.commands.BuildCommand;
 import com.google.devtools.build.lib.runtime.commands.CanonicalizeCommand;
 import com.google.devtools.build.lib.runtime.commands.CleanCommand;
+import com.google.devtools.build.lib.runtime.commands.DiffExecutionLogsCommand;
+import com.google.devtools.build.lib.runtime.commands.DumpGraphCommand;
 import com.google.devtools.build.lib.runtime.commands.HelpCommand;
 import com.google.devtools.build.lib.runtime.commands.InfoCommand;
 import com.google.devtools.build.lib.runtime.commands.MobileInstallCommand;
@@ -107,7 +110,9 @@ import com.google.devtools.build.lib.vfs.JavaIoFileSystem;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.UnixFileSystem;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
 import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics.Counters;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionPriority;
@@ -182,6 +187,13 @@ public final class BlazeRuntime {
 
   private Range<Long> lastExecutionStartFinish = null;
 
+  /**
+   * The SkyFunction statistics when the current command started, if it is profiled, so that only
+   * the work of the command is written to the profile.
+   */
+  @Nullable
+  private ImmutableMap<SkyFunctionName, Counters> skyFunctionCountersAtCommandStart = null;
+
   private final SkyframeExecutor skyframeExecutor;
 
   private final Reporter reporter;
@@ -757,6 +769,8 @@ public final class BlazeRuntime {
         startupOptionsProvider.getOptions(BlazeServerStartupOptions.class).batch,
         optionsParser.getOptions(BuildView.Options.class));
 
+    skyframeExecutor.getSkyFunctionStatistics().setEnabled(options.skyFunctionStatistics);
+
     // Conditionally enable profiling
     // We need to compensate for launchTimeNanos (measurements taken outside of the jvm).
     long startupTimeNanos = options.startupTime * 1000000L;
@@ -770,6 +784,10 @@ public final class BlazeRuntime {
           ProfilePhase.LAUNCH.description);
       profiler.logSimpleTaskDuration(execStartTimeNanos, 0, ProfilerTask.PHASE,
           ProfilePhase.INIT.description);
+      if (options.skyFunctionStatistics) {
+        skyFunctionCountersAtCommandStart =
+            skyframeExecutor.getSkyFunctionStatistics().getCounters();
+      }
     }
 
     if (options.memoryProfilePath != null) {
@@ -863,6 +881,7 @@ public final class BlazeRuntime {
     clearEventBus();
 
     try {
+      logSkyFunctionStatistics();
       Profiler.instance().stop();
       MemoryProfiler.instance().stop();
     } catch (IOException e) {
@@ -870,6 +889,29 @@ public final class BlazeRuntime {
     }
   }
 
+  /**
+   * Writes the SkyFunction statistics of the command to the profile, one event per SkyFunction
+   * that did any work, for "blaze analyze-profile" to report.
+   */
+  private void logSkyFunctionStatistics() {
+    Map<SkyFunctionName, Counters> atStart = skyFunctionCountersAtCommandStart;
+    skyFunctionCountersAtCommandStart = null;
+    Profiler profiler = Profiler.instance();
+    if (atStart == null || !profiler.isActive()
+        || !profiler.isProfiling(ProfilerTask.SKYFUNCTION_STATISTICS)) {
+      return;
+    }
+    for (Map.Entry<SkyFunctionName, Counters> entry :
+        skyframeExecutor.getSkyFunctionStatistics().getCounters().entrySet()) {
+      Counters counters = entry.getValue().since(atStart.get(entry.getKey()));
+      if (counters.getComputations() > 0 || counters.getRestarts() > 0
+          || counters.getRecomputations() > 0) {
+        profiler.logEvent(ProfilerTask.SKYFUNCTION_STATISTICS,
+            entry.getKey() + " " + counters.encode());
+      }
+    }
+  }
+
   // Make sure we keep a strong reference to this logger, so that the
   // configuration isn't lost when the gc kicks in.
   private static Logger templateLogger = Logger.getLogger("com.google.devtools.build");
@@ -1365,12 +1407,18 @@ public final class BlazeRuntime {
             LOG.severe(message.toString());
           }
           shutdown = true;
-          runtime.shutdown();
+          // Wait for concurrently running commands before tearing down the runtime.
           dispatcher.shutdown();
+          runtime.shutdown();
           return e.getExitStatus();
         }
       }
 
+      @Override
+      public boolean canRunConcurrently(List<String> args) {
+        return dispatcher.canRunConcurrently(args);
+      }
+
       @Override
       public boolean shutdown() {
         return shutdown;
@@ -1570,9 +1618,12 @@ public final class BlazeRuntime {
   @VisibleForTesting
   public static List<BlazeCommand> getBuiltinCommandList() {
     return ImmutableList.of(
+        new AnalyzeGraphCommand(),
         new BuildCommand(),
         new CanonicalizeCommand(),
         new CleanCommand(),
+        new DiffExecutionLogsCommand(),
+        new DumpGraphCommand(),
         new HelpCommand(),
         new InfoCommand(),
         new MobileInstallCommand(),
@@ -1639,7 +1690,11 @@ public final class BlazeRuntime {
         }
       }
       if (skyframeExecutorFactory == null) {
-        skyframeExecutorFactory = new SequencedSkyframeExecutorFactory();
+        boolean compactGraph =
+            startupOptionsProvider.getOptions(BlazeServerStartupOptions.class).compactSkyframeGraph;
+        skyframeExecutorFactory = new SequencedSkyframeExecutorFactory(compactGraph
+            ? InMemoryMemoizingEvaluator.COMPACT_SUPPLIER
+            : InMemoryMemoizingEvaluator.SUPPLIER);
       }
       if (preprocessorFactorySupplier == null) {
         preprocessorFactorySupplier = Preprocessor.Factory.Supplier.NullSupplier.INSTANCE;
@@ -1732,6 +1787,11 @@ public final class BlazeRuntime {
           ruleClassProvider.getBuildInfoFactories(), immutableDirectories, diffAwarenessFactories,
           allowedMissingInputs, preprocessorFactorySupplier, skyFunctions.build(),
           precomputedValues.build());
+      int evictionHeapPercent = startupOptionsProvider.getOptions(BlazeServerStartupOptions.class)
+          .skyframeEvictionHeapPercent;
+      if (evictionHeapPercent > 0) {
+        skyframeExecutor.enableValueEviction(evictionHeapPercent);
+      }
 
       if (configurationFactory == null) {
         configurationFactory = new ConfigurationFactory(
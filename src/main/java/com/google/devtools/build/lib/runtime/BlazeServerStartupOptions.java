@@ -225,6 +225,21 @@ public class BlazeServerStartupOptions extends OptionsBase {
           + "changes instead of scanning every file for a change.")
   public boolean watchFS;
 
+  @Option(name = "experimental_compact_skyframe_graph",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If true, the Skyframe graph stores its edges as integer ids rather than as "
+          + "references, which takes much less memory at some cost in speed.")
+  public boolean compactSkyframeGraph;
+
+  @Option(name = "experimental_skyframe_eviction_heap_percent",
+      defaultValue = "0",
+      category = "undocumented",
+      help = "If positive, whenever the heap is still fuller than this percentage after a garbage "
+          + "collection, Blaze evicts the Skyframe values of files, directory listings and globs "
+          + "that were not used recently, and recomputes them when they are next needed.")
+  public int skyframeEvictionHeapPercent;
+
   @Option(name = "use_webstatusserver",
       defaultValue = "0",
       category = "server startup",
@@ -0,0 +1,106 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Decides which commands may run at the same time in one Blaze server.
+ *
+ * <p>Commands that mutate the runtime (builds, most queries, clean, ...) take the lock in
+ * <i>exclusive</i> mode; at most one of them runs at a time, as they share the reporter, the event
+ * bus, the command log and {@code System.out}/{@code System.err}. Read-only commands (see
+ * {@link ConcurrentBlazeCommand}) take the lock in <i>shared</i> mode, which is compatible with
+ * both other shared holders and with the exclusive holder, so that e.g. {@code blaze info} does
+ * not have to wait for a build to finish.
+ *
+ * <p>Every holder, shared or exclusive, keeps the runtime alive: {@link #close} waits for all of
+ * them to finish and makes any further acquisition fail, so that the runtime is never torn down
+ * underneath a running command.
+ */
+@ThreadSafe
+public final class CommandLock {
+
+  private final ReentrantLock exclusiveLock = new ReentrantLock();
+  // The read lock is held by every running command, the write lock only by close().
+  private final ReentrantReadWriteLock lifecycleLock = new ReentrantReadWriteLock();
+  // Guarded by lifecycleLock.
+  private boolean closed = false;
+
+  /**
+   * Acquires the lock in shared mode, blocking only while the lock is being closed. Returns false
+   * if the lock has been closed, in which case the caller must not run its command.
+   */
+  public boolean acquireShared() {
+    lifecycleLock.readLock().lock();
+    if (closed) {
+      lifecycleLock.readLock().unlock();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Releases a hold obtained by a successful {@link #acquireShared}.
+   */
+  public void releaseShared() {
+    lifecycleLock.readLock().unlock();
+  }
+
+  /**
+   * Acquires the lock in exclusive mode, blocking until the current exclusive holder (if any)
+   * releases it. Shared holders do not delay this method. Returns false if the lock has been
+   * closed, in which case the caller must not run its command.
+   */
+  public boolean acquireExclusive() {
+    exclusiveLock.lock();
+    if (!acquireShared()) {
+      exclusiveLock.unlock();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Releases a hold obtained by a successful {@link #acquireExclusive}.
+   */
+  public void releaseExclusive() {
+    releaseShared();
+    exclusiveLock.unlock();
+  }
+
+  /**
+   * Returns whether some thread holds the lock in exclusive mode. The answer may be out of date by
+   * the time the caller looks at it.
+   */
+  public boolean isHeldExclusively() {
+    return exclusiveLock.isLocked();
+  }
+
+  /**
+   * Waits for all current holders to release the lock, then closes it; subsequent acquisitions
+   * fail. Must not be called by a thread that currently holds the lock.
+   */
+  public void close() {
+    lifecycleLock.writeLock().lock();
+    try {
+      closed = true;
+    } finally {
+      lifecycleLock.writeLock().unlock();
+    }
+  }
+}
@@ -190,6 +190,14 @@ public class CommonCommandOptions extends OptionsBase {
           + "hit. Option only has effect if --profile used as well.")
   public boolean recordFullProfilerData;
 
+  @Option(name = "experimental_skyfunction_stats",
+      defaultValue = "false",
+      category = "undocumented",
+      help = "If set, count the calls of each SkyFunction and the wall and CPU time they take, for "
+          + "'blaze info skyfunction-statistics' and, with --profile, 'blaze analyze-profile'. "
+          + "Measuring the CPU time of each call costs two system calls.")
+  public boolean skyFunctionStatistics;
+
   @Option(name = "memory_profile",
       defaultValue = "null",
       category = "undocumented",
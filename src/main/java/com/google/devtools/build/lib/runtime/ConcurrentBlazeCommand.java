@@ -0,0 +1,49 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.util.io.OutErr;
+import com.google.devtools.common.options.OptionsProvider;
+
+/**
+ * A {@link BlazeCommand} that, for some or all invocations, only reads server state that does not
+ * change while other commands run, and can therefore run alongside them (see
+ * {@link CommandLock}).
+ *
+ * <p>A concurrent invocation runs without any of the per-command setup that
+ * {@link BlazeCommand#exec} relies on: {@link BlazeModule#beforeCommand} is not called, no
+ * command log is written, and the runtime's reporter and event bus belong to whichever command
+ * holds the server exclusively. Implementations must therefore write only to the {@link OutErr}
+ * passed in, and must not use the reporter, the event bus, Skyframe or the package cache, except
+ * for reading the immutable graph of
+ * {@link com.google.devtools.build.lib.skyframe.SkyframeExecutor#getQuerySnapshot}.
+ */
+public interface ConcurrentBlazeCommand extends BlazeCommand {
+
+  /**
+   * Returns whether the invocation described by {@code options} can run concurrently.
+   * {@code serverBusy} tells whether another command holds the server exclusively right now. If
+   * this returns false, the invocation goes through {@link BlazeCommand#exec} as usual.
+   */
+  boolean canRunConcurrently(BlazeRuntime runtime, OptionsProvider options, boolean serverBusy);
+
+  /**
+   * Executes an invocation for which {@link #canRunConcurrently} returned true, writing all output
+   * and error messages to {@code outErr}.
+   *
+   * @return The Unix exit status for the Blaze client.
+   */
+  ExitCode execConcurrently(BlazeRuntime runtime, OptionsProvider options, OutErr outErr);
+}
@@ -0,0 +1,76 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime.commands;
+
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.runtime.BlazeCommand;
+import com.google.devtools.build.lib.runtime.BlazeRuntime;
+import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.skyframe.GraphDump;
+import com.google.devtools.common.options.Option;
+import com.google.devtools.common.options.OptionsBase;
+import com.google.devtools.common.options.OptionsParser;
+import com.google.devtools.common.options.OptionsProvider;
+
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Command line wrapper for analyzing Skyframe graph dumps written by 'dump-graph'.
+ */
+@Command(name = "analyze-graph",
+         options = { AnalyzeGraphCommand.Options.class },
+         shortDescription = "Analyzes Skyframe graph dumps.",
+         help = "resource:analyze-graph.txt",
+         allowResidue = true,
+         completion = "path",
+         mustRunInWorkspace = false)
+public final class AnalyzeGraphCommand implements BlazeCommand {
+
+  public static class Options extends OptionsBase {
+    @Option(name = "graph_stats_limit",
+        defaultValue = "20",
+        help = "Maximum number of SkyFunctions, and of nodes in each list of nodes, to print.")
+    public int limit;
+  }
+
+  @Override
+  public void editOptions(BlazeRuntime runtime, OptionsParser optionsParser) {}
+
+  @Override
+  public ExitCode exec(BlazeRuntime runtime, OptionsProvider options) {
+    int limit = options.getOptions(Options.class).limit;
+    if (limit <= 0) {
+      runtime.getReporter().handle(Event.error("--graph_stats_limit must be positive"));
+      return ExitCode.COMMAND_LINE_ERROR;
+    }
+    PrintStream out = new PrintStream(runtime.getReporter().getOutErr().getOutputStream());
+    try {
+      for (String name : options.getResidue()) {
+        Path dumpFile = runtime.getWorkingDirectory().getRelative(name);
+        try {
+          GraphDump.analyze(dumpFile.getInputStream(), limit).print(limit, out);
+        } catch (IOException e) {
+          runtime.getReporter().handle(Event.error(
+              null, "Failed to process file " + name + ": " + e.getMessage()));
+        }
+      }
+    } finally {
+      out.flush();
+    }
+    return ExitCode.SUCCESS;
+  }
+}
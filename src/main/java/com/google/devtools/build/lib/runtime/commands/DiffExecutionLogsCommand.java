@@ -0,0 +1,71 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime.commands;
+
+import com.google.devtools.build.lib.actions.ExecutionLog;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.runtime.BlazeCommand;
+import com.google.devtools.build.lib.runtime.BlazeRuntime;
+import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.common.options.OptionsParser;
+import com.google.devtools.common.options.OptionsProvider;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+
+/**
+ * Command line wrapper for comparing execution logs written with '--experimental_execution_log'.
+ */
+@Command(name = "diff-execution-logs",
+         options = {},
+         shortDescription = "Explains why actions re-ran between two builds.",
+         help = "resource:diff-execution-logs.txt",
+         allowResidue = true,
+         completion = "path",
+         mustRunInWorkspace = false)
+public final class DiffExecutionLogsCommand implements BlazeCommand {
+
+  @Override
+  public void editOptions(BlazeRuntime runtime, OptionsParser optionsParser) {}
+
+  @Override
+  public ExitCode exec(BlazeRuntime runtime, OptionsProvider options) {
+    List<String> names = options.getResidue();
+    if (names.size() != 2) {
+      runtime.getReporter().handle(Event.error("diff-execution-logs needs exactly two log files"));
+      return ExitCode.COMMAND_LINE_ERROR;
+    }
+    ExecutionLog.Contents[] logs = new ExecutionLog.Contents[2];
+    for (int i = 0; i < logs.length; i++) {
+      Path logFile = runtime.getWorkingDirectory().getRelative(names.get(i));
+      try {
+        logs[i] = ExecutionLog.read(logFile.getInputStream());
+      } catch (IOException e) {
+        runtime.getReporter().handle(Event.error(
+            null, "Failed to process file " + names.get(i) + ": " + e.getMessage()));
+        return ExitCode.COMMAND_LINE_ERROR;
+      }
+    }
+    PrintStream out = new PrintStream(runtime.getReporter().getOutErr().getOutputStream());
+    try {
+      ExecutionLog.diff(logs[0], logs[1], out);
+    } finally {
+      out.flush();
+    }
+    return ExitCode.SUCCESS;
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime.commands;
+
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.runtime.BlazeCommand;
+import com.google.devtools.build.lib.runtime.BlazeRuntime;
+import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.common.options.OptionsParser;
+import com.google.devtools.common.options.OptionsProvider;
+
+import java.io.IOException;
+
+/**
+ * Writes the Skyframe graph of the server to a file, for 'analyze-graph' to analyze.
+ */
+@Command(name = "dump-graph",
+         shortDescription = "Dumps the Skyframe graph of the %{product} server to a file.",
+         help = "resource:dump-graph.txt",
+         allowResidue = true,
+         completion = "path")
+public final class DumpGraphCommand implements BlazeCommand {
+
+  @Override
+  public void editOptions(BlazeRuntime runtime, OptionsParser optionsParser) {}
+
+  @Override
+  public ExitCode exec(BlazeRuntime runtime, OptionsProvider options) {
+    if (options.getResidue().size() != 1) {
+      runtime.getReporter().handle(Event.error("You must specify exactly one output file"));
+      return ExitCode.COMMAND_LINE_ERROR;
+    }
+    Path dumpFile = runtime.getWorkingDirectory().getRelative(options.getResidue().get(0));
+    try {
+      runtime.getSkyframeExecutor().dumpGraph(dumpFile.getOutputStream());
+    } catch (IOException e) {
+      runtime.getReporter().handle(Event.error(
+          "Failed to write " + dumpFile + ": " + e.getMessage()));
+      return ExitCode.LOCAL_ENVIRONMENTAL_ERROR;
+    }
+    runtime.getReporter().handle(Event.info("Skyframe graph written to " + dumpFile));
+    return ExitCode.SUCCESS;
+  }
+}
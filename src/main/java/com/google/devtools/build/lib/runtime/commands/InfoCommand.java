@@ -17,7 +17,9 @@ import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.Constants;
 import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
@@ -33,11 +35,11 @@ import com.google.devtools.build.lib.query2.proto.proto2api.Build.AllowedRuleCla
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.AttributeDefinition;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.BuildLanguage;
 import com.google.devtools.build.lib.query2.proto.proto2api.Build.RuleDefinition;
-import com.google.devtools.build.lib.runtime.BlazeCommand;
 import com.google.devtools.build.lib.runtime.BlazeCommandDispatcher;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.runtime.ConcurrentBlazeCommand;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.OsUtils;
@@ -50,6 +52,7 @@ import com.google.devtools.common.options.OptionsProvider;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
@@ -82,7 +85,7 @@ import java.util.TreeMap;
          // minimum of relevant options from {@code build}, i.e. those that affect the
          // values it prints.  But there's no such mechanism.)
          inherits = { BuildCommand.class })
-public class InfoCommand implements BlazeCommand {
+public class InfoCommand implements ConcurrentBlazeCommand {
 
   public static class Options extends OptionsBase {
     @Option(name = "show_make_env",
@@ -176,9 +179,56 @@ public class InfoCommand implements BlazeCommand {
     }
   }
 
+  /**
+   * The keys whose values depend neither on the configuration nor on state that other commands
+   * change, so that they can be printed while another command is running.
+   */
+  private static final ImmutableSet<InfoKey> CONCURRENT_KEYS = Sets.immutableEnumSet(
+      InfoKey.WORKSPACE, InfoKey.INSTALL_BASE, InfoKey.OUTPUT_BASE, InfoKey.EXECUTION_ROOT,
+      InfoKey.OUTPUT_PATH, InfoKey.COMMAND_LOG, InfoKey.MESSAGE_LOG, InfoKey.RELEASE,
+      InfoKey.SERVER_PID, InfoKey.PACKAGE_PATH, InfoKey.USED_HEAP_SIZE,
+      InfoKey.COMMITTED_HEAP_SIZE, InfoKey.MAX_HEAP_SIZE, InfoKey.GC_COUNT, InfoKey.GC_TIME,
+      InfoKey.DEFAULT_PACKAGE_PATH, InfoKey.SKYFUNCTION_STATISTICS);
+
   @Override
   public void editOptions(BlazeRuntime runtime, OptionsParser optionsParser) { }
 
+  /**
+   * Only requests for a single one of the {@link #CONCURRENT_KEYS} can run concurrently.
+   */
+  @Override
+  public boolean canRunConcurrently(BlazeRuntime runtime, OptionsProvider options,
+      boolean serverBusy) {
+    return getConcurrentKey(options) != null;
+  }
+
+  @Override
+  public ExitCode execConcurrently(BlazeRuntime runtime, OptionsProvider options, OutErr outErr) {
+    InfoKey key = getConcurrentKey(options);
+    try {
+      // None of the concurrent keys needs the configuration.
+      outErr.getOutputStream().write(print(getInfoItem(runtime, key, null, options)));
+      outErr.getOutputStream().flush();
+    } catch (IOException e) {
+      outErr.printErrLn("ERROR: Cannot write info block: " + e.getMessage());
+      return ExitCode.ANALYSIS_FAILURE;
+    }
+    return ExitCode.SUCCESS;
+  }
+
+  private static InfoKey getConcurrentKey(OptionsProvider options) {
+    List<String> residue = options.getResidue();
+    if (options.getOptions(Options.class).showMakeEnvironment || residue.size() != 1) {
+      return null;
+    }
+    for (InfoKey key : CONCURRENT_KEYS) {
+      if (key.getName().equals(residue.get(0))) {
+        return key;
+      }
+    }
+    return null;
+  }
+
   @Override
   public ExitCode exec(final BlazeRuntime runtime, final OptionsProvider optionsProvider) {
     Options infoOptions = optionsProvider.getOptions(Options.class);
@@ -341,6 +391,13 @@ public class InfoCommand implements BlazeCommand {
       case DEFAULT_PACKAGE_PATH:
         return Joiner.on(":").join(Constants.DEFAULT_PACKAGE_PATH);
 
+      case SKYFUNCTION_STATISTICS:
+        // Also available while a build is running, to see where its evaluation spends its time.
+        ByteArrayOutputStream statistics = new ByteArrayOutputStream();
+        runtime.getSkyframeExecutor().getSkyFunctionStatistics().print(
+            new PrintStream(statistics, true));
+        return statistics.toByteArray();
+
       default:
         throw new IllegalArgumentException("missing implementation for " + key);
     }
@@ -65,7 +65,10 @@ public enum InfoKey {
   // unless explicitly requested
   DEFAULTS_PACKAGE("defaults-package", "Default packages used as implicit dependencies", true),
   BUILD_LANGUAGE("build-language", "A protobuffer with the build language structure", true),
-  DEFAULT_PACKAGE_PATH("default-package-path", "The default package path", true);
+  DEFAULT_PACKAGE_PATH("default-package-path", "The default package path", true),
+  SKYFUNCTION_STATISTICS("skyfunction-statistics",
+      "Per-SkyFunction evaluation statistics of the commands this server ran with "
+      + "--experimental_skyfunction_stats, the most CPU intensive SkyFunctions first", true);
 
   private final String name;
   private final String description;
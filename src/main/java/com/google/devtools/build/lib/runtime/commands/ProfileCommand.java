@@ -41,6 +41,8 @@ import com.google.devtools.build.lib.util.ExitCode;
 import com.google.devtools.build.lib.util.StringUtil;
 import com.google.devtools.build.lib.util.TimeUtilities;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics.Counters;
 import com.google.devtools.common.options.Converters;
 import com.google.devtools.common.options.Option;
 import com.google.devtools.common.options.OptionsBase;
@@ -58,6 +60,7 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -119,6 +122,12 @@ public final class ProfileCommand implements BlazeCommand {
         defaultValue = "-1",
         help = "Maximum number of VFS path statistics to print.")
     public int vfsStatsLimit;
+
+    @Option(name = "skyfunction_stats_limit",
+        defaultValue = "20",
+        help = "Maximum number of SkyFunctions to print the evaluation statistics of, the most CPU "
+            + "intensive first. -1 prints all of them.")
+    public int skyFunctionStatsLimit;
   }
 
   private Function<String, String> currentPathMapping = Functions.<String>identity();
@@ -273,6 +282,10 @@ public final class ProfileCommand implements BlazeCommand {
           statistics.add(stat);
         }
       }
+      ProfilePhaseStatistics skyFunctionStatistics = formatSkyFunctionStatistics(info, opts);
+      if (skyFunctionStatistics != null) {
+        statistics.add(skyFunctionStatistics);
+      }
 
       return statistics;
     } catch (UnsupportedEncodingException e) {
@@ -649,6 +662,36 @@ public final class ProfileCommand implements BlazeCommand {
         new String(byteOutput.toByteArray(), "UTF-8"));
   }
 
+  /**
+   * Returns the evaluation statistics of each SkyFunction, summed over the commands in the
+   * profile, or null if the profile has none.
+   */
+  private ProfilePhaseStatistics formatSkyFunctionStatistics(ProfileInfo info,
+      ProfileOptions opts) throws UnsupportedEncodingException {
+    Map<String, Counters> counters = new HashMap<>();
+    for (ProfileInfo.Task task : info.allTasksById) {
+      if (task.type != ProfilerTask.SKYFUNCTION_STATISTICS) {
+        continue;
+      }
+      String description = task.getDescription();
+      int separator = description.lastIndexOf(' ');
+      String functionName = description.substring(0, separator);
+      Counters taskCounters = Counters.decode(description.substring(separator + 1));
+      Counters previous = counters.get(functionName);
+      counters.put(functionName, previous == null ? taskCounters : taskCounters.plus(previous));
+    }
+    if (counters.isEmpty()) {
+      return null;
+    }
+    ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(byteOutput, false, "UTF-8");
+    SkyFunctionStatistics.printTable(counters,
+        opts.skyFunctionStatsLimit < 0 ? counters.size() : opts.skyFunctionStatsLimit, out);
+    out.flush();
+    return new ProfilePhaseStatistics("SkyFunction Statistics",
+        new String(byteOutput.toByteArray(), "UTF-8"));
+  }
+
   void printCriticalPathTimingBreakdown(ProfileInfo info, CriticalPathEntry totalPath,
       CriticalPathEntry optimalPath, long execTime, PrintStream out) {
     Preconditions.checkNotNull(totalPath);
@@ -18,34 +18,54 @@ import com.google.common.base.Joiner;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.Constants;
 import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.events.PrintingEventHandler;
+import com.google.devtools.build.lib.packages.Rule;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
 import com.google.devtools.build.lib.query2.AbstractBlazeQueryEnvironment;
+import com.google.devtools.build.lib.query2.SkyQueryEnvironment;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.output.AspectResolver;
 import com.google.devtools.build.lib.query2.output.OutputFormatter;
 import com.google.devtools.build.lib.query2.output.QueryOptions;
 import com.google.devtools.build.lib.query2.output.QueryOutputUtils;
-import com.google.devtools.build.lib.runtime.BlazeCommand;
 import com.google.devtools.build.lib.runtime.BlazeModule;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.runtime.CommonCommandOptions;
+import com.google.devtools.build.lib.runtime.ConcurrentBlazeCommand;
+import com.google.devtools.build.lib.skyframe.SkyframeExecutor.QuerySnapshot;
 import com.google.devtools.build.lib.util.AbruptExitException;
 import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.util.io.OutErr;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.skyframe.WalkableGraph;
+import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
 import com.google.devtools.common.options.OptionsParser;
 import com.google.devtools.common.options.OptionsProvider;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.channels.ClosedByInterruptException;
+import java.util.Collection;
 import java.util.List;
 import java.util.Set;
 
 /**
  * Command line wrapper for executing a query with blaze.
+ *
+ * <p>A query of a universe (see {@code --universe_scope}) that arrives while another command holds
+ * the server runs concurrently with that command if the last query of the same universe left a
+ * snapshot of the graph behind (see {@link
+ * com.google.devtools.build.lib.skyframe.SkyframeExecutor#getQuerySnapshot}). It is answered from
+ * that snapshot, so it does not see changes made to the workspace since that last query.
  */
 @Command(name = "query",
          options = { PackageCacheOptions.class,
@@ -56,7 +76,7 @@ import java.util.Set;
          binaryStdOut = true,
          completion = "label",
          canRunInOutputDirectory = true)
-public final class QueryCommand implements BlazeCommand {
+public final class QueryCommand implements ConcurrentBlazeCommand {
 
   @Override
   public void editOptions(BlazeRuntime runtime, OptionsParser optionsParser) { }
@@ -102,22 +122,122 @@ public final class QueryCommand implements BlazeCommand {
       return ExitCode.COMMAND_LINE_ERROR;
     }
 
-    String query = Joiner.on(' ').join(options.getResidue());
-
-    Set<Setting> settings = queryOptions.toSettings();
     AbstractBlazeQueryEnvironment<Target> env = newQueryEnvironment(
         runtime,
         queryOptions.keepGoing,
         QueryOutputUtils.orderResults(queryOptions, formatter),
         queryOptions.universeScope, queryOptions.loadingPhaseThreads,
-        settings);
+        queryOptions.toSettings());
+    return evaluateAndOutput(env, Joiner.on(' ').join(options.getResidue()), queryOptions,
+        formatter, runtime.getReporter().getOutErr().getOutputStream(),
+        queryOptions.aspectDeps.createResolver(runtime.getPackageManager(), runtime.getReporter()),
+        runtime.getReporter());
+  }
+
+  /**
+   * Only queries that would be evaluated by a {@link SkyQueryEnvironment} and that need nothing
+   * but the graph can run concurrently, and only while another command holds the server; an idle
+   * server answers them from the current state of the workspace instead.
+   */
+  @Override
+  public boolean canRunConcurrently(BlazeRuntime runtime, OptionsProvider options,
+      boolean serverBusy) {
+    return serverBusy && getQuerySnapshot(runtime, options) != null;
+  }
 
+  @Override
+  public ExitCode execConcurrently(BlazeRuntime runtime, OptionsProvider options, OutErr outErr) {
+    QueryOptions queryOptions = options.getOptions(QueryOptions.class);
+    final QuerySnapshot snapshot = getQuerySnapshot(runtime, options);
+    if (snapshot == null) {
+      // A query of another universe replaced the snapshot since canRunConcurrently.
+      outErr.printErrLn("ERROR: The graph of the query universe changed while the query was "
+          + "starting; please retry.");
+      return ExitCode.LOCAL_ENVIRONMENTAL_ERROR;
+    }
+    PrintingEventHandler eventHandler = new PrintingEventHandler(EventKind.ALL_EVENTS);
+    eventHandler.setOutErr(outErr);
+    eventHandler.handle(Event.info("Another command is running; answering the query from the "
+        + "graph of the last query of this universe. Changes made since are not reflected."));
+
+    ImmutableList.Builder<QueryFunction> functions = ImmutableList.builder();
+    for (BlazeModule module : runtime.getBlazeModules()) {
+      functions.addAll(module.getQueryFunctions());
+    }
+    WalkableGraphFactory snapshotFactory = new WalkableGraphFactory() {
+      @Override
+      public WalkableGraph prepareAndGet(Collection<String> roots, int numThreads,
+          EventHandler eventHandler) {
+        return snapshot.getGraph();
+      }
+    };
+    AbstractBlazeQueryEnvironment<Target> env = new SkyQueryEnvironment(queryOptions.keepGoing,
+        /*strictScope=*/true, queryOptions.loadingPhaseThreads, Rule.ALL_LABELS, eventHandler,
+        queryOptions.toSettings(), functions.build(), getOffset(runtime, options), snapshotFactory,
+        queryOptions.universeScope, snapshot.getPackageLocator());
+    return evaluateAndOutput(env, Joiner.on(' ').join(options.getResidue()), queryOptions,
+        getFormatter(runtime, queryOptions), outErr.getOutputStream(),
+        queryOptions.aspectDeps.createResolver(runtime.getPackageManager(), eventHandler),
+        eventHandler);
+  }
+
+  /**
+   * Returns the snapshot of the graph that a query with the given options can be answered from
+   * without touching the package cache, or null if there is none.
+   */
+  private static QuerySnapshot getQuerySnapshot(BlazeRuntime runtime, OptionsProvider options) {
+    QueryOptions queryOptions = options.getOptions(QueryOptions.class);
+    if (queryOptions.universeScope.isEmpty() || options.getResidue().isEmpty()
+        // Precise aspect dependencies load packages through the package manager.
+        || queryOptions.aspectDeps == AspectResolver.Mode.PRECISE) {
+      return null;
+    }
+    OutputFormatter formatter = getFormatter(runtime, queryOptions);
+    if (formatter == null || QueryOutputUtils.orderResults(queryOptions, formatter)) {
+      // Ordered results are computed by a BlazeQueryEnvironment, which uses the package cache.
+      return null;
+    }
+    String offset = getOffset(runtime, options);
+    if (offset == null) {
+      return null;
+    }
+    return runtime.getSkyframeExecutor().getQuerySnapshot(queryOptions.universeScope, offset,
+        options.getOptions(PackageCacheOptions.class));
+  }
+
+  private static OutputFormatter getFormatter(BlazeRuntime runtime, QueryOptions queryOptions) {
+    return OutputFormatter.getFormatter(runtime.getQueryOutputFormatters(),
+        queryOptions.outputFormat);
+  }
+
+  /**
+   * Returns the offset of the client's working directory in the workspace, which relative target
+   * patterns are resolved against, or null if the client is not in the workspace.
+   */
+  private static String getOffset(BlazeRuntime runtime, OptionsProvider options) {
+    if (!runtime.inWorkspace()) {
+      return null;
+    }
+    Path workspace = runtime.getWorkspace();
+    Path workingDirectory =
+        workspace.getRelative(options.getOptions(CommonCommandOptions.class).clientCwd);
+    return workingDirectory.startsWith(workspace)
+        ? workingDirectory.relativeTo(workspace).getPathString()
+        : null;
+  }
+
+  /**
+   * Parses and evaluates {@code query} in {@code env}, and writes the result to {@code out}.
+   */
+  private static ExitCode evaluateAndOutput(AbstractBlazeQueryEnvironment<Target> env,
+      String query, QueryOptions queryOptions, OutputFormatter formatter, OutputStream out,
+      AspectResolver aspectResolver, EventHandler eventHandler) {
     // 1. Parse query:
     QueryExpression expr;
     try {
       expr = QueryExpression.parse(query, env);
     } catch (QueryException e) {
-      runtime.getReporter().handle(Event.error(
+      eventHandler.handle(Event.error(
           null, "Error while parsing '" + query + "': " + e.getMessage()));
       return ExitCode.COMMAND_LINE_ERROR;
     }
@@ -128,27 +248,25 @@ public final class QueryCommand implements BlazeCommand {
       result = env.evaluateQuery(expr);
     } catch (QueryException e) {
       // Keep consistent with reportBuildFileError()
-      runtime.getReporter().handle(Event.error(e.getMessage()));
+      eventHandler.handle(Event.error(e.getMessage()));
       return ExitCode.ANALYSIS_FAILURE;
     }
 
     // 3. Output results:
-    PrintStream output = new PrintStream(runtime.getReporter().getOutErr().getOutputStream());
+    PrintStream output = new PrintStream(out);
     try {
-      QueryOutputUtils.output(queryOptions, result, formatter, output,
-          queryOptions.aspectDeps.createResolver(
-              runtime.getPackageManager(), runtime.getReporter()));
+      QueryOutputUtils.output(queryOptions, result, formatter, output, aspectResolver);
     } catch (ClosedByInterruptException | InterruptedException e) {
-      runtime.getReporter().handle(Event.error("query interrupted"));
+      eventHandler.handle(Event.error("query interrupted"));
       return ExitCode.INTERRUPTED;
     } catch (IOException e) {
-      runtime.getReporter().handle(Event.error("I/O error: " + e.getMessage()));
+      eventHandler.handle(Event.error("I/O error: " + e.getMessage()));
       return ExitCode.LOCAL_ENVIRONMENTAL_ERROR;
     } finally {
       output.flush();
     }
     if (result.getResultSet().isEmpty()) {
-      runtime.getReporter().handle(Event.info("Empty results"));
+      eventHandler.handle(Event.info("Empty results"));
     }
 
     return result.getSuccess() ? ExitCode.SUCCESS : ExitCode.PARTIAL_ANALYSIS_FAILURE;
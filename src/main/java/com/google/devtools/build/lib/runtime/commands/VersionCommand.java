@@ -15,10 +15,11 @@ package com.google.devtools.build.lib.runtime.commands;
 
 import com.google.devtools.build.lib.analysis.BlazeVersionInfo;
 import com.google.devtools.build.lib.events.Event;
-import com.google.devtools.build.lib.runtime.BlazeCommand;
 import com.google.devtools.build.lib.runtime.BlazeRuntime;
 import com.google.devtools.build.lib.runtime.Command;
+import com.google.devtools.build.lib.runtime.ConcurrentBlazeCommand;
 import com.google.devtools.build.lib.util.ExitCode;
+import com.google.devtools.build.lib.util.io.OutErr;
 import com.google.devtools.common.options.OptionsParser;
 import com.google.devtools.common.options.OptionsProvider;
 
@@ -32,7 +33,7 @@ import com.google.devtools.common.options.OptionsProvider;
          mustRunInWorkspace = false,
          help = "resource:version.txt",
          shortDescription = "Prints version information for %{product}.")
-public final class VersionCommand implements BlazeCommand {
+public final class VersionCommand implements ConcurrentBlazeCommand {
   @Override
   public void editOptions(BlazeRuntime runtime, OptionsParser optionsParser) {}
 
@@ -46,4 +47,21 @@ public final class VersionCommand implements BlazeCommand {
     runtime.getReporter().getOutErr().printOutLn(info.getSummary());
     return ExitCode.SUCCESS;
   }
+
+  @Override
+  public boolean canRunConcurrently(BlazeRuntime runtime, OptionsProvider options,
+      boolean serverBusy) {
+    return true;
+  }
+
+  @Override
+  public ExitCode execConcurrently(BlazeRuntime runtime, OptionsProvider options, OutErr outErr) {
+    BlazeVersionInfo info = BlazeVersionInfo.instance();
+    if (info.getSummary() == null) {
+      outErr.printErrLn("ERROR: Version information not available");
+      return ExitCode.COMMAND_LINE_ERROR;
+    }
+    outErr.printOutLn(info.getSummary());
+    return ExitCode.SUCCESS;
+  }
 }
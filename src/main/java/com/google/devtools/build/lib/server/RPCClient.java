@@ -0,0 +1,130 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.server;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Joiner;
+import com.google.devtools.build.lib.unix.LocalClientSocket;
+import com.google.devtools.build.lib.unix.LocalSocketAddress;
+import com.google.devtools.build.lib.util.io.FramedStreamMultiplexer;
+import com.google.devtools.build.lib.util.io.OutErr;
+import com.google.devtools.build.lib.util.io.StreamMultiplexer;
+import com.google.devtools.build.lib.vfs.Path;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * A client for the framed protocol of {@link RPCServer}. Unlike the Blaze
+ * client, which opens a connection per command, it keeps a single connection
+ * open for any number of requests, so tools that talk to the server
+ * repeatedly pay the connection setup only once.
+ *
+ * <p>Instances are not thread-safe; requests on one connection are executed
+ * one after the other.
+ */
+public final class RPCClient implements Closeable {
+
+  private static final Joiner NULLTERMINATOR_JOINER = Joiner.on('\0');
+
+  private final LocalClientSocket socket;
+  private final DataInputStream in;
+  private final DataOutputStream out;
+  private final byte[] buffer = new byte[FramedStreamMultiplexer.MAX_CHUNK_SIZE];
+
+  private RPCClient(LocalClientSocket socket) throws IOException {
+    this.socket = socket;
+    this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+  }
+
+  /**
+   * Connects to the server listening on the given socket file, usually
+   * {@code <output_base>/server/server.socket}.
+   */
+  public static RPCClient connect(Path socketFile) throws IOException {
+    RPCClient client =
+        new RPCClient(new LocalClientSocket(new LocalSocketAddress(socketFile.getPathFile())));
+    client.out.write(RPCServer.FRAMED_PROTOCOL_MARKER);
+    client.out.write(RPCServer.FRAMED_PROTOCOL_VERSION);
+    return client;
+  }
+
+  /**
+   * Executes a request and copies its output to {@code outErr} as it arrives.
+   * Returns the exit status of the request.
+   *
+   * @param request the words of the request, e.g. {@code blaze info
+   *     output_base}
+   * @throws IOException if the connection fails, e.g. because the server
+   *     shut down
+   */
+  public int execute(List<String> request, OutErr outErr) throws IOException {
+    byte[] requestBytes = NULLTERMINATOR_JOINER.join(request).getBytes(Charset.defaultCharset());
+    out.writeInt(requestBytes.length);
+    out.write(requestBytes);
+    out.flush();
+
+    ByteArrayOutputStream control = new ByteArrayOutputStream();
+    while (true) {
+      byte marker = in.readByte();
+      int length = in.readInt();
+      if (length < 0 || length > buffer.length) {
+        throw new IOException("Invalid frame length: " + length);
+      }
+      in.readFully(buffer, 0, length);
+      switch (marker) {
+        case StreamMultiplexer.STDOUT_MARKER:
+          outErr.getOutputStream().write(buffer, 0, length);
+          break;
+        case StreamMultiplexer.STDERR_MARKER:
+          outErr.getErrorStream().write(buffer, 0, length);
+          break;
+        case StreamMultiplexer.CONTROL_MARKER:
+          // The exit status is the only control message, and ends the response.
+          control.write(buffer, 0, length);
+          String message = new String(control.toByteArray(), UTF_8);
+          if (message.endsWith("\n")) {
+            outErr.getOutputStream().flush();
+            outErr.getErrorStream().flush();
+            try {
+              return Integer.parseInt(message.trim());
+            } catch (NumberFormatException e) {
+              throw new IOException("Invalid exit status: " + message);
+            }
+          }
+          break;
+        default:
+          throw new IOException("Invalid frame marker: " + marker);
+      }
+    }
+  }
+
+  /**
+   * Closes the connection. The server finishes the request it is executing,
+   * if any.
+   */
+  @Override
+  public void close() throws IOException {
+    socket.close();
+  }
+}
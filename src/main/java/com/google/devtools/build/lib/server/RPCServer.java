@@ -19,6 +19,7 @@ import static java.nio.charset.StandardCharsets.UTF_8;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.server.RPCService.UnknownCommandException;
 import com.google.devtools.build.lib.server.signal.InterruptSignalHandler;
 import com.google.devtools.build.lib.unix.FilesystemUtils;
@@ -27,10 +28,13 @@ import com.google.devtools.build.lib.unix.LocalServerSocket;
 import com.google.devtools.build.lib.unix.LocalSocketAddress;
 import com.google.devtools.build.lib.util.Clock;
 import com.google.devtools.build.lib.util.ThreadUtils;
+import com.google.devtools.build.lib.util.io.FramedStreamMultiplexer;
 import com.google.devtools.build.lib.util.io.OutErr;
 import com.google.devtools.build.lib.util.io.StreamMultiplexer;
 import com.google.devtools.build.lib.vfs.Path;
 
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -41,6 +45,13 @@ import java.net.SocketTimeoutException;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
@@ -54,15 +65,42 @@ import java.util.logging.Logger;
  * is a significant speedup.)  The server thread will terminate after idling
  * for a user-specified time.
  *
+ * <p>Connections are accepted on a separate thread and read on a bounded pool
+ * of connection threads; a connection that arrives while all of them are busy
+ * and too many others are already waiting for one is closed right away.
+ * Requests that can run concurrently (see {@link RPCService#canRunConcurrently})
+ * are executed right away on the thread of their connection; all other
+ * requests are executed one at a time, in order of arrival, on the thread that
+ * called {@link #serve()}.
+ *
+ * <p>Clients talk to the server in one of two protocols:
+ * <ul>
+ *   <li>The original protocol: the client sends the NUL-separated words of a
+ *       single request and shuts down its side of the connection. The response
+ *       is a {@link StreamMultiplexer} stream, which ends with the exit code on
+ *       the control channel, and the server closes the connection.
+ *   <li>The framed protocol: the client sends {@link #FRAMED_PROTOCOL_MARKER}
+ *       and {@link #FRAMED_PROTOCOL_VERSION}, followed by any number of
+ *       requests, each a 32-bit big-endian length followed by that many bytes
+ *       of NUL-separated words. The response to each request is a
+ *       {@link FramedStreamMultiplexer} stream that ends with the exit code on
+ *       the control channel, after which the client may send the next request
+ *       on the same connection. The server closes the connection when the
+ *       client shuts down its side. Only {@link RPCClient} speaks this
+ *       protocol; the Blaze client still uses the original one.
+ * </ul>
+ * A request in the original protocol never starts with a NUL byte, as its
+ * first word is never empty.
+ *
  * Note: If you are contemplating to call into the RPCServer from
  * within Java, consider using the {@link RPCService} class instead.
  */
 // TODO(bazel-team): Signal handling.
 // TODO(bazel-team): Gives clients status information when the server is busy. One
 // way to do this is to put the server status in a file (pid, the current
-// target, etc) in the server directory. Alternatively, we can have a separate
-// thread taking care of the server socket and put the information into socket
-// handshakes.
+// target, etc) in the server directory. Alternatively, we can put the
+// information into socket handshakes, now that a separate thread takes care
+// of the server socket.
 // TODO(bazel-team): Use Reporter for server-side messages.
 public final class RPCServer {
 
@@ -73,11 +111,29 @@ public final class RPCServer {
   private final long statusCheckMillis;
   private final Path serverDirectory;
   private final Path workspaceDir;
+  private final ThreadPoolExecutor connectionExecutor;
   private static final Logger LOG = Logger.getLogger(RPCServer.class.getName());
   private volatile boolean lameDuck;
 
   private static final long STATUS_CHECK_PERIOD_MILLIS = 1000 * 60; // 1 minute.
+  // How long the acceptor thread waits for a connection before checking whether
+  // the server socket was closed. Closing the socket blocks for up to this long.
+  private static final long ACCEPT_TIMEOUT_MILLIS = 100;
   private static final Splitter NULLTERMINATOR_SPLITTER = Splitter.on('\0');
+  // The most connections that are read at the same time. A connection that uses the framed
+  // protocol holds its thread until the client closes it.
+  private static final int MAX_CONNECTION_THREADS = 32;
+  // The most connections that wait for a connection thread before new ones are refused.
+  private static final int MAX_PENDING_CONNECTIONS = 128;
+  // How long an idle connection thread is kept around.
+  private static final long CONNECTION_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+  /** The first byte sent by clients that speak the framed protocol. */
+  static final int FRAMED_PROTOCOL_MARKER = 0;
+  /** The version of the framed protocol, sent right after the marker. */
+  static final int FRAMED_PROTOCOL_VERSION = 1;
+  /** The largest framed request the server accepts. */
+  static final int MAX_FRAMED_REQUEST_SIZE = 1 << 24;
 
   /**
    * Create a new server instance. After creating the server, you can start it
@@ -97,15 +153,28 @@ public final class RPCServer {
                    long maxIdleMillis, long statusCheckPeriodMillis,
                    Path serverDirectory, Path workspaceDir)
       throws IOException {
+    this(clock, rpcService, maxIdleMillis, statusCheckPeriodMillis, serverDirectory, workspaceDir,
+        MAX_CONNECTION_THREADS, MAX_PENDING_CONNECTIONS);
+  }
+
+  RPCServer(Clock clock, RPCService rpcService, long maxIdleMillis, long statusCheckPeriodMillis,
+      Path serverDirectory, Path workspaceDir, int maxConnectionThreads,
+      int maxPendingConnections) throws IOException {
     this.clock = clock;
     this.rpcService = rpcService;
     this.maxIdleMillis = maxIdleMillis;
     this.statusCheckMillis = statusCheckPeriodMillis;
     this.serverDirectory = serverDirectory;
     this.workspaceDir = workspaceDir;
+    this.connectionExecutor = new ThreadPoolExecutor(maxConnectionThreads, maxConnectionThreads,
+        CONNECTION_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(maxPendingConnections),
+        new ThreadFactoryBuilder().setNameFormat("rpc-server-connection-%d").setDaemon(true)
+            .build());
+    connectionExecutor.allowCoreThreadTimeOut(true);
 
     this.serverSocket = openServerSocket();
-    serverSocket.setSoTimeout(Math.min(maxIdleMillis, statusCheckMillis));
+    serverSocket.setSoTimeout(ACCEPT_TIMEOUT_MILLIS);
     lameDuck = false;
   }
 
@@ -193,66 +262,240 @@ public final class RPCServer {
         }
       };
 
+    final BlockingQueue<ExclusiveRequest> exclusiveRequests =
+        new LinkedBlockingQueue<>();
+    final AtomicLong lastConcurrentRequestTime = new AtomicLong();
+    Thread acceptorThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        acceptRequests(exclusiveRequests, lastConcurrentRequestTime);
+      }
+    }, "rpc-server-acceptor");
+    acceptorThread.setDaemon(true);
+    acceptorThread.start();
+
     try {
       while (!lameDuck) {
-        try {
-          IdleServerTasks idleChecker = new IdleServerTasks(workspaceDir);
-          idleChecker.idle();
-          RequestIo requestIo;
-
-          long startTime = clock.currentTimeMillis();
-          while (true) {
-            try {
-              allowingInterrupt.set(true);
-              Socket socket = serverSocket.accept();
-              long firstContactTime = clock.currentTimeMillis();
-              requestIo = new RequestIo(socket, firstContactTime);
-              break;
-            } catch (SocketTimeoutException e) {
-              long idleTime = clock.currentTimeMillis() - startTime;
-              if (lameDuck) {
-                closeServerSocket();
-                return;
-              } else if (idleTime > maxIdleMillis ||
-                  (idleTime > statusCheckMillis && !idleChecker.continueProcessing(idleTime))) {
-                enterLameDuck();
-              }
-            }
-          }
-          idleChecker.busy();
+        IdleServerTasks idleChecker = new IdleServerTasks(workspaceDir);
+        idleChecker.idle();
+        ExclusiveRequest request;
 
+        long startTime = clock.currentTimeMillis();
+        while (true) {
+          allowingInterrupt.set(true);
           try {
-            cmdNum.incrementAndGet();
-            inAction.set(true);
-            executeRequest(requestIo);
-          } finally {
-            inAction.set(false);
-            synchronized (interruptLock) {
-              allowingInterrupt.set(false);
-              Thread.interrupted(); // clears thread interrupted status
-            }
-            requestIo.shutdown();
-            if (rpcService.isShutdown()) {
-              return;
-            }
+            request = exclusiveRequests.poll(
+                lameDuck ? 1 : Math.min(maxIdleMillis, statusCheckMillis), TimeUnit.MILLISECONDS);
+          } catch (InterruptedException e) {
+            // Interrupted while no command is running; there is nothing to abort.
+            continue;
           }
-        } catch (IOException e) {
-          if (e.getMessage().equals("Broken pipe")) {
-            LOG.info("Connection to the client lost: "
-                           + e.getMessage());
-          } else {
-            // Other cases: print the stack for debugging.
-            printStack(e);
+          if (request != null) {
+            break;
+          }
+          if (!acceptorThread.isAlive()) {
+            // The server socket is gone, no more requests will arrive.
+            return;
+          }
+          long idleTime = clock.currentTimeMillis()
+              - Math.max(startTime, lastConcurrentRequestTime.get());
+          if (lameDuck) {
+            closeServerSocket();
+            return;
+          } else if (idleTime > maxIdleMillis ||
+              (idleTime > statusCheckMillis && !idleChecker.continueProcessing(idleTime))) {
+            enterLameDuck();
+          }
+        }
+        idleChecker.busy();
+
+        try {
+          cmdNum.incrementAndGet();
+          inAction.set(true);
+          request.requestIo.requestOutErr.addSystemOutErrAsSource();
+          executeRequest(request.requestIo, request.args);
+        } finally {
+          inAction.set(false);
+          synchronized (interruptLock) {
+            allowingInterrupt.set(false);
+            Thread.interrupted(); // clears thread interrupted status
+          }
+          request.finish();
+          if (rpcService.isShutdown()) {
+            return;
           }
         }
       }
     } finally {
       rpcService.shutdown();
+      // Requests that arrived after the last one we executed get a closed connection, just as
+      // if they had connected after the server socket was closed.
+      for (ExclusiveRequest request : exclusiveRequests) {
+        request.abort();
+      }
       LOG.info("Logging finished");
       sigintHandler.uninstall();
     }
   }
 
+  /**
+   * Accepts connections until the server socket is closed. Each connection is
+   * handed to a connection thread before anything is read from it, so that a
+   * slow or stuck client cannot keep the server from accepting others.
+   */
+  private void acceptRequests(BlockingQueue<ExclusiveRequest> exclusiveRequests,
+      AtomicLong lastConcurrentRequestTime) {
+    try {
+      acceptConnections(exclusiveRequests, lastConcurrentRequestTime);
+    } finally {
+      // Connections that were already accepted are still served.
+      connectionExecutor.shutdown();
+    }
+  }
+
+  private void acceptConnections(BlockingQueue<ExclusiveRequest> exclusiveRequests,
+      AtomicLong lastConcurrentRequestTime) {
+    while (!serverSocket.isClosed()) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (SocketTimeoutException e) {
+        continue;
+      } catch (IOException e) {
+        if (serverSocket.isClosed()) {
+          return;
+        }
+        logConnectionError(e);
+        continue;
+      }
+      serveConnection(socket, clock.currentTimeMillis(), exclusiveRequests,
+          lastConcurrentRequestTime);
+    }
+  }
+
+  /**
+   * Reads the requests of a connection on a connection thread. Requests that
+   * can run concurrently are executed on that thread; all others are added to
+   * {@code exclusiveRequests}. A connection that uses the framed protocol is
+   * served until the client closes it. The connection is closed without reading
+   * anything if there are too many connections already.
+   */
+  private void serveConnection(final Socket socket, final long firstContactTime,
+      final BlockingQueue<ExclusiveRequest> exclusiveRequests,
+      final AtomicLong lastConcurrentRequestTime) {
+    Runnable connection = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          InputStream in = socket.getInputStream();
+          int firstByte = in.read();
+          if (firstByte == FRAMED_PROTOCOL_MARKER) {
+            serveFramedRequests(socket, exclusiveRequests, lastConcurrentRequestTime);
+            closeQuietly(socket);
+          } else {
+            serveRequest(new RequestIo(socket, firstContactTime, /*keepAlive=*/false),
+                readRequest(firstByte, in), exclusiveRequests, lastConcurrentRequestTime);
+          }
+        } catch (IOException e) {
+          closeQuietly(socket);
+          logConnectionError(e);
+        } catch (InterruptedException e) {
+          // Nobody interrupts this thread; just close the connection.
+          closeQuietly(socket);
+        }
+      }
+    };
+    try {
+      connectionExecutor.execute(connection);
+    } catch (RejectedExecutionException e) {
+      LOG.warning("Too many connections, refusing a new one");
+      closeQuietly(socket);
+    }
+  }
+
+  /**
+   * Serves a single request of a connection that does not use the framed
+   * protocol. The connection is closed once the request has been executed.
+   */
+  private void serveRequest(RequestIo requestIo, List<String> request,
+      BlockingQueue<ExclusiveRequest> exclusiveRequests, AtomicLong lastConcurrentRequestTime) {
+    if (request == null) {
+      LOG.info("Short-circuiting empty request");
+      requestIo.shutdown();
+    } else if (canRunConcurrently(request)) {
+      lastConcurrentRequestTime.set(clock.currentTimeMillis());
+      try {
+        executeRequest(requestIo, request);
+      } finally {
+        requestIo.shutdown();
+      }
+    } else {
+      exclusiveRequests.add(new ExclusiveRequest(requestIo, request));
+    }
+  }
+
+  /**
+   * Serves the requests on a connection that uses the framed protocol, one
+   * after the other.
+   */
+  private void serveFramedRequests(Socket socket,
+      BlockingQueue<ExclusiveRequest> exclusiveRequests, AtomicLong lastConcurrentRequestTime)
+      throws IOException, InterruptedException {
+    DataInputStream in = new DataInputStream(socket.getInputStream());
+    int version = in.read();
+    if (version != FRAMED_PROTOCOL_VERSION) {
+      LOG.warning("Unsupported framed protocol version: " + version);
+      return;
+    }
+    while (!rpcService.isShutdown()) {
+      List<String> request = readFramedRequest(in);
+      if (request == null) {
+        return;
+      }
+      RequestIo requestIo = new RequestIo(socket, clock.currentTimeMillis(), /*keepAlive=*/true);
+      if (canRunConcurrently(request)) {
+        lastConcurrentRequestTime.set(clock.currentTimeMillis());
+        executeRequest(requestIo, request);
+        requestIo.finish();
+      } else {
+        ExclusiveRequest exclusiveRequest = new ExclusiveRequest(requestIo, request);
+        exclusiveRequests.add(exclusiveRequest);
+        exclusiveRequest.awaitFinished();
+      }
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    if (socket == null) {
+      return;
+    }
+    try {
+      socket.close();
+    } catch (IOException e) {
+      printStack(e);
+    }
+  }
+
+  private static void logConnectionError(IOException e) {
+    if ("Broken pipe".equals(e.getMessage())) {
+      LOG.info("Connection to the client lost: "
+                     + e.getMessage());
+    } else {
+      // Other cases: print the stack for debugging.
+      printStack(e);
+    }
+  }
+
+  private boolean canRunConcurrently(List<String> request) {
+    try {
+      return rpcService.canRunConcurrently(request);
+    } catch (RuntimeException e) {
+      // Let the main thread execute the request and report the problem.
+      LOG.warning("Cannot decide whether request can run concurrently: " + e);
+      return false;
+    }
+  }
+
   private void closeServerSocket() {
     LOG.info("Closing serverSocket.");
     try {
@@ -280,7 +523,6 @@ public final class RPCServer {
     } catch (IOException e) {
       e.printStackTrace();
     }
-    serverSocket.setSoTimeout(1);
   }
 
   /**
@@ -400,23 +642,44 @@ public final class RPCServer {
    * <p>Blaze consistently uses the platform default encoding (defined in
    * blaze.cc) to interface with Unix APIs.
    */
-  private static List<String> readRequest(InputStream input) throws IOException {
+  private static List<String> readRequest(int firstByte, InputStream input) throws IOException {
+    if (firstByte == -1) {
+      return null;
+    }
     byte[] inputBytes = ByteStreams.toByteArray(input);
-    if (inputBytes.length == 0) {
+    byte[] requestBytes = new byte[inputBytes.length + 1];
+    requestBytes[0] = (byte) firstByte;
+    System.arraycopy(inputBytes, 0, requestBytes, 1, inputBytes.length);
+    return splitRequest(requestBytes);
+  }
+
+  /**
+   * Reads the next request of the framed protocol. Returns null if the client
+   * has shut down its side of the connection.
+   */
+  private static List<String> readFramedRequest(DataInputStream input) throws IOException {
+    int length;
+    try {
+      length = input.readInt();
+    } catch (EOFException e) {
       return null;
     }
-    String s = new String(inputBytes, Charset.defaultCharset());
+    if (length <= 0 || length > MAX_FRAMED_REQUEST_SIZE) {
+      throw new IOException("Invalid request length: " + length);
+    }
+    byte[] requestBytes = new byte[length];
+    input.readFully(requestBytes);
+    return splitRequest(requestBytes);
+  }
+
+  private static List<String> splitRequest(byte[] requestBytes) {
+    String s = new String(requestBytes, Charset.defaultCharset());
     return ImmutableList.copyOf(NULLTERMINATOR_SPLITTER.split(s));
   }
 
-  private void executeRequest(RequestIo requestIo) {
+  private void executeRequest(RequestIo requestIo, List<String> request) {
     int exitStatus = 2;
     try {
-      List<String> request = readRequest(requestIo.in);
-      if (request == null) {
-        LOG.info("Short-circuiting empty request");
-        return;
-      }
       exitStatus = rpcService.executeRequest(request, requestIo.requestOutErr,
           requestIo.firstContactTime);
       LOG.info("Finished executing request");
@@ -443,10 +706,40 @@ public final class RPCServer {
     requestIo.writeExitStatus(exitStatus);
   }
 
+  /**
+   * A request that waits for the main thread to execute it.
+   */
+  private static class ExclusiveRequest {
+    private final RequestIo requestIo;
+    private final List<String> args;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    ExclusiveRequest(RequestIo requestIo, List<String> args) {
+      this.requestIo = requestIo;
+      this.args = args;
+    }
+
+    /** Called by the main thread after executing the request. */
+    void finish() {
+      requestIo.finish();
+      finished.countDown();
+    }
+
+    /** Called instead of {@link #finish} for requests that are never executed. */
+    void abort() {
+      requestIo.shutdown();
+      finished.countDown();
+    }
+
+    void awaitFinished() throws InterruptedException {
+      finished.await();
+    }
+  }
+
   /**
    * Because it's a little complicated, this class factors out all the IO Hook
    * up we need per request, that is, in
-   * {@link RPCServer#executeRequest(RequestIo)}.
+   * {@link RPCServer#executeRequest(RequestIo, List)}.
    * It's unfortunately complicated, so it's explained here.
    */
   private static class RequestIo {
@@ -460,29 +753,44 @@ public final class RPCServer {
     private final Socket requestSocket;
     private final OutputStream requestOut;
     private final long firstContactTime;
+    private final boolean keepAlive;
 
-    RequestIo(Socket requestSocket, long firstContactTime) throws IOException {
+    /**
+     * @param keepAlive whether the connection uses the framed protocol and
+     *     stays open for further requests
+     */
+    RequestIo(Socket requestSocket, long firstContactTime, boolean keepAlive)
+        throws IOException {
       this.requestSocket = requestSocket;
       this.firstContactTime = firstContactTime;
+      this.keepAlive = keepAlive;
       this.in = requestSocket.getInputStream();
       this.requestOut = requestSocket.getOutputStream();
 
       // We encode the response sent to the client with a multiplexer so
       // we can send three streams (out / err / control) over one wire stream
-      // (requestOut).
-      StreamMultiplexer multiplexer = new StreamMultiplexer(requestOut);
-
-      // We'll be writing control messages (exit code + out of date message)
-      // to this control channel.
-      controlChannel = multiplexer.createControl();
+      // (requestOut). We'll be writing control messages (exit code + out of
+      // date message) to the control channel.
+      OutputStream stdout;
+      OutputStream stderr;
+      if (keepAlive) {
+        FramedStreamMultiplexer multiplexer = new FramedStreamMultiplexer(requestOut);
+        controlChannel = multiplexer.createControl();
+        stdout = multiplexer.createStdout();
+        stderr = multiplexer.createStderr();
+      } else {
+        StreamMultiplexer multiplexer = new StreamMultiplexer(requestOut);
+        controlChannel = multiplexer.createControl();
+        stdout = multiplexer.createStdout();
+        stderr = multiplexer.createStderr();
+      }
 
       // This is the outErr part of the multiplexed output.
-      requestOutErr = OutErr.create(multiplexer.createStdout(),
-                                    multiplexer.createStderr());
-      // We hook up System.out / System.err to our IO object. Stuff written to
+      // For requests that do not run concurrently, System.out / System.err
+      // are hooked up to it (see RPCServer#serve()). Stuff written to
       // System.out / System.err will show up on the user's screen, prefixed
       // with "System.out "/"System.err ".
-      requestOutErr.addSystemOutErrAsSource();
+      requestOutErr = OutErr.create(stdout, stderr);
     }
 
     public void writeExitStatus(int exitStatus) {
@@ -512,6 +820,18 @@ public final class RPCServer {
       }
     }
 
+    /**
+     * Ends the request: closes the connection, unless it stays open for
+     * further requests.
+     */
+    public void finish() {
+      if (keepAlive) {
+        flushOutErr();
+      } else {
+        shutdown();
+      }
+    }
+
     public void shutdown() {
       try {
         requestOut.close();
@@ -31,7 +31,7 @@ import java.util.logging.Logger;
  */
 public final class RPCService {
 
-  private boolean isShutdown;
+  private volatile boolean isShutdown;
   private static final Logger LOG = Logger.getLogger(RPCService.class.getName());
   private final ServerCommand appCommand;
 
@@ -72,6 +72,16 @@ public final class RPCService {
     }
   }
 
+  /**
+   * Returns whether the request can be executed concurrently with other
+   * requests, on a thread other than the one executing all other requests.
+   */
+  public boolean canRunConcurrently(List<String> request) {
+    String command = Iterables.getFirst(request, "");
+    return appCommand != null && command.equals("blaze")
+        && appCommand.canRunConcurrently(request.subList(1, request.size()));
+  }
+
   /**
    * After executing this function, further requests will fail, and
    * {@link #isShutdown()} will return true.
@@ -29,6 +29,13 @@ public interface ServerCommand {
    */
   int exec(List<String> args, OutErr outErr, long firstContactTime) throws Exception;
 
+  /**
+   * Returns whether the request can be executed while another request is being
+   * executed. Such requests may be passed to {@link #exec} from a thread other
+   * than the one executing all other requests.
+   */
+  boolean canRunConcurrently(List<String> args);
+
   /**
    * The implementation returns true from this method to initiate a shutdown.
    * No further requests will be handled.
@@ -0,0 +1,77 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.primitives.Ints;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.skyframe.ArtifactValue.OwnedArtifact;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.EvaluationPriority;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Evaluates first the actions that took the longest the last time they were executed, and the
+ * artifacts they generate. Since the nodes requested by a node inherit its priority, the inputs of
+ * a slow action are built before those of the fast ones as well, which shortens the build when a
+ * slow action is on its critical path.
+ *
+ * <p>Actions are identified by the exec path of their primary output, so that the durations
+ * outlive the action objects of an analysis. Only the durations of the actions that take at least
+ * {@link #MIN_DURATION_MS} are kept; all other nodes have priority 0. The
+ * {@link SkyframeExecutor} only installs this for execution-phase evaluations, and only once
+ * {@link #hasDurations} holds.
+ */
+@ThreadSafe
+final class ActionDurationEvaluationPriority implements EvaluationPriority {
+
+  static final long MIN_DURATION_MS = 100;
+
+  private final ConcurrentMap<PathFragment, Integer> durationsMs = new ConcurrentHashMap<>();
+
+  /** Records that {@code action} took {@code durationMs} milliseconds to execute. */
+  void recordDuration(Action action, long durationMs) {
+    PathFragment execPath = action.getPrimaryOutput().getExecPath();
+    if (durationMs >= MIN_DURATION_MS) {
+      durationsMs.put(execPath, Ints.saturatedCast(durationMs));
+    } else {
+      durationsMs.remove(execPath);
+    }
+  }
+
+  /** Returns whether any action took long enough for its duration to be kept. */
+  boolean hasDurations() {
+    return !durationsMs.isEmpty();
+  }
+
+  @Override
+  public int getPriority(SkyKey key) {
+    SkyFunctionName functionName = key.functionName();
+    Artifact artifact;
+    if (functionName.equals(SkyFunctions.ACTION_EXECUTION)) {
+      artifact = ((Action) key.argument()).getPrimaryOutput();
+    } else if (functionName.equals(SkyFunctions.ARTIFACT)) {
+      artifact = ((OwnedArtifact) key.argument()).getArtifact();
+    } else {
+      return 0;
+    }
+    Integer durationMs = durationsMs.get(artifact.getExecPath());
+    return durationMs == null ? 0 : durationMs;
+  }
+}
@@ -0,0 +1,182 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ActionGraph;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.ArtifactPrefixConflictException;
+import com.google.devtools.build.lib.actions.MapBasedActionGraph;
+import com.google.devtools.build.lib.actions.MutableActionGraph;
+import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
+import com.google.devtools.build.lib.concurrent.ExecutorShutdownUtil;
+import com.google.devtools.build.lib.concurrent.Sharder;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
+import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ConflictException;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Finds the conflicts between the actions of a set of {@link ActionLookupValue}s, as described in
+ * {@link SkyframeActionExecutor#findAndStoreArtifactConflicts}.
+ *
+ * <p>The action graph and the sorted map from output paths to artifacts are built for each check
+ * and dropped afterwards, so no actions are retained between builds.
+ */
+@ThreadSafe
+final class ArtifactConflictFinder {
+
+  private ArtifactConflictFinder() {
+  }
+
+  /** Returns the conflicts between the actions of {@code actionLookupValues}. */
+  static ImmutableMap<Action, ConflictException> findConflicts(
+      Iterable<ActionLookupValue> actionLookupValues) throws InterruptedException {
+    List<ActionLookupValue> values = ImmutableList.copyOf(actionLookupValues);
+    MutableActionGraph actionGraph = new MapBasedActionGraph();
+    ConcurrentSkipListMap<PathFragment, Artifact> artifactPathMap = new ConcurrentSkipListMap<>();
+    ConcurrentMap<Action, ConflictException> badActionMap = new ConcurrentHashMap<>();
+    registerActions(values, actionGraph, artifactPathMap, badActionMap);
+    findPrefixConflicts(actionGraph, artifactPathMap, badActionMap);
+    return ImmutableMap.copyOf(badActionMap);
+  }
+
+  /**
+   * Registers the actions of {@code values} in a threadpool, which saves around 1.5 seconds on a
+   * mid-sized build versus a single-threaded operation.
+   */
+  private static void registerActions(List<ActionLookupValue> values,
+      MutableActionGraph actionGraph, ConcurrentMap<PathFragment, Artifact> artifactPathMap,
+      ConcurrentMap<Action, ConflictException> badActionMap) throws InterruptedException {
+    if (values.isEmpty()) {
+      return;
+    }
+    // Action graph construction is CPU-bound.
+    int numJobs = Runtime.getRuntime().availableProcessors();
+    Sharder<ActionLookupValue> actionShards = new Sharder<>(numJobs, values.size());
+    for (ActionLookupValue value : values) {
+      actionShards.add(value);
+    }
+
+    ThrowableRecordingRunnableWrapper wrapper = new ThrowableRecordingRunnableWrapper(
+        "ArtifactConflictFinder#registerActions");
+
+    ExecutorService executor = Executors.newFixedThreadPool(
+        numJobs,
+        new ThreadFactoryBuilder().setNameFormat("ActionLookupValue Processor %d").build());
+    for (List<ActionLookupValue> shard : actionShards) {
+      executor.execute(
+          wrapper.wrap(actionRegistration(shard, actionGraph, artifactPathMap, badActionMap)));
+    }
+    boolean interrupted = ExecutorShutdownUtil.interruptibleShutdown(executor);
+    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
+    if (interrupted) {
+      throw new InterruptedException();
+    }
+  }
+
+  private static Runnable actionRegistration(
+      final List<ActionLookupValue> values,
+      final MutableActionGraph actionGraph,
+      final ConcurrentMap<PathFragment, Artifact> artifactPathMap,
+      final ConcurrentMap<Action, ConflictException> badActionMap) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        for (ActionLookupValue value : values) {
+          Set<Action> registeredActions = new HashSet<>();
+          for (Map.Entry<Artifact, Action> entry : value.getMapForConsistencyCheck().entrySet()) {
+            Action action = entry.getValue();
+            // We have an entry for each <action, artifact> pair. Only try to register each action
+            // once.
+            if (registeredActions.add(action)) {
+              try {
+                actionGraph.registerAction(action);
+              } catch (ActionConflictException e) {
+                Exception oldException = badActionMap.put(action, new ConflictException(e));
+                Preconditions.checkState(oldException == null,
+                  "%s | %s | %s", action, e, oldException);
+                // We skip the rest of the loop, and do not add the path->artifact mapping for this
+                // artifact below -- we don't need to check it since this action is already in
+                // error.
+                continue;
+              }
+            }
+            artifactPathMap.put(entry.getKey().getExecPath(), entry.getKey());
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Reports an error for every derived artifact which is a prefix of another. If x << y << z
+   * (where x << y means "y starts with x"), then we only report (x,y), (x,z), but not (y,z).
+   */
+  private static void findPrefixConflicts(ActionGraph actionGraph,
+      SortedMap<PathFragment, Artifact> artifactPathMap,
+      ConcurrentMap<Action, ConflictException> badActionMap) {
+    Iterator<PathFragment> iter = artifactPathMap.keySet().iterator();
+    if (!iter.hasNext()) {
+      // No actions in graph -- currently happens only in tests. Special-cased because .next() call
+      // below is unconditional.
+      return;
+    }
+    for (PathFragment pathJ = iter.next(); iter.hasNext(); ) {
+      // For each comparison, we have a prefix candidate (pathI) and a suffix candidate (pathJ).
+      // At the beginning of the loop, we set pathI to the last suffix candidate, since it has not
+      // yet been tested as a prefix candidate, and then set pathJ to the paths coming after pathI,
+      // until we come to one that does not contain pathI as a prefix. pathI is then verified not to
+      // be the prefix of any path, so we start the next run of the loop.
+      PathFragment pathI = pathJ;
+      // Compare pathI to the paths coming after it.
+      while (iter.hasNext()) {
+        pathJ = iter.next();
+        if (pathJ.startsWith(pathI)) { // prefix conflict.
+          Artifact artifactI = Preconditions.checkNotNull(artifactPathMap.get(pathI), pathI);
+          Artifact artifactJ = Preconditions.checkNotNull(artifactPathMap.get(pathJ), pathJ);
+          Action actionI =
+              Preconditions.checkNotNull(actionGraph.getGeneratingAction(artifactI), artifactI);
+          Action actionJ =
+              Preconditions.checkNotNull(actionGraph.getGeneratingAction(artifactJ), artifactJ);
+          if (actionI.shouldReportPathPrefixConflict(actionJ)) {
+            ArtifactPrefixConflictException exception = new ArtifactPrefixConflictException(pathI,
+                pathJ, actionI.getOwner().getLabel(), actionJ.getOwner().getLabel());
+            badActionMap.put(actionI, new ConflictException(exception));
+            badActionMap.put(actionJ, new ConflictException(exception));
+          }
+        } else { // pathJ didn't have prefix pathI, so no conflict possible for pathI.
+          break;
+        }
+      }
+    }
+  }
+}
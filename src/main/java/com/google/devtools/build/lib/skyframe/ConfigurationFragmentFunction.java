@@ -16,10 +16,12 @@ package com.google.devtools.build.lib.skyframe;
 import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
 import com.google.devtools.build.lib.analysis.config.BuildConfiguration.Fragment;
 import com.google.devtools.build.lib.analysis.config.BuildOptions;
 import com.google.devtools.build.lib.analysis.config.ConfigurationEnvironment;
 import com.google.devtools.build.lib.analysis.config.ConfigurationFragmentFactory;
+import com.google.devtools.build.lib.analysis.config.FragmentOptions;
 import com.google.devtools.build.lib.analysis.config.InvalidConfigurationException;
 import com.google.devtools.build.lib.analysis.config.PackageProviderForConfigurations;
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
@@ -36,6 +38,7 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 
 import java.io.IOException;
+import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -60,6 +63,19 @@ public class ConfigurationFragmentFunction implements SkyFunction {
         (ConfigurationFragmentKey) skyKey.argument();
     BuildOptions buildOptions = configurationFragmentKey.getBuildOptions();
     ConfigurationFragmentFactory factory = getFactory(configurationFragmentKey.getFragmentType());
+    BuildOptions trimmedOptions = trimOptions(buildOptions, factory);
+    if (!trimmedOptions.equals(buildOptions)) {
+      // Configurations whose options only differ in options the factory doesn't read share the
+      // fragment, which is created once for the trimmed options.
+      try {
+        ConfigurationFragmentValue value = (ConfigurationFragmentValue) env.getValueOrThrow(
+            ConfigurationFragmentValue.key(trimmedOptions, factory.creates()),
+            InvalidConfigurationException.class);
+        return value == null ? null : new ConfigurationFragmentValue(value.getFragment());
+      } catch (InvalidConfigurationException e) {
+        throw new ConfigurationFragmentFunctionException(e);
+      }
+    }
     try {
       PackageProviderForConfigurations loadedPackageProvider = 
           new SkyframePackageLoaderWithValueEnvironment(env, configurationPackages.get());
@@ -80,6 +96,21 @@ public class ConfigurationFragmentFunction implements SkyFunction {
     }
   }
   
+  /**
+   * Returns the options with those that {@code factory} doesn't require reset to their defaults.
+   * The core {@link BuildConfiguration.Options} are always kept.
+   */
+  private static BuildOptions trimOptions(BuildOptions buildOptions,
+      ConfigurationFragmentFactory factory) {
+    Set<Class<? extends FragmentOptions>> unusedOptions = new HashSet<>();
+    for (FragmentOptions options : buildOptions.getOptions()) {
+      unusedOptions.add(options.getClass());
+    }
+    unusedOptions.removeAll(factory.requiredOptions());
+    unusedOptions.remove(BuildConfiguration.Options.class);
+    return buildOptions.resetToDefaults(unusedOptions);
+  }
+
   private ConfigurationFragmentFactory getFactory(Class<? extends Fragment> fragmentType) {
     for (ConfigurationFragmentFactory factory : configurationFragments.get()) {
       if (factory.creates().equals(fragmentType)) {
@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
@@ -28,6 +29,9 @@ import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
 import com.google.devtools.build.skyframe.SkyFunction.Environment;
 import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.ValueOrException;
+
+import java.util.Map;
 
 /**
  * A {@link RecursivePackageProvider} backed by an {@link Environment}. Its methods
@@ -66,6 +70,42 @@ public final class EnvironmentBackedRecursivePackageProvider implements Recursiv
     return pkg;
   }
 
+  /**
+   * Requests all the packages as a single group of deps, so that a missing package costs at most
+   * one restart however many packages are missing.
+   */
+  @Override
+  public Map<PackageIdentifier, Package> bulkGetPackages(EventHandler eventHandler,
+      Iterable<PackageIdentifier> pkgIds) throws NoSuchPackageException, MissingDepException {
+    Map<PackageIdentifier, SkyKey> pkgKeys = Maps.newLinkedHashMap();
+    for (PackageIdentifier pkgId : pkgIds) {
+      pkgKeys.put(pkgId, PackageValue.key(pkgId));
+    }
+    Map<SkyKey, ValueOrException<NoSuchPackageException>> pkgValues =
+        env.getValuesOrThrow(pkgKeys.values(), NoSuchPackageException.class);
+    Map<PackageIdentifier, Package> packages = Maps.newLinkedHashMap();
+    boolean missingDep = false;
+    for (Map.Entry<PackageIdentifier, SkyKey> entry : pkgKeys.entrySet()) {
+      try {
+        PackageValue pkgValue = (PackageValue) pkgValues.get(entry.getValue()).get();
+        if (pkgValue == null) {
+          missingDep = true;
+        } else {
+          packages.put(entry.getKey(), pkgValue.getPackage());
+        }
+      } catch (NoSuchPackageException e) {
+        if (e.getPackage() == null) {
+          throw e;
+        }
+        packages.put(entry.getKey(), e.getPackage());
+      }
+    }
+    if (missingDep) {
+      throw new MissingDepException();
+    }
+    return packages;
+  }
+
   @Override
   public boolean isPackage(EventHandler eventHandler, String packageName)
       throws MissingDepException {
@@ -32,6 +32,8 @@ import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.WalkableGraph;
 
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /** A {@link RecursivePackageProvider} backed by a {@link WalkableGraph}. */
 public final class GraphBackedRecursivePackageProvider implements RecursivePackageProvider {
@@ -68,6 +70,18 @@ public final class GraphBackedRecursivePackageProvider implements RecursivePacka
     return pkgValue.getPackage();
   }
 
+  @Override
+  public Map<PackageIdentifier, Package> bulkGetPackages(EventHandler eventHandler,
+      Iterable<PackageIdentifier> pkgIds) throws NoSuchPackageException {
+    // The universe is already loaded, so fetching the packages one at a time does not wait on
+    // anything.
+    Map<PackageIdentifier, Package> packages = new LinkedHashMap<>();
+    for (PackageIdentifier pkgId : pkgIds) {
+      packages.put(pkgId, getPackage(eventHandler, pkgId));
+    }
+    return packages;
+  }
+
   @Override
   public boolean isPackage(EventHandler eventHandler, String packageName) {
     SkyKey packageLookupKey = PackageLookupValue.key(new PathFragment(packageName));
@@ -0,0 +1,119 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.profiler.Profiler;
+import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.skyframe.MemoizingEvaluator;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+/**
+ * Evicts cold Skyframe values whenever the heap is still fuller than a given percentage after a
+ * garbage collection.
+ *
+ * <p>Each sweep evicts the evictable values that were not used since the previous sweep (see
+ * {@link MemoizingEvaluator#evictColdValues}), so a value survives at least one sweep after it is
+ * last used. Only directory listings and globs are evicted: they are large, and are computed from
+ * their deps alone. File values are small, and resolving symlinks also depends on the package
+ * path. Package values are not evicted since the targets of the configured targets keep their
+ * packages in memory anyway, and since queries read them directly from the graph.
+ */
+final class HeapWatermarkValueEvictor implements NotificationListener {
+
+  private static final Logger LOG = Logger.getLogger(HeapWatermarkValueEvictor.class.getName());
+
+  static final Predicate<SkyKey> EVICTABLE = SkyFunctionName.functionIsIn(
+      ImmutableSet.of(SkyFunctions.DIRECTORY_LISTING, SkyFunctions.GLOB));
+
+  private final Supplier<MemoizingEvaluator> evaluatorSupplier;
+  private final AtomicBoolean sweeping = new AtomicBoolean();
+  // Sweeps take a while on a large graph, so they do not run in the thread that delivers the
+  // notifications of all listeners.
+  private final ExecutorService executor = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("skyframe-evictor").setDaemon(true).build());
+
+  private HeapWatermarkValueEvictor(Supplier<MemoizingEvaluator> evaluatorSupplier) {
+    this.evaluatorSupplier = evaluatorSupplier;
+  }
+
+  /**
+   * Evicts values from the evaluator returned by {@code evaluatorSupplier} whenever the heap is
+   * still fuller than {@code heapPercent} after a garbage collection.
+   */
+  static void install(Supplier<MemoizingEvaluator> evaluatorSupplier, int heapPercent) {
+    Preconditions.checkArgument(heapPercent > 0 && heapPercent <= 100, heapPercent);
+    boolean thresholdSet = false;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      long max = pool.getUsage().getMax();
+      if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+          && max > 0) {
+        pool.setCollectionUsageThreshold(max * heapPercent / 100);
+        thresholdSet = true;
+      }
+    }
+    if (!thresholdSet) {
+      LOG.warning("The garbage collector does not report the heap usage after collections; "
+          + "Skyframe values will not be evicted");
+      return;
+    }
+    ((NotificationEmitter) ManagementFactory.getMemoryMXBean()).addNotificationListener(
+        new HeapWatermarkValueEvictor(evaluatorSupplier), null, null);
+  }
+
+  @Override
+  public void handleNotification(Notification notification, Object handback) {
+    if (!notification.getType().equals(
+            MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED)
+        || !sweeping.compareAndSet(false, true)) {
+      return;
+    }
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          sweep();
+        } finally {
+          sweeping.set(false);
+        }
+      }
+    });
+  }
+
+  private void sweep() {
+    long startTime = Profiler.nanoTimeMaybe();
+    int evicted = evaluatorSupplier.get().evictColdValues(EVICTABLE);
+    Profiler.instance().logSimpleTask(startTime, ProfilerTask.HANDLE_GC_NOTIFICATION,
+        "evicted " + evicted + " Skyframe values");
+    LOG.info("Evicted " + evicted + " Skyframe values");
+  }
+}
@@ -14,36 +14,52 @@
 
 package com.google.devtools.build.lib.skyframe;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.HashBiMap;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.Constants;
+import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
+import com.google.devtools.build.lib.vfs.IORuntimeException;
 import com.google.devtools.build.lib.vfs.ModifiedFileSet;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
 import java.io.IOException;
 import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.FileSystems;
-import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
-import java.nio.file.SimpleFileVisitor;
 import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * File system watcher for local filesystems. It's able to provide a list of changed
  * files between two consecutive calls. Uses the standard Java WatchService, which uses
  * 'inotify' on Linux.
+ *
+ * <p>The directories are registered in parallel on the first {@link #getCurrentView} call. From
+ * then on a background thread consumes the events of the watch service as they arrive, and
+ * registers newly created directories right away, so that taking a view only has to hand over the
+ * changes accumulated since the previous one, plus those of the events that the background thread
+ * has not picked up yet.
  */
 public class LocalDiffAwareness implements DiffAwareness {
 
@@ -77,11 +93,15 @@ public class LocalDiffAwareness implements DiffAwareness {
     }
   }
 
+  /** Number of threads registering the directories of the watched tree on the first view. */
+  private static final int REGISTRATION_THREADS = 32;
+
   private int numGetCurrentViewCalls = 0;
 
   /**
    * Bijection from WatchKey to the (absolute) Path being watched. WatchKeys don't have this
-   * functionality built-in so we do it ourselves.
+   * functionality built-in so we do it ourselves. Guarded by itself rather than by {@code this},
+   * since the threads registering the tree on the first view do not hold {@code this}.
    */
   private final HashBiMap<WatchKey, Path> watchKeyToDirBiMap = HashBiMap.create();
 
@@ -89,11 +109,51 @@ public class LocalDiffAwareness implements DiffAwareness {
   private final Path watchRootPath;
 
   /** Every directory is registered under this watch service. */
-  private WatchService watchService;
+  private final WatchService watchService;
+
+  /**
+   * Paths changed since the last {@link #getCurrentView} call, as absolute paths. Guarded by
+   * {@code this}.
+   */
+  private Set<Path> changedPaths = new HashSet<>();
+
+  /**
+   * Keys of the tracked directories deleted since the last {@link #getCurrentView} call. Guarded by
+   * {@code this}.
+   */
+  private final Set<WatchKey> deletedDirectoryKeys = new HashSet<>();
+
+  /**
+   * Why the background thread stopped watching, or null if it is still watching. Guarded by
+   * {@code this}.
+   */
+  private String brokenReason = null;
+
+  private final Thread watcherThread;
+
+  /**
+   * Whether the watcher thread is started on the first view. Without it, events are only consumed
+   * when a view is taken.
+   */
+  private final boolean watchInBackground;
 
   private LocalDiffAwareness(String watchRoot, WatchService watchService) {
+    this(watchRoot, watchService, /*watchInBackground=*/true);
+  }
+
+  @VisibleForTesting
+  LocalDiffAwareness(String watchRoot, WatchService watchService, boolean watchInBackground) {
     this.watchRootPath = FileSystems.getDefault().getPath(watchRoot);
     this.watchService = watchService;
+    this.watchInBackground = watchInBackground;
+    this.watcherThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        watchForChanges();
+      }
+    });
+    this.watcherThread.setDaemon(true);
+    this.watcherThread.setName("local-diff-awareness " + watchRoot);
   }
 
   /**
@@ -126,11 +186,19 @@ public class LocalDiffAwareness implements DiffAwareness {
         close();
         throw new BrokenDiffAwarenessException(
             "Error encountered with local file system watcher " + e);
+      } catch (InterruptedException e) {
+        close();
+        Thread.currentThread().interrupt();
+        throw new BrokenDiffAwarenessException(
+            "Interrupted while registering the directories to watch");
+      }
+      if (watchInBackground) {
+        watcherThread.start();
       }
       modifiedAbsolutePaths = ImmutableSet.of();
     } else {
       try {
-        modifiedAbsolutePaths = collectChanges();
+        modifiedAbsolutePaths = takeChanges();
       } catch (BrokenDiffAwarenessException e) {
         close();
         throw e;
@@ -138,9 +206,6 @@ public class LocalDiffAwareness implements DiffAwareness {
         close();
         throw new BrokenDiffAwarenessException(
             "Error encountered with local file system watcher " + e);
-      } catch (ClosedWatchServiceException e) {
-        throw new BrokenDiffAwarenessException(
-            "Internal error with the local file system watcher " + e);
       }
     }
     return new SequentialView(this, numGetCurrentViewCalls, modifiedAbsolutePaths);
@@ -174,6 +239,7 @@ public class LocalDiffAwareness implements DiffAwareness {
   @Override
   public void close() {
     try {
+      // This also makes the watcher thread stop.
       watchService.close();
     } catch (IOException ignored) {
       // Nothing we can do here.
@@ -191,148 +257,263 @@ public class LocalDiffAwareness implements DiffAwareness {
     }
   };
 
-  /** Returns the changed files caught by the watch service. */
-  private Set<Path> collectChanges() throws BrokenDiffAwarenessException, IOException {
-    Set<Path> createdFilesAndDirectories = new HashSet<>();
-    Set<Path> deletedOrModifiedFilesAndDirectories = new HashSet<>();
-    Set<Path> deletedTrackedDirectories = new HashSet<>();
-
-    WatchKey watchKey;
-    while ((watchKey = watchService.poll()) != null) {
-      Path dir = watchKeyToDirBiMap.get(watchKey);
-      Preconditions.checkArgument(dir != null);
-
-      // We replay all the events for this watched directory in chronological order and
-      // construct the diff of this directory since the last #collectChanges call.
-      for (WatchEvent<?> event : watchKey.pollEvents()) {
-        Kind<?> kind = event.kind();
-        if (kind == StandardWatchEventKinds.OVERFLOW) {
-          // TODO(bazel-team): find out when an overflow might happen, and maybe handle it more
-          // gently.
-          throw new BrokenDiffAwarenessException("Overflow when watching local filesystem for "
-              + "changes");
-        }
-        if (event.context() == null) {
-          // The WatchService documentation mentions that WatchEvent#context may return null, but
-          // doesn't explain how/why it would do so. Looking at the implementation, it only
-          // happens on an overflow event. But we make no assumptions about that implementation
-          // detail here.
-          throw new BrokenDiffAwarenessException("Insufficient information from local file system "
-              + "watcher");
-        }
-        // For the events we've registered, the context given is a relative path.
-        Path relativePath = (Path) event.context();
-        Path path = dir.resolve(relativePath);
-        Preconditions.checkState(path.isAbsolute(), path);
-        if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
-          createdFilesAndDirectories.add(path);
-          deletedOrModifiedFilesAndDirectories.remove(path);
-        } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
-          createdFilesAndDirectories.remove(path);
-          deletedOrModifiedFilesAndDirectories.add(path);
-          WatchKey deletedDirectoryKey = watchKeyToDirBiMap.inverse().get(path);
-          if (deletedDirectoryKey != null) {
-            // If the deleted directory has children, then there will also be events for the
-            // WatchKey of the directory itself. WatchService#poll doesn't specify the order in
-            // which WatchKeys are returned, so the key for the directory itself may be processed
-            // *after* the current key (the parent of the deleted directory), and so we don't want
-            // to remove the deleted directory from our bimap just yet.
-            //
-            // For example, suppose we have the file '/root/a/foo.txt' and are watching the
-            // directories '/root' and '/root/a'. If the directory '/root/a' gets deleted then the
-            // following is a valid sequence of events by key.
-            //
-            //  WatchKey '/root/'
-            //    WatchEvent EVENT_MODIFY 'a'
-            //    WatchEvent EVENT_DELETE 'a'
-            //  WatchKey '/root/a'
-            //    WatchEvent EVENT_DELETE 'foo.txt'
-            deletedTrackedDirectories.add(path);
-            // Since inotify uses inodes under the covers we cancel our registration on this key to
-            // avoid getting WatchEvents from a new directory that happens to have the same inode.
-            deletedDirectoryKey.cancel();
-          }
-        } else if (kind == StandardWatchEventKinds.ENTRY_MODIFY) {
-          // If a file was created and then modified, then the net diff is that it was
-          // created.
-          if (!createdFilesAndDirectories.contains(path)) {
-            deletedOrModifiedFilesAndDirectories.add(path);
-          }
-        }
+  @VisibleForTesting
+  Thread getWatcherThread() {
+    return watcherThread;
+  }
+
+  /**
+   * Returns the changes collected since the last call. The events that the watcher thread has not
+   * picked up yet are consumed here, so that a change made just before the view is taken is not
+   * left for the next one.
+   */
+  private synchronized Set<Path> takeChanges() throws BrokenDiffAwarenessException, IOException {
+    if (brokenReason != null) {
+      throw new BrokenDiffAwarenessException(brokenReason);
+    }
+    for (WatchKey watchKey = watchService.poll(); watchKey != null;
+        watchKey = watchService.poll()) {
+      collectChanges(watchKey);
+    }
+    synchronized (watchKeyToDirBiMap) {
+      for (WatchKey staleKey : deletedDirectoryKeys) {
+        // The directory may have been re-created and registered under a new key since.
+        watchKeyToDirBiMap.remove(staleKey);
+      }
+      deletedDirectoryKeys.clear();
+      if (watchKeyToDirBiMap.isEmpty()) {
+        // No more directories to watch, something happened the root directory being watched.
+        throw new IOException("Root directory " + watchRootPath + " became inaccessible.");
       }
+    }
+    Set<Path> changes = changedPaths;
+    changedPaths = new HashSet<>();
+    return changes;
+  }
 
-      if (!watchKey.reset()) {
-        // Watcher got deleted, directory no longer valid.
-        watchKeyToDirBiMap.remove(watchKey);
+  /**
+   * Consumes the events of the watch service until it is closed or fails. Runs in the watcher
+   * thread. Unless the watch service was closed, the next view fails, since changes after this
+   * point would be missed.
+   */
+  private void watchForChanges() {
+    String reason = "Local file system watcher stopped unexpectedly";
+    try {
+      while (true) {
+        WatchKey watchKey = watchService.take();
+        synchronized (this) {
+          collectChanges(watchKey);
+        }
+      }
+    } catch (ClosedWatchServiceException e) {
+      // We are done watching.
+      reason = null;
+    } catch (InterruptedException e) {
+      reason = "Local file system watcher was interrupted";
+    } catch (BrokenDiffAwarenessException e) {
+      reason = e.getMessage();
+    } catch (IOException e) {
+      reason = "Error encountered with local file system watcher " + e;
+    } finally {
+      // Also reached with any other exception, which is propagated after this.
+      if (reason != null) {
+        stopWatching(reason);
       }
     }
+  }
+
+  private synchronized void stopWatching(String reason) {
+    brokenReason = reason;
+  }
 
-    for (Path path : deletedTrackedDirectories) {
-      WatchKey staleKey = watchKeyToDirBiMap.inverse().get(path);
-      watchKeyToDirBiMap.remove(staleKey);
+  /**
+   * Adds the changes reported by {@code watchKey} to {@link #changedPaths}. Called with the lock
+   * on {@code this} held.
+   */
+  private void collectChanges(WatchKey watchKey) throws BrokenDiffAwarenessException, IOException {
+    Path dir;
+    synchronized (watchKeyToDirBiMap) {
+      dir = watchKeyToDirBiMap.get(watchKey);
+    }
+    if (dir == null) {
+      // The directory was deleted, and its key was already dropped by #takeChanges.
+      watchKey.cancel();
+      return;
     }
-    if (watchKeyToDirBiMap.isEmpty()) {
-      // No more directories to watch, something happened the root directory being watched.
-      throw new IOException("Root directory " + watchRootPath + " became inaccessible.");
+
+    // We replay all the events for this watched directory in chronological order.
+    for (WatchEvent<?> event : watchKey.pollEvents()) {
+      Kind<?> kind = event.kind();
+      if (kind == StandardWatchEventKinds.OVERFLOW) {
+        // TODO(bazel-team): find out when an overflow might happen, and maybe handle it more
+        // gently.
+        throw new BrokenDiffAwarenessException("Overflow when watching local filesystem for "
+            + "changes");
+      }
+      if (event.context() == null) {
+        // The WatchService documentation mentions that WatchEvent#context may return null, but
+        // doesn't explain how/why it would do so. Looking at the implementation, it only
+        // happens on an overflow event. But we make no assumptions about that implementation
+        // detail here.
+        throw new BrokenDiffAwarenessException("Insufficient information from local file system "
+            + "watcher");
+      }
+      // For the events we've registered, the context given is a relative path.
+      Path relativePath = (Path) event.context();
+      Path path = dir.resolve(relativePath);
+      Preconditions.checkState(path.isAbsolute(), path);
+      changedPaths.add(path);
+      if (kind == StandardWatchEventKinds.ENTRY_CREATE) {
+        if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+          // This is a new directory, so changes to it since its creation have not been watched.
+          // We traverse the directory tree right away to register all the new subdirectories and
+          // find all the new subdirectories and files. New trees are usually small, so this is
+          // done on this thread rather than in parallel.
+          changedPaths.addAll(registerTreeSequentially(path));
+        }
+      } else if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+        WatchKey deletedDirectoryKey;
+        synchronized (watchKeyToDirBiMap) {
+          deletedDirectoryKey = watchKeyToDirBiMap.inverse().get(path);
+        }
+        if (deletedDirectoryKey != null) {
+          // If the deleted directory has children, then there will also be events for the
+          // WatchKey of the directory itself. WatchService#take doesn't specify the order in
+          // which WatchKeys are returned, so the key for the directory itself may be processed
+          // *after* the current key (the parent of the deleted directory), and so we don't want
+          // to remove the deleted directory from our bimap just yet.
+          //
+          // For example, suppose we have the file '/root/a/foo.txt' and are watching the
+          // directories '/root' and '/root/a'. If the directory '/root/a' gets deleted then the
+          // following is a valid sequence of events by key.
+          //
+          //  WatchKey '/root/'
+          //    WatchEvent EVENT_MODIFY 'a'
+          //    WatchEvent EVENT_DELETE 'a'
+          //  WatchKey '/root/a'
+          //    WatchEvent EVENT_DELETE 'foo.txt'
+          deletedDirectoryKeys.add(deletedDirectoryKey);
+          // Since inotify uses inodes under the covers we cancel our registration on this key to
+          // avoid getting WatchEvents from a new directory that happens to have the same inode.
+          deletedDirectoryKey.cancel();
+        }
+      }
     }
 
-    Set<Path> changedPaths = new HashSet<>();
-    for (Path path : createdFilesAndDirectories) {
-      if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
-        // This is a new directory, so changes to it since its creation have not been watched.
-        // We manually traverse the directory tree to register all the new subdirectories and find
-        // all the new subdirectories and files.
-        changedPaths.addAll(registerSubDirectoriesAndReturnContents(path));
-      } else {
-        changedPaths.add(path);
+    if (!watchKey.reset()) {
+      // Watcher got deleted, directory no longer valid.
+      synchronized (watchKeyToDirBiMap) {
+        watchKeyToDirBiMap.remove(watchKey);
       }
     }
-    changedPaths.addAll(deletedOrModifiedFilesAndDirectories);
-    return changedPaths;
   }
 
   /**
-   * Traverses directory tree to register subdirectories. Returns all paths traversed (as absolute
-   * paths).
+   * Traverses directory tree to register subdirectories, listing sibling directories in parallel.
+   * Returns all paths traversed (as absolute paths). Does not follow symlinks.
+   */
+  private Set<Path> registerSubDirectoriesAndReturnContents(Path rootDir)
+      throws IOException, InterruptedException {
+    RegisteringVisitor visitor = new RegisteringVisitor();
+    visitor.register(rootDir);
+    return visitor.visitedAbsolutePaths;
+  }
+
+  /**
+   * Like {@link #registerSubDirectoriesAndReturnContents}, but traverses the tree on the calling
+   * thread.
    */
-  private Set<Path> registerSubDirectoriesAndReturnContents(Path rootDir) throws IOException {
+  private Set<Path> registerTreeSequentially(Path rootDir) throws IOException {
     Set<Path> visitedAbsolutePaths = new HashSet<>();
-    // Note that this does not follow symlinks.
-    Files.walkFileTree(rootDir, new WatcherFileVisitor(visitedAbsolutePaths));
+    visitedAbsolutePaths.add(rootDir);
+    Deque<Path> dirsToVisit = new ArrayDeque<>();
+    dirsToVisit.push(rootDir);
+    while (!dirsToVisit.isEmpty()) {
+      for (Path subdir : registerDirectory(dirsToVisit.pop(), visitedAbsolutePaths)) {
+        dirsToVisit.push(subdir);
+      }
+    }
     return visitedAbsolutePaths;
   }
 
-  /** File visitor used by Files.walkFileTree() upon traversing subdirectories. */
-  private class WatcherFileVisitor extends SimpleFileVisitor<Path> {
+  /**
+   * Registers {@code dir} with the watch service and adds its children to
+   * {@code visitedAbsolutePaths}. Returns the subdirectories of {@code dir}, which still have to be
+   * registered.
+   */
+  private List<Path> registerDirectory(Path dir, Set<Path> visitedAbsolutePaths)
+      throws IOException {
+    Preconditions.checkState(dir.isAbsolute(), dir);
+    // It's important that we register the directory before we visit its children. This way we
+    // are guaranteed to see new files/directories either on this #getDiff or the next one.
+    // Otherwise, e.g., an intra-build creation of a child directory will be forever missed if it
+    // happens before the directory is listed as part of the visitation.
+    WatchKey key;
+    try {
+      key = dir.register(watchService,
+          StandardWatchEventKinds.ENTRY_CREATE,
+          StandardWatchEventKinds.ENTRY_MODIFY,
+          StandardWatchEventKinds.ENTRY_DELETE);
+    } catch (NoSuchFileException | NotDirectoryException e) {
+      // The directory was deleted or replaced since its parent was listed. Its parent is
+      // watched, so the change is reported anyway.
+      return ImmutableList.of();
+    }
+    synchronized (watchKeyToDirBiMap) {
+      // A re-created directory may still be mapped to the key of the deleted one.
+      watchKeyToDirBiMap.forcePut(key, dir);
+    }
+    List<Path> subdirs = new ArrayList<>();
+    try (DirectoryStream<Path> children = Files.newDirectoryStream(dir)) {
+      for (Path child : children) {
+        visitedAbsolutePaths.add(child);
+        if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+          subdirs.add(child);
+        }
+      }
+    } catch (NoSuchFileException | NotDirectoryException e) {
+      // See above.
+    }
+    return subdirs;
+  }
+
+  /** Registers the directories of a tree with the watch service in parallel. */
+  private class RegisteringVisitor extends AbstractQueueVisitor {
 
-    private final Set<Path> visitedAbsolutePaths;
+    private final Set<Path> visitedAbsolutePaths =
+        Collections.synchronizedSet(new HashSet<Path>());
 
-    private WatcherFileVisitor(Set<Path> visitedPaths) {
-      this.visitedAbsolutePaths = visitedPaths;
+    private RegisteringVisitor() {
+      super(/*concurrent=*/true, REGISTRATION_THREADS, REGISTRATION_THREADS, 1, TimeUnit.SECONDS,
+          /*failFastOnException=*/true, /*failFastOnInterrupt=*/true, "diff-awareness-register");
     }
 
-    @Override
-    public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
-      Preconditions.checkState(path.isAbsolute(), path);
-      visitedAbsolutePaths.add(path);
-      return FileVisitResult.CONTINUE;
+    private void register(Path rootDir) throws IOException, InterruptedException {
+      visitedAbsolutePaths.add(rootDir);
+      enqueueDirectory(rootDir);
+      try {
+        work(/*interruptWorkers=*/true);
+      } catch (IORuntimeException e) {
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        throw e.getCauseIOException();
+      }
     }
 
-    @Override
-    public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs)
-        throws IOException {
-      // It's important that we register the directory before we visit its children. This way we
-      // are guaranteed to see new files/directories either on this #getDiff or the next one.
-      // Otherwise, e.g., an intra-build creation of a child directory will be forever missed if it
-      // happens before the directory is listed as part of the visitation.
-      WatchKey key = path.register(watchService,
-          StandardWatchEventKinds.ENTRY_CREATE,
-          StandardWatchEventKinds.ENTRY_MODIFY,
-          StandardWatchEventKinds.ENTRY_DELETE);
-      Preconditions.checkState(path.isAbsolute(), path);
-      visitedAbsolutePaths.add(path);
-      watchKeyToDirBiMap.put(key, path);
-      return FileVisitResult.CONTINUE;
+    private void enqueueDirectory(final Path dir) {
+      enqueue(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            for (Path subdir : registerDirectory(dir, visitedAbsolutePaths)) {
+              enqueueDirectory(subdir);
+            }
+          } catch (IOException e) {
+            throw new IORuntimeException(e);
+          }
+        }
+      });
     }
   }
 }
@@ -14,7 +14,7 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.base.Preconditions;
-import com.google.common.cache.Cache;
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -84,7 +84,6 @@ public class PackageFunction implements SkyFunction {
   private final EventHandler reporter;
   private final PackageFactory packageFactory;
   private final CachingPackageLocator packageLocator;
-  private final Cache<PackageIdentifier, Package.LegacyBuilder> packageFunctionCache;
   private final AtomicBoolean showLoadingProgress;
   private final AtomicInteger numPackagesLoaded;
   private final Profiler profiler = Profiler.instance();
@@ -101,14 +100,12 @@ public class PackageFunction implements SkyFunction {
 
   public PackageFunction(Reporter reporter, PackageFactory packageFactory,
       CachingPackageLocator pkgLocator, AtomicBoolean showLoadingProgress,
-      Cache<PackageIdentifier, Package.LegacyBuilder> packageFunctionCache,
       AtomicInteger numPackagesLoaded) {
     this.reporter = reporter;
 
     this.packageFactory = packageFactory;
     this.packageLocator = pkgLocator;
     this.showLoadingProgress = showLoadingProgress;
-    this.packageFunctionCache = packageFunctionCache;
     this.numPackagesLoaded = numPackagesLoaded;
   }
 
@@ -439,9 +436,10 @@ public class PackageFunction implements SkyFunction {
     // Load the BUILD file AST and handle Skylark dependencies. This way BUILD files are
     // only loaded twice if there are unavailable Skylark or package dependencies or an
     // IOException occurs. Note that the BUILD files are still parsed two times.
+    LoadingState loadingState = env.getState(LoadingState.SUPPLIER);
     ParserInputSource inputSource;
     try {
-      if (showLoadingProgress.get() && packageFunctionCache.getIfPresent(packageId) == null) {
+      if (showLoadingProgress.get() && loadingState.legacyPkgBuilder == null) {
         // TODO(bazel-team): don't duplicate the loading message if there are unavailable
         // Skylark dependencies.
         reporter.handle(Event.progress("Loading package: " + packageName));
@@ -459,7 +457,7 @@ public class PackageFunction implements SkyFunction {
       return null;
     }
 
-    Package.LegacyBuilder legacyPkgBuilder = loadPackage(externalPkg, inputSource,
+    Package.LegacyBuilder legacyPkgBuilder = loadPackage(loadingState, externalPkg, inputSource,
         replacementContents, packageId, buildFilePath, defaultVisibility, preludeStatements,
         importResult);
     legacyPkgBuilder.buildPartial();
@@ -467,13 +465,12 @@ public class PackageFunction implements SkyFunction {
       handleLabelsCrossingSubpackagesAndPropagateInconsistentFilesystemExceptions(
           packageLookupValue.getRoot(), packageId, legacyPkgBuilder, env);
     } catch (InternalInconsistentFilesystemException e) {
-      packageFunctionCache.invalidate(packageId);
       throw new PackageFunctionException(e,
           e.isTransient() ? Transience.TRANSIENT : Transience.PERSISTENT);
     }
     if (env.valuesMissing()) {
-      // The package we just loaded will be in the {@code packageFunctionCache} next when this
-      // SkyFunction is called again.
+      // The package we just loaded will be in the loading state next when this SkyFunction is
+      // called again.
       return null;
     }
     Collection<Pair<String, Boolean>> globPatterns = legacyPkgBuilder.getGlobPatterns();
@@ -486,7 +483,6 @@ public class PackageFunction implements SkyFunction {
           markDependenciesAndPropagateInconsistentFilesystemExceptions(pkg, env,
               globPatterns, subincludes);
     } catch (InternalInconsistentFilesystemException e) {
-      packageFunctionCache.invalidate(packageId);
       throw new PackageFunctionException(e,
           e.isTransient() ? Transience.TRANSIENT : Transience.PERSISTENT);
     }
@@ -494,9 +490,6 @@ public class PackageFunction implements SkyFunction {
     if (env.valuesMissing()) {
       return null;
     }
-    // We know this SkyFunction will not be called again, so we can remove the cache entry.
-    packageFunctionCache.invalidate(packageId);
-
     if (packageShouldBeConsideredInError) {
       throw new PackageFunctionException(new BuildFileContainsErrorsException(pkg,
           "Package '" + packageName + "' contains errors"),
@@ -706,14 +699,14 @@ public class PackageFunction implements SkyFunction {
    * Constructs a {@link Package} object for the given package using legacy package loading.
    * Note that the returned package may be in error.
    */
-  private Package.LegacyBuilder loadPackage(Package externalPkg,
+  private Package.LegacyBuilder loadPackage(LoadingState loadingState, Package externalPkg,
       ParserInputSource inputSource, @Nullable String replacementContents,
       PackageIdentifier packageId, Path buildFilePath, RuleVisibility defaultVisibility,
       List<Statement> preludeStatements, SkylarkImportResult importResult)
           throws InterruptedException {
     ParserInputSource replacementSource = replacementContents == null ? null
         : ParserInputSource.create(replacementContents, buildFilePath);
-    Package.LegacyBuilder pkgBuilder = packageFunctionCache.getIfPresent(packageId);
+    Package.LegacyBuilder pkgBuilder = loadingState.legacyPkgBuilder;
     if (pkgBuilder == null) {
       profiler.startTask(ProfilerTask.CREATE_PACKAGE, packageId.toString());
       try {
@@ -729,7 +722,7 @@ public class PackageFunction implements SkyFunction {
             importResult.importMap, importResult.fileDependencies, packageLocator,
             defaultVisibility, globber);
         numPackagesLoaded.incrementAndGet();
-        packageFunctionCache.put(packageId, pkgBuilder);
+        loadingState.legacyPkgBuilder = pkgBuilder;
       } finally {
         profiler.completeTask(ProfilerTask.CREATE_PACKAGE);
       }
@@ -737,6 +730,24 @@ public class PackageFunction implements SkyFunction {
     return pkgBuilder;
   }
 
+  /**
+   * The package loaded by a previous call of {@link #compute} for the same package, which had to
+   * be restarted because of missing dependencies, to avoid loading the same package twice (the
+   * first time loading to find subincludes and declare value dependencies).
+   */
+  // TODO(bazel-team): remove this once we have skyframe-native package loading
+  // [skyframe-loading]
+  private static final class LoadingState implements SkyKeyComputeState {
+    private static final Supplier<LoadingState> SUPPLIER = new Supplier<LoadingState>() {
+      @Override
+      public LoadingState get() {
+        return new LoadingState();
+      }
+    };
+
+    @Nullable private Package.LegacyBuilder legacyPkgBuilder = null;
+  }
+
   private static class InternalInconsistentFilesystemException extends NoSuchPackageException {
     private boolean isTransient;
 
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.skyframe;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
@@ -32,7 +33,8 @@ public class PackageValue implements SkyValue {
 
   private final Package pkg;
 
-  PackageValue(Package pkg) {
+  @VisibleForTesting
+  public PackageValue(Package pkg) {
     this.pkg = Preconditions.checkNotNull(pkg);
   }
 
@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.cmdline.LabelValidator;
 import com.google.devtools.build.lib.cmdline.ResolvedTargets;
 import com.google.devtools.build.lib.cmdline.TargetParsingException;
@@ -35,6 +36,8 @@ import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.RootedPath;
 
+import java.util.Set;
+
 /**
  * A {@link TargetPatternResolver} backed by a {@link RecursivePackageProvider}.
  */
@@ -170,17 +173,33 @@ public class RecursivePackageProviderBackedTargetPatternResolver
       excludedPathFragments.add(getPathFragment(excludedDirectory));
     }
 
-    ResolvedTargets.Builder<Target> builder = ResolvedTargets.builder();
-
+    // The packages under the directory were all looked up while finding them, so unlike
+    // #getTargetsInPackage this does not check that they exist, and it fetches them all at once
+    // rather than one at a time.
+    Set<PackageIdentifier> pkgIds = Sets.newLinkedHashSet();
     for (Path root : pkgPath.getPathEntries()) {
       RootedPath rootedPath = RootedPath.toRootedPath(root, pathFragment);
       Iterable<PathFragment> packagesUnderDirectory = recursivePackageProvider
           .getPackagesUnderDirectory(rootedPath, excludedPathFragments.build());
       for (PathFragment pkg : packagesUnderDirectory) {
-        builder.merge(getTargetsInPackage(originalPattern, pkg, FilteringPolicies.NO_FILTER));
+        pkgIds.add(PackageIdentifier.createInDefaultRepo(pkg));
       }
     }
 
+    Iterable<Package> packages;
+    try {
+      packages = recursivePackageProvider.bulkGetPackages(eventHandler, pkgIds).values();
+    } catch (NoSuchPackageException e) {
+      String message = TargetPatternResolverUtil.getParsingErrorMessage(
+          "package contains errors", originalPattern);
+      throw new TargetParsingException(message, e);
+    }
+    ResolvedTargets.Builder<Target> builder = ResolvedTargets.builder();
+    for (Package pkg : packages) {
+      builder.merge(TargetPatternResolverUtil.resolvePackageTargets(pkg,
+          FilteringPolicies.NO_FILTER));
+    }
+
     if (builder.isEmpty()) {
       throw new TargetParsingException("no targets found beneath '" + pathFragment + "'");
     }
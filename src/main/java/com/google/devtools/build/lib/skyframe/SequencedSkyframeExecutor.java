@@ -126,7 +126,7 @@ public final class SequencedSkyframeExecutor extends SkyframeExecutor {
         extraSkyFunctions, extraPrecomputedValues);
   }
 
-  private static SequencedSkyframeExecutor create(Reporter reporter,
+  public static SequencedSkyframeExecutor create(Reporter reporter,
       EvaluatorSupplier evaluatorSupplier, PackageFactory pkgFactory,
       TimestampGranularityMonitor tsgm, BlazeDirectories directories,
       Factory workspaceStatusActionFactory, ImmutableList<BuildInfoFactory> buildInfoFactories,
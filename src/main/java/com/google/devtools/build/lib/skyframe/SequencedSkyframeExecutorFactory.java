@@ -25,6 +25,8 @@ import com.google.devtools.build.lib.packages.Preprocessor;
 import com.google.devtools.build.lib.util.io.TimestampGranularityMonitor;
 import com.google.devtools.build.lib.vfs.Path;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
 
@@ -35,6 +37,16 @@ import java.util.Set;
  */
 public class SequencedSkyframeExecutorFactory implements SkyframeExecutorFactory {
 
+  private final EvaluatorSupplier evaluatorSupplier;
+
+  public SequencedSkyframeExecutorFactory() {
+    this(InMemoryMemoizingEvaluator.SUPPLIER);
+  }
+
+  public SequencedSkyframeExecutorFactory(EvaluatorSupplier evaluatorSupplier) {
+    this.evaluatorSupplier = evaluatorSupplier;
+  }
+
   @Override
   public SkyframeExecutor create(Reporter reporter, PackageFactory pkgFactory,
       TimestampGranularityMonitor tsgm, BlazeDirectories directories,
@@ -45,8 +57,8 @@ public class SequencedSkyframeExecutorFactory implements SkyframeExecutorFactory
       Preprocessor.Factory.Supplier preprocessorFactorySupplier,
       ImmutableMap<SkyFunctionName, SkyFunction> extraSkyFunctions,
       ImmutableList<PrecomputedValue.Injected> extraPrecomputedValues) {
-    return SequencedSkyframeExecutor.create(reporter, pkgFactory, tsgm, directories,
-        workspaceStatusActionFactory, buildInfoFactories, immutableDirectories,
+    return SequencedSkyframeExecutor.create(reporter, evaluatorSupplier, pkgFactory, tsgm,
+        directories, workspaceStatusActionFactory, buildInfoFactories, immutableDirectories,
         diffAwarenessFactories, allowedMissingInputs, preprocessorFactorySupplier,
         extraSkyFunctions, extraPrecomputedValues);
   }
@@ -20,7 +20,6 @@ import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.eventbus.EventBus;
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.devtools.build.lib.actions.Action;
 import com.google.devtools.build.lib.actions.ActionCacheChecker;
 import com.google.devtools.build.lib.actions.ActionCacheChecker.Token;
@@ -29,7 +28,6 @@ import com.google.devtools.build.lib.actions.ActionExecutedEvent;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.ActionExecutionException;
 import com.google.devtools.build.lib.actions.ActionExecutionStatusReporter;
-import com.google.devtools.build.lib.actions.ActionGraph;
 import com.google.devtools.build.lib.actions.ActionInput;
 import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.ActionLogBufferPathGenerator;
@@ -41,9 +39,8 @@ import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.Artifact.MiddlemanExpander;
 import com.google.devtools.build.lib.actions.ArtifactPrefixConflictException;
 import com.google.devtools.build.lib.actions.CachedActionEvent;
+import com.google.devtools.build.lib.actions.ExecutionLog;
 import com.google.devtools.build.lib.actions.Executor;
-import com.google.devtools.build.lib.actions.MapBasedActionGraph;
-import com.google.devtools.build.lib.actions.MutableActionGraph;
 import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
 import com.google.devtools.build.lib.actions.NotifyOnActionCacheHit;
 import com.google.devtools.build.lib.actions.PackageRootResolutionException;
@@ -52,10 +49,9 @@ import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.TargetOutOfDateException;
 import com.google.devtools.build.lib.actions.cache.MetadataHandler;
-import com.google.devtools.build.lib.concurrent.ExecutorShutdownUtil;
-import com.google.devtools.build.lib.concurrent.Sharder;
-import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
 import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.events.Reporter;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
@@ -64,7 +60,6 @@ import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.util.io.OutErr;
 import com.google.devtools.build.lib.vfs.Path;
-import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.Symlinks;
 import com.google.devtools.build.skyframe.SkyFunction.Environment;
 import com.google.protobuf.ByteString;
@@ -72,20 +67,13 @@ import com.google.protobuf.ByteString;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
@@ -129,14 +117,18 @@ public final class SkyframeActionExecutor {
   private ProgressSupplier progressSupplier;
   private ActionCompletedReceiver completionReceiver;
   private final AtomicReference<ActionExecutionStatusReporter> statusReporterRef;
+  private final ActionDurationEvaluationPriority actionDurations;
+  @Nullable private ExecutionLog executionLog;
 
   SkyframeActionExecutor(Reporter reporter, ResourceManager resourceManager,
       AtomicReference<EventBus> eventBus,
-      AtomicReference<ActionExecutionStatusReporter> statusReporterRef) {
+      AtomicReference<ActionExecutionStatusReporter> statusReporterRef,
+      ActionDurationEvaluationPriority actionDurations) {
     this.reporter = reporter;
     this.resourceManager = resourceManager;
     this.eventBus = eventBus;
     this.statusReporterRef = statusReporterRef;
+    this.actionDurations = actionDurations;
   }
 
   /**
@@ -211,123 +203,7 @@ public final class SkyframeActionExecutor {
    */
   void findAndStoreArtifactConflicts(Iterable<ActionLookupValue> actionLookupValues)
       throws InterruptedException {
-    ConcurrentMap<Action, ConflictException> temporaryBadActionMap = new ConcurrentHashMap<>();
-    Pair<ActionGraph, SortedMap<PathFragment, Artifact>> result;
-    result = constructActionGraphAndPathMap(actionLookupValues, temporaryBadActionMap);
-    ActionGraph actionGraph = result.first;
-    SortedMap<PathFragment, Artifact> artifactPathMap = result.second;
-
-    // Report an error for every derived artifact which is a prefix of another.
-    // If x << y << z (where x << y means "y starts with x"), then we only report (x,y), (x,z), but
-    // not (y,z).
-    Iterator<PathFragment> iter = artifactPathMap.keySet().iterator();
-    if (!iter.hasNext()) {
-      // No actions in graph -- currently happens only in tests. Special-cased because .next() call
-      // below is unconditional.
-      this.badActionMap = ImmutableMap.of();
-      return;
-    }
-    for (PathFragment pathJ = iter.next(); iter.hasNext(); ) {
-      // For each comparison, we have a prefix candidate (pathI) and a suffix candidate (pathJ).
-      // At the beginning of the loop, we set pathI to the last suffix candidate, since it has not
-      // yet been tested as a prefix candidate, and then set pathJ to the paths coming after pathI,
-      // until we come to one that does not contain pathI as a prefix. pathI is then verified not to
-      // be the prefix of any path, so we start the next run of the loop.
-      PathFragment pathI = pathJ;
-      // Compare pathI to the paths coming after it.
-      while (iter.hasNext()) {
-        pathJ = iter.next();
-        if (pathJ.startsWith(pathI)) { // prefix conflict.
-          Artifact artifactI = Preconditions.checkNotNull(artifactPathMap.get(pathI), pathI);
-          Artifact artifactJ = Preconditions.checkNotNull(artifactPathMap.get(pathJ), pathJ);
-          Action actionI =
-              Preconditions.checkNotNull(actionGraph.getGeneratingAction(artifactI), artifactI);
-          Action actionJ =
-              Preconditions.checkNotNull(actionGraph.getGeneratingAction(artifactJ), artifactJ);
-          if (actionI.shouldReportPathPrefixConflict(actionJ)) {
-            ArtifactPrefixConflictException exception = new ArtifactPrefixConflictException(pathI,
-                pathJ, actionI.getOwner().getLabel(), actionJ.getOwner().getLabel());
-            temporaryBadActionMap.put(actionI, new ConflictException(exception));
-            temporaryBadActionMap.put(actionJ, new ConflictException(exception));
-          }
-        } else { // pathJ didn't have prefix pathI, so no conflict possible for pathI.
-          break;
-        }
-      }
-    }
-    this.badActionMap = ImmutableMap.copyOf(temporaryBadActionMap);
-  }
-
-  /**
-   * Simultaneously construct an action graph for all the actions in Skyframe and a map from
-   * {@link PathFragment}s to their respective {@link Artifact}s. We do this in a threadpool to save
-   * around 1.5 seconds on a mid-sized build versus a single-threaded operation.
-   */
-  private static Pair<ActionGraph, SortedMap<PathFragment, Artifact>>
-      constructActionGraphAndPathMap(
-          Iterable<ActionLookupValue> values,
-          ConcurrentMap<Action, ConflictException> badActionMap) throws InterruptedException {
-    MutableActionGraph actionGraph = new MapBasedActionGraph();
-    ConcurrentNavigableMap<PathFragment, Artifact> artifactPathMap = new ConcurrentSkipListMap<>();
-    // Action graph construction is CPU-bound.
-    int numJobs = Runtime.getRuntime().availableProcessors();
-    // No great reason for expecting 5000 action lookup values, but not worth counting size of
-    // values.
-    Sharder<ActionLookupValue> actionShards = new Sharder<>(numJobs, 5000);
-    for (ActionLookupValue value : values) {
-      actionShards.add(value);
-    }
-
-    ThrowableRecordingRunnableWrapper wrapper = new ThrowableRecordingRunnableWrapper(
-        "SkyframeActionExecutor#constructActionGraphAndPathMap");
-
-    ExecutorService executor = Executors.newFixedThreadPool(
-        numJobs,
-        new ThreadFactoryBuilder().setNameFormat("ActionLookupValue Processor %d").build());
-    for (List<ActionLookupValue> shard : actionShards) {
-      executor.execute(
-          wrapper.wrap(actionRegistration(shard, actionGraph, artifactPathMap, badActionMap)));
-    }
-    boolean interrupted = ExecutorShutdownUtil.interruptibleShutdown(executor);
-    Throwables.propagateIfPossible(wrapper.getFirstThrownError());
-    if (interrupted) {
-      throw new InterruptedException();
-    }
-    return Pair.<ActionGraph, SortedMap<PathFragment, Artifact>>of(actionGraph, artifactPathMap);
-  }
-
-  private static Runnable actionRegistration(
-      final List<ActionLookupValue> values,
-      final MutableActionGraph actionGraph,
-      final ConcurrentMap<PathFragment, Artifact> artifactPathMap,
-      final ConcurrentMap<Action, ConflictException> badActionMap) {
-    return new Runnable() {
-      @Override
-      public void run() {
-        for (ActionLookupValue value : values) {
-          Set<Action> registeredActions = new HashSet<>();
-          for (Map.Entry<Artifact, Action> entry : value.getMapForConsistencyCheck().entrySet()) {
-            Action action = entry.getValue();
-            // We have an entry for each <action, artifact> pair. Only try to register each action
-            // once.
-            if (registeredActions.add(action)) {
-              try {
-                actionGraph.registerAction(action);
-              } catch (ActionConflictException e) {
-                Exception oldException = badActionMap.put(action, new ConflictException(e));
-                Preconditions.checkState(oldException == null,
-                  "%s | %s | %s", action, e, oldException);
-                // We skip the rest of the loop, and do not add the path->artifact mapping for this
-                // artifact below -- we don't need to check it since this action is already in
-                // error.
-                continue;
-              }
-            }
-            artifactPathMap.put(entry.getKey().getExecPath(), entry.getKey());
-          }
-        }
-      }
-    };
+    this.badActionMap = ArtifactConflictFinder.findConflicts(actionLookupValues);
   }
 
   void prepareForExecution(Executor executor, boolean keepGoing,
@@ -348,6 +224,11 @@ public final class SkyframeActionExecutor {
     this.actionLogBufferPathGenerator = actionLogBufferPathGenerator;
   }
 
+  /** Sets the log of the executed and cached actions, or null to stop logging them. */
+  void setExecutionLog(@Nullable ExecutionLog executionLog) {
+    this.executionLog = executionLog;
+  }
+
   void executionOver() {
     // This transitively holds a bunch of heavy objects, so it's important to clear it at the
     // end of a build.
@@ -465,9 +346,19 @@ public final class SkyframeActionExecutor {
   Token checkActionCache(Action action, MetadataHandler metadataHandler,
       long actionStartTime, Iterable<Artifact> resolvedCacheArtifacts) {
     profiler.startTask(ProfilerTask.ACTION_CHECK, action);
+    ExecutionLog executionLog = this.executionLog;
+    RebuildReasonHandler rebuildReasonHandler = null;
+    EventHandler handler = explain ? reporter : null;
+    if (executionLog != null && !action.getActionType().isMiddleman()) {
+      rebuildReasonHandler = new RebuildReasonHandler(handler);
+      handler = rebuildReasonHandler;
+    }
     Token token = actionCacheChecker.getTokenIfNeedToExecute(
-        action, resolvedCacheArtifacts, explain ? reporter : null, metadataHandler);
+        action, resolvedCacheArtifacts, handler, metadataHandler);
     profiler.completeTask(ProfilerTask.ACTION_CHECK);
+    if (token != null && rebuildReasonHandler != null) {
+      executionLog.logCacheMiss(action, rebuildReasonHandler.getReason(action));
+    }
     if (token == null) {
       boolean eventPosted = false;
       // Notify BlazeRuntimeStatistics about the action middleman 'execution'.
@@ -486,10 +377,46 @@ public final class SkyframeActionExecutor {
       if (!eventPosted) {
         postEvent(new CachedActionEvent(action, actionStartTime));
       }
+      if (rebuildReasonHandler != null) {
+        executionLog.logCacheHit(action, metadataHandler);
+      }
     }
     return token;
   }
 
+  /**
+   * Remembers the explanation the action cache checker gives for executing an action, and passes
+   * it on to the reporter if {@code --explain} is in effect.
+   */
+  private static final class RebuildReasonHandler implements EventHandler {
+    @Nullable private final EventHandler delegate;
+    private String message;
+
+    private RebuildReasonHandler(@Nullable EventHandler delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void handle(Event event) {
+      if (event.getKind() == EventKind.DEPCHECKER) {
+        message = event.getMessage();
+      }
+      if (delegate != null) {
+        delegate.handle(event);
+      }
+    }
+
+    /** Returns the explanation, without the description of the action the checker prefixes. */
+    private String getReason(Action action) {
+      if (message == null) {
+        return "unknown";
+      }
+      String prefix = "Executing " + action.prettyPrint() + ": ";
+      String reason = message.startsWith(prefix) ? message.substring(prefix.length()) : message;
+      return reason.endsWith(".") ? reason.substring(0, reason.length() - 1) : reason;
+    }
+  }
+
   void afterExecution(Action action, MetadataHandler metadataHandler, Token token) {
     if (!actionReallyExecuted(action)) {
       // If an action shared with this one executed, then we need not update the action cache, since
@@ -506,6 +433,10 @@ public final class SkyframeActionExecutor {
           "failed to update action cache for " + action.prettyPrint()
               + ", but all outputs should already have been checked", e);
     }
+    ExecutionLog executionLog = this.executionLog;
+    if (executionLog != null) {
+      executionLog.logExecuted(action, metadataHandler);
+    }
   }
 
   @Nullable
@@ -703,7 +634,14 @@ public final class SkyframeActionExecutor {
         // resource manager when it knows what resources are needed.
         resourceManager.acquireResources(action, estimate);
       }
+      long executionStartTime = System.nanoTime();
       boolean outputDumped = executeActionTask(action, context);
+      long executionTime = System.nanoTime() - executionStartTime;
+      actionDurations.recordDuration(action, TimeUnit.NANOSECONDS.toMillis(executionTime));
+      ExecutionLog executionLog = this.executionLog;
+      if (executionLog != null) {
+        executionLog.logExecutionTime(action, executionStartTime, executionTime);
+      }
       completeAction(action, context.getMetadataHandler(),
           context.getFileOutErr(), outputDumped);
     } finally {
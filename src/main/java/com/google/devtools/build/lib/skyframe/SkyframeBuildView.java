@@ -66,6 +66,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -89,6 +90,8 @@ public final class SkyframeBuildView {
   private final EvaluationProgressReceiver invalidationReceiver =
       new ConfiguredTargetValueInvalidationReceiver();
   private final Set<SkyKey> evaluatedConfiguredTargets = Sets.newConcurrentHashSet();
+  // Configured targets that were invalidated, but found up to date without being recomputed.
+  private final AtomicInteger reusedConfiguredTargets = new AtomicInteger();
   // Used to see if checks of graph consistency need to be done after analysis.
   private volatile boolean someConfiguredTargetEvaluated = false;
 
@@ -110,12 +113,21 @@ public final class SkyframeBuildView {
 
   public void resetEvaluatedConfiguredTargetKeysSet() {
     evaluatedConfiguredTargets.clear();
+    reusedConfiguredTargets.set(0);
   }
 
   public Set<SkyKey> getEvaluatedTargetKeys() {
     return ImmutableSet.copyOf(evaluatedConfiguredTargets);
   }
 
+  /**
+   * Returns the number of configured targets that were invalidated since the last call to
+   * {@link #resetEvaluatedConfiguredTargetKeysSet}, but found up to date without being recomputed.
+   */
+  public int getReusedTargetCount() {
+    return reusedConfiguredTargets.get();
+  }
+
   private void setDeserializedArtifactOwners() throws ViewCreationFailedException {
     Map<PathFragment, Artifact> deserializedArtifactMap =
         artifactFactory.getDeserializedArtifacts();
@@ -224,8 +236,9 @@ public final class SkyframeBuildView {
     }
 
     // --keep_going : We notify the error and return a ConfiguredTargetValue
+    Set<ConfiguredTargetKey> topLevelKeys = new HashSet<>(values);
     for (Map.Entry<SkyKey, ErrorInfo> errorEntry : result.errorMap().entrySet()) {
-      if (values.contains(errorEntry.getKey().argument())) {
+      if (topLevelKeys.contains(errorEntry.getKey().argument())) {
         SkyKey errorKey = errorEntry.getKey();
         ConfiguredTargetKey label = (ConfiguredTargetKey) errorKey.argument();
         ErrorInfo errorInfo = errorEntry.getValue();
@@ -476,6 +489,8 @@ public final class SkyframeBuildView {
           evaluatedConfiguredTargets.add(skyKey);
           // During multithreaded operation, this is only set to true, so no concurrency issues.
           someConfiguredTargetEvaluated = true;
+        } else {
+          reusedConfiguredTargets.incrementAndGet();
         }
         Preconditions.checkNotNull(value, "%s %s", skyKey, state);
         ConfiguredTargetValue ctValue = (ConfiguredTargetValue) value;
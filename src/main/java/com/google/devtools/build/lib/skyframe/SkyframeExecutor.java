@@ -18,9 +18,8 @@ import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
 import com.google.common.base.Throwables;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -38,6 +37,7 @@ import com.google.devtools.build.lib.actions.ActionLogBufferPathGenerator;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.ArtifactFactory;
 import com.google.devtools.build.lib.actions.ArtifactOwner;
+import com.google.devtools.build.lib.actions.ExecutionLog;
 import com.google.devtools.build.lib.actions.Executor;
 import com.google.devtools.build.lib.actions.PackageRootResolutionException;
 import com.google.devtools.build.lib.actions.ResourceManager;
@@ -106,17 +106,21 @@ import com.google.devtools.build.skyframe.MemoizingEvaluator;
 import com.google.devtools.build.skyframe.MemoizingEvaluator.EvaluatorSupplier;
 import com.google.devtools.build.skyframe.SkyFunction;
 import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.build.skyframe.WalkableGraph;
 import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
+import com.google.devtools.build.skyframe.WalkableGraphSnapshot;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -160,14 +164,6 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       // performance.
       System.getenv("TEST_TMPDIR") == null ? 200 : 5;
 
-  // Cache of partially constructed Package instances, stored between reruns of the PackageFunction
-  // (because of missing dependencies, within the same evaluate() run) to avoid loading the same
-  // package twice (first time loading to find subincludes and declare value dependencies).
-  // TODO(bazel-team): remove this cache once we have skyframe-native package loading
-  // [skyframe-loading]
-  private final Cache<PackageIdentifier, Package.LegacyBuilder> packageFunctionCache =
-      newPkgFunctionCache();
-
   private final AtomicInteger numPackagesLoaded = new AtomicInteger(0);
 
   protected SkyframeBuildView skyframeBuildView;
@@ -212,6 +208,10 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   private final AtomicReference<ActionExecutionStatusReporter> statusReporterRef =
       new AtomicReference<>();
   private final SkyframeActionExecutor skyframeActionExecutor;
+  // Outlives the evaluator, so that the durations of the last build still order the actions after
+  // the evaluator is reset.
+  private final ActionDurationEvaluationPriority actionDurations =
+      new ActionDurationEvaluationPriority();
   private CompletionReceiver actionExecutionFunction;
   protected SkyframeProgressReceiver progressReceiver;
   private final AtomicReference<CyclesReporter> cyclesReporter = new AtomicReference<>();
@@ -238,6 +238,14 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
       new MutableSupplier<>();
   private MutableSupplier<Set<Package>> configurationPackages = new MutableSupplier<>();
 
+  // The package cache options of the last call to sync().
+  private PackageCacheOptions packageCacheOptions;
+  // A copy of the graph that the last query prepared, for queries that run while another command
+  // holds the server. Null before the first query.
+  private volatile QuerySnapshot querySnapshot;
+  // Whether any node was invalidated since querySnapshot was taken.
+  private volatile boolean graphChangedSinceQuerySnapshot = true;
+
   private static final Logger LOG = Logger.getLogger(SkyframeExecutor.class.getName());
 
   protected SkyframeExecutor(
@@ -269,7 +277,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.errorEventListener = this.reporter;
     this.resourceManager = ResourceManager.instance();
     this.skyframeActionExecutor = new SkyframeActionExecutor(reporter, resourceManager, eventBus,
-        statusReporterRef);
+        statusReporterRef, actionDurations);
     this.directories = Preconditions.checkNotNull(directories);
     this.buildInfoFactories = buildInfoFactories;
     this.immutableDirectories = immutableDirectories;
@@ -309,8 +317,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     map.put(SkyFunctions.PREPARE_DEPS_OF_PATTERNS, new PrepareDepsOfPatternsFunction());
     map.put(SkyFunctions.RECURSIVE_PKG, new RecursivePkgFunction());
     map.put(SkyFunctions.PACKAGE, new PackageFunction(
-        reporter, pkgFactory, packageManager, showLoadingProgress, packageFunctionCache,
-        numPackagesLoaded));
+        reporter, pkgFactory, packageManager, showLoadingProgress, numPackagesLoaded));
     map.put(SkyFunctions.TARGET_MARKER, new TargetMarkerFunction());
     map.put(SkyFunctions.TRANSITIVE_TARGET, new TransitiveTargetFunction(ruleClassProvider));
     map.put(SkyFunctions.CONFIGURED_TARGET,
@@ -355,10 +362,40 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.skyframeActionExecutor.setFileCache(fileCache);
   }
 
+  /** Sets the log of the actions executed by the following builds, or null to stop logging. */
+  public void setExecutionLog(@Nullable ExecutionLog executionLog) {
+    skyframeActionExecutor.setExecutionLog(executionLog);
+  }
+
   public void dump(boolean summarize, PrintStream out) {
     memoizingEvaluator.dump(summarize, out);
   }
 
+  /** Writes a compact binary dump of the Skyframe graph to {@code out}, and closes it. */
+  public void dumpGraph(OutputStream out) throws IOException {
+    memoizingEvaluator.dumpGraph(out);
+  }
+
+  /** Returns the counts of the calls of the SkyFunctions by the current evaluator. */
+  public SkyFunctionStatistics getSkyFunctionStatistics() {
+    return memoizingEvaluator.getSkyFunctionStatistics();
+  }
+
+  /**
+   * Makes Skyframe evict the values of directory listings and globs that were not used recently
+   * whenever the heap is still fuller than {@code heapPercent} after a garbage collection. The
+   * values are recomputed when they are next needed.
+   */
+  public void enableValueEviction(int heapPercent) {
+    HeapWatermarkValueEvictor.install(new Supplier<MemoizingEvaluator>() {
+      @Override
+      public MemoizingEvaluator get() {
+        // The evaluator is replaced when it is reset.
+        return memoizingEvaluator;
+      }
+    }, heapPercent);
+  }
+
   public abstract void dumpPackages(PrintStream out);
 
   public void setBatchStatter(@Nullable BatchStat batchStatter) {
@@ -450,6 +487,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
    */
   public void resetEvaluator() {
     init();
+    querySnapshot = null;
+    graphChangedSinceQuerySnapshot = true;
     emittedEventState.clear();
     if (skyframeBuildView != null) {
       skyframeBuildView.clearLegacyData();
@@ -562,10 +601,6 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     }
   }
 
-  protected Cache<PackageIdentifier, Package.LegacyBuilder> newPkgFunctionCache() {
-    return CacheBuilder.newBuilder().build();
-  }
-
   /**
    * Injects the build info factory map that will be used when constructing build info
    * actions/artifacts. Unchanged across the life of the Blaze server, although it must be injected
@@ -772,8 +807,6 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     checkPreprocessorFactory();
     emittedEventState.clear();
 
-    // If the PackageFunction was interrupted, there may be stale entries here.
-    packageFunctionCache.invalidateAll();
     numPackagesLoaded.set(0);
 
     // Reset the stateful SkyframeCycleReporter, which contains cycles from last run.
@@ -884,6 +917,33 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     return configurationValue.getConfigurationCollection();
   }
 
+  /**
+   * Returns the configuration fragments that the given targets and their transitive dependencies
+   * require, or null if some of them could not be loaded.
+   */
+  @Nullable
+  public Set<Class<? extends BuildConfiguration.Fragment>> getTransitiveConfigurationFragments(
+      Collection<Target> targets) throws InterruptedException {
+    List<SkyKey> keys = new ArrayList<>(targets.size());
+    for (Target target : targets) {
+      keys.add(TransitiveTargetValue.key(target.getLabel()));
+    }
+    // The targets were loaded by the loading phase, so this only looks up the values.
+    EvaluationResult<TransitiveTargetValue> result = buildDriver.evaluate(
+        keys, /*keepGoing=*/true, DEFAULT_THREAD_COUNT, errorEventListener);
+    if (result.hasError()) {
+      return null;
+    }
+    Set<Class<? extends BuildConfiguration.Fragment>> fragments = new HashSet<>();
+    for (TransitiveTargetValue value : result.values()) {
+      if (value.getTransitiveRootCauses() != null) {
+        return null;
+      }
+      fragments.addAll(value.getTransitiveConfigFragments().toCollection());
+    }
+    return fragments;
+  }
+
   private Iterable<ActionLookupValue> getActionLookupValues() {
     // This filter keeps subclasses of ActionLookupValue.
     return Iterables.filter(memoizingEvaluator.getDoneValues().values(), ActionLookupValue.class);
@@ -934,6 +994,11 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     skyframeActionExecutor.prepareForExecution(executor, keepGoing, explain, actionCacheChecker);
 
     resourceManager.resetResourceUsage();
+    // Ordering the nodes only pays off once there are slow actions to put first, and only for the
+    // execution phase, whose nodes are the ones the durations are recorded for.
+    if (actionDurations.hasDurations()) {
+      memoizingEvaluator.setEvaluationPriority(actionDurations);
+    }
     try {
       progressReceiver.executionProgressReceiver = executionProgressReceiver;
       Iterable<SkyKey> artifactKeys = ArtifactValue.mandatoryKeys(artifactsToBuild);
@@ -943,6 +1008,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
           numJobs, errorEventListener);
     } finally {
       progressReceiver.executionProgressReceiver = null;
+      memoizingEvaluator.setEvaluationPriority(null);
       // Also releases thread locks.
       resourceManager.resetResourceUsage();
       skyframeActionExecutor.executionOver();
@@ -1180,7 +1246,87 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     SkyKey skyKey = PrepareDepsOfPatternsValue.key(ImmutableList.copyOf(patterns), policy, offset);
     EvaluationResult<SkyValue> evaluationResult =
         buildDriver.evaluate(ImmutableList.of(skyKey), true, numThreads, eventHandler);
-    return Preconditions.checkNotNull(evaluationResult.getWalkableGraph(), patterns);
+    WalkableGraph graph = Preconditions.checkNotNull(evaluationResult.getWalkableGraph(), patterns);
+    updateQuerySnapshot(skyKey, graph);
+    return graph;
+  }
+
+  /**
+   * Takes a new query snapshot of the closure of {@code universeKey}, unless the current one
+   * already is a copy of it.
+   */
+  private void updateQuerySnapshot(SkyKey universeKey, WalkableGraph graph) {
+    QuerySnapshot snapshot = querySnapshot;
+    if (snapshot != null && !graphChangedSinceQuerySnapshot
+        && snapshot.universeKey.equals(universeKey)
+        && snapshot.packageCacheOptions.equals(packageCacheOptions)) {
+      return;
+    }
+    // Let the old snapshot be collected while the new one is taken.
+    querySnapshot = null;
+    if (packageCacheOptions == null) {
+      // The package path was not set up by a command, so there is nothing to match against.
+      return;
+    }
+    graphChangedSinceQuerySnapshot = false;
+    long startTime = System.nanoTime();
+    WalkableGraphSnapshot copy =
+        WalkableGraphSnapshot.copyOf(graph, ImmutableList.of(universeKey));
+    querySnapshot = new QuerySnapshot(universeKey, packageCacheOptions, pkgLocator.get(), copy);
+    LOG.info(String.format("Took a query snapshot of %d nodes in %d ms", copy.size(),
+        (System.nanoTime() - startTime) / 1000000));
+  }
+
+  /**
+   * Returns a copy of the graph that {@link #prepareAndGet} prepared the last time it was called
+   * for a query, provided that it was for the same {@code patterns} and {@code offset}, and with the
+   * same package cache options; otherwise returns null.
+   *
+   * <p>The copy does not change when the graph does, so queries can use it while another command
+   * holds the server. It reflects the graph as it was after that last query, not any changes made
+   * to the workspace since.
+   */
+  @ThreadSafety.ThreadSafe
+  @Nullable
+  public QuerySnapshot getQuerySnapshot(Collection<String> patterns, String offset,
+      PackageCacheOptions packageCacheOptions) {
+    QuerySnapshot snapshot = querySnapshot;
+    SkyKey universeKey = PrepareDepsOfPatternsValue.key(ImmutableList.copyOf(patterns),
+        TargetPatternEvaluator.DEFAULT_FILTERING_POLICY, offset);
+    return snapshot != null && snapshot.universeKey.equals(universeKey)
+        && snapshot.packageCacheOptions.equals(packageCacheOptions)
+        ? snapshot
+        : null;
+  }
+
+  /**
+   * A copy of the graph that {@link #prepareAndGet} prepared for a query, see
+   * {@link #getQuerySnapshot}.
+   */
+  @ThreadSafety.Immutable
+  public static final class QuerySnapshot {
+    private final SkyKey universeKey;
+    private final PackageCacheOptions packageCacheOptions;
+    private final PathPackageLocator pkgLocator;
+    private final WalkableGraph graph;
+
+    private QuerySnapshot(SkyKey universeKey, PackageCacheOptions packageCacheOptions,
+        PathPackageLocator pkgLocator, WalkableGraph graph) {
+      this.universeKey = universeKey;
+      this.packageCacheOptions = packageCacheOptions;
+      this.pkgLocator = pkgLocator;
+      this.graph = graph;
+    }
+
+    /** Returns the package path that the query ran with. */
+    public PathPackageLocator getPackageLocator() {
+      return pkgLocator;
+    }
+
+    /** Returns the copy of the graph. */
+    public WalkableGraph getGraph() {
+      return graph;
+    }
   }
 
   /**
@@ -1295,11 +1441,6 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     public boolean isPackageDeleted(String packageName) {
       return deletedPackages.get().contains(packageName);
     }
-
-    /** Same as {@link PackageManager#partiallyClear}. */
-    void partiallyClear() {
-      packageFunctionCache.invalidateAll();
-    }
   }
 
   /**
@@ -1345,7 +1486,7 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   public void sync(PackageCacheOptions packageCacheOptions, Path workingDirectory,
       String defaultsPackageContents, UUID commandId) throws InterruptedException,
       AbruptExitException{
-
+    this.packageCacheOptions = packageCacheOptions;
     preparePackageLoading(
         createPackageLocator(packageCacheOptions, directories.getWorkspace(), workingDirectory),
         packageCacheOptions.defaultVisibility, packageCacheOptions.showLoadingProgress,
@@ -1467,6 +1608,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
 
     @Override
     public void invalidated(SkyValue value, InvalidationState state) {
+      // Even ignored invalidations change the graph.
+      graphChangedSinceQuerySnapshot = true;
       if (ignoreInvalidations) {
         return;
       }
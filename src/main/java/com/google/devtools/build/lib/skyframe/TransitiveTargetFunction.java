@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.skyframe;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
@@ -165,10 +166,7 @@ public class TransitiveTargetFunction implements SkyFunction {
     // Get configuration fragments directly required by this target.
     if (target instanceof Rule) {
       Set<Class<?>> configFragments =
-          target.getAssociatedRule().getRuleClassObject().getRequiredConfigurationFragments();
-      // An empty result means this rule requires all fragments (which practically means
-      // the rule isn't yet declaring its actually needed fragments). So load everything.
-      configFragments = configFragments.isEmpty() ? getAllFragments() : configFragments;
+          getRequiredConfigurationFragments(target.getAssociatedRule());
       for (Class<?> fragment : configFragments) {
         if (!configFragmentsFromDeps.contains(fragment)) {
           transitiveConfigFragments.add((Class<? extends BuildConfiguration.Fragment>) fragment);
@@ -190,6 +188,42 @@ public class TransitiveTargetFunction implements SkyFunction {
     }
   }
 
+  /**
+   * Returns the fragments that the rule or the late-bound defaults of its attributes may access.
+   * A rule or a late-bound default that declares no fragments requires all of them (which
+   * practically means that the fragments it actually needs aren't declared yet). Late-bound
+   * defaults that only read the configuration itself declare {@link BuildConfiguration}, which
+   * adds no fragment.
+   */
+  @VisibleForTesting
+  Set<Class<?>> getRequiredConfigurationFragments(Rule rule) {
+    Set<Class<?>> ruleFragments = rule.getRuleClassObject().getRequiredConfigurationFragments();
+    if (ruleFragments.isEmpty()) {
+      return getAllFragments();
+    }
+    Set<Class<?>> configFragments = null;
+    for (Attribute attribute : rule.getAttributes()) {
+      if (!attribute.isLateBound()) {
+        continue;
+      }
+      Set<Class<?>> lateBoundFragments =
+          attribute.getLateBoundDefault().getRequiredConfigurationFragments();
+      if (lateBoundFragments.isEmpty()) {
+        return getAllFragments();
+      }
+      for (Class<?> fragment : lateBoundFragments) {
+        if (fragment == BuildConfiguration.class || ruleFragments.contains(fragment)) {
+          continue;
+        }
+        if (configFragments == null) {
+          configFragments = new LinkedHashSet<>(ruleFragments);
+        }
+        configFragments.add(fragment);
+      }
+    }
+    return configFragments == null ? ruleFragments : configFragments;
+  }
+
   /**
    * Returns every configuration fragment known to the system.
    */
@@ -0,0 +1,157 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util.io;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Like {@link StreamMultiplexer}, this class redirects multiple output streams
+ * into a single output stream, but it tags the data with length-prefixed
+ * frames rather than with control lines:
+ *
+ * <pre>
+ * combined :: = frame*
+ * frame :: = marker length payload
+ * length :: = 32-bit big-endian integer, the number of bytes in payload
+ * </pre>
+ *
+ * The markers are those of {@link StreamMultiplexer}: '1'=stdout, '2'=stderr
+ * and '3'=control.
+ *
+ * <p>Since payloads are never scanned for newlines, a single write of many
+ * lines becomes a single frame and a single flush of the underlying stream,
+ * instead of one control line, one payload line and one flush per line. A
+ * stream is flushed when it is flushed explicitly, when a write ends with a
+ * newline (so that progress messages still appear promptly), and when its
+ * buffer of {@link #MAX_CHUNK_SIZE} bytes is full. There is no flow control
+ * of its own: a write blocks while the underlying stream does, e.g. while the
+ * reader of a socket falls behind.
+ */
+@ThreadSafe
+public final class FramedStreamMultiplexer {
+
+  /** The size of the largest payload this multiplexer sends. */
+  public static final int MAX_CHUNK_SIZE = 8192;
+
+  /** The number of bytes preceding each payload: one marker byte and the length. */
+  public static final int FRAME_HEADER_SIZE = 5;
+
+  private static final byte NEWLINE = '\n';
+
+  private final Object mutex = new Object();
+  private final DataOutputStream multiplexed;
+
+  public FramedStreamMultiplexer(OutputStream multiplexed) {
+    // Buffer so that a frame's header and payload go out in one write.
+    this.multiplexed = new DataOutputStream(
+        new BufferedOutputStream(multiplexed, MAX_CHUNK_SIZE + FRAME_HEADER_SIZE));
+  }
+
+  private class FramingStream extends OutputStream {
+
+    private final byte markerByte;
+    private final byte[] buffer = new byte[MAX_CHUNK_SIZE];
+    private int len = 0;
+
+    FramingStream(byte markerByte) {
+      this.markerByte = markerByte;
+    }
+
+    @Override
+    public synchronized void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int inlen) throws IOException {
+      if (inlen == 0) {
+        return;
+      }
+      boolean endsWithNewline = b[off + inlen - 1] == NEWLINE;
+      while (inlen > 0) {
+        if (len == MAX_CHUNK_SIZE) {
+          writeFrame();
+        }
+        int chunk = Math.min(inlen, MAX_CHUNK_SIZE - len);
+        System.arraycopy(b, off, buffer, len, chunk);
+        len += chunk;
+        off += chunk;
+        inlen -= chunk;
+      }
+      if (endsWithNewline) {
+        flush();
+      }
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      synchronized (mutex) {
+        writeFrame();
+        multiplexed.flush();
+      }
+    }
+
+    /**
+     * Close is implemented as {@link #flush()}; the underlying stream stays
+     * open.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+      flush();
+    }
+
+    private void writeFrame() throws IOException {
+      if (len == 0) {
+        return;
+      }
+      synchronized (mutex) {
+        multiplexed.write(markerByte);
+        multiplexed.writeInt(len);
+        multiplexed.write(buffer, 0, len);
+      }
+      len = 0;
+    }
+  }
+
+  /**
+   * Creates a stream that will frame its contributions into the multiplexed
+   * stream with the marker '1', which means 'stdout'. This stream never closes
+   * the underlying stream it delegates to - calling its {@code close()} method
+   * is equivalent to calling {@code flush}.
+   */
+  public OutputStream createStdout() {
+    return new FramingStream(StreamMultiplexer.STDOUT_MARKER);
+  }
+
+  /**
+   * Like {@link #createStdout()}, except it tags with the marker '2' to
+   * indicate 'stderr'.
+   */
+  public OutputStream createStderr() {
+    return new FramingStream(StreamMultiplexer.STDERR_MARKER);
+  }
+
+  /**
+   * Like {@link #createStdout()}, except it tags with the marker '3' to
+   * indicate control flow.
+   */
+  public OutputStream createControl() {
+    return new FramingStream(StreamMultiplexer.CONTROL_MARKER);
+  }
+}
@@ -0,0 +1,160 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An {@link InMemoryGraph} that assigns each {@link SkyKey} a dense int id when its node is
+ * created, so that nodes can store their edges as ids rather than as references to keys. See
+ * {@link CompactInMemoryNodeEntry} for the representation of the edges.
+ *
+ * <p>Edges outnumber nodes by an order of magnitude in a large graph, so this saves much of the
+ * memory of the graph, at the cost of a lookup in the graph per edge when a node is done.
+ *
+ * <p>The id of a key is found through its node, so it is only known while the node is in the
+ * graph. Nodes that are removed, however, may still be referred to by the edges of other nodes
+ * until the invalidation or evaluation that removed them is over: their ids are kept until then,
+ * and only then given to new nodes.
+ */
+final class CompactInMemoryGraph extends InMemoryGraph {
+
+  private static final int CHUNK_BITS = 12;
+  private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  /** Ids below {@link #nextId} that no key has, to be given to new nodes first. */
+  private final Queue<Integer> freeIds = new ConcurrentLinkedQueue<>();
+
+  /**
+   * The keys by id, in chunks of {@link #CHUNK_SIZE}. The chunks are allocated as needed and never
+   * replaced, so that a key can be stored without holding {@link #chunksLock} once its chunk
+   * exists.
+   */
+  private volatile SkyKey[][] chunks = new SkyKey[16][];
+  private final Object chunksLock = new Object();
+
+  /**
+   * The id of each node removed since the last call to {@link #evaluationFinished}. A key that was
+   * removed, added back and removed again maps to its latest id.
+   */
+  private final Map<SkyKey, Integer> removedKeyIds = new ConcurrentHashMap<>();
+
+  /** The ids of all the nodes removed since the last call to {@link #evaluationFinished}. */
+  private final Queue<Integer> removedIds = new ConcurrentLinkedQueue<>();
+
+  CompactInMemoryGraph() {
+    super(/*keepEdges=*/true);
+  }
+
+  @Override
+  public NodeEntry createIfAbsent(SkyKey key) {
+    // Look first, so that ids are only allocated for nodes that are actually created.
+    NodeEntry entry = nodeMap.get(key);
+    if (entry != null) {
+      return entry;
+    }
+    Integer freeId = freeIds.poll();
+    int id = freeId != null ? freeId : nextId.getAndIncrement();
+    setKey(id, key);
+    NodeEntry newval = new CompactInMemoryNodeEntry(this, id);
+    NodeEntry oldval = nodeMap.putIfAbsent(key, newval);
+    if (oldval != null) {
+      // No edge can refer to the id yet.
+      setKey(id, null);
+      freeIds.add(id);
+      return oldval;
+    }
+    return newval;
+  }
+
+  @Override
+  public void remove(SkyKey skyKey) {
+    NodeEntry entry = nodeMap.remove(skyKey);
+    if (entry != null) {
+      int id = ((CompactInMemoryNodeEntry) entry).getId();
+      removedKeyIds.put(skyKey, id);
+      removedIds.add(id);
+    }
+  }
+
+  /**
+   * Forgets the keys of the nodes removed during the last invalidation and evaluation, which are
+   * no longer referred to by any edge, and makes their ids available to new nodes.
+   */
+  @Override
+  void evaluationFinished() {
+    for (Integer id = removedIds.poll(); id != null; id = removedIds.poll()) {
+      // The key may have been added back to the graph since, but under a new id.
+      setKey(id, null);
+      freeIds.add(id);
+    }
+    removedKeyIds.clear();
+  }
+
+  /** Returns the id of the given key, whose node must be in the graph or just removed from it. */
+  int getId(SkyKey key) {
+    NodeEntry entry = nodeMap.get(key);
+    if (entry != null) {
+      return ((CompactInMemoryNodeEntry) entry).getId();
+    }
+    Integer id = removedKeyIds.get(key);
+    Preconditions.checkState(id != null, "%s is not in the graph", key);
+    return id;
+  }
+
+  /** Returns the key with the given id. */
+  SkyKey getKey(int id) {
+    SkyKey key = chunks[id >>> CHUNK_BITS][id & CHUNK_MASK];
+    Preconditions.checkState(key != null, "No key with id %s", id);
+    return key;
+  }
+
+  private void setKey(int id, SkyKey key) {
+    int chunkIndex = id >>> CHUNK_BITS;
+    SkyKey[][] currentChunks = chunks;
+    SkyKey[] chunk = chunkIndex < currentChunks.length ? currentChunks[chunkIndex] : null;
+    if (chunk == null) {
+      chunk = getOrCreateChunk(chunkIndex);
+    }
+    // Readers of the key get its id from the node map, which publishes this write.
+    chunk[id & CHUNK_MASK] = key;
+  }
+
+  private SkyKey[] getOrCreateChunk(int chunkIndex) {
+    synchronized (chunksLock) {
+      SkyKey[][] currentChunks = chunks;
+      if (chunkIndex >= currentChunks.length) {
+        currentChunks = Arrays.copyOf(currentChunks, Math.max(chunkIndex + 1,
+            currentChunks.length * 2));
+      }
+      SkyKey[] chunk = currentChunks[chunkIndex];
+      if (chunk == null) {
+        chunk = new SkyKey[CHUNK_SIZE];
+        currentChunks[chunkIndex] = chunk;
+      }
+      chunks = currentChunks;
+      return chunk;
+    }
+  }
+}
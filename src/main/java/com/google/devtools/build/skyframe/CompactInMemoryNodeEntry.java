@@ -0,0 +1,268 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.util.GroupedList;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+import com.google.devtools.build.lib.util.VarInt;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * {@link InMemoryNodeEntry} of a {@link CompactInMemoryGraph}, which stores the edges of the node
+ * as the ids the graph assigned to their keys.
+ *
+ * <p>The direct deps are stored as a byte array of varints. Each group starts with its size,
+ * followed by the differences between the id of each dep and the id of the previous one (or of
+ * this node, for the first one), zigzag-encoded. Since nodes are created close to the time their
+ * parent first requests them, the differences are small, and most deps take one or two bytes.
+ *
+ * <p>A single reverse dep is stored as its key, as in {@link InMemoryNodeEntry}. More reverse deps
+ * are stored as an int array of ids: the first element is the number of reverse deps, followed by
+ * the reverse deps themselves and possibly some spare capacity. Reverse deps to remove are
+ * accumulated in the same format, and removed all at once when the reverse deps are next needed.
+ *
+ * <p>The edges of the node while it is being built are kept in its {@link BuildingState} as usual.
+ */
+final class CompactInMemoryNodeEntry extends InMemoryNodeEntry {
+
+  private static final byte[] NO_DIRECT_DEPS = new byte[0];
+  private static final int[] NO_REVERSE_DEPS = new int[] {0};
+
+  private final CompactInMemoryGraph graph;
+  private final int id;
+
+  /** Ids of the reverse deps to remove, in the format of {@code reverseDeps}, or null if none. */
+  private int[] reverseDepIdsToRemove = null;
+
+  CompactInMemoryNodeEntry(CompactInMemoryGraph graph, int id) {
+    this.graph = graph;
+    this.id = id;
+    this.reverseDeps = NO_REVERSE_DEPS;
+  }
+
+  int getId() {
+    return id;
+  }
+
+  @Override
+  Object compressDirectDeps(GroupedList<SkyKey> finishedDirectDeps) {
+    if (finishedDirectDeps.isEmpty()) {
+      return NO_DIRECT_DEPS;
+    }
+    // There are at most as many groups as deps.
+    byte[] buffer = new byte[2 * finishedDirectDeps.size() * VarInt.MAX_VARINT_SIZE];
+    int offset = 0;
+    int previousId = id;
+    for (Iterable<SkyKey> group : finishedDirectDeps) {
+      offset = VarInt.putVarInt(Iterables.size(group), buffer, offset);
+      for (SkyKey dep : group) {
+        int depId = graph.getId(dep);
+        offset = VarInt.putVarInt(zigzag(depId - previousId), buffer, offset);
+        previousId = depId;
+      }
+    }
+    return Arrays.copyOf(buffer, offset);
+  }
+
+  @Override
+  GroupedList<SkyKey> uncompressDirectDeps(Object compressed) {
+    byte[] bytes = (byte[]) compressed;
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    int[] value = new int[1];
+    int offset = 0;
+    int previousId = id;
+    while (offset < bytes.length) {
+      offset = VarInt.getVarInt(bytes, offset, value);
+      int groupSize = value[0];
+      if (groupSize > 1) {
+        helper.startGroup();
+      }
+      for (int i = 0; i < groupSize; i++) {
+        offset = VarInt.getVarInt(bytes, offset, value);
+        previousId += unzigzag(value[0]);
+        helper.add(graph.getKey(previousId));
+      }
+      if (groupSize > 1) {
+        helper.endGroup();
+      }
+    }
+    GroupedList<SkyKey> result = new GroupedList<>();
+    result.append(helper);
+    return result;
+  }
+
+  private static int zigzag(int n) {
+    return (n << 1) ^ (n >> 31);
+  }
+
+  private static int unzigzag(int n) {
+    return (n >>> 1) ^ -(n & 1);
+  }
+
+  @Override
+  void addStoredReverseDeps(Collection<SkyKey> newReverseDeps) {
+    consolidateReverseDepsRemovals();
+    if (newReverseDeps.isEmpty()) {
+      return;
+    }
+    if (!reverseDepIsSingleObject && ((int[]) reverseDeps)[0] == 0
+        && newReverseDeps.size() == 1) {
+      reverseDeps = Iterables.getOnlyElement(newReverseDeps);
+      reverseDepIsSingleObject = true;
+      return;
+    }
+    int[] ids;
+    if (reverseDepIsSingleObject) {
+      ids = new int[newReverseDeps.size() + 2];
+      ids[0] = 1;
+      ids[1] = graph.getId((SkyKey) reverseDeps);
+    } else {
+      ids = (int[]) reverseDeps;
+    }
+    ids = appendIds(ids, newReverseDeps);
+    reverseDeps = ids;
+    reverseDepIsSingleObject = false;
+  }
+
+  /** Returns ids, or a larger copy of it, with the ids of keys appended. */
+  private int[] appendIds(int[] ids, Collection<SkyKey> keys) {
+    int size = ids[0];
+    int newSize = size + keys.size();
+    if (newSize + 1 > ids.length) {
+      // Nodes like the build info one gain reverse deps one at a time, so grow geometrically.
+      ids = Arrays.copyOf(ids, Math.max(newSize + 1, ids.length + (ids.length >> 1)));
+    }
+    for (SkyKey key : keys) {
+      ids[++size] = graph.getId(key);
+    }
+    ids[0] = size;
+    return ids;
+  }
+
+  @Override
+  void checkStoredReverseDepAbsent(SkyKey reverseDep) {
+    consolidateReverseDepsRemovals();
+    if (reverseDepIsSingleObject) {
+      Preconditions.checkState(!reverseDeps.equals(reverseDep),
+          "Reverse dep %s already present", reverseDep);
+      return;
+    }
+    int[] ids = (int[]) reverseDeps;
+    if (ids[0] < ReverseDepsUtil.MAYBE_CHECK_THRESHOLD) {
+      int reverseDepId = graph.getId(reverseDep);
+      for (int i = 1; i <= ids[0]; i++) {
+        Preconditions.checkState(ids[i] != reverseDepId, "Reverse dep %s already present in %s",
+            reverseDep, this);
+      }
+    }
+  }
+
+  @Override
+  void removeStoredReverseDep(SkyKey reverseDep) {
+    if (reverseDepIsSingleObject) {
+      // This removal is cheap so let's do it and not keep it in reverseDepIdsToRemove.
+      if (reverseDeps.equals(reverseDep)) {
+        reverseDeps = NO_REVERSE_DEPS;
+        reverseDepIsSingleObject = false;
+      }
+      return;
+    }
+    if (((int[]) reverseDeps)[0] == 0) {
+      return;
+    }
+    // The id is looked up now, since the reverse dep may be removed from the graph before the
+    // removal is consolidated.
+    int[] toRemove = reverseDepIdsToRemove == null ? new int[2] : reverseDepIdsToRemove;
+    if (toRemove[0] + 1 == toRemove.length) {
+      toRemove = Arrays.copyOf(toRemove, toRemove.length * 2);
+    }
+    toRemove[++toRemove[0]] = graph.getId(reverseDep);
+    reverseDepIdsToRemove = toRemove;
+  }
+
+  private void consolidateReverseDepsRemovals() {
+    if (reverseDepIdsToRemove == null) {
+      return;
+    }
+    Preconditions.checkState(!reverseDepIsSingleObject,
+        "We do not use reverseDepIdsToRemove for single reverse deps: %s", this);
+    int[] toRemove = Arrays.copyOfRange(reverseDepIdsToRemove, 1, reverseDepIdsToRemove[0] + 1);
+    Arrays.sort(toRemove);
+    for (int i = 1; i < toRemove.length; i++) {
+      Preconditions.checkState(toRemove[i - 1] != toRemove[i],
+          "A reverse dependency tried to remove itself twice: %s. %s", toRemove[i], this);
+    }
+    int[] ids = (int[]) reverseDeps;
+    int newSize = ids[0] - toRemove.length;
+    Preconditions.checkState(newSize >= 0, "Could not remove %s elements from %s", toRemove.length,
+        this);
+    int[] newIds = new int[newSize + 1];
+    int kept = 0;
+    for (int i = 1; i <= ids[0]; i++) {
+      if (Arrays.binarySearch(toRemove, ids[i]) < 0) {
+        Preconditions.checkState(kept < newSize, "Could not remove some elements from %s", this);
+        newIds[++kept] = ids[i];
+      }
+    }
+    Preconditions.checkState(kept == newSize, "Could not remove some elements from %s", this);
+    reverseDepIdsToRemove = null;
+    if (newSize == 0) {
+      reverseDeps = NO_REVERSE_DEPS;
+    } else if (newSize == 1) {
+      reverseDeps = graph.getKey(newIds[1]);
+      reverseDepIsSingleObject = true;
+    } else {
+      newIds[0] = newSize;
+      reverseDeps = newIds;
+    }
+  }
+
+  @Override
+  ImmutableSet<SkyKey> getStoredReverseDeps() {
+    consolidateReverseDepsRemovals();
+    if (reverseDepIsSingleObject) {
+      return ImmutableSet.of((SkyKey) reverseDeps);
+    }
+    int[] ids = (int[]) reverseDeps;
+    ImmutableSet.Builder<SkyKey> builder = ImmutableSet.builder();
+    for (int i = 1; i <= ids[0]; i++) {
+      builder.add(graph.getKey(ids[i]));
+    }
+    ImmutableSet<SkyKey> set = builder.build();
+    Preconditions.checkState(set.size() == ids[0], "Duplicate reverse deps present in %s: %s",
+        this, set);
+    return set;
+  }
+
+  @Override
+  @SuppressWarnings("deprecation")
+  String storedReverseDepsToString() {
+    return Objects.toStringHelper("ReverseDeps") // MoreObjects is not in Guava
+        .add("reverseDeps",
+            reverseDepIsSingleObject ? reverseDeps : idsToString((int[]) reverseDeps))
+        .add("reverseDepIdsToRemove",
+            reverseDepIdsToRemove == null ? null : idsToString(reverseDepIdsToRemove))
+        .toString();
+  }
+
+  private static String idsToString(int[] ids) {
+    return Arrays.toString(Arrays.copyOfRange(ids, 1, ids[0] + 1));
+  }
+}
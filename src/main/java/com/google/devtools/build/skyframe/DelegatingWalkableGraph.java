@@ -14,6 +14,11 @@
 package com.google.devtools.build.skyframe;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.Map;
+import java.util.Set;
 
 import javax.annotation.Nullable;
 
@@ -33,6 +38,17 @@ public class DelegatingWalkableGraph implements WalkableGraph {
     return entry;
   }
 
+  private Map<SkyKey, NodeEntry> getEntries(Iterable<SkyKey> keys) {
+    // QueryableGraph#getBatch does not tolerate duplicate keys.
+    Set<SkyKey> keySet = ImmutableSet.copyOf(keys);
+    Map<SkyKey, NodeEntry> result = graph.getBatch(keySet);
+    Preconditions.checkState(result.size() == keySet.size(), "%s %s", keySet, result);
+    for (Map.Entry<SkyKey, NodeEntry> entry : result.entrySet()) {
+      Preconditions.checkState(entry.getValue().isDone(), entry);
+    }
+    return result;
+  }
+
   @Override
   public boolean exists(SkyKey key) {
     NodeEntry entry = graph.get(key);
@@ -52,6 +68,23 @@ public class DelegatingWalkableGraph implements WalkableGraph {
     return errorInfo == null ? null : errorInfo.getException();
   }
 
+  @Override
+  public Map<SkyKey, SkyValue> getSuccessfulValues(Iterable<SkyKey> keys) {
+    Map<SkyKey, NodeEntry> entries = graph.getBatch(ImmutableSet.copyOf(keys));
+    ImmutableMap.Builder<SkyKey, SkyValue> builder = ImmutableMap.builder();
+    for (Map.Entry<SkyKey, NodeEntry> entry : entries.entrySet()) {
+      NodeEntry nodeEntry = entry.getValue();
+      if (!nodeEntry.isDone()) {
+        continue;
+      }
+      SkyValue value = nodeEntry.getValue();
+      if (value != null) {
+        builder.put(entry.getKey(), value);
+      }
+    }
+    return builder.build();
+  }
+
   @Override
   public Iterable<SkyKey> getDirectDeps(SkyKey key) {
     return getEntry(key).getDirectDeps();
@@ -61,4 +94,22 @@ public class DelegatingWalkableGraph implements WalkableGraph {
   public Iterable<SkyKey> getReverseDeps(SkyKey key) {
     return getEntry(key).getReverseDeps();
   }
+
+  @Override
+  public Map<SkyKey, Iterable<SkyKey>> getDirectDeps(Iterable<SkyKey> keys) {
+    ImmutableMap.Builder<SkyKey, Iterable<SkyKey>> builder = ImmutableMap.builder();
+    for (Map.Entry<SkyKey, NodeEntry> entry : getEntries(keys).entrySet()) {
+      builder.put(entry.getKey(), entry.getValue().getDirectDeps());
+    }
+    return builder.build();
+  }
+
+  @Override
+  public Map<SkyKey, Iterable<SkyKey>> getReverseDeps(Iterable<SkyKey> keys) {
+    ImmutableMap.Builder<SkyKey, Iterable<SkyKey>> builder = ImmutableMap.builder();
+    for (Map.Entry<SkyKey, NodeEntry> entry : getEntries(keys).entrySet()) {
+      builder.put(entry.getKey(), entry.getValue().getReverseDeps());
+    }
+    return builder.build();
+  }
 }
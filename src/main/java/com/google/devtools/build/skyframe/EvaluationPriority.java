@@ -0,0 +1,34 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+/**
+ * Decides which of the nodes ready to be evaluated the {@link ParallelEvaluator} evaluates first,
+ * when there are more of them than evaluator threads.
+ *
+ * <p>A node is evaluated with the highest of its own priority and of the priorities of the nodes
+ * that requested it, so that the deps of a node on the critical path are evaluated early too.
+ * Nodes of equal priority are evaluated in the order they became ready.
+ */
+@ThreadSafe
+public interface EvaluationPriority {
+
+  /**
+   * Returns the priority of evaluating the node of the given key. Nodes of higher priority are
+   * evaluated first. Most nodes should have priority 0; negative priorities are not inherited.
+   */
+  int getPriority(SkyKey key);
+}
@@ -0,0 +1,147 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.skyframe.SkyFunction.SkyKeyComputeState;
+import com.google.devtools.build.skyframe.SkyFunctionException.ReifiedSkyFunctionException;
+
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * Computes again the value of a done node whose value was evicted by {@link
+ * InMemoryGraph#evictColdValues}. The SkyFunction is only given the values of the deps of the node,
+ * which are done and equal to those the value was first computed from, so it computes an equal
+ * value.
+ */
+final class EvictedValueRecomputer implements InMemoryNodeEntry.ValueRecomputer {
+  private final ImmutableMap<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions;
+  private final InMemoryGraph graph;
+  private final SkyFunctionStatistics statistics;
+
+  EvictedValueRecomputer(
+      ImmutableMap<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions,
+      InMemoryGraph graph, SkyFunctionStatistics statistics) {
+    this.skyFunctions = skyFunctions;
+    this.graph = graph;
+    this.statistics = statistics;
+  }
+
+  @Override
+  public SkyValue recompute(SkyKey key, InMemoryNodeEntry entry) {
+    SkyFunction function = skyFunctions.get(key.functionName());
+    Preconditions.checkState(function != null, "%s %s", key, entry);
+    Set<SkyKey> directDeps = ImmutableSet.copyOf(entry.getDirectDeps());
+    SkyValue value = null;
+    boolean interrupted = false;
+    try {
+      // Evicted values are cheap to recompute, so we finish even if interrupted: callers cannot
+      // tell a value that is missing because of an interrupt from one that was not computed yet.
+      while (true) {
+        RecomputationEnvironment env = new RecomputationEnvironment(key, directDeps);
+        try {
+          value = function.compute(key, env);
+        } catch (SkyFunctionException e) {
+          // The node is done, so the error is stored in it as if it had been built with it.
+          ErrorInfo errorInfo = new ErrorInfo(new ReifiedSkyFunctionException(e, key));
+          value = ValueWithMetadata.error(errorInfo,
+              NestedSetBuilder.<TaggedEvents>stableOrder().build());
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+          continue;
+        }
+        Preconditions.checkState(value != null && !env.valuesMissing(),
+            "Could not recompute the evicted value of %s: %s", key, entry);
+        break;
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (statistics.isEnabled()) {
+      statistics.recordRecomputation(key.functionName());
+    }
+    return value;
+  }
+
+  /**
+   * The {@link SkyFunction.Environment} of the recomputation of an evicted value, which gives the
+   * SkyFunction the values of the deps the node already has, and nothing else.
+   */
+  private class RecomputationEnvironment extends AbstractSkyFunctionEnvironment {
+    private final SkyKey skyKey;
+    private final Set<SkyKey> directDeps;
+    // Values with events are never evicted, so the recomputation has none to report.
+    private final StoredEventHandler eventHandler = new StoredEventHandler();
+
+    private RecomputationEnvironment(SkyKey skyKey, Set<SkyKey> directDeps) {
+      this.skyKey = skyKey;
+      this.directDeps = directDeps;
+    }
+
+    @Override
+    protected Map<SkyKey, ValueOrUntypedException> getValueOrUntypedExceptions(
+        Iterable<SkyKey> depKeys) {
+      ImmutableMap.Builder<SkyKey, ValueOrUntypedException> builder = ImmutableMap.builder();
+      for (SkyKey depKey : ImmutableSet.copyOf(depKeys)) {
+        Preconditions.checkState(directDeps.contains(depKey),
+            "%s requested %s, which it did not depend on when its value was evicted", skyKey,
+            depKey);
+        // An evicted dep is itself restored by the read.
+        ValueWithMetadata value = getDoneValue(depKey);
+        if (value != null && value.getValue() != null) {
+          builder.put(depKey, ValueOrExceptionUtils.ofValueUntyped(value.getValue()));
+        } else if (value != null && value.getErrorInfo().getException() != null) {
+          builder.put(depKey, ValueOrExceptionUtils.ofExn(value.getErrorInfo().getException()));
+        } else {
+          valuesMissing = true;
+          builder.put(depKey, ValueOrExceptionUtils.ofNull());
+        }
+      }
+      return builder.build();
+    }
+
+    @Nullable
+    private ValueWithMetadata getDoneValue(SkyKey depKey) {
+      NodeEntry depEntry = graph.get(depKey);
+      return depEntry == null || !depEntry.isDone() ? null : depEntry.getValueWithMetadata();
+    }
+
+    @Override
+    public <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+      return stateSupplier.get();
+    }
+
+    @Override
+    public EventHandler getListener() {
+      return eventHandler;
+    }
+
+    @Override
+    public boolean inErrorBubblingForTesting() {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,473 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.MinMaxPriorityQueue;
+import com.google.common.collect.Ordering;
+import com.google.common.primitives.Longs;
+import com.google.devtools.build.lib.util.VarInt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Writes the nodes of a Skyframe graph to a compact binary dump, and analyzes such dumps offline.
+ *
+ * <p>A dump records, for each node, its key, its edge counts, the estimated shallow size of its
+ * value (see {@link SkyFunctionStatistics}) and its version, but not the edges themselves. The
+ * analysis reads the dump as a stream, so it runs in memory proportional to the number of
+ * SkyFunctions and of nodes reported, however many nodes the graph has.
+ *
+ * <p>Format, compressed with deflate:
+ * <pre>
+ *   int32: magic token (GraphDump.MAGIC)
+ *   int32: format version (GraphDump.VERSION)
+ *   list of node records, each made of:
+ *     int32: length of the fixed part of the record, or -1 after the last record
+ *     VarInt: index of the SkyFunction of the node, in the order of first appearance
+ *     VarInt: flags (DONE, ERROR, NO_VALUE)
+ *     VarInt: number of direct deps, or 0 if the node is not done or edges are not kept
+ *     VarInt: number of reverse deps, with the same caveat
+ *     VarLong: estimated shallow size of the value in bytes, or 0 if there is no value
+ *     VarLong: version plus 1, or 0 if the node is not done or its version is not an IntVersion
+ *     UTF: name of the SkyFunction, if this is its first appearance
+ *     UTF: argument of the key, truncated to MAX_ARGUMENT_LENGTH characters
+ * </pre>
+ */
+public final class GraphDump {
+
+  static final int MAGIC = 0x536b7947;
+  static final int VERSION = 1;
+
+  private static final int MAX_ARGUMENT_LENGTH = 1000;
+  private static final int END = -1;
+
+  private static final int DONE = 1;
+  private static final int ERROR = 2;
+  private static final int NO_VALUE = 4;
+
+  /** Number of buckets of the value size histograms: one per power of two, and one for 0. */
+  private static final int HISTOGRAM_BUCKETS = 65;
+
+  private GraphDump() {}
+
+  /**
+   * Writes the given nodes to {@code stream}, and closes it.
+   *
+   * <p>Reading the values marks them as recently used, so dumping the graph keeps them from being
+   * evicted by the next {@link MemoizingEvaluator#evictColdValues}.
+   */
+  static void write(Map<SkyKey, NodeEntry> nodes, OutputStream stream) throws IOException {
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(
+        stream, new Deflater(Deflater.BEST_SPEED, false), 65536), 262144));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      Map<SkyFunctionName, Integer> functionIndices = new HashMap<>();
+      // Allocate the sink once to avoid GC.
+      ByteBuffer sink = ByteBuffer.allocate(64);
+      for (Map.Entry<SkyKey, NodeEntry> node : nodes.entrySet()) {
+        SkyKey key = node.getKey();
+        NodeEntry entry = node.getValue();
+        int flags = 0;
+        int directDeps = 0;
+        int reverseDeps = 0;
+        long valueBytes = 0;
+        long version = 0;
+        // The node may be dirtied concurrently if another command is running, in which case it is
+        // dumped with whatever state it is seen in.
+        synchronized (entry) {
+          if (entry.isDone()) {
+            flags |= DONE;
+            if (entry.getErrorInfo() != null) {
+              flags |= ERROR;
+            }
+            SkyValue value = entry.getValue();
+            if (value == null) {
+              flags |= NO_VALUE;
+            } else {
+              valueBytes = SkyFunctionStatistics.estimateShallowSize(value);
+            }
+            if (entry.keepEdges()) {
+              directDeps = Iterables.size(entry.getDirectDeps());
+              reverseDeps = Iterables.size(entry.getReverseDeps());
+            }
+            if (entry.getVersion() instanceof IntVersion) {
+              version = ((IntVersion) entry.getVersion()).getVal() + 1;
+            }
+          } else {
+            flags |= NO_VALUE;
+          }
+        }
+
+        Integer functionIndex = functionIndices.get(key.functionName());
+        boolean newFunction = functionIndex == null;
+        if (newFunction) {
+          functionIndex = functionIndices.size();
+          functionIndices.put(key.functionName(), functionIndex);
+        }
+        sink.clear();
+        VarInt.putVarInt(functionIndex, sink);
+        VarInt.putVarInt(flags, sink);
+        VarInt.putVarInt(directDeps, sink);
+        VarInt.putVarInt(reverseDeps, sink);
+        VarInt.putVarLong(valueBytes, sink);
+        VarInt.putVarLong(version, sink);
+        out.writeInt(sink.position());
+        out.write(sink.array(), 0, sink.position());
+        if (newFunction) {
+          out.writeUTF(key.functionName().toString());
+        }
+        String argument = key.argument().toString().replace('\n', '_');
+        // Note size 64k byte limitation in DataOutputStream#writeUTF().
+        out.writeUTF(argument.length() > MAX_ARGUMENT_LENGTH
+            ? argument.substring(0, MAX_ARGUMENT_LENGTH)
+            : argument);
+      }
+      out.writeInt(END);
+    } finally {
+      out.close();
+    }
+  }
+
+  /** A node read from a dump. */
+  public static final class NodeSummary {
+    private final String functionName;
+    private final String argument;
+    private final int directDeps;
+    private final int reverseDeps;
+    private final long valueBytes;
+
+    private NodeSummary(String functionName, String argument, int directDeps, int reverseDeps,
+        long valueBytes) {
+      this.functionName = functionName;
+      this.argument = argument;
+      this.directDeps = directDeps;
+      this.reverseDeps = reverseDeps;
+      this.valueBytes = valueBytes;
+    }
+
+    public String getFunctionName() {
+      return functionName;
+    }
+
+    public String getArgument() {
+      return argument;
+    }
+
+    public int getDirectDeps() {
+      return directDeps;
+    }
+
+    public int getReverseDeps() {
+      return reverseDeps;
+    }
+
+    public long getValueBytes() {
+      return valueBytes;
+    }
+
+    @Override
+    public String toString() {
+      return functionName + ":" + argument;
+    }
+  }
+
+  /** The nodes of a single SkyFunction, summed over a dump. */
+  public static final class FunctionSummary {
+    private final String functionName;
+    private long nodes;
+    private long doneNodes;
+    private long errors;
+    private long directDeps;
+    private long reverseDeps;
+    private long valueBytes;
+    private final long[] valueSizeHistogram = new long[HISTOGRAM_BUCKETS];
+    private long maxVersion;
+
+    private FunctionSummary(String functionName) {
+      this.functionName = functionName;
+    }
+
+    private void add(int flags, int directDeps, int reverseDeps, long valueBytes, long version) {
+      nodes++;
+      if ((flags & DONE) != 0) {
+        doneNodes++;
+      }
+      if ((flags & ERROR) != 0) {
+        errors++;
+      }
+      this.directDeps += directDeps;
+      this.reverseDeps += reverseDeps;
+      this.valueBytes += valueBytes;
+      if ((flags & NO_VALUE) == 0) {
+        valueSizeHistogram[64 - Long.numberOfLeadingZeros(valueBytes)]++;
+      }
+      maxVersion = Math.max(maxVersion, version);
+    }
+
+    public String getFunctionName() {
+      return functionName;
+    }
+
+    public long getNodes() {
+      return nodes;
+    }
+
+    public long getDoneNodes() {
+      return doneNodes;
+    }
+
+    public long getErrors() {
+      return errors;
+    }
+
+    /** Returns the number of edges from the nodes of this SkyFunction to their deps. */
+    public long getDirectDeps() {
+      return directDeps;
+    }
+
+    /** Returns the number of edges to the nodes of this SkyFunction from their reverse deps. */
+    public long getReverseDeps() {
+      return reverseDeps;
+    }
+
+    public long getValueBytes() {
+      return valueBytes;
+    }
+
+    /**
+     * Returns the number of values whose size is 0 at index 0, and in [2^(i-1), 2^i) bytes at
+     * index i.
+     */
+    public long[] getValueSizeHistogram() {
+      return valueSizeHistogram.clone();
+    }
+
+    /** Returns the latest version of the nodes of this SkyFunction, or -1 if it is unknown. */
+    public long getMaxVersion() {
+      return maxVersion - 1;
+    }
+  }
+
+  /** The result of {@link #analyze}. */
+  public static final class Analysis {
+    private long nodes;
+    private final Map<String, FunctionSummary> functions = new HashMap<>();
+    private final List<NodeSummary> mostDependedOn;
+    private final List<NodeSummary> largestValues;
+    private final List<NodeSummary> mostDeps;
+
+    private Analysis(List<NodeSummary> mostDependedOn, List<NodeSummary> largestValues,
+        List<NodeSummary> mostDeps) {
+      this.mostDependedOn = mostDependedOn;
+      this.largestValues = largestValues;
+      this.mostDeps = mostDeps;
+    }
+
+    public long getNodes() {
+      return nodes;
+    }
+
+    /** Returns the summaries of the SkyFunctions, those whose values are the largest first. */
+    public List<FunctionSummary> getFunctions() {
+      return BY_VALUE_BYTES.sortedCopy(functions.values());
+    }
+
+    /** Returns the nodes with the most reverse deps, those with the most first. */
+    public List<NodeSummary> getMostDependedOn() {
+      return mostDependedOn;
+    }
+
+    /** Returns the nodes with the largest values, the largest first. */
+    public List<NodeSummary> getLargestValues() {
+      return largestValues;
+    }
+
+    /** Returns the nodes with the most direct deps, those with the most first. */
+    public List<NodeSummary> getMostDeps() {
+      return mostDeps;
+    }
+
+    /** Prints the analysis, listing at most {@code limit} SkyFunctions. */
+    public void print(int limit, PrintStream out) {
+      out.println("Node count: " + nodes);
+      out.println();
+      out.println(String.format("%-32s %12s %12s %12s %12s %12s %12s %12s", "SkyFunction",
+          "nodes", "done", "errors", "deps", "rdeps", "value KB", "version"));
+      List<FunctionSummary> sortedFunctions = getFunctions();
+      for (FunctionSummary function : Iterables.limit(sortedFunctions, limit)) {
+        out.println(String.format("%-32s %12d %12d %12d %12d %12d %12d %12d",
+            function.functionName, function.nodes, function.doneNodes, function.errors,
+            function.directDeps, function.reverseDeps, function.valueBytes / 1024,
+            function.getMaxVersion()));
+      }
+
+      out.println();
+      out.println("Value sizes (bytes: count)");
+      for (FunctionSummary function : Iterables.limit(sortedFunctions, limit)) {
+        StringBuilder line = new StringBuilder(String.format("%-32s", function.functionName));
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+          if (function.valueSizeHistogram[i] > 0) {
+            line.append(String.format(" <%d: %d", 1L << Math.min(i, 62),
+                function.valueSizeHistogram[i]));
+          }
+        }
+        out.println(line);
+      }
+
+      out.println();
+      out.println("Most depended-on nodes (rdeps)");
+      for (NodeSummary node : mostDependedOn) {
+        out.println(String.format("%12d %s", node.reverseDeps, node));
+      }
+      out.println();
+      out.println("Largest values (bytes)");
+      for (NodeSummary node : largestValues) {
+        out.println(String.format("%12d %s", node.valueBytes, node));
+      }
+      out.println();
+      out.println("Nodes with the most deps (deps)");
+      for (NodeSummary node : mostDeps) {
+        out.println(String.format("%12d %s", node.directDeps, node));
+      }
+    }
+  }
+
+  private static final Ordering<FunctionSummary> BY_VALUE_BYTES =
+      new Ordering<FunctionSummary>() {
+        @Override
+        public int compare(FunctionSummary a, FunctionSummary b) {
+          return Longs.compare(b.valueBytes, a.valueBytes);
+        }
+      };
+
+  private static final Comparator<NodeSummary> BY_REVERSE_DEPS = new Comparator<NodeSummary>() {
+    @Override
+    public int compare(NodeSummary a, NodeSummary b) {
+      return Longs.compare(b.reverseDeps, a.reverseDeps);
+    }
+  };
+
+  private static final Comparator<NodeSummary> BY_VALUE_SIZE = new Comparator<NodeSummary>() {
+    @Override
+    public int compare(NodeSummary a, NodeSummary b) {
+      return Longs.compare(b.valueBytes, a.valueBytes);
+    }
+  };
+
+  private static final Comparator<NodeSummary> BY_DIRECT_DEPS = new Comparator<NodeSummary>() {
+    @Override
+    public int compare(NodeSummary a, NodeSummary b) {
+      return Longs.compare(b.directDeps, a.directDeps);
+    }
+  };
+
+  /**
+   * Analyzes the dump read from {@code stream}, reporting at most {@code limit} nodes in each list
+   * of nodes, and closes the stream.
+   *
+   * @throws IOException if the stream cannot be read or does not contain a dump
+   */
+  public static Analysis analyze(InputStream stream, int limit) throws IOException {
+    // The queues drop their greatest element, so they order the nodes the most interesting first.
+    MinMaxPriorityQueue<NodeSummary> mostDependedOn =
+        MinMaxPriorityQueue.orderedBy(BY_REVERSE_DEPS).maximumSize(limit).create();
+    MinMaxPriorityQueue<NodeSummary> largestValues =
+        MinMaxPriorityQueue.orderedBy(BY_VALUE_SIZE).maximumSize(limit).create();
+    MinMaxPriorityQueue<NodeSummary> mostDeps =
+        MinMaxPriorityQueue.orderedBy(BY_DIRECT_DEPS).maximumSize(limit).create();
+    Map<String, FunctionSummary> functions = new HashMap<>();
+    List<String> functionNames = new ArrayList<>();
+    long nodes = 0;
+
+    try (DataInputStream in = new DataInputStream(
+        new BufferedInputStream(new InflaterInputStream(stream), 65536))) {
+      if (in.readInt() != MAGIC) {
+        throw new IOException("not a Skyframe graph dump");
+      }
+      int version = in.readInt();
+      if (version != VERSION) {
+        throw new IOException("unsupported graph dump version " + version);
+      }
+      byte[] record = new byte[64];
+      int length;
+      while ((length = in.readInt()) != END) {
+        if (length < 0 || length > record.length) {
+          throw new IOException("corrupted graph dump");
+        }
+        in.readFully(record, 0, length);
+        ByteBuffer source = ByteBuffer.wrap(record, 0, length);
+        int functionIndex = VarInt.getVarInt(source);
+        int flags = VarInt.getVarInt(source);
+        int directDeps = VarInt.getVarInt(source);
+        int reverseDeps = VarInt.getVarInt(source);
+        long valueBytes = VarInt.getVarLong(source);
+        long nodeVersion = VarInt.getVarLong(source);
+        if (functionIndex == functionNames.size()) {
+          functionNames.add(in.readUTF());
+        } else if (functionIndex > functionNames.size()) {
+          throw new IOException("corrupted graph dump");
+        }
+        String functionName = functionNames.get(functionIndex);
+        String argument = in.readUTF();
+
+        nodes++;
+        FunctionSummary function = functions.get(functionName);
+        if (function == null) {
+          function = new FunctionSummary(functionName);
+          functions.put(functionName, function);
+        }
+        function.add(flags, directDeps, reverseDeps, valueBytes, nodeVersion);
+        NodeSummary node =
+            new NodeSummary(functionName, argument, directDeps, reverseDeps, valueBytes);
+        mostDependedOn.add(node);
+        largestValues.add(node);
+        mostDeps.add(node);
+      }
+    } catch (EOFException e) {
+      throw new IOException("truncated graph dump", e);
+    }
+
+    Analysis analysis = new Analysis(drain(mostDependedOn), drain(largestValues), drain(mostDeps));
+    analysis.nodes = nodes;
+    analysis.functions.putAll(functions);
+    return analysis;
+  }
+
+  private static List<NodeSummary> drain(MinMaxPriorityQueue<NodeSummary> queue) {
+    List<NodeSummary> nodes = new ArrayList<>(queue.size());
+    while (!queue.isEmpty()) {
+      nodes.add(queue.poll());
+    }
+    return nodes;
+  }
+}
@@ -136,4 +136,35 @@ public class InMemoryGraph implements ProcessableGraph {
   boolean keepsEdges() {
     return keepEdges;
   }
+
+  /**
+   * Evicts the values of the done nodes whose keys match {@code evictable} and that were not used
+   * since the last call. The nodes that were used are given a second chance: they are evicted by
+   * the next call if they are not used meanwhile. Returns the number of values evicted.
+   *
+   * <p>An evicted value is computed again by {@code recomputer} the next time it is read.
+   *
+   * <p>May be called concurrently with evaluations.
+   */
+  int evictColdValues(Predicate<SkyKey> evictable, InMemoryNodeEntry.ValueRecomputer recomputer) {
+    if (!keepEdges) {
+      // An evicted value is recomputed from the edges of its node.
+      return 0;
+    }
+    int evicted = 0;
+    for (Map.Entry<SkyKey, NodeEntry> entry : nodeMap.entrySet()) {
+      if (evictable.apply(entry.getKey())
+          && ((InMemoryNodeEntry) entry.getValue()).evictValueIfCold(entry.getKey(), recomputer)) {
+        evicted++;
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Called by {@link InMemoryMemoizingEvaluator} after each evaluation, when no nodes are being
+   * invalidated or evaluated.
+   */
+  void evaluationFinished() {
+  }
 }
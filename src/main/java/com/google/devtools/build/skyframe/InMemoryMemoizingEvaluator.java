@@ -28,6 +28,8 @@ import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.DirtyingInvali
 import com.google.devtools.build.skyframe.InvalidatingNodeVisitor.InvalidationState;
 import com.google.devtools.build.skyframe.NodeEntry.DependencyState;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -76,6 +78,10 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
   private final AtomicBoolean evaluating = new AtomicBoolean(false);
 
+  private final SkyFunctionStatistics skyFunctionStatistics = new SkyFunctionStatistics();
+
+  @Nullable private EvaluationPriority evaluationPriority = null;
+
   public InMemoryMemoizingEvaluator(
       Map<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer) {
     this(skyFunctions, differencer, null);
@@ -91,10 +97,24 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       Map<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer,
       @Nullable EvaluationProgressReceiver invalidationReceiver,
       EmittedEventState emittedEventState, boolean keepEdges) {
+    this(skyFunctions, differencer, invalidationReceiver, emittedEventState, keepEdges,
+        /*compactEdges=*/false);
+  }
+
+  /**
+   * @param compactEdges whether to store the edges of the graph as ids rather than as references
+   *     to keys, which takes much less memory but more time. See {@link CompactInMemoryGraph}.
+   *     Only meaningful if {@code keepEdges} is true.
+   */
+  public InMemoryMemoizingEvaluator(
+      Map<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer,
+      @Nullable EvaluationProgressReceiver invalidationReceiver,
+      EmittedEventState emittedEventState, boolean keepEdges, boolean compactEdges) {
     this.skyFunctions = ImmutableMap.copyOf(skyFunctions);
     this.differencer = Preconditions.checkNotNull(differencer);
     this.progressReceiver = invalidationReceiver;
-    this.graph = new InMemoryGraph(keepEdges);
+    this.graph =
+        keepEdges && compactEdges ? new CompactInMemoryGraph() : new InMemoryGraph(keepEdges);
     this.emittedEventState = emittedEventState;
     this.keepEdges = keepEdges;
   }
@@ -157,8 +177,12 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
 
       ParallelEvaluator evaluator = new ParallelEvaluator(graph, intVersion,
           skyFunctions, eventHandler, emittedEventState, keepGoing, numThreads, progressReceiver,
-          dirtyKeyTracker);
+          dirtyKeyTracker, skyFunctionStatistics.isEnabled() ? skyFunctionStatistics : null,
+          evaluationPriority);
       EvaluationResult<T> result = evaluator.eval(roots);
+      // Only once invalidation is complete: an interrupted one may leave behind nodes whose edges
+      // refer to removed nodes.
+      graph.evaluationFinished();
       return EvaluationResult.<T>builder()
           .mergeFrom(result)
           .setWalkableGraph(new DelegatingWalkableGraph(graph))
@@ -268,6 +292,22 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     return (entry == null || !entry.isDone()) ? null : entry.getErrorInfo();
   }
 
+  @Override
+  public SkyFunctionStatistics getSkyFunctionStatistics() {
+    return skyFunctionStatistics;
+  }
+
+  @Override
+  public int evictColdValues(Predicate<SkyKey> evictable) {
+    return graph.evictColdValues(evictable,
+        new EvictedValueRecomputer(skyFunctions, graph, skyFunctionStatistics));
+  }
+
+  @Override
+  public void setEvaluationPriority(@Nullable EvaluationPriority priority) {
+    this.evaluationPriority = priority;
+  }
+
   public void setGraphForTesting(InMemoryGraph graph) {
     this.graph = graph;
   }
@@ -285,6 +325,8 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
       }
       out.println("Node count: " + nodes);
       out.println("Edge count: " + edges);
+      out.println();
+      skyFunctionStatistics.print(out);
     } else {
       Function<SkyKey, String> keyFormatter =
           new Function<SkyKey, String>() {
@@ -308,6 +350,11 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
     }
   }
 
+  @Override
+  public void dumpGraph(OutputStream out) throws IOException {
+    GraphDump.write(graph.getAllValues(), out);
+  }
+
   public static final EvaluatorSupplier SUPPLIER = new EvaluatorSupplier() {
     @Override
     public MemoizingEvaluator create(
@@ -318,4 +365,16 @@ public final class InMemoryMemoizingEvaluator implements MemoizingEvaluator {
           emittedEventState, keepEdges);
     }
   };
+
+  /** Supplies evaluators whose graphs store their edges compactly. */
+  public static final EvaluatorSupplier COMPACT_SUPPLIER = new EvaluatorSupplier() {
+    @Override
+    public MemoizingEvaluator create(
+        Map<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions, Differencer differencer,
+        @Nullable EvaluationProgressReceiver invalidationReceiver,
+        EmittedEventState emittedEventState, boolean keepEdges) {
+      return new InMemoryMemoizingEvaluator(skyFunctions, differencer, invalidationReceiver,
+          emittedEventState, keepEdges, /*compactEdges=*/true);
+    }
+  };
 }
@@ -50,6 +50,35 @@ import javax.annotation.Nullable;
  */
 public class InMemoryNodeEntry implements NodeEntry {
 
+  /** Computes again the evicted values of done nodes, from the values of their direct deps. */
+  interface ValueRecomputer {
+    /**
+     * Returns the value of the done node {@code entry} of {@code key}, computed from the current
+     * values of its direct deps, or a {@link ValueWithMetadata} with the error of the computation.
+     */
+    SkyValue recompute(SkyKey key, InMemoryNodeEntry entry);
+  }
+
+  /**
+   * Stands for the value of a done node that was evicted by {@link #evictValueIfCold}, and knows
+   * how to compute it again. It is equal to no other value, so that a node that is dirtied while
+   * evicted is considered changed if it has to be rebuilt.
+   */
+  private static final class Evicted implements SkyValue {
+    private final SkyKey key;
+    private final ValueRecomputer recomputer;
+
+    private Evicted(SkyKey key, ValueRecomputer recomputer) {
+      this.key = key;
+      this.recomputer = recomputer;
+    }
+
+    @Override
+    public String toString() {
+      return "<evicted>";
+    }
+  }
+
   /** Actual data stored in this entry when it is done. */
   private SkyValue value = null;
 
@@ -82,6 +111,22 @@ public class InMemoryNodeEntry implements NodeEntry {
    */
   protected boolean reverseDepIsSingleObject = false;
 
+  /**
+   * Whether the value was used since the last call to {@link #evictValueIfCold}. This also fits in
+   * the alignment padding of the object.
+   */
+  private boolean recentlyUsed = true;
+
+  /**
+   * The kinds of invalidation that claimed this node since it was last done, as a combination of
+   * {@link #DIRTY_CLAIMED} and {@link #CHANGED_CLAIMED}. This spares invalidators from recording
+   * their visits elsewhere.
+   */
+  private byte invalidationClaims = 0;
+
+  private static final byte DIRTY_CLAIMED = 1;
+  private static final byte CHANGED_CLAIMED = 2;
+
   /**
    * During the invalidation we keep the reverse deps to be removed in this list instead of directly
    * removing them from {@code reverseDeps}. That is because removals from reverseDeps are O(N).
@@ -151,34 +196,90 @@ public class InMemoryNodeEntry implements NodeEntry {
   }
 
   @Override
-  public synchronized SkyValue getValue() {
-    Preconditions.checkState(isDone(), "no value until done. ValueEntry: %s", this);
-    return ValueWithMetadata.justValue(value);
+  public SkyValue getValue() {
+    return ValueWithMetadata.justValue(getStoredValue());
   }
 
   @Override
-  public synchronized ValueWithMetadata getValueWithMetadata() {
-    Preconditions.checkState(isDone(), "no value until done: %s", this);
-    return ValueWithMetadata.wrapWithMetadata(value);
+  public ValueWithMetadata getValueWithMetadata() {
+    return ValueWithMetadata.wrapWithMetadata(getStoredValue());
+  }
+
+  /** Returns the value stored in this done node, computing it again first if it was evicted. */
+  private SkyValue getStoredValue() {
+    Evicted evicted;
+    synchronized (this) {
+      Preconditions.checkState(isDone(), "no value until done: %s", this);
+      recentlyUsed = true;
+      if (!(value instanceof Evicted)) {
+        return value;
+      }
+      evicted = (Evicted) value;
+    }
+    return restore(evicted);
+  }
+
+  /**
+   * Computes the evicted value again and stores it back, unless another thread did so first. The
+   * recomputation reads the values of the deps of this node, so it runs without holding its lock.
+   * The node keeps its version, since the deps are equal to those the value was computed from.
+   */
+  private SkyValue restore(Evicted evicted) {
+    SkyValue restored = evicted.recomputer.recompute(evicted.key, this);
+    synchronized (this) {
+      if (value == evicted) {
+        value = restored;
+      }
+      return isDone() ? value : restored;
+    }
+  }
+  /**
+   * Evicts the value of this node if it is done, has neither an error nor events, and was not used
+   * since the last call to this method, which makes a clock sweep over the graph. The node keeps
+   * its edges and version, and {@code recomputer} computes the value again when it is next read.
+   *
+   * <p>Returns true if the value was evicted.
+   */
+  synchronized boolean evictValueIfCold(SkyKey key, ValueRecomputer recomputer) {
+    if (!isDone() || !keepEdges() || value instanceof Evicted
+        || value instanceof ValueWithMetadata) {
+      return false;
+    }
+    if (recentlyUsed) {
+      recentlyUsed = false;
+      return false;
+    }
+    value = new Evicted(key, recomputer);
+    return true;
   }
 
   @Override
-  public synchronized SkyValue toValue() {
-    if (isDone()) {
-      return getErrorInfo() == null ? getValue() : null;
-    } else if (isChanged() || isDirty()) {
-      return (buildingState.getLastBuildValue() == null)
-              ? null
-          : ValueWithMetadata.justValue(buildingState.getLastBuildValue());
+  public SkyValue toValue() {
+    Evicted evicted;
+    synchronized (this) {
+      if (isDone()) {
+        if (!(value instanceof Evicted)) {
+          return ValueWithMetadata.justValue(value);
+        }
+        evicted = (Evicted) value;
+      } else if (isChanged() || isDirty()) {
+        // The deps of a dirty node may no longer be done, so an evicted value cannot be restored.
+        SkyValue lastBuildValue = buildingState.getLastBuildValue();
+        return lastBuildValue instanceof Evicted
+            ? null
+            : ValueWithMetadata.justValue(lastBuildValue);
+      } else {
+        throw new AssertionError("Value in bad state: " + this);
+      }
     }
-    throw new AssertionError("Value in bad state: " + this);
+    return ValueWithMetadata.justValue(restore(evicted));
   }
 
   @Override
   public synchronized Iterable<SkyKey> getDirectDeps() {
     assertKeepEdges();
     Preconditions.checkState(isDone(), "no deps until done. ValueEntry: %s", this);
-    return GroupedList.<SkyKey>create(directDeps).toSet();
+    return uncompressDirectDeps(directDeps).toSet();
   }
 
   /**
@@ -188,25 +289,25 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized Iterable<Iterable<SkyKey>> getGroupedDirectDeps() {
     assertKeepEdges();
     Preconditions.checkState(isDone(), "no deps until done. ValueEntry: %s", this);
-    return GroupedList.<SkyKey>create(directDeps);
+    return uncompressDirectDeps(directDeps);
   }
 
   @Override
   @Nullable
-  public synchronized ErrorInfo getErrorInfo() {
-    Preconditions.checkState(isDone(), "no errors until done. ValueEntry: %s", this);
-    return ValueWithMetadata.getMaybeErrorInfo(value);
+  public ErrorInfo getErrorInfo() {
+    // The recomputation of an evicted value may fail.
+    return ValueWithMetadata.getMaybeErrorInfo(getStoredValue());
   }
 
   private synchronized Set<SkyKey> setStateFinishedAndReturnReverseDeps() {
     // Get reverse deps that need to be signaled.
     ImmutableSet<SkyKey> reverseDepsToSignal = buildingState.getReverseDepsToSignal();
-    REVERSE_DEPS_UTIL.consolidateReverseDepsRemovals(this);
-    REVERSE_DEPS_UTIL.addReverseDeps(this, reverseDepsToSignal);
-    this.directDeps = buildingState.getFinishedDirectDeps().compress();
+    addStoredReverseDeps(reverseDepsToSignal);
+    this.directDeps = compressDirectDeps(buildingState.getFinishedDirectDeps());
 
     // Set state of entry to done.
     buildingState = null;
+    invalidationClaims = 0;
 
     if (!keepEdges()) {
       this.directDeps = null;
@@ -238,6 +339,7 @@ public class InMemoryNodeEntry implements NodeEntry {
       this.version = version;
       this.value = value;
     }
+    recentlyUsed = true;
 
     return setStateFinishedAndReturnReverseDeps();
   }
@@ -246,12 +348,11 @@ public class InMemoryNodeEntry implements NodeEntry {
   public synchronized DependencyState addReverseDepAndCheckIfDone(SkyKey reverseDep) {
     if (reverseDep != null) {
       if (keepEdges()) {
-        REVERSE_DEPS_UTIL.consolidateReverseDepsRemovals(this);
-        REVERSE_DEPS_UTIL.maybeCheckReverseDepNotPresent(this, reverseDep);
+        checkStoredReverseDepAbsent(reverseDep);
       }
       if (isDone()) {
         if (keepEdges()) {
-          REVERSE_DEPS_UTIL.addReverseDeps(this, ImmutableList.of(reverseDep));
+          addStoredReverseDeps(ImmutableList.of(reverseDep));
         }
       } else {
         // Parent should never register itself twice in the same build.
@@ -270,7 +371,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     if (!keepEdges()) {
       return;
     }
-    REVERSE_DEPS_UTIL.removeReverseDep(this, reverseDep);
+    removeStoredReverseDep(reverseDep);
     if (!isDone()) {
       // This is currently unnecessary -- the only time we remove a reverse dep that was added this
       // build is during the clean following a build failure. In that case, this node that is not
@@ -285,7 +386,7 @@ public class InMemoryNodeEntry implements NodeEntry {
     Preconditions.checkState(isDone() || buildingState.getReverseDepsToSignal().isEmpty(),
         "Reverse deps should only be queried before the build has begun "
             + "or after the node is done %s", this);
-    return REVERSE_DEPS_UTIL.getReverseDeps(this);
+    return getStoredReverseDeps();
   }
 
   @Override
@@ -320,10 +421,10 @@ public class InMemoryNodeEntry implements NodeEntry {
       boolean isChanged) {
     assertKeepEdges();
     if (isDone()) {
-      GroupedList<SkyKey> lastDirectDeps = GroupedList.create(directDeps);
+      GroupedList<SkyKey> lastDirectDeps = uncompressDirectDeps(directDeps);
       buildingState = BuildingState.newDirtyState(isChanged, lastDirectDeps, value);
       Pair<? extends Iterable<SkyKey>, ? extends SkyValue> result =
-          Pair.of(lastDirectDeps.toSet(), value);
+          Pair.of(lastDirectDeps.toSet(), value instanceof Evicted ? null : value);
       value = null;
       directDeps = null;
       return result;
@@ -344,6 +445,16 @@ public class InMemoryNodeEntry implements NodeEntry {
     return null;
   }
 
+  @Override
+  public synchronized boolean claimForInvalidation(boolean isChanged) {
+    byte claim = isChanged ? CHANGED_CLAIMED : DIRTY_CLAIMED;
+    if ((invalidationClaims & claim) != 0) {
+      return false;
+    }
+    invalidationClaims |= claim;
+    return true;
+  }
+
   @Override
   public synchronized Set<SkyKey> markClean() {
     this.value = buildingState.getLastBuildValue();
@@ -413,24 +524,71 @@ public class InMemoryNodeEntry implements NodeEntry {
     return Objects.toStringHelper(this)  // MoreObjects is not in Guava
         .add("value", value)
         .add("version", version)
-        .add("directDeps", directDeps == null ? null : GroupedList.create(directDeps))
-        .add("reverseDeps", REVERSE_DEPS_UTIL.toString(this))
+        .add("directDeps", directDeps == null ? null : uncompressDirectDeps(directDeps))
+        .add("reverseDeps", storedReverseDepsToString())
         .add("buildingState", buildingState).toString();
   }
 
+  // The methods below manage the edges of this node that are kept once it is done: the direct deps
+  // in directDeps, and the reverse deps in reverseDeps and reverseDepsToRemove. They are called
+  // with the lock held. CompactInMemoryNodeEntry overrides them to pack the edges into arrays of
+  // node ids.
+
+  /** Returns the finished direct deps of this node in the form stored in {@code directDeps}. */
+  Object compressDirectDeps(GroupedList<SkyKey> finishedDirectDeps) {
+    return finishedDirectDeps.compress();
+  }
+
+  /** Inverse of {@link #compressDirectDeps}. */
+  GroupedList<SkyKey> uncompressDirectDeps(Object compressed) {
+    return GroupedList.create(compressed);
+  }
+
+  void addStoredReverseDeps(Collection<SkyKey> newReverseDeps) {
+    REVERSE_DEPS_UTIL.consolidateReverseDepsRemovals(this);
+    REVERSE_DEPS_UTIL.addReverseDeps(this, newReverseDeps);
+  }
+
+  void checkStoredReverseDepAbsent(SkyKey reverseDep) {
+    REVERSE_DEPS_UTIL.consolidateReverseDepsRemovals(this);
+    REVERSE_DEPS_UTIL.maybeCheckReverseDepNotPresent(this, reverseDep);
+  }
+
+  void removeStoredReverseDep(SkyKey reverseDep) {
+    REVERSE_DEPS_UTIL.removeReverseDep(this, reverseDep);
+  }
+
+  ImmutableSet<SkyKey> getStoredReverseDeps() {
+    return REVERSE_DEPS_UTIL.getReverseDeps(this);
+  }
+
+  String storedReverseDepsToString() {
+    return REVERSE_DEPS_UTIL.toString(this);
+  }
+
   /**
    * Do not use except in custom evaluator implementations! Added only temporarily.
    *
-   * <p>Clones a InMemoryMutableNodeEntry iff it is a done node. Otherwise it fails.
+   * <p>Clones a InMemoryMutableNodeEntry iff it is a done node. Otherwise it fails. The clone is
+   * always a plain InMemoryNodeEntry, which stores its edges as keys, even if this entry is a
+   * {@link CompactInMemoryNodeEntry}.
    */
-  public synchronized InMemoryNodeEntry cloneNodeEntry() {
+  public InMemoryNodeEntry cloneNodeEntry() {
+    // An evicted value is restored first, so that the clone does not share its recomputation.
+    SkyValue storedValue = getStoredValue();
+    synchronized (this) {
+      return cloneDoneNodeEntry(storedValue);
+    }
+  }
+
+  private InMemoryNodeEntry cloneDoneNodeEntry(SkyValue storedValue) {
     // As this is temporary, for now lets limit to done nodes
     Preconditions.checkState(isDone(), "Only done nodes can be copied");
     InMemoryNodeEntry nodeEntry = new InMemoryNodeEntry();
-    nodeEntry.value = value;
+    nodeEntry.value = value instanceof Evicted ? storedValue : value;
     nodeEntry.version = this.version;
-    REVERSE_DEPS_UTIL.addReverseDeps(nodeEntry, REVERSE_DEPS_UTIL.getReverseDeps(this));
-    nodeEntry.directDeps = directDeps;
+    REVERSE_DEPS_UTIL.addReverseDeps(nodeEntry, getStoredReverseDeps());
+    nodeEntry.directDeps = nodeEntry.compressDirectDeps(uncompressDirectDeps(directDeps));
     nodeEntry.buildingState = null;
     return nodeEntry;
   }
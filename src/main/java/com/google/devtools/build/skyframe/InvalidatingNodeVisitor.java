@@ -19,11 +19,14 @@ import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.util.Pair;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -135,6 +138,8 @@ public abstract class InvalidatingNodeVisitor extends AbstractQueueVisitor {
   static class InvalidationState {
     private final Set<Pair<SkyKey, InvalidationType>> pendingValues = Sets.newConcurrentHashSet();
     private final InvalidationType defaultUpdateType;
+    /** Whether an invalidation started from {@link #pendingValues} and did not complete. */
+    private boolean incomplete = false;
 
     private InvalidationState(InvalidationType defaultUpdateType) {
       this.defaultUpdateType = Preconditions.checkNotNull(defaultUpdateType);
@@ -248,21 +253,101 @@ public abstract class InvalidatingNodeVisitor extends AbstractQueueVisitor {
 
   /**
    * A node-dirtying implementation.
+   *
+   * <p>Nodes are dirtied in chunks: each task dirties a chunk of nodes, and gathers the reverse
+   * deps of the nodes it dirtied into new chunks, which it enqueues once they are full or once it
+   * is done. Each node records which kinds of invalidation claimed it (see
+   * {@link NodeEntry#claimForInvalidation}), so a node is only dirtied once, and only the first
+   * thread to dirty it visits its reverse deps. Propagation stops at the nodes that are already
+   * dirty, whose reverse deps are dirty too; whether the value of a dirty node actually changed is
+   * only known when it is re-evaluated, which prunes the re-evaluation of its parents if it did
+   * not.
+   *
+   * <p>Only the nodes the invalidation started from are kept in {@link #pendingVisitations}, until
+   * it completes. If it is interrupted, the next invalidation starts again from them, but also
+   * visits the reverse deps of the nodes that are already dirty, since some of those may not have
+   * been dirtied yet.
    */
   static class DirtyingNodeVisitor extends InvalidatingNodeVisitor {
 
-    private final Set<Pair<SkyKey, InvalidationType>> visited = Sets.newConcurrentHashSet();
+    /** The most nodes a task dirties. */
+    private static final int CHUNK_SIZE = 256;
+
+    private final InvalidationState state;
+    /**
+     * The nodes visited so far, if this invalidation resumes an interrupted one, or null. Nodes
+     * that are already dirty must then be visited once each too, so they cannot be told apart by
+     * their claims.
+     */
+    @Nullable private Set<SkyKey> resumeVisited;
 
     protected DirtyingNodeVisitor(DirtiableGraph graph,
         EvaluationProgressReceiver invalidationReceiver, InvalidationState state,
         DirtyKeyTracker dirtyKeyTracker) {
       super(graph, invalidationReceiver, state, dirtyKeyTracker);
+      this.state = state;
+    }
+
+    @Override
+    void run() throws InterruptedException {
+      if (state.incomplete) {
+        resumeVisited = Sets.newConcurrentHashSet();
+      }
+      state.incomplete = true;
+      List<SkyKey> changed = new ArrayList<>();
+      List<SkyKey> dirtied = new ArrayList<>();
+      for (Pair<SkyKey, InvalidationType> visitData : pendingVisitations) {
+        Preconditions.checkState(visitData.second != InvalidationType.DELETED, visitData);
+        (visitData.second == InvalidationType.CHANGED ? changed : dirtied).add(visitData.first);
+      }
+      // The caller may have specified non-existent SkyKeys, or there may be stale SkyKeys in
+      // pendingVisitations that have already been deleted. In both these cases, the nodes will not
+      // exist in the graph, so we must be tolerant of that case.
+      for (List<SkyKey> chunk : Lists.partition(changed, rootChunkSize(changed.size()))) {
+        enqueueChunk(chunk, InvalidationType.CHANGED, !MUST_EXIST);
+      }
+      for (List<SkyKey> chunk : Lists.partition(dirtied, rootChunkSize(dirtied.size()))) {
+        enqueueChunk(chunk, InvalidationType.DIRTIED, !MUST_EXIST);
+      }
+      work(/*failFastOnInterrupt=*/true);
+      pendingVisitations.clear();
+      state.incomplete = false;
+    }
+
+    /** Splits the nodes the invalidation starts from among all threads, if there are few. */
+    private static int rootChunkSize(int roots) {
+      return Math.max(1, Math.min(CHUNK_SIZE,
+          (roots + DEFAULT_THREAD_COUNT - 1) / DEFAULT_THREAD_COUNT));
+    }
+
+    @Override
+    @ThreadSafe
+    public void visit(SkyKey key, InvalidationType invalidationType, boolean mustExist) {
+      Preconditions.checkState(invalidationType != InvalidationType.DELETED, key);
+      enqueueChunk(ImmutableList.of(key), invalidationType, mustExist);
+    }
+
+    private void enqueueChunk(final List<SkyKey> keys, final InvalidationType invalidationType,
+        final boolean mustExist) {
+      enqueue(new Runnable() {
+        @Override
+        public void run() {
+          List<SkyKey> reverseDeps = new ArrayList<>(CHUNK_SIZE);
+          for (SkyKey key : keys) {
+            reverseDeps = dirty(key, invalidationType == InvalidationType.CHANGED, mustExist,
+                reverseDeps);
+          }
+          if (!reverseDeps.isEmpty()) {
+            enqueueChunk(reverseDeps, InvalidationType.DIRTIED, MUST_EXIST);
+          }
+        }
+      });
     }
 
     /**
-     * Queues a task to dirty the node named by {@code key}. May be called from multiple threads.
-     * It is possible that the same node is enqueued many times. However, we require that a node
-     * is only actually marked dirty/changed once, with two exceptions:
+     * Dirties the node named by {@code key}, unless it was already claimed by an invalidation of
+     * the same kind. It is possible that the same node is visited many times. However, we require
+     * that a node is only actually marked dirty/changed once, with two exceptions:
      *
      * (1) If a node is marked dirty, it can subsequently be marked changed. This can occur if, for
      * instance, FileValue workspace/foo/foo.cc is marked dirty because FileValue workspace/foo is
@@ -276,75 +361,75 @@ public abstract class InvalidatingNodeVisitor extends AbstractQueueVisitor {
      * {@link NodeEntry} ignores the second marking.
      *
      * The invariant that we do not process a (SkyKey, InvalidationType) pair twice is enforced by
-     * the {@link #visited} set.
+     * the claims of the node, which are reset when it is done again.
      *
      * The "invariant" is also enforced across builds by checking to see if the entry is already
      * marked changed, or if it is already marked dirty and we are just going to mark it dirty
      * again.
      *
-     * If either of the above tests shows that we have already started a task to mark this entry
-     * dirty/changed, or that it is already marked dirty/changed, we do not continue this task.
+     * <p>Adds the reverse deps of the node to {@code reverseDeps} if this thread dirtied it,
+     * enqueueing them and returning a new list whenever it is full.
      */
-    @Override
-    @ThreadSafe
-    public void visit(final SkyKey key, final InvalidationType invalidationType,
-        final boolean mustExist) {
-      Preconditions.checkState(invalidationType != InvalidationType.DELETED, key);
-      final boolean isChanged = (invalidationType == InvalidationType.CHANGED);
-      final Pair<SkyKey, InvalidationType> invalidationPair = Pair.of(key, invalidationType);
-      if (!visited.add(invalidationPair)) {
-        return;
+    private List<SkyKey> dirty(SkyKey key, boolean isChanged, boolean mustExist,
+        List<SkyKey> reverseDeps) {
+      NodeEntry entry = graph.get(key);
+      if (entry == null) {
+        Preconditions.checkState(!mustExist,
+            "%s does not exist in the graph but was enqueued for dirtying by another node", key);
+        return reverseDeps;
+      }
+      if (resumeVisited != null && entry.isDirty()) {
+        // This node may have been dirtied by the interrupted invalidation before its reverse deps.
+        if (isChanged && !entry.isChanged() && entry.claimForInvalidation(/*isChanged=*/true)) {
+          Preconditions.checkState(entry.markDirty(/*isChanged=*/true) == null, "%s %s", key,
+              entry);
+        }
+        return resumeVisited.add(key) ? addReverseDeps(entry, reverseDeps) : reverseDeps;
+      }
+      if (!entry.claimForInvalidation(isChanged)
+          || entry.isChanged() || (!isChanged && entry.isDirty())) {
+        // If this node is already marked changed, or we are only marking this node dirty, and
+        // it already is, move along.
+        return reverseDeps;
       }
-      pendingVisitations.add(invalidationPair);
-      enqueue(new Runnable() {
-        @Override
-        public void run() {
-          NodeEntry entry = graph.get(key);
-
-          if (entry == null) {
-            Preconditions.checkState(!mustExist,
-                "%s does not exist in the graph but was enqueued for dirtying by another node",
-                key);
-            pendingVisitations.remove(invalidationPair);
-            return;
-          }
-
-          if (entry.isChanged() || (!isChanged && entry.isDirty())) {
-            // If this node is already marked changed, or we are only marking this node dirty, and
-            // it already is, move along.
-            pendingVisitations.remove(invalidationPair);
-            return;
-          }
 
-          // This entry remains in the graph in this dirty state until it is re-evaluated.
-          Pair<? extends Iterable<SkyKey>, ? extends SkyValue> depsAndValue =
-              entry.markDirty(isChanged);
-          // It is not safe to interrupt the logic from this point until the end of the method.
-          // Any exception thrown should be unrecoverable.
-          if (depsAndValue == null) {
-            // Another thread has already dirtied this node. Don't do anything in this thread.
-            pendingVisitations.remove(invalidationPair);
-            return;
-          }
-          // Propagate dirtiness upwards and mark this node dirty/changed. Reverse deps should only
-          // be marked dirty (because only a dependency of theirs has changed).
-          for (SkyKey reverseDep : entry.getReverseDeps()) {
-            visit(reverseDep, InvalidationType.DIRTIED, MUST_EXIST);
-          }
+      // This entry remains in the graph in this dirty state until it is re-evaluated.
+      Pair<? extends Iterable<SkyKey>, ? extends SkyValue> depsAndValue =
+          entry.markDirty(isChanged);
+      // It is not safe to interrupt the logic from this point until the end of the method.
+      // Any exception thrown should be unrecoverable.
+      if (depsAndValue == null) {
+        // Another thread has already dirtied this node. Don't do anything in this thread.
+        return reverseDeps;
+      }
+      if (resumeVisited != null) {
+        resumeVisited.add(key);
+      }
+      // Propagate dirtiness upwards and mark this node dirty/changed. Reverse deps should only
+      // be marked dirty (because only a dependency of theirs has changed).
+      reverseDeps = addReverseDeps(entry, reverseDeps);
+
+      // Remove this node as a reverse dep from its children, since we have reset it and it no
+      // longer lists its children as direct deps.
+      for (SkyKey dep : depsAndValue.first) {
+        graph.get(dep).removeReverseDep(key);
+      }
 
-          // Remove this node as a reverse dep from its children, since we have reset it and it no
-          // longer lists its children as direct deps.
-          for (SkyKey dep : depsAndValue.first) {
-            graph.get(dep).removeReverseDep(key);
-          }
+      SkyValue value = ValueWithMetadata.justValue(depsAndValue.second);
+      informInvalidationReceiver(value, EvaluationProgressReceiver.InvalidationState.DIRTY);
+      dirtyKeyTracker.dirty(key);
+      return reverseDeps;
+    }
 
-          SkyValue value = ValueWithMetadata.justValue(depsAndValue.second);
-          informInvalidationReceiver(value, EvaluationProgressReceiver.InvalidationState.DIRTY);
-          dirtyKeyTracker.dirty(key);
-          // Remove the node from the set as the last operation.
-          pendingVisitations.remove(invalidationPair);
+    private List<SkyKey> addReverseDeps(NodeEntry entry, List<SkyKey> reverseDeps) {
+      for (SkyKey reverseDep : entry.getReverseDeps()) {
+        if (reverseDeps.size() == CHUNK_SIZE) {
+          enqueueChunk(reverseDeps, InvalidationType.DIRTIED, MUST_EXIST);
+          reverseDeps = new ArrayList<>(CHUNK_SIZE);
         }
-      });
+        reverseDeps.add(reverseDep);
+      }
+      return reverseDeps;
     }
   }
 }
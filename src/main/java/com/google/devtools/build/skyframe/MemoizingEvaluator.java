@@ -17,8 +17,11 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Predicate;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadHostile;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.EventHandler;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintStream;
 import java.util.Map;
 
@@ -117,6 +120,34 @@ public interface MemoizingEvaluator {
   @Nullable
   ErrorInfo getExistingErrorForTesting(SkyKey key);
 
+  /**
+   * Returns the counts of the calls of the {@link SkyFunction}s by all evaluations so far that ran
+   * while the statistics were enabled. They may be read while an evaluation is running.
+   */
+  @ThreadSafe
+  SkyFunctionStatistics getSkyFunctionStatistics();
+
+  /**
+   * Evicts from memory the values of the done nodes whose keys match {@code evictable} and that
+   * were not used since the last call, keeping their keys, edges and versions. An evicted value is
+   * recomputed from the deps of its node the next time it is read, by an evaluation or through any
+   * other method of this class, so only the values of {@link SkyFunction}s that compute equal
+   * values from equal deps may be evicted. Values with errors or events are never evicted.
+   *
+   * <p>The values of dirty nodes are not recomputed, since their deps may have changed, so an
+   * evicted one is null in {@link #getValues}. Returns the number of values evicted.
+   */
+  @ThreadSafe
+  int evictColdValues(Predicate<SkyKey> evictable);
+
+  /**
+   * Makes subsequent evaluations schedule the nodes in the order of {@code priority} and of the
+   * priorities inherited from their parents. Evaluations schedule nodes in the order they are
+   * requested if it is null, which is the default.
+   */
+  @ThreadHostile
+  void setEvaluationPriority(@Nullable EvaluationPriority priority);
+
   /**
    * Write the graph to the output stream. Not necessarily thread-safe. Use only for debugging
    * purposes.
@@ -124,6 +155,12 @@ public interface MemoizingEvaluator {
   @ThreadHostile
   void dump(boolean summarize, PrintStream out);
 
+  /**
+   * Writes a compact binary dump of the graph to the output stream, and closes it. See {@link
+   * GraphDump}. Use only for debugging purposes.
+   */
+  void dumpGraph(OutputStream out) throws IOException;
+
   /**
    * A supplier for creating instances of a particular evaluator implementation.
    */
@@ -229,6 +229,15 @@ public interface NodeEntry {
   @ThreadSafe
   Pair<? extends Iterable<SkyKey>, ? extends SkyValue> markDirty(boolean isChanged);
 
+  /**
+   * Records that an invalidator is about to mark this node dirty, or changed if {@code isChanged}
+   * is true. Returns false if one already did so since the node was last done, in which case the
+   * caller should leave the node alone, since another thread is dealing with it or has already
+   * dealt with it.
+   */
+  @ThreadSafe
+  boolean claimForInvalidation(boolean isChanged);
+
   /**
    * Marks this entry as up-to-date at this version.
    *
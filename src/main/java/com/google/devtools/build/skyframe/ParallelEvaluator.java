@@ -16,6 +16,7 @@ package com.google.devtools.build.skyframe;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.base.Supplier;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -29,6 +30,7 @@ import com.google.devtools.build.lib.collect.nestedset.NestedSet;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
 import com.google.devtools.build.lib.collect.nestedset.NestedSetVisitor;
 import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor;
+import com.google.devtools.build.lib.concurrent.AbstractQueueVisitor.PrioritizedRunnable;
 import com.google.devtools.build.lib.concurrent.ExecutorShutdownUtil;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.concurrent.ThrowableRecordingRunnableWrapper;
@@ -41,6 +43,7 @@ import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
 import com.google.devtools.build.skyframe.EvaluationProgressReceiver.EvaluationState;
 import com.google.devtools.build.skyframe.NodeEntry.DependencyState;
 import com.google.devtools.build.skyframe.Scheduler.SchedulerException;
+import com.google.devtools.build.skyframe.SkyFunction.SkyKeyComputeState;
 import com.google.devtools.build.skyframe.SkyFunctionException.ReifiedSkyFunctionException;
 
 import java.util.ArrayDeque;
@@ -55,9 +58,12 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -113,6 +119,15 @@ public final class ParallelEvaluator implements Evaluator {
   private final int threadCount;
   @Nullable private final EvaluationProgressReceiver progressReceiver;
   private final DirtyKeyTracker dirtyKeyTracker;
+  @Nullable private final SkyFunctionStatistics statistics;
+  @Nullable private final EvaluationPriority evaluationPriority;
+
+  /**
+   * The states parked by the SkyFunctions of values that are not done yet. See {@link
+   * SkyFunction.Environment#getState}.
+   */
+  private final ConcurrentMap<SkyKey, SkyKeyComputeState> computeStates =
+      new ConcurrentHashMap<>();
 
   private static final Interner<SkyKey> KEY_CANONICALIZER =  Interners.newWeakInterner();
 
@@ -123,6 +138,39 @@ public final class ParallelEvaluator implements Evaluator {
                     boolean keepGoing, int threadCount,
                     @Nullable EvaluationProgressReceiver progressReceiver,
                     DirtyKeyTracker dirtyKeyTracker) {
+    this(graph, graphVersion, skyFunctions, reporter, emittedEventState, keepGoing, threadCount,
+        progressReceiver, dirtyKeyTracker, null);
+  }
+
+  /**
+   * @param statistics if not null, where to count the calls of the {@link SkyFunction}s
+   */
+  public ParallelEvaluator(ProcessableGraph graph, Version graphVersion,
+                    ImmutableMap<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions,
+                    final EventHandler reporter,
+                    MemoizingEvaluator.EmittedEventState emittedEventState,
+                    boolean keepGoing, int threadCount,
+                    @Nullable EvaluationProgressReceiver progressReceiver,
+                    DirtyKeyTracker dirtyKeyTracker,
+                    @Nullable SkyFunctionStatistics statistics) {
+    this(graph, graphVersion, skyFunctions, reporter, emittedEventState, keepGoing, threadCount,
+        progressReceiver, dirtyKeyTracker, statistics, null);
+  }
+
+  /**
+   * @param statistics if not null, where to count the calls of the {@link SkyFunction}s
+   * @param evaluationPriority if not null, the priority of the nodes to evaluate; otherwise they
+   *     are evaluated in the order they become ready
+   */
+  public ParallelEvaluator(ProcessableGraph graph, Version graphVersion,
+                    ImmutableMap<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions,
+                    final EventHandler reporter,
+                    MemoizingEvaluator.EmittedEventState emittedEventState,
+                    boolean keepGoing, int threadCount,
+                    @Nullable EvaluationProgressReceiver progressReceiver,
+                    DirtyKeyTracker dirtyKeyTracker,
+                    @Nullable SkyFunctionStatistics statistics,
+                    @Nullable EvaluationPriority evaluationPriority) {
     this.graph = graph;
     this.skyFunctions = skyFunctions;
     this.graphVersion = graphVersion;
@@ -131,6 +179,8 @@ public final class ParallelEvaluator implements Evaluator {
     this.threadCount = threadCount;
     this.progressReceiver = progressReceiver;
     this.dirtyKeyTracker = Preconditions.checkNotNull(dirtyKeyTracker);
+    this.statistics = statistics;
+    this.evaluationPriority = evaluationPriority;
     this.replayingNestedSetEventVisitor =
         new NestedSetVisitor<>(new NestedSetEventReceiver(reporter), emittedEventState);
   }
@@ -184,6 +234,10 @@ public final class ParallelEvaluator implements Evaluator {
 
     /** The set of errors encountered while fetching children. */
     private final Collection<ErrorInfo> childErrorInfos = new LinkedHashSet<>();
+    /** Whether the SkyFunction got back the state it parked in a previous call. */
+    private boolean resumed = false;
+    /** The number of deps requested, counting a dep again each time it is requested. */
+    private int depsRequested = 0;
     private final StoredEventHandler eventHandler = new StoredEventHandler() {
       @Override
       public void handle(Event e) {
@@ -289,6 +343,7 @@ public final class ParallelEvaluator implements Evaluator {
         keys.add(KEY_CANONICALIZER.intern(depKey));
       }
       depKeys = keys;
+      depsRequested += keys.size();
       Map<SkyKey, ValueWithMetadata> values = getValuesMaybeFromError(depKeys, bubbleErrorInfo);
       ImmutableMap.Builder<SkyKey, ValueOrUntypedException> builder = ImmutableMap.builder();
       for (SkyKey depKey : depKeys) {
@@ -403,6 +458,22 @@ public final class ParallelEvaluator implements Evaluator {
       return eventHandler;
     }
 
+    @Override
+    public <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+      checkActive();
+      SkyKeyComputeState state = computeStates.get(skyKey);
+      if (state == null) {
+        state = Preconditions.checkNotNull(stateSupplier.get(), skyKey);
+        // No other thread computes this value meanwhile.
+        computeStates.put(skyKey, state);
+      } else {
+        resumed = true;
+      }
+      @SuppressWarnings("unchecked")
+      T result = (T) state;
+      return result;
+    }
+
     private void doneBuilding() {
       building = false;
     }
@@ -449,6 +520,7 @@ public final class ParallelEvaluator implements Evaluator {
       // versioning is implemented, this would allow evaluation at a version between
       // max(childVersions) and graphVersion to re-use this result.
       Set<SkyKey> reverseDeps = primaryEntry.setValue(valueWithMetadata, graphVersion);
+      computeStates.remove(skyKey);
       // Note that if this update didn't actually change the value entry, this version may not
       // be the graph version.
       valueVersion = primaryEntry.getVersion();
@@ -496,6 +568,13 @@ public final class ParallelEvaluator implements Evaluator {
     private AtomicBoolean preventNewEvaluations = new AtomicBoolean(false);
     private final Set<SkyKey> inflightNodes = Sets.newConcurrentHashSet();
 
+    /**
+     * The priorities of the in-flight nodes that have a positive one, so that a node keeps the
+     * priority it inherited from the nodes that requested it when it is enqueued again after its
+     * deps are done.
+     */
+    private final ConcurrentMap<SkyKey, Integer> priorities = new ConcurrentHashMap<>();
+
     private ValueVisitor(int threadCount) {
       super(/*concurrent*/true,
           threadCount,
@@ -506,6 +585,14 @@ public final class ParallelEvaluator implements Evaluator {
           "skyframe-evaluator");
     }
 
+    private ValueVisitor(ThreadPoolExecutor prioritizingPool) {
+      super(/*concurrent*/true,
+          prioritizingPool,
+          /*shutdownOnCompletion*/true,
+          /*failFastOnException*/true,
+          /*failFastOnInterrupt*/true);
+    }
+
     @Override
     protected boolean isCriticalError(Throwable e) {
       return e instanceof RuntimeException;
@@ -515,7 +602,15 @@ public final class ParallelEvaluator implements Evaluator {
       work(/*failFastOnInterrupt=*/true);
     }
 
-    public void enqueueEvaluation(final SkyKey key) {
+    public void enqueueEvaluation(SkyKey key) {
+      enqueueEvaluation(key, 0);
+    }
+
+    /**
+     * Enqueues the evaluation of {@code key}, requested by a node of priority {@code
+     * inheritedPriority}.
+     */
+    public void enqueueEvaluation(final SkyKey key, int inheritedPriority) {
       // We unconditionally add the key to the set of in-flight nodes because even if evaluation is
       // never scheduled we still want to remove the previously created NodeEntry from the graph.
       // Otherwise we would leave the graph in a weird state (wasteful garbage in the best case and
@@ -533,7 +628,22 @@ public final class ParallelEvaluator implements Evaluator {
       if (newlyEnqueued && progressReceiver != null) {
         progressReceiver.enqueueing(key);
       }
-      enqueue(new Evaluate(this, key));
+      enqueue(new Evaluate(this, key, getPriority(key, inheritedPriority)));
+    }
+
+    private int getPriority(SkyKey key, int inheritedPriority) {
+      if (evaluationPriority == null) {
+        return 0;
+      }
+      int priority = Math.max(evaluationPriority.getPriority(key), inheritedPriority);
+      Integer previousPriority = priorities.get(key);
+      if (previousPriority != null && previousPriority >= priority) {
+        return previousPriority;
+      }
+      if (priority > 0) {
+        priorities.put(key, priority);
+      }
+      return priority;
     }
 
     /**
@@ -548,6 +658,7 @@ public final class ParallelEvaluator implements Evaluator {
 
     void notifyDone(SkyKey key) {
       inflightNodes.remove(key);
+      priorities.remove(key);
     }
 
     private boolean isInflight(SkyKey key) {
@@ -558,14 +669,21 @@ public final class ParallelEvaluator implements Evaluator {
   /**
    * An action that evaluates a value.
    */
-  private class Evaluate implements Runnable {
+  private class Evaluate implements PrioritizedRunnable {
     private final ValueVisitor visitor;
     /** The name of the value to be evaluated. */
     private final SkyKey skyKey;
+    private final int priority;
 
-    private Evaluate(ValueVisitor visitor, SkyKey skyKey) {
+    private Evaluate(ValueVisitor visitor, SkyKey skyKey, int priority) {
       this.visitor = visitor;
       this.skyKey = skyKey;
+      this.priority = priority;
+    }
+
+    @Override
+    public int getPriority() {
+      return priority;
     }
 
     private void enqueueChild(SkyKey skyKey, NodeEntry entry, SkyKey child) {
@@ -584,7 +702,7 @@ public final class ParallelEvaluator implements Evaluator {
         case ADDED_DEP :
           break;
         case NEEDS_SCHEDULING :
-          visitor.enqueueEvaluation(child);
+          visitor.enqueueEvaluation(child, priority);
           break;
       }
     }
@@ -705,9 +823,12 @@ public final class ParallelEvaluator implements Evaluator {
       Preconditions.checkState(factory != null, "%s %s", functionName, state);
 
       SkyValue value = null;
+      long startNanos = statistics == null ? 0 : System.nanoTime();
+      long startCpuNanos =
+          statistics == null ? 0 : SkyFunctionStatistics.currentThreadCpuNanos();
+      long computeCpuNanos = 0;
       Profiler.instance().startTask(ProfilerTask.SKYFUNCTION, skyKey);
       try {
-        // TODO(bazel-team): count how many of these calls returns null vs. non-null
         value = factory.compute(skyKey, env);
       } catch (final SkyFunctionException builderException) {
         ReifiedSkyFunctionException reifiedBuilderException =
@@ -748,6 +869,11 @@ public final class ParallelEvaluator implements Evaluator {
       } finally {
         env.doneBuilding();
         Profiler.instance().completeTask(ProfilerTask.SKYFUNCTION);
+        if (statistics != null) {
+          computeCpuNanos = SkyFunctionStatistics.currentThreadCpuNanos() - startCpuNanos;
+          statistics.recordComputation(functionName, System.nanoTime() - startNanos,
+              computeCpuNanos, env.depsRequested, env.resumed, value);
+        }
       }
 
       GroupedListHelper<SkyKey> newDirectDeps = env.newlyRequestedDeps;
@@ -801,6 +927,10 @@ public final class ParallelEvaluator implements Evaluator {
       // TODO(bazel-team): An ill-behaved SkyFunction can throw us into an infinite loop where we
       // add more dependencies on every run. [skyframe-core]
 
+      if (statistics != null && !newDirectDeps.isEmpty()) {
+        statistics.recordRestart(functionName, computeCpuNanos);
+      }
+
       // Add all new keys to the set of known deps.
       state.addTemporaryDirectDeps(newDirectDeps);
 
@@ -976,7 +1106,11 @@ public final class ParallelEvaluator implements Evaluator {
 
     Profiler.instance().startTask(ProfilerTask.SKYFRAME_EVAL, skyKeySet);
     try {
-      return eval(skyKeySet, new ValueVisitor(threadCount));
+      return eval(skyKeySet, evaluationPriority == null
+          ? new ValueVisitor(threadCount)
+          : new ValueVisitor(new ThreadPoolExecutor(threadCount, threadCount, 1, TimeUnit.SECONDS,
+              AbstractQueueVisitor.newPrioritizedWorkQueue(),
+              new ThreadFactoryBuilder().setNameFormat("skyframe-evaluator %d").build())));
     } finally {
       Profiler.instance().completeTask(ProfilerTask.SKYFRAME_EVAL);
     }
@@ -1073,6 +1207,7 @@ public final class ParallelEvaluator implements Evaluator {
   private void cleanInflightNode(SkyKey key, NodeEntry entry) {
     Set<SkyKey> temporaryDeps = entry.getTemporaryDirectDeps();
     graph.remove(key);
+    computeStates.remove(key);
     for (SkyKey dep : temporaryDeps) {
       NodeEntry nodeEntry = graph.get(dep);
       // The direct dep might have already been cleaned from the graph.
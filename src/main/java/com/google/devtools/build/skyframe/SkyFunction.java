@@ -14,6 +14,7 @@
 package com.google.devtools.build.skyframe;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Supplier;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.EventHandler;
 
@@ -30,6 +31,10 @@ import javax.annotation.Nullable;
  * are not ready, the call will return {@code null}; in that case the implementation should just
  * return {@code null}, in which case the missing dependencies will be computed and the {@link
  * #compute} method will be started again.
+ *
+ * <p>A SkyFunction that does expensive work before requesting some of its dependencies may keep
+ * that work across such restarts in a {@link SkyKeyComputeState}; see {@link
+ * Environment#getState}.
  * */
 public interface SkyFunction {
 
@@ -66,6 +71,13 @@ public interface SkyFunction {
   @Nullable
   String extractTag(SkyKey skyKey);
 
+  /**
+   * The state of a computation of a value, kept by the evaluator from one call of {@link #compute}
+   * for the value to the next one, if the first one returned {@code null} because of missing
+   * dependencies. See {@link Environment#getState}.
+   */
+  interface SkyKeyComputeState {}
+
   /**
    * The services provided to the {@link SkyFunction} implementation by the graph implementation.
    */
@@ -209,6 +221,21 @@ public interface SkyFunction {
      */
     boolean valuesMissing();
 
+    /**
+     * Returns the state of the computation of the value being computed: the state returned by
+     * this method in the previous call of {@link #compute} for the value, if that call returned
+     * {@code null} because dependencies were missing, or else a new state from {@code
+     * stateSupplier}. The SkyFunction may store in the state any work it has done so far, so that
+     * it can resume that work rather than redo it once the missing dependencies are done.
+     *
+     * <p>The state is dropped when the value is done, and at the end of the evaluation, so it must
+     * only contain work that depends on the dependencies the SkyFunction has already requested.
+     * Implementations may also drop the state at any time, in which case the SkyFunction starts
+     * over from a new state. A SkyFunction must always call this method with the same type of
+     * state for the same value.
+     */
+    <T extends SkyKeyComputeState> T getState(Supplier<T> stateSupplier);
+
     /**
      * Returns the {@link EventHandler} that a SkyFunction should use to print any errors,
      * warnings, or progress messages during execution of {@link SkyFunction#compute}.
@@ -0,0 +1,418 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+
+/**
+ * Counts, per {@link SkyFunctionName}, the calls of {@link SkyFunction#compute} made by the
+ * evaluator, how much time they took, and how many of them were restarts: calls that returned
+ * {@code null} because dependencies were missing, and whose work, unless parked in a {@link
+ * SkyFunction.SkyKeyComputeState}, is redone by the next call.
+ *
+ * <p>The counters are updated by every call of {@link SkyFunction#compute}, so they are striped:
+ * each evaluator thread mostly updates its own cache line, and the stripes are only summed when
+ * the counters are read. Reading them while an evaluation is running gives a live view of where
+ * the evaluator spends its time.
+ *
+ * <p>A {@link MemoizingEvaluator} only counts while the statistics are {@link #setEnabled enabled}.
+ * CPU times are those of the evaluating thread, and are zero if the JVM cannot measure them. Value
+ * sizes are estimates of the shallow size of the values, that is, without the objects they refer
+ * to, assuming a 64-bit JVM with compressed references.
+ */
+@ThreadSafe
+public final class SkyFunctionStatistics {
+
+  /**
+   * A quantity counted per SkyFunction. Counts are encoded in this order, so new metrics must be
+   * added at the end.
+   */
+  public enum Metric {
+    COMPUTATIONS("computations"),
+    RESTARTS("restarts"),
+    RESUMPTIONS("resumed"),
+    WALL_NANOS("wall ms"),
+    CPU_NANOS("cpu ms"),
+    RESTART_CPU_NANOS("wasted ms"),
+    DEPS_REQUESTED("deps"),
+    VALUES("values"),
+    VALUE_BYTES("value KB"),
+    RECOMPUTATIONS("recomputed");
+
+    private final String header;
+
+    private Metric(String header) {
+      this.header = header;
+    }
+
+    /** Returns the given count in the unit of the header of the metric. */
+    private long inDisplayUnit(long count) {
+      switch (this) {
+        case WALL_NANOS:
+        case CPU_NANOS:
+        case RESTART_CPU_NANOS:
+          return TimeUnit.NANOSECONDS.toMillis(count);
+        case VALUE_BYTES:
+          return count / 1024;
+        default:
+          return count;
+      }
+    }
+  }
+
+  private static final Metric[] METRICS = Metric.values();
+
+  /** The counts of a single {@link SkyFunction} at some point in time. */
+  @Immutable
+  public static final class Counters {
+    private final long[] counts;
+
+    private Counters(long[] counts) {
+      this.counts = counts;
+    }
+
+    public long get(Metric metric) {
+      return counts[metric.ordinal()];
+    }
+
+    /** Returns the number of calls of {@link SkyFunction#compute}. */
+    public long getComputations() {
+      return get(Metric.COMPUTATIONS);
+    }
+
+    /** Returns the number of calls that returned {@code null} because of missing dependencies. */
+    public long getRestarts() {
+      return get(Metric.RESTARTS);
+    }
+
+    /** Returns the number of calls that resumed from the state parked by a previous call. */
+    public long getResumptions() {
+      return get(Metric.RESUMPTIONS);
+    }
+
+    /** Returns the wall time spent in all calls of {@link SkyFunction#compute}. */
+    public long getWallNanos() {
+      return get(Metric.WALL_NANOS);
+    }
+
+    /** Returns the CPU time spent in all calls of {@link SkyFunction#compute}. */
+    public long getCpuNanos() {
+      return get(Metric.CPU_NANOS);
+    }
+
+    /**
+     * Returns the CPU time spent in calls that returned {@code null} because of missing
+     * dependencies, which is wasted unless the work is parked in a state.
+     */
+    public long getRestartCpuNanos() {
+      return get(Metric.RESTART_CPU_NANOS);
+    }
+
+    /**
+     * Returns the number of dependencies requested by all calls, counting a dependency again each
+     * time it is requested.
+     */
+    public long getDepsRequested() {
+      return get(Metric.DEPS_REQUESTED);
+    }
+
+    /** Returns the number of values computed. */
+    public long getValues() {
+      return get(Metric.VALUES);
+    }
+
+    /** Returns the estimated total shallow size of the values computed. */
+    public long getValueBytes() {
+      return get(Metric.VALUE_BYTES);
+    }
+
+    /** Returns the number of evicted values computed again. */
+    public long getRecomputations() {
+      return get(Metric.RECOMPUTATIONS);
+    }
+
+    /** Returns the counts since {@code earlier} was taken, or these counts if it is null. */
+    public Counters since(@Nullable Counters earlier) {
+      if (earlier == null) {
+        return this;
+      }
+      long[] difference = new long[counts.length];
+      for (int i = 0; i < counts.length; i++) {
+        difference[i] = counts[i] - earlier.counts[i];
+      }
+      return new Counters(difference);
+    }
+
+    /** Returns the sums of these counts and {@code other}. */
+    public Counters plus(Counters other) {
+      long[] sum = new long[counts.length];
+      for (int i = 0; i < counts.length; i++) {
+        sum[i] = counts[i] + other.counts[i];
+      }
+      return new Counters(sum);
+    }
+
+    /** Returns the counts as a comma-separated line, which {@link #decode} reads back. */
+    public String encode() {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < counts.length; i++) {
+        if (i > 0) {
+          builder.append(',');
+        }
+        builder.append(counts[i]);
+      }
+      return builder.toString();
+    }
+
+    /**
+     * Returns the counters encoded by {@link #encode}, possibly by a version with fewer metrics,
+     * whose missing counts are zero.
+     */
+    public static Counters decode(String encoded) {
+      List<String> parts = Splitter.on(',').splitToList(encoded);
+      long[] counts = new long[METRICS.length];
+      for (int i = 0; i < Math.min(parts.size(), counts.length); i++) {
+        counts[i] = Long.parseLong(parts.get(i));
+      }
+      return new Counters(counts);
+    }
+  }
+
+  /**
+   * The live counts of a single {@link SkyFunction}: a stripe of {@link #STRIDE} counts per
+   * thread hash, padded so that the stripes do not share cache lines.
+   */
+  private static final class StripedCounters {
+    private static final int STRIDE = 16;
+    /** Twice the number of processors, rounded up to a power of two, and at most 64. */
+    private static final int STRIPES = Math.min(64,
+        Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1));
+
+    static {
+      Preconditions.checkState(METRICS.length <= STRIDE);
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * STRIDE);
+
+    static int stripeOffset() {
+      // Evaluator threads have consecutive ids, which the multiplication spreads over the stripes.
+      int hash = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32);
+      return (hash & (STRIPES - 1)) * STRIDE;
+    }
+
+    /** Adds {@code delta} to the count of {@code metric} in the stripe at {@code offset}. */
+    void add(int offset, Metric metric, long delta) {
+      if (delta != 0) {
+        cells.addAndGet(offset + metric.ordinal(), delta);
+      }
+    }
+
+    Counters sum() {
+      long[] counts = new long[METRICS.length];
+      for (int stripe = 0; stripe < STRIPES; stripe++) {
+        for (int i = 0; i < counts.length; i++) {
+          counts[i] += cells.get(stripe * STRIDE + i);
+        }
+      }
+      return new Counters(counts);
+    }
+  }
+
+  private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+  private static final boolean CPU_TIME_SUPPORTED =
+      THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported();
+
+  private static final int OBJECT_HEADER_BYTES = 12;
+  private static final int ARRAY_HEADER_BYTES = 16;
+  private static final int REFERENCE_BYTES = 4;
+
+  private static final ClassValue<Long> SHALLOW_SIZES = new ClassValue<Long>() {
+    @Override
+    protected Long computeValue(Class<?> type) {
+      long size = OBJECT_HEADER_BYTES;
+      for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+        for (Field field : c.getDeclaredFields()) {
+          if (!Modifier.isStatic(field.getModifiers())) {
+            size += fieldBytes(field.getType());
+          }
+        }
+      }
+      return align(size);
+    }
+  };
+
+  private static final Ordering<Map.Entry<?, Counters>> BY_CPU_TIME = Ordering.natural()
+      .onResultOf(new Function<Map.Entry<?, Counters>, Long>() {
+        @Override
+        public Long apply(Map.Entry<?, Counters> entry) {
+          return entry.getValue().getCpuNanos();
+        }
+      });
+
+  private final ConcurrentMap<SkyFunctionName, StripedCounters> countersByFunction =
+      new ConcurrentHashMap<>();
+
+  private volatile boolean enabled = false;
+
+  /** Returns the CPU time of the current thread, for use with {@link #recordComputation}. */
+  static long currentThreadCpuNanos() {
+    return CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : 0;
+  }
+
+  private static long fieldBytes(Class<?> type) {
+    if (type == long.class || type == double.class) {
+      return 8;
+    } else if (type == int.class || type == float.class) {
+      return 4;
+    } else if (type == short.class || type == char.class) {
+      return 2;
+    } else if (type == byte.class || type == boolean.class) {
+      return 1;
+    } else {
+      return REFERENCE_BYTES;
+    }
+  }
+
+  private static long align(long size) {
+    return (size + 7) & ~7L;
+  }
+
+  /** Returns an estimate of the shallow size of the given object. */
+  static long estimateShallowSize(Object object) {
+    Class<?> type = object.getClass();
+    if (type.isArray()) {
+      return align(
+          ARRAY_HEADER_BYTES + fieldBytes(type.getComponentType()) * Array.getLength(object));
+    }
+    return SHALLOW_SIZES.get(type);
+  }
+
+  private StripedCounters getStripedCounters(SkyFunctionName functionName) {
+    StripedCounters counters = countersByFunction.get(functionName);
+    if (counters == null) {
+      StripedCounters newCounters = new StripedCounters();
+      counters = countersByFunction.putIfAbsent(functionName, newCounters);
+      if (counters == null) {
+        counters = newCounters;
+      }
+    }
+    return counters;
+  }
+
+  /**
+   * Records a call of {@link SkyFunction#compute}.
+   *
+   * @param value the value computed, or null if the call did not compute one
+   */
+  void recordComputation(SkyFunctionName functionName, long wallNanos, long cpuNanos,
+      int depsRequested, boolean resumed, @Nullable SkyValue value) {
+    StripedCounters counters = getStripedCounters(functionName);
+    int offset = StripedCounters.stripeOffset();
+    counters.add(offset, Metric.COMPUTATIONS, 1);
+    counters.add(offset, Metric.RESUMPTIONS, resumed ? 1 : 0);
+    counters.add(offset, Metric.WALL_NANOS, wallNanos);
+    counters.add(offset, Metric.CPU_NANOS, cpuNanos);
+    counters.add(offset, Metric.DEPS_REQUESTED, depsRequested);
+    if (value != null) {
+      counters.add(offset, Metric.VALUES, 1);
+      counters.add(offset, Metric.VALUE_BYTES, estimateShallowSize(value));
+    }
+  }
+
+  /** Records the recomputation of an evicted value. */
+  void recordRecomputation(SkyFunctionName functionName) {
+    getStripedCounters(functionName).add(
+        StripedCounters.stripeOffset(), Metric.RECOMPUTATIONS, 1);
+  }
+
+  void recordRestart(SkyFunctionName functionName, long cpuNanos) {
+    StripedCounters counters = getStripedCounters(functionName);
+    int offset = StripedCounters.stripeOffset();
+    counters.add(offset, Metric.RESTARTS, 1);
+    counters.add(offset, Metric.RESTART_CPU_NANOS, cpuNanos);
+  }
+
+  /** Returns the current counts of the SkyFunctions that were called at least once. */
+  public ImmutableMap<SkyFunctionName, Counters> getCounters() {
+    ImmutableMap.Builder<SkyFunctionName, Counters> builder = ImmutableMap.builder();
+    for (Map.Entry<SkyFunctionName, StripedCounters> entry : countersByFunction.entrySet()) {
+      builder.put(entry.getKey(), entry.getValue().sum());
+    }
+    return builder.build();
+  }
+
+  public void clear() {
+    countersByFunction.clear();
+  }
+
+  /**
+   * Sets whether evaluations count the calls of their SkyFunctions. This is off by default, since
+   * measuring the CPU time of each call costs two system calls. Takes effect from the next
+   * evaluation on.
+   */
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Prints a line per SkyFunction, the ones that took the most CPU time first.
+   */
+  public void print(PrintStream out) {
+    printTable(getCounters(), Integer.MAX_VALUE, out);
+  }
+
+  /**
+   * Prints a line for each of the {@code limit} SkyFunctions of {@code counters} that took the
+   * most CPU time, those first.
+   */
+  public static void printTable(Map<?, Counters> counters, int limit, PrintStream out) {
+    StringBuilder line = new StringBuilder(String.format("%-32s", "SkyFunction"));
+    for (Metric metric : METRICS) {
+      line.append(String.format(" %12s", metric.header));
+    }
+    out.println(line);
+    for (Map.Entry<?, Counters> entry : BY_CPU_TIME.reverse().leastOf(counters.entrySet(), limit)) {
+      line = new StringBuilder(String.format("%-32s", entry.getKey()));
+      for (Metric metric : METRICS) {
+        line.append(String.format(" %12d", metric.inDisplayUnit(entry.getValue().get(metric))));
+      }
+      out.println(line);
+    }
+  }
+}
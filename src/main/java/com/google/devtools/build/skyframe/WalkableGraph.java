@@ -16,6 +16,7 @@ package com.google.devtools.build.skyframe;
 import com.google.devtools.build.lib.events.EventHandler;
 
 import java.util.Collection;
+import java.util.Map;
 
 import javax.annotation.Nullable;
 
@@ -45,6 +46,14 @@ public interface WalkableGraph {
    */
   @Nullable Exception getException(SkyKey key);
 
+  /**
+   * Returns a map giving the values of the given keys for done keys that were successfully
+   * computed. In other words, it filters out non-existent nodes and nodes that produced an
+   * exception. Implementations may fetch all the nodes in a single batch, so callers should prefer
+   * this over repeated calls to {@link #getValue} when looking up many keys.
+   */
+  Map<SkyKey, SkyValue> getSuccessfulValues(Iterable<SkyKey> keys);
+
   /**
    * Returns the direct dependencies of the node with the given key. A node with this key must exist
    * in the graph.
@@ -57,6 +66,18 @@ public interface WalkableGraph {
    */
   Iterable<SkyKey> getReverseDeps(SkyKey key);
 
+  /**
+   * Returns a map giving the direct dependencies of the nodes with the given keys. Nodes with these
+   * keys must exist in the graph. Nodes are fetched as a single batch where possible.
+   */
+  Map<SkyKey, Iterable<SkyKey>> getDirectDeps(Iterable<SkyKey> keys);
+
+  /**
+   * Returns a map giving the reverse dependencies of the nodes with the given keys. Nodes with
+   * these keys must exist in the graph. Nodes are fetched as a single batch where possible.
+   */
+  Map<SkyKey, Iterable<SkyKey>> getReverseDeps(Iterable<SkyKey> keys);
+
   /** Provides a WalkableGraph on demand after preparing it. */
   interface WalkableGraphFactory {
     WalkableGraph prepareAndGet(Collection<String> roots, int numThreads,
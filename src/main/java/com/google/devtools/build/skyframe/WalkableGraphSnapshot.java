@@ -0,0 +1,186 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ListMultimap;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.Nullable;
+
+/**
+ * {@link WalkableGraph} that holds a copy of the done nodes reachable from some roots of another
+ * graph, as they were when the copy was taken. Edges to nodes outside of the copy are dropped, so
+ * the reverse deps of a node are only those of its dependents that are reachable from the roots.
+ *
+ * <p>Since it never changes, a snapshot can be read while the graph it was taken from is being
+ * evaluated.
+ */
+@Immutable
+@ThreadSafe
+public final class WalkableGraphSnapshot implements WalkableGraph {
+
+  private final ImmutableMap<SkyKey, Node> nodes;
+
+  private WalkableGraphSnapshot(ImmutableMap<SkyKey, Node> nodes) {
+    this.nodes = nodes;
+  }
+
+  /**
+   * Copies the done nodes of {@code graph} that are reachable from those of {@code roots} that
+   * exist in it. The graph must not be modified while it is being copied.
+   */
+  public static WalkableGraphSnapshot copyOf(WalkableGraph graph, Iterable<SkyKey> roots) {
+    Map<SkyKey, Iterable<SkyKey>> directDeps = new LinkedHashMap<>();
+    Set<SkyKey> frontier = existingKeys(graph, roots);
+    while (!frontier.isEmpty()) {
+      Map<SkyKey, Iterable<SkyKey>> frontierDeps = graph.getDirectDeps(frontier);
+      directDeps.putAll(frontierDeps);
+      Set<SkyKey> next = new LinkedHashSet<>();
+      for (Iterable<SkyKey> deps : frontierDeps.values()) {
+        for (SkyKey dep : deps) {
+          if (!directDeps.containsKey(dep)) {
+            next.add(dep);
+          }
+        }
+      }
+      frontier = existingKeys(graph, next);
+    }
+
+    ListMultimap<SkyKey, SkyKey> reverseDeps = ArrayListMultimap.create();
+    for (Map.Entry<SkyKey, Iterable<SkyKey>> entry : directDeps.entrySet()) {
+      for (SkyKey dep : entry.getValue()) {
+        if (directDeps.containsKey(dep)) {
+          reverseDeps.put(dep, entry.getKey());
+        }
+      }
+    }
+
+    Map<SkyKey, SkyValue> values = graph.getSuccessfulValues(directDeps.keySet());
+    ImmutableMap.Builder<SkyKey, Node> nodes = ImmutableMap.builder();
+    for (Map.Entry<SkyKey, Iterable<SkyKey>> entry : directDeps.entrySet()) {
+      SkyKey key = entry.getKey();
+      SkyValue value = values.get(key);
+      ImmutableList.Builder<SkyKey> deps = ImmutableList.builder();
+      for (SkyKey dep : entry.getValue()) {
+        if (directDeps.containsKey(dep)) {
+          deps.add(dep);
+        }
+      }
+      nodes.put(key, new Node(value, value == null ? graph.getException(key) : null,
+          deps.build(), ImmutableList.copyOf(reverseDeps.get(key))));
+    }
+    return new WalkableGraphSnapshot(nodes.build());
+  }
+
+  private static Set<SkyKey> existingKeys(WalkableGraph graph, Iterable<SkyKey> keys) {
+    Set<SkyKey> result = new LinkedHashSet<>();
+    for (SkyKey key : keys) {
+      if (graph.exists(key)) {
+        result.add(key);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the number of nodes in this snapshot. */
+  public int size() {
+    return nodes.size();
+  }
+
+  private Node getNode(SkyKey key) {
+    return Preconditions.checkNotNull(nodes.get(key), key);
+  }
+
+  @Override
+  public boolean exists(SkyKey key) {
+    return nodes.containsKey(key);
+  }
+
+  @Nullable
+  @Override
+  public SkyValue getValue(SkyKey key) {
+    return getNode(key).value;
+  }
+
+  @Nullable
+  @Override
+  public Exception getException(SkyKey key) {
+    return getNode(key).exception;
+  }
+
+  @Override
+  public Map<SkyKey, SkyValue> getSuccessfulValues(Iterable<SkyKey> keys) {
+    Map<SkyKey, SkyValue> result = new LinkedHashMap<>();
+    for (SkyKey key : keys) {
+      Node node = nodes.get(key);
+      if (node != null && node.value != null) {
+        result.put(key, node.value);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Iterable<SkyKey> getDirectDeps(SkyKey key) {
+    return getNode(key).directDeps;
+  }
+
+  @Override
+  public Iterable<SkyKey> getReverseDeps(SkyKey key) {
+    return getNode(key).reverseDeps;
+  }
+
+  @Override
+  public Map<SkyKey, Iterable<SkyKey>> getDirectDeps(Iterable<SkyKey> keys) {
+    Map<SkyKey, Iterable<SkyKey>> result = new LinkedHashMap<>();
+    for (SkyKey key : keys) {
+      result.put(key, getDirectDeps(key));
+    }
+    return result;
+  }
+
+  @Override
+  public Map<SkyKey, Iterable<SkyKey>> getReverseDeps(Iterable<SkyKey> keys) {
+    Map<SkyKey, Iterable<SkyKey>> result = new LinkedHashMap<>();
+    for (SkyKey key : keys) {
+      result.put(key, getReverseDeps(key));
+    }
+    return result;
+  }
+
+  private static final class Node {
+    @Nullable private final SkyValue value;
+    @Nullable private final Exception exception;
+    private final ImmutableList<SkyKey> directDeps;
+    private final ImmutableList<SkyKey> reverseDeps;
+
+    private Node(@Nullable SkyValue value, @Nullable Exception exception,
+        ImmutableList<SkyKey> directDeps, ImmutableList<SkyKey> reverseDeps) {
+      this.value = value;
+      this.exception = exception;
+      this.directDeps = directDeps;
+      this.reverseDeps = reverseDeps;
+    }
+  }
+}
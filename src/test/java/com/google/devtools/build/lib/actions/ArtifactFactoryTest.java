@@ -37,9 +37,16 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Tests {@link ArtifactFactory}. Also see {@link ArtifactTest} for a test
@@ -129,6 +136,47 @@ public class ArtifactFactoryTest {
     assertSame(artifactFactory.getSourceArtifact(barRelative, clientRoRoot), actual);
   }
 
+  @Test
+  public void testResolveArtifacts_noPackageRootResolver() throws Exception {
+    Artifact foo = artifactFactory.getSourceArtifact(fooRelative, clientRoot);
+    PathFragment barOther = barPath.getRelative("other.txt");
+    PathFragment derived = outRoot.getPath().getRelative(fooRelative).relativeTo(execRoot);
+    PathFragment unknown = new PathFragment("baz/baz.txt");
+    Map<PathFragment, Artifact> result = artifactFactory.resolveSourceArtifacts(
+        ImmutableList.of(fooRelative, barRelative, barOther, derived, unknown));
+    assertThat(result.keySet())
+        .containsExactly(fooRelative, barRelative, barOther, derived, unknown);
+    assertSame(foo, result.get(fooRelative));
+    assertSame(artifactFactory.getSourceArtifact(barRelative, clientRoRoot),
+        result.get(barRelative));
+    assertSame(artifactFactory.getSourceArtifact(barOther, clientRoRoot), result.get(barOther));
+    assertNull(result.get(derived));
+    assertNull(result.get(unknown));
+  }
+
+  @Test
+  public void testConcurrentResolutionYieldsSameArtifact() throws Exception {
+    final CyclicBarrier barrier = new CyclicBarrier(8);
+    List<Callable<Artifact>> resolutions = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      resolutions.add(new Callable<Artifact>() {
+        @Override
+        public Artifact call() throws Exception {
+          barrier.await();
+          return artifactFactory.resolveSourceArtifact(fooRelative);
+        }
+      });
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      for (Future<Artifact> resolution : executor.invokeAll(resolutions)) {
+        assertSame(artifactFactory.getSourceArtifact(fooRelative, clientRoot), resolution.get());
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
   @Test
   public void testResolveArtifactWithUpLevelFailsCleanly() throws Exception {
     // We need a package in the root directory to make every exec path (even one with up-level
@@ -267,6 +267,20 @@ public class ArtifactTest {
     assertSame(a.getExecPath(), a.getRootRelativePath());
   }
 
+  @Test
+  public void testRootRelativePathIsSharedAcrossRoots() throws Exception {
+    Root hostRoot = Root.asDerivedRoot(execDir, scratch.dir("/exec/out/host/bin"));
+    Root targetRoot = Root.asDerivedRoot(execDir, scratch.dir("/exec/out/target/bin"));
+    PathFragment rootRelativePath = new PathFragment("pkg/lib.a");
+    Artifact host = new Artifact(rootRelativePath, hostRoot);
+    Artifact target = new Artifact(rootRelativePath, targetRoot);
+    assertSame(host.getRootRelativePath(), target.getRootRelativePath());
+    assertEquals(new PathFragment("out/host/bin/pkg/lib.a"), host.getExecPath());
+    assertEquals(new PathFragment("out/target/bin/pkg/lib.a"), target.getExecPath());
+    assertSame(host.getExecPath(), host.getExecPath());
+    assertFalse(host.isSourceArtifact());
+  }
+
   @Test
   public void testToDetailString() throws Exception {
     Artifact a = new Artifact(scratch.file("/a/b/c"), Root.asDerivedRoot(scratch.dir("/a/b")),
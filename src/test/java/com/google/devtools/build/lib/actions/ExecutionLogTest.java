@@ -0,0 +1,216 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.ExecutionLog.ActionEntry;
+import com.google.devtools.build.lib.actions.cache.Digest;
+import com.google.devtools.build.lib.actions.cache.Metadata;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
+import com.google.devtools.build.lib.actions.util.TestAction;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link ExecutionLog}.
+ */
+@RunWith(JUnit4.class)
+public class ExecutionLogTest {
+
+  /** Serves the metadata put in its map, and nothing else. */
+  private static final class FakeMetadataHandler implements MetadataHandler {
+    private final Map<Artifact, Metadata> metadata = new HashMap<>();
+
+    @Override
+    public Metadata getMetadataMaybe(Artifact artifact) {
+      return metadata.get(artifact);
+    }
+
+    @Override
+    public Metadata getMetadata(Artifact artifact) throws IOException {
+      return metadata.get(artifact);
+    }
+
+    @Override
+    public void setDigestForVirtualArtifact(Artifact artifact, Digest digest) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void injectDigest(ActionInput output, FileStatus statNoFollow, byte[] digest) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void markOmitted(ActionInput output) {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean artifactExists(Artifact artifact) {
+      return metadata.containsKey(artifact);
+    }
+
+    @Override
+    public boolean isRegularFile(Artifact artifact) {
+      return metadata.containsKey(artifact);
+    }
+
+    @Override
+    public boolean artifactOmitted(Artifact artifact) {
+      return false;
+    }
+
+    @Override
+    public boolean isInjected(Artifact artifact) {
+      return false;
+    }
+
+    @Override
+    public void discardOutputMetadata() {}
+  }
+
+  private Artifact source;
+  private Artifact header;
+  private Artifact object;
+  private Artifact binary;
+  private Action compile;
+  private Action link;
+
+  @Before
+  public void setUp() throws Exception {
+    InMemoryFileSystem fileSystem = new InMemoryFileSystem(BlazeClock.instance());
+    Path execRoot = fileSystem.getPath("/exec");
+    Root sourceRoot = Root.asSourceRoot(execRoot);
+    Root outputRoot = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+    source = new Artifact(execRoot.getRelative("pkg/a.cc"), sourceRoot);
+    header = new Artifact(execRoot.getRelative("pkg/a.h"), sourceRoot);
+    object = new Artifact(execRoot.getRelative("out/pkg/a.o"), outputRoot);
+    binary = new Artifact(execRoot.getRelative("out/pkg/a"), outputRoot);
+    compile = new TestAction(TestAction.NO_EFFECT, ImmutableSet.of(source, header),
+        ImmutableSet.of(object));
+    link = new TestAction(TestAction.NO_EFFECT, ImmutableSet.of(object),
+        ImmutableSet.of(binary));
+  }
+
+  private static Metadata digest(int value) {
+    byte[] digest = new byte[16];
+    Arrays.fill(digest, (byte) value);
+    return new Metadata(digest);
+  }
+
+  /** Logs a build in which the compile action runs if {@code reason} is not null. */
+  private ExecutionLog.Contents build(Metadata sourceMetadata, String reason) throws Exception {
+    FakeMetadataHandler metadataHandler = new FakeMetadataHandler();
+    metadataHandler.metadata.put(source, sourceMetadata);
+    metadataHandler.metadata.put(header, new Metadata(1234L));
+    metadataHandler.metadata.put(object, digest(7));
+    metadataHandler.metadata.put(binary, digest(8));
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ExecutionLog log = ExecutionLog.open(bytes);
+    if (reason == null) {
+      log.logCacheHit(compile, metadataHandler);
+    } else {
+      log.logCacheMiss(compile, reason);
+      log.logExecutionTime(compile, System.nanoTime(), TimeUnit.MILLISECONDS.toNanos(42));
+      log.logExecuted(compile, metadataHandler);
+    }
+    log.logCacheHit(link, metadataHandler);
+    log.close();
+    assertEquals(0, log.getDroppedRecords());
+    return ExecutionLog.read(new ByteArrayInputStream(bytes.toByteArray()));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    ExecutionLog.Contents contents = build(digest(1), "One of the files has changed");
+    assertTrue(contents.isComplete());
+    assertEquals(0, contents.getDroppedRecords());
+    assertEquals(2, contents.getActions().size());
+
+    ActionEntry compileEntry = contents.getActions().get(0);
+    assertEquals("Test", compileEntry.getMnemonic());
+    assertEquals(compile.getKey(), compileEntry.getKey());
+    assertTrue(compileEntry.wasExecuted());
+    assertEquals("One of the files has changed", compileEntry.getReason());
+    assertEquals(42, compileEntry.getDurationMillis());
+    assertEquals("out/pkg/a.o", compileEntry.getPrimaryOutput());
+    assertEquals(2, compileEntry.getInputs().size());
+    assertEquals("pkg/a.cc", compileEntry.getInputs().get(0).getExecPath());
+    assertEquals(digest(1), compileEntry.getInputs().get(0).getMetadata());
+    assertEquals(new Metadata(1234L), compileEntry.getInputs().get(1).getMetadata());
+
+    ActionEntry linkEntry = contents.getActions().get(1);
+    assertFalse(linkEntry.wasExecuted());
+    assertNull(linkEntry.getReason());
+    assertEquals("out/pkg/a", linkEntry.getPrimaryOutput());
+    // The output of the compile action is written once and shared by both actions.
+    assertEquals(ImmutableList.of(compileEntry.getOutputs().get(0)), linkEntry.getInputs());
+  }
+
+  @Test
+  public void testTruncatedLogIsReadUpToTheLastRecord() throws Exception {
+    FakeMetadataHandler metadataHandler = new FakeMetadataHandler();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ExecutionLog log = ExecutionLog.open(bytes);
+    log.logCacheHit(compile, metadataHandler);
+    log.close();
+    byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 6);
+
+    ExecutionLog.Contents contents = ExecutionLog.read(new ByteArrayInputStream(truncated));
+    assertFalse(contents.isComplete());
+    assertEquals(1, contents.getActions().size());
+  }
+
+  @Test
+  public void testDiff() throws Exception {
+    ExecutionLog.Contents before = build(digest(1), null);
+    ExecutionLog.Contents after = build(digest(2), "One of the files has changed");
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ExecutionLog.diff(before, after, new PrintStream(bytes, true));
+    String diff = bytes.toString();
+    assertTrue(diff, diff.contains(
+        "Test out/pkg/a.o (//null/action:owner, 42 ms): One of the files has changed"));
+    assertTrue(diff, diff.contains("input changed: pkg/a.cc"));
+    assertFalse(diff, diff.contains("pkg/a.h"));
+    assertFalse(diff, diff.contains("action key changed"));
+    assertFalse(diff, diff.contains("out/pkg/a "));
+    assertTrue(diff, diff.contains("1 of 2 actions executed in the second log, in 42 ms"));
+    assertFalse(diff, diff.contains("Warning"));
+  }
+}
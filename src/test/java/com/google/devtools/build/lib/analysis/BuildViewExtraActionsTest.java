@@ -0,0 +1,135 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.analysis;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.analysis.ExtraActionArtifactsProvider.ExtraArtifactSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.util.RegexFilter;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+import java.util.Arrays;
+
+/**
+ * Tests for the extra action artifacts that {@link BuildView} adds to the artifacts to build.
+ */
+@RunWith(JUnit4.class)
+public class BuildViewExtraActionsTest {
+
+  private final Scratch scratch = new Scratch();
+  private final BuildView.Options options = new BuildView.Options();
+
+  private Root root;
+  private Artifact libArtifact;
+  private Artifact binArtifact;
+  private Artifact testArtifact;
+  private ConfiguredTarget bin;
+  private ConfiguredTarget test;
+
+  @Before
+  public final void createTargets() throws Exception {
+    root = Root.asDerivedRoot(scratch.dir("/exec/out"));
+    libArtifact = artifact("lib.xa");
+    binArtifact = artifact("bin.xa");
+    testArtifact = artifact("test.xa");
+    ExtraArtifactSet lib = set("//pkg:lib", libArtifact);
+    // Both top-level targets depend on //pkg:lib.
+    bin = target("//pkg:bin", binArtifact, lib);
+    test = target("//other:test", testArtifact, lib);
+  }
+
+  private Artifact artifact(String name) {
+    return new Artifact(new PathFragment(name), root);
+  }
+
+  private static ExtraArtifactSet set(String label, Artifact artifact) throws Exception {
+    return ExtraArtifactSet.of(Label.parseAbsolute(label), ImmutableList.of(artifact));
+  }
+
+  private static ConfiguredTarget target(String label, Artifact artifact,
+      ExtraArtifactSet... deps) throws Exception {
+    ConfiguredTarget target = Mockito.mock(ConfiguredTarget.class);
+    when(target.getLabel()).thenReturn(Label.parseAbsolute(label));
+    when(target.getProvider(ExtraActionArtifactsProvider.class)).thenReturn(
+        new ExtraActionArtifactsProvider(ImmutableList.of(artifact),
+            NestedSetBuilder.<ExtraArtifactSet>stableOrder()
+                .addAll(Arrays.asList(deps))
+                .add(set(label, artifact))
+                .build()));
+    return target;
+  }
+
+  private ImmutableSet<Artifact> addExtraActions(ConfiguredTarget... topLevelTargets)
+      throws Exception {
+    return addExtraActions(1, topLevelTargets);
+  }
+
+  private ImmutableSet<Artifact> addExtraActions(int numJobs, ConfiguredTarget... topLevelTargets)
+      throws Exception {
+    ImmutableSet.Builder<Artifact> artifactsToBuild = ImmutableSet.builder();
+    BuildView.addExtraActionsIfRequested(options, artifactsToBuild,
+        Arrays.asList(topLevelTargets), numJobs);
+    return artifactsToBuild.build();
+  }
+
+  @Test
+  public void transitiveArtifactsAreAddedOnce() throws Exception {
+    assertThat(addExtraActions(bin, test))
+        .containsExactly(libArtifact, binArtifact, testArtifact);
+  }
+
+  @Test
+  public void topLevelOnlySkipsDependencies() throws Exception {
+    options.extraActionTopLevelOnly = true;
+    assertThat(addExtraActions(bin, test)).containsExactly(binArtifact, testArtifact);
+  }
+
+  @Test
+  public void filterIsMatchedAgainstTheLabelOfEachSet() throws Exception {
+    options.extraActionFilter =
+        new RegexFilter(ImmutableList.of("//pkg"), ImmutableList.of(":bin$"));
+    assertThat(addExtraActions(bin, test)).containsExactly(libArtifact);
+  }
+
+  @Test
+  public void shardedTopLevelTargetsAddTheSameArtifacts() throws Exception {
+    assertThat(addExtraActions(2, bin, test))
+        .containsExactly(libArtifact, binArtifact, testArtifact);
+    options.extraActionFilter =
+        new RegexFilter(ImmutableList.of("//pkg"), ImmutableList.of(":bin$"));
+    assertThat(addExtraActions(2, bin, test)).containsExactly(libArtifact);
+    options.extraActionTopLevelOnly = true;
+    options.extraActionFilter = null;
+    assertThat(addExtraActions(2, bin, test)).containsExactly(binArtifact, testArtifact);
+  }
+
+  @Test
+  public void targetsWithoutExtraActionsAddNothing() throws Exception {
+    assertThat(addExtraActions(Mockito.mock(ConfiguredTarget.class))).isEmpty();
+  }
+}
@@ -15,6 +15,7 @@ package com.google.devtools.build.lib.analysis;
 
 import static com.google.common.truth.Truth.assertThat;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.actions.Artifact;
@@ -23,8 +24,11 @@ import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.testutil.FoundationTestCase;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Test for {@link Runfiles}.
@@ -109,4 +113,36 @@ public class RunfilesTest extends FoundationTestCase {
         Maps.immutableEntry(pathBC, artifactBC));
     assertNoEvents();
   }
+
+  public void testVisitRunfilesInputsMergesRootSymlinksInPathOrder() throws Exception {
+    Root root = Root.asSourceRoot(scratch.resolve("/workspace"));
+    Artifact artifactA = new Artifact(new PathFragment("a/x.py"), root);
+    Artifact artifactB = new Artifact(new PathFragment("b"), root);
+    Artifact artifactC = new Artifact(new PathFragment("c"), root);
+    Map<PathFragment, Artifact> rootSymlinks = new HashMap<>();
+    rootSymlinks.put(new PathFragment("ws/b"), artifactC);
+    rootSymlinks.put(new PathFragment("aaa"), artifactC);
+    Runfiles runfiles = new Runfiles.Builder()
+        .setSuffix("ws")
+        .addArtifact(artifactA)
+        .addSymlink(new PathFragment("b"), artifactB)
+        .addRootSymlinks(rootSymlinks)
+        .setEmptyFilesSupplier(new Runfiles.EmptyFilesSupplier() {
+          @Override
+          public Iterable<PathFragment> getExtraPaths(Set<PathFragment> manifestPaths) {
+            return ImmutableList.of(new PathFragment("a/__init__.py"));
+          }
+        })
+        .build();
+    final List<String> entries = new ArrayList<>();
+    runfiles.visitRunfilesInputs(reporter, null, new Runfiles.RunfilesInputVisitor() {
+      @Override
+      public void visit(PathFragment path, Artifact artifact) {
+        entries.add(path + " " + (artifact == null ? "" : artifact.getRootRelativePath()));
+      }
+    });
+    assertThat(entries).containsExactly(
+        "aaa c", "ws/a/__init__.py ", "ws/a/x.py a/x.py", "ws/b c").inOrder();
+    assertContainsEvent("overwrote ws/b symlink mapping with root symlink");
+  }
 }
@@ -18,8 +18,14 @@ import static com.google.common.truth.Truth.assertThat;
 import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.util.Fingerprint;
 import com.google.devtools.build.lib.vfs.PathFragment;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class CustomCommandLineTest extends BuildViewTestCase {
   public void testAddBeforeEachPath() {
     CustomCommandLine commandLine = new CustomCommandLine.Builder()
@@ -75,4 +81,62 @@ public class CustomCommandLineTest extends BuildViewTestCase {
         .containsExactly("foo", "bar", "-X'42'", "-X'1011'", "baz")
         .inOrder();
   }
+
+  public void testVisitArguments() throws Exception {
+    CustomCommandLine commandLine = new CustomCommandLine.Builder()
+        .add("foo")
+        .addBeforeEachExecPath("-l",
+            ImmutableList.of(getSourceArtifact("pkg/util.a"), getSourceArtifact("pkg2/extra.a")))
+        .addFormatEach("-X'%s'", ImmutableList.of("42", "1011"))
+        .addJoinPaths(":", ImmutableList.of(new PathFragment("a"), new PathFragment("b")))
+        .build();
+    final List<String> arguments = new ArrayList<>();
+    commandLine.visitArguments(new CommandLine.ArgumentVisitor() {
+      @Override
+      public void visit(String argument) {
+        arguments.add(argument);
+      }
+    });
+    assertThat(arguments).containsExactlyElementsIn(commandLine.arguments()).inOrder();
+  }
+
+  private static String fingerprint(CommandLine commandLine) {
+    Fingerprint fingerprint = new Fingerprint();
+    commandLine.addToFingerprint(fingerprint);
+    return fingerprint.hexDigestAndReset();
+  }
+
+  public void testFingerprintDependsOnArguments() throws Exception {
+    NestedSet<Artifact> libraries = NestedSetBuilder.<Artifact>stableOrder()
+        .add(getSourceArtifact("pkg/util.a"))
+        .add(getSourceArtifact("pkg2/extra.a"))
+        .build();
+    NestedSet<Artifact> sameLibraries = NestedSetBuilder.<Artifact>stableOrder()
+        .add(getSourceArtifact("pkg/util.a"))
+        .add(getSourceArtifact("pkg2/extra.a"))
+        .build();
+    NestedSet<Artifact> otherLibraries = NestedSetBuilder.<Artifact>stableOrder()
+        .add(getSourceArtifact("pkg/util.a"))
+        .build();
+    String key = fingerprint(
+        new CustomCommandLine.Builder().add("foo").addBeforeEachExecPath("-l", libraries).build());
+
+    assertEquals(key, fingerprint(
+        new CustomCommandLine.Builder().add("foo").addBeforeEachExecPath("-l", libraries).build()));
+    assertEquals(key, fingerprint(new CustomCommandLine.Builder()
+        .add("foo").addBeforeEachExecPath("-l", sameLibraries).build()));
+    assertFalse(key.equals(fingerprint(new CustomCommandLine.Builder()
+        .add("foo").addBeforeEachExecPath("-l", otherLibraries).build())));
+    assertFalse(key.equals(fingerprint(new CustomCommandLine.Builder()
+        .add("foo").addBeforeEachExecPath("-L", libraries).build())));
+    assertFalse(key.equals(fingerprint(new CustomCommandLine.Builder()
+        .add("foo").addExecPaths(libraries).build())));
+    assertFalse(key.equals(fingerprint(new CustomCommandLine.Builder()
+        .add("bar").addBeforeEachExecPath("-l", libraries).build())));
+    // The same arguments, in other fragments.
+    assertFalse(fingerprint(new CustomCommandLine.Builder()
+            .addBeforeEach("-D", ImmutableList.of("A")).add("B").build())
+        .equals(fingerprint(new CustomCommandLine.Builder()
+            .addBeforeEach("-D", ImmutableList.of("A", "B")).build())));
+  }
 }
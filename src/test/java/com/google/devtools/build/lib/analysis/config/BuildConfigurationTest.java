@@ -121,6 +121,17 @@ public class BuildConfigurationTest extends ConfigurationTestCase {
     assertEquals(a.cacheKey(), b.cacheKey());
   }
 
+  public void testFragmentsSharedBetweenConfigurations() throws Exception {
+    BuildConfiguration config = create();
+    // Only the Java options differ, which the C++ configuration doesn't read.
+    BuildConfiguration otherConfig = create("--javacopt=-g");
+    assertNotSame(config, otherConfig);
+    assertSame(config.getFragment(CppConfiguration.class),
+        otherConfig.getFragment(CppConfiguration.class));
+    assertNotSame(config.getFragment(JavaConfiguration.class),
+        otherConfig.getFragment(JavaConfiguration.class));
+  }
+
   private void checkInvalidCpuError(String cpuOption, String expectedMessage) throws Exception {
     try {
       create("--" + cpuOption + "=bogus");
@@ -14,8 +14,10 @@
 package com.google.devtools.build.lib.analysis.config;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -47,4 +49,16 @@ public class BuildOptionsTest {
     BuildOptions b = BuildOptions.of(TEST_OPTIONS, options);
     assertEquals(a.toString(), b.toString());
   }
+
+  @Test
+  public void testResetToDefaults() throws Exception {
+    BuildOptions options = BuildOptions.of(TEST_OPTIONS, "--run_under=//run_under");
+    BuildOptions defaults = BuildOptions.createDefaults(TEST_OPTIONS);
+    assertFalse(options.equals(defaults));
+    assertEquals(options, options.resetToDefaults(
+        ImmutableSet.<Class<? extends FragmentOptions>>of()));
+    assertEquals(defaults, options.resetToDefaults(ImmutableSet.copyOf(TEST_OPTIONS)));
+    assertEquals(defaults.computeCacheKey(),
+        options.resetToDefaults(ImmutableSet.copyOf(TEST_OPTIONS)).computeCacheKey());
+  }
 }
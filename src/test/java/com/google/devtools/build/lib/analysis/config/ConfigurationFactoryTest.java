@@ -0,0 +1,190 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.analysis.config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.analysis.ConfigurationCollectionFactory;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration.Fragment;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.common.options.Option;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.Set;
+
+/**
+ * Tests for {@link ConfigurationFactory#trimOptions}.
+ */
+@RunWith(JUnit4.class)
+public class ConfigurationFactoryTest {
+
+  /** Options of fragment A. */
+  public static class OptionsA extends FragmentOptions {
+    @Option(name = "a", defaultValue = "default")
+    public String a;
+  }
+
+  /** Options of fragment B. */
+  public static class OptionsB extends FragmentOptions {
+    @Option(name = "b", defaultValue = "default")
+    public String b;
+  }
+
+  /** Options that both fragments B and C read. */
+  public static class SharedOptions extends FragmentOptions {
+    @Option(name = "shared", defaultValue = "default")
+    public String shared;
+  }
+
+  /** Options of the fragment that supplies Make variables. */
+  public static class MakeVariableOptions extends FragmentOptions {
+    @Option(name = "make_variable", defaultValue = "default")
+    public String makeVariable;
+  }
+
+  /** Options that no fragment factory declares. */
+  public static class UndeclaredOptions extends FragmentOptions {
+    @Option(name = "undeclared", defaultValue = "default")
+    public String undeclared;
+  }
+
+  private abstract static class FragmentA extends Fragment {}
+  private abstract static class FragmentB extends Fragment {}
+  private abstract static class FragmentC extends Fragment {}
+
+  private abstract static class MakeVariableFragment extends Fragment {
+    @Override
+    public void addGlobalMakeVariables(ImmutableMap.Builder<String, String> globalMakeEnvBuilder) {
+      globalMakeEnvBuilder.put("VARIABLE", "value");
+    }
+  }
+
+  private static final ImmutableList<Class<? extends FragmentOptions>> OPTIONS =
+      ImmutableList.<Class<? extends FragmentOptions>>of(BuildConfiguration.Options.class,
+          OptionsA.class, OptionsB.class, SharedOptions.class, MakeVariableOptions.class,
+          UndeclaredOptions.class);
+
+  private static ConfigurationFragmentFactory factory(final Class<? extends Fragment> fragment,
+      final Class<?>... requiredOptions) {
+    return new ConfigurationFragmentFactory() {
+      @Override
+      public Fragment create(ConfigurationEnvironment env, BuildOptions buildOptions) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public Class<? extends Fragment> creates() {
+        return fragment;
+      }
+
+      @SuppressWarnings("unchecked")
+      @Override
+      public ImmutableSet<Class<? extends FragmentOptions>> requiredOptions() {
+        ImmutableSet.Builder<Class<? extends FragmentOptions>> builder = ImmutableSet.builder();
+        for (Class<?> options : requiredOptions) {
+          builder.add((Class<? extends FragmentOptions>) options);
+        }
+        return builder.build();
+      }
+    };
+  }
+
+  private final ConfigurationFactory configurationFactory = new ConfigurationFactory(
+      new ConfigurationCollectionFactory() {
+        @Override
+        public BuildConfiguration createConfigurations(ConfigurationFactory configurationFactory,
+            PackageProviderForConfigurations loadedPackageProvider, BuildOptions buildOptions,
+            EventHandler errorEventListener, boolean performSanityCheck) {
+          throw new UnsupportedOperationException();
+        }
+      },
+      factory(FragmentA.class, OptionsA.class, BuildConfiguration.Options.class),
+      factory(FragmentB.class, OptionsB.class, SharedOptions.class),
+      factory(FragmentC.class, SharedOptions.class),
+      factory(MakeVariableFragment.class, MakeVariableOptions.class));
+
+  private static final String[] ARGS = {"--a=a", "--b=b", "--shared=shared",
+      "--make_variable=make_variable", "--undeclared=undeclared", "--run_under=//run_under"};
+
+  private static Set<Class<? extends Fragment>> fragments(Class<?>... fragments) {
+    ImmutableSet.Builder<Class<? extends Fragment>> builder = ImmutableSet.builder();
+    for (Class<?> fragment : fragments) {
+      builder.add(fragment.asSubclass(Fragment.class));
+    }
+    return builder.build();
+  }
+
+  @Test
+  public void optionsOfFragmentsNotRequiredAreReset() throws Exception {
+    BuildOptions options = BuildOptions.of(OPTIONS, ARGS);
+    BuildOptions trimmed = configurationFactory.trimOptions(options, fragments(FragmentA.class));
+    assertEquals("a", trimmed.get(OptionsA.class).a);
+    assertEquals("default", trimmed.get(OptionsB.class).b);
+    assertEquals("default", trimmed.get(SharedOptions.class).shared);
+    // Options that no factory declares, and the core options, may be read by anything.
+    assertEquals("undeclared", trimmed.get(UndeclaredOptions.class).undeclared);
+    assertEquals(options.get(BuildConfiguration.Options.class),
+        trimmed.get(BuildConfiguration.Options.class));
+    // The options passed in are left alone.
+    assertEquals("b", options.get(OptionsB.class).b);
+  }
+
+  @Test
+  public void optionsSharedWithARequiredFragmentAreKept() throws Exception {
+    BuildOptions options = BuildOptions.of(OPTIONS, ARGS);
+    BuildOptions trimmed = configurationFactory.trimOptions(options, fragments(FragmentC.class));
+    assertEquals("default", trimmed.get(OptionsA.class).a);
+    assertEquals("default", trimmed.get(OptionsB.class).b);
+    assertEquals("shared", trimmed.get(SharedOptions.class).shared);
+  }
+
+  @Test
+  public void optionsOfFragmentsSupplyingMakeVariablesAreKept() throws Exception {
+    assertTrue(ConfigurationFactory.isReadByEveryRule(MakeVariableFragment.class));
+    assertFalse(ConfigurationFactory.isReadByEveryRule(FragmentA.class));
+    BuildOptions options = BuildOptions.of(OPTIONS, ARGS);
+    BuildOptions trimmed = configurationFactory.trimOptions(options, fragments(FragmentA.class));
+    assertEquals("default", trimmed.get(OptionsB.class).b);
+    assertEquals("make_variable", trimmed.get(MakeVariableOptions.class).makeVariable);
+  }
+
+  @Test
+  public void optionsAreUnchangedIfAllFragmentsAreRequired() throws Exception {
+    BuildOptions options = BuildOptions.of(OPTIONS, ARGS);
+    assertSame(options, configurationFactory.trimOptions(options,
+        fragments(FragmentA.class, FragmentB.class, FragmentC.class)));
+  }
+
+  @Test
+  public void optionsOnlyDifferingInTrimmedOptionsAreEqualOnceTrimmed() throws Exception {
+    BuildOptions options = BuildOptions.of(OPTIONS, ARGS);
+    BuildOptions otherOptions = BuildOptions.of(OPTIONS, "--a=a", "--b=other", "--shared=other",
+        "--make_variable=make_variable", "--undeclared=undeclared", "--run_under=//run_under");
+    assertFalse(options.equals(otherOptions));
+    BuildOptions trimmed = configurationFactory.trimOptions(options, fragments(FragmentA.class));
+    BuildOptions otherTrimmed =
+        configurationFactory.trimOptions(otherOptions, fragments(FragmentA.class));
+    assertEquals(trimmed, otherTrimmed);
+    assertEquals(trimmed.computeCacheKey(), otherTrimmed.computeCacheKey());
+  }
+}
@@ -78,6 +78,7 @@ public abstract class ConfigurationTestCase extends FoundationTestCase {
   protected SkyframeExecutor skyframeExecutor;
   protected ConfigurationFactory configurationFactory;
   protected Path workspace;
+  protected BlazeDirectories directories;
   protected ImmutableList<Class<? extends FragmentOptions>> buildOptionClasses;
 
   @Override
@@ -88,7 +89,7 @@ public abstract class ConfigurationTestCase extends FoundationTestCase {
     ConfiguredRuleClassProvider ruleClassProvider = TestRuleClassProvider.getRuleClassProvider();
     PathPackageLocator pkgLocator = new PathPackageLocator(rootDirectory);
     final PackageFactory pkgFactory;
-    BlazeDirectories directories = new BlazeDirectories(outputBase, outputBase, rootDirectory);
+    directories = new BlazeDirectories(outputBase, outputBase, rootDirectory);
     pkgFactory = new PackageFactory(ruleClassProvider);
     AnalysisTestUtil.DummyWorkspaceStatusActionFactory workspaceStatusActionFactory =
         new AnalysisTestUtil.DummyWorkspaceStatusActionFactory(directories);
@@ -147,8 +148,7 @@ public abstract class ConfigurationTestCase extends FoundationTestCase {
     configurationFactory.forbidSanityCheck();
     BuildOptions buildOptions = BuildOptions.of(buildOptionClasses, parser);
     BuildConfigurationCollection collection = skyframeExecutor.createConfigurations(
-        configurationFactory, buildOptions, new BlazeDirectories(outputBase, outputBase, workspace),
-        multiCpu, false);
+        configurationFactory, buildOptions, directories, multiCpu, false);
     return collection;
   }
 
@@ -71,6 +71,50 @@ public class AbstractQueueVisitorTest {
     assertTrue(executor.awaitTermination(TestUtils.WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
   }
 
+  @Test
+  public void prioritizedWorkQueueRunsHighestPriorityFirst() throws Exception {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+        AbstractQueueVisitor.newPrioritizedWorkQueue());
+    ConcreteQueueVisitor visitor = new ConcreteQueueVisitor(executor, true);
+    final CountDownLatch blockerStarted = new CountDownLatch(1);
+    final CountDownLatch releaseBlocker = new CountDownLatch(1);
+    // Occupies the only thread, so that the tasks below wait in the queue together.
+    visitor.enqueue(new Runnable() {
+      @Override
+      public void run() {
+        blockerStarted.countDown();
+        Uninterruptibles.awaitUninterruptibly(releaseBlocker);
+      }
+    });
+    assertTrue(blockerStarted.await(TestUtils.WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    List<String> ran = Collections.synchronizedList(Lists.<String>newArrayList());
+    visitor.enqueue(prioritizedTask("low", 1, ran));
+    visitor.enqueue(prioritizedTask("high", 3, ran));
+    visitor.enqueue(prioritizedTask("middle", 2, ran));
+    visitor.enqueue(prioritizedTask("second high", 3, ran));
+    releaseBlocker.countDown();
+    visitor.work(false);
+    assertThat(ran).containsExactly("high", "second high", "middle", "low").inOrder();
+
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(TestUtils.WAIT_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  private static Runnable prioritizedTask(final String name, final int priority,
+      final List<String> ran) {
+    return new AbstractQueueVisitor.PrioritizedRunnable() {
+      @Override
+      public int getPriority() {
+        return priority;
+      }
+
+      @Override
+      public void run() {
+        ran.add(name);
+      }
+    };
+  }
+
   @Test
   public void doubleCounter() throws Exception {
     CountingQueueVisitor counter = new CountingQueueVisitor();
@@ -0,0 +1,94 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.graph;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for {@link Digraph}.
+ */
+@RunWith(JUnit4.class)
+public class DigraphTest {
+
+  private static List<Integer> labels(List<Node<Integer>> nodes) {
+    List<Integer> labels = new ArrayList<>();
+    for (Node<Integer> node : nodes) {
+      labels.add(node.getLabel());
+    }
+    return labels;
+  }
+
+  private static void assertSameTopologicalOrderAsExtractedSubgraph(Digraph<Integer> graph,
+      Set<Integer> subset) {
+    assertEquals(
+        labels(graph.extractSubgraph(subset).getTopologicalOrder(Ordering.<Integer>natural())),
+        labels(graph.getTopologicalOrder(subset, Ordering.<Integer>natural())));
+  }
+
+  @Test
+  public void topologicalOrderOfSubsetFollowsPathsThroughOtherNodes() {
+    Digraph<Integer> graph = new Digraph<>();
+    // 1 reaches 3 only through 4, which is visited after 2 in the whole graph but not in the
+    // subgraph.
+    graph.addEdge(1, 4);
+    graph.addEdge(4, 3);
+    graph.addEdge(1, 2);
+    graph.createNode(5);
+    Set<Integer> subset = ImmutableSet.of(1, 2, 3);
+    assertEquals(ImmutableSet.of(1, 3, 2).asList(),
+        labels(graph.getTopologicalOrder(subset, Ordering.<Integer>natural())));
+    assertSameTopologicalOrderAsExtractedSubgraph(graph, subset);
+  }
+
+  @Test
+  public void topologicalOrderOfSubsetOfRandomGraphs() {
+    Random random = new Random(42);
+    for (int i = 0; i < 100; i++) {
+      Digraph<Integer> graph = new Digraph<>();
+      int nodeCount = 1 + random.nextInt(30);
+      for (int node = 0; node < nodeCount; node++) {
+        graph.createNode(node);
+      }
+      int edgeCount = random.nextInt(3 * nodeCount);
+      for (int edge = 0; edge < edgeCount; edge++) {
+        // Edges go from lower to higher labels, so the graph is acyclic.
+        int from = random.nextInt(nodeCount);
+        int to = random.nextInt(nodeCount);
+        if (from != to) {
+          graph.addEdge(Math.min(from, to), Math.max(from, to));
+        }
+      }
+      Set<Integer> subset = new HashSet<>();
+      for (int node = 0; node < nodeCount; node++) {
+        if (random.nextBoolean()) {
+          subset.add(node);
+        }
+      }
+      assertSameTopologicalOrderAsExtractedSubgraph(graph, subset);
+    }
+  }
+}
@@ -0,0 +1,340 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Multimap;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.skyframe.PackageValue;
+import com.google.devtools.build.lib.skyframe.SkyFunctions;
+import com.google.devtools.build.lib.skyframe.TransitiveTargetValue;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.skyframe.DelegatingWalkableGraph;
+import com.google.devtools.build.skyframe.InMemoryGraph;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.IntVersion;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionException;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+import com.google.devtools.build.skyframe.WalkableGraph;
+import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
+import com.google.devtools.build.skyframe.WalkableGraphSnapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests for {@link SkyQueryEnvironment}, run against a graph whose package and transitive target
+ * values are computed by simple fake functions.
+ */
+@RunWith(JUnit4.class)
+public class SkyQueryEnvironmentTest {
+
+  /** A stand-in for a {@link TransitiveTargetValue}, which the query environment never reads. */
+  private static final SkyValue TRANSITIVE_TARGET_VALUE = new SkyValue() {};
+
+  private final Scratch scratch = new Scratch("/workspace");
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final PackageFactoryApparatus packages = new PackageFactoryApparatus(events, scratch);
+
+  private final Map<PackageIdentifier, Package> packagesById = new HashMap<>();
+  /** Packages that fail to load. */
+  private final Set<PackageIdentifier> brokenPackages = new HashSet<>();
+  /** Targets whose transitive target values do not request their packages. */
+  private final Set<Label> targetsWithoutPackages = new HashSet<>();
+  private final Multimap<Label, Label> deps = LinkedHashMultimap.create();
+  /** Run whenever the transitive target value of a label is computed. */
+  private final Map<Label, Runnable> computeHooks = new ConcurrentHashMap<>();
+
+  private final RecordingDifferencer differencer = new RecordingDifferencer();
+  private final ExecutorService executor = Executors.newCachedThreadPool();
+  private InMemoryMemoizingEvaluator evaluator;
+  private InMemoryGraph graph;
+  private int version = 0;
+  private WalkableGraph walkableGraph;
+
+  private static final class FakePackageFunctionException extends SkyFunctionException {
+    FakePackageFunctionException(BuildFileNotFoundException e) {
+      super(e, Transience.PERSISTENT);
+    }
+  }
+
+  private final SkyFunction packageFunction = new SkyFunction() {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws SkyFunctionException {
+      PackageIdentifier pkgId = (PackageIdentifier) skyKey.argument();
+      if (brokenPackages.contains(pkgId)) {
+        throw new FakePackageFunctionException(
+            new BuildFileNotFoundException(pkgId.toString(), "broken"));
+      }
+      return new PackageValue(packagesById.get(pkgId));
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  };
+
+  private final SkyFunction transitiveTargetFunction = new SkyFunction() {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) {
+      Label label = (Label) skyKey.argument();
+      Runnable hook = computeHooks.get(label);
+      if (hook != null) {
+        hook.run();
+      }
+      if (!targetsWithoutPackages.contains(label)) {
+        env.getValue(PackageValue.key(label.getPackageIdentifier()));
+      }
+      List<SkyKey> depKeys = new ArrayList<>();
+      for (Label dep : deps.get(label)) {
+        depKeys.add(TransitiveTargetValue.key(dep));
+      }
+      env.getValues(depKeys);
+      return env.valuesMissing() ? null : TRANSITIVE_TARGET_VALUE;
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  };
+
+  @Before
+  public final void createPackages() throws Exception {
+    // a depends on c before b, so the breadth-first order is not the alphabetical one.
+    addPackage("a", "//c:c", "//b:b");
+    addPackage("b", "//d:d");
+    addPackage("c", "//d:d", "//e:e");
+    addPackage("d");
+    addPackage("e");
+  }
+
+  @After
+  public final void shutDownExecutor() {
+    executor.shutdownNow();
+  }
+
+  private void addPackage(String name, String... srcs) throws Exception {
+    StringBuilder srcList = new StringBuilder();
+    for (String src : srcs) {
+      srcList.append("'").append(src).append("', ");
+      deps.put(Label.parseAbsolute("//" + name + ":" + name), Label.parseAbsolute(src));
+    }
+    Package pkg = packages.createPackage(name, scratch.file(name + "/BUILD",
+        "testing_dummy_rule(name = '" + name + "', srcs = [" + srcList + "])"));
+    packagesById.put(pkg.getPackageIdentifier(), pkg);
+  }
+
+  private void evaluate(String... labels) throws Exception {
+    if (evaluator == null) {
+      evaluator = new InMemoryMemoizingEvaluator(
+          ImmutableMap.of(SkyFunctions.PACKAGE, packageFunction,
+              SkyFunctions.TRANSITIVE_TARGET, transitiveTargetFunction),
+          differencer);
+      graph = new InMemoryGraph(/*keepEdges=*/true);
+      evaluator.setGraphForTesting(graph);
+    }
+    List<SkyKey> roots = new ArrayList<>();
+    for (String label : labels) {
+      roots.add(TransitiveTargetValue.key(Label.parseAbsolute(label)));
+    }
+    evaluator.evaluate(roots, new IntVersion(version++), /*keepGoing=*/true, 1,
+        events.reporter());
+    walkableGraph = new DelegatingWalkableGraph(graph);
+  }
+
+  private SkyQueryEnvironment createQueryEnvironment() {
+    WalkableGraphFactory graphFactory = new WalkableGraphFactory() {
+      @Override
+      public WalkableGraph prepareAndGet(Collection<String> roots, int numThreads,
+          EventHandler eventHandler) {
+        return walkableGraph;
+      }
+    };
+    return new SkyQueryEnvironment(/*keepGoing=*/true, /*strictScope=*/false,
+        /*loadingPhaseThreads=*/1, Rule.ALL_LABELS, events.reporter(),
+        ImmutableSet.<Setting>of(), ImmutableList.<QueryFunction>of(), /*parserPrefix=*/"",
+        graphFactory, ImmutableList.of("//a:a"),
+        new PathPackageLocator(scratch.resolve("/workspace")));
+  }
+
+  private Target evaluateSingleTarget(SkyQueryEnvironment env, String label) throws Exception {
+    return Iterables.getOnlyElement(
+        env.evaluateQuery(QueryExpression.parse(label, env)).getResultSet());
+  }
+
+  private static List<String> labels(Iterable<Target> targets) {
+    List<String> result = new ArrayList<>();
+    for (Target target : targets) {
+      result.add(target.getLabel().toString());
+    }
+    return result;
+  }
+
+  @Test
+  public void transitiveClosureIsInBreadthFirstOrder() throws Exception {
+    evaluate("//a:a");
+    SkyQueryEnvironment env = createQueryEnvironment();
+    Target a = evaluateSingleTarget(env, "//a:a");
+    assertThat(labels(env.getTransitiveClosure(ImmutableSet.of(a))))
+        .containsExactly("//a:a", "//c:c", "//b:b", "//d:d", "//e:e").inOrder();
+    // Computing the closure again gives the same order.
+    assertThat(labels(env.getTransitiveClosure(ImmutableSet.of(a))))
+        .containsExactly("//a:a", "//c:c", "//b:b", "//d:d", "//e:e").inOrder();
+  }
+
+  @Test
+  public void depWithoutPackageInGraphIsReported() throws Exception {
+    targetsWithoutPackages.add(Label.parseAbsolute("//e:e"));
+    evaluate("//a:a");
+    SkyQueryEnvironment env = createQueryEnvironment();
+    Target a = evaluateSingleTarget(env, "//a:a");
+    try {
+      env.getTransitiveClosure(ImmutableSet.of(a));
+      fail();
+    } catch (IllegalStateException e) {
+      assertThat(e.getMessage()).contains("//e:e] is not in the graph");
+    }
+  }
+
+  @Test
+  public void depInBrokenPackageIsOmitted() throws Exception {
+    brokenPackages.add(PackageIdentifier.createInDefaultRepo("e"));
+    evaluate("//c:c");
+    SkyQueryEnvironment env = createQueryEnvironment();
+    Target c = evaluateSingleTarget(env, "//c:c");
+    assertThat(labels(env.getTransitiveClosure(ImmutableSet.of(c))))
+        .containsExactly("//c:c", "//d:d").inOrder();
+  }
+
+  @Test
+  public void walkableGraphBatchLookups() throws Exception {
+    brokenPackages.add(PackageIdentifier.createInDefaultRepo("e"));
+    evaluate("//b:b", "//c:c");
+    SkyKey b = TransitiveTargetValue.key(Label.parseAbsolute("//b:b"));
+    SkyKey c = TransitiveTargetValue.key(Label.parseAbsolute("//c:c"));
+    SkyKey d = TransitiveTargetValue.key(Label.parseAbsolute("//d:d"));
+    SkyKey e = TransitiveTargetValue.key(Label.parseAbsolute("//e:e"));
+    SkyKey pkgB = PackageValue.key(PackageIdentifier.createInDefaultRepo("b"));
+    SkyKey pkgD = PackageValue.key(PackageIdentifier.createInDefaultRepo("d"));
+    SkyKey pkgE = PackageValue.key(PackageIdentifier.createInDefaultRepo("e"));
+    SkyKey missing = PackageValue.key(PackageIdentifier.createInDefaultRepo("a"));
+
+    Map<SkyKey, SkyValue> values =
+        walkableGraph.getSuccessfulValues(ImmutableList.of(pkgB, pkgD, pkgD, pkgE, missing));
+    assertThat(values.keySet()).containsExactly(pkgB, pkgD);
+    assertThat(((PackageValue) values.get(pkgD)).getPackage().getName()).isEqualTo("d");
+    assertFalse(walkableGraph.exists(missing));
+
+    Map<SkyKey, Iterable<SkyKey>> directDeps = walkableGraph.getDirectDeps(ImmutableList.of(c, d));
+    assertThat(directDeps.get(c)).containsExactly(
+        PackageValue.key(PackageIdentifier.createInDefaultRepo("c")), d, e);
+    assertThat(directDeps.get(d)).containsExactly(pkgD);
+
+    Map<SkyKey, Iterable<SkyKey>> rdeps = walkableGraph.getReverseDeps(ImmutableList.of(d, e, d));
+    assertThat(rdeps.keySet()).containsExactly(d, e);
+    assertThat(rdeps.get(d)).containsExactly(b, c);
+    assertThat(rdeps.get(e)).containsExactly(c);
+  }
+
+  @Test
+  public void queryOfSnapshotRunsDuringEvaluation() throws Exception {
+    evaluate("//a:a");
+    final SkyKey a = TransitiveTargetValue.key(Label.parseAbsolute("//a:a"));
+    SkyKey b = TransitiveTargetValue.key(Label.parseAbsolute("//b:b"));
+    WalkableGraphSnapshot snapshot = WalkableGraphSnapshot.copyOf(walkableGraph,
+        ImmutableList.of(a));
+
+    // A build drops the dependency of //a:a on //b:b, and is held up while it recomputes //a:a.
+    deps.remove(Label.parseAbsolute("//a:a"), Label.parseAbsolute("//b:b"));
+    differencer.invalidate(ImmutableList.of(a));
+    final CountDownLatch recomputing = new CountDownLatch(1);
+    final CountDownLatch queried = new CountDownLatch(1);
+    computeHooks.put(Label.parseAbsolute("//a:a"), new Runnable() {
+      @Override
+      public void run() {
+        recomputing.countDown();
+        try {
+          queried.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    Future<?> build = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        evaluate("//a:a");
+        return null;
+      }
+    });
+    assertTrue(recomputing.await(10, TimeUnit.SECONDS));
+    assertFalse(walkableGraph.exists(a));
+
+    // The query sees the graph as it was before the build.
+    walkableGraph = snapshot;
+    SkyQueryEnvironment env = createQueryEnvironment();
+    Target target = evaluateSingleTarget(env, "//a:a");
+    assertThat(labels(env.getTransitiveClosure(ImmutableSet.of(target))))
+        .containsExactly("//a:a", "//c:c", "//b:b", "//d:d", "//e:e").inOrder();
+
+    queried.countDown();
+    build.get(10, TimeUnit.SECONDS);
+    assertFalse(Iterables.contains(walkableGraph.getDirectDeps(a), b));
+    assertTrue(Iterables.contains(snapshot.getDirectDeps(a), b));
+  }
+}
@@ -0,0 +1,125 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.common.options.Options;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link ProtoOutputFormatter} and {@link StreamedProtoOutputFormatter}, which write the
+ * targets one at a time.
+ */
+@RunWith(JUnit4.class)
+public class StreamedProtoOutputFormatterTest {
+
+  private final Scratch scratch = new Scratch("/workspace");
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final PackageFactoryApparatus packages = new PackageFactoryApparatus(events, scratch);
+
+  private List<Target> targets;
+
+  @Before
+  public final void createPackage() throws Exception {
+    Package pkg = packages.createPackage("pkg", scratch.file("pkg/BUILD",
+        "testing_dummy_rule(name = 'a', srcs = ['a.txt'], outs = ['a.out'])",
+        "testing_dummy_rule(name = 'b', srcs = [':a'], dummystrings = ['x', 'y'])",
+        "exports_files(['c.txt'])"));
+    targets = new ArrayList<>(pkg.getTargets());
+  }
+
+  private static byte[] format(OutputFormatter.UnorderedFormatter formatter,
+      Iterable<Target> targets) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    formatter.outputUnordered(Options.getDefaults(QueryOptions.class), targets,
+        new PrintStream(bytes), new NullAspectResolver());
+    return bytes.toByteArray();
+  }
+
+  private static List<String> names(List<Build.Target> targets) {
+    List<String> result = new ArrayList<>();
+    for (Build.Target target : targets) {
+      switch (target.getType()) {
+        case RULE:
+          result.add(target.getRule().getName());
+          break;
+        case SOURCE_FILE:
+          result.add(target.getSourceFile().getName());
+          break;
+        case GENERATED_FILE:
+          result.add(target.getGeneratedFile().getName());
+          break;
+        default:
+          result.add(target.getType().toString());
+      }
+    }
+    return result;
+  }
+
+  @Test
+  public void protoOutputIsASerializedQueryResult() throws Exception {
+    byte[] bytes = format(new ProtoOutputFormatter(), targets);
+    Build.QueryResult result = Build.QueryResult.parseFrom(bytes);
+    List<String> expectedNames = new ArrayList<>();
+    for (Target target : targets) {
+      expectedNames.add(target.getLabel().toString());
+    }
+    assertEquals(expectedNames, names(result.getTargetList()));
+    // Serializing the parsed message again gives back the same bytes.
+    assertArrayEquals(result.toByteArray(), bytes);
+  }
+
+  @Test
+  public void protoOutputForNoTargetsIsEmpty() throws Exception {
+    byte[] bytes = format(new ProtoOutputFormatter(), ImmutableList.<Target>of());
+    assertEquals(0, bytes.length);
+    assertEquals(Build.QueryResult.getDefaultInstance(), Build.QueryResult.parseFrom(bytes));
+  }
+
+  @Test
+  public void streamedProtoOutputHasOneRecordPerTarget() throws Exception {
+    Build.QueryResult expected =
+        Build.QueryResult.parseFrom(format(new ProtoOutputFormatter(), targets));
+    InputStream in =
+        new ByteArrayInputStream(format(new StreamedProtoOutputFormatter(), targets));
+    List<Build.Target> streamed = new ArrayList<>();
+    Build.Target target;
+    while ((target = Build.Target.parseDelimitedFrom(in)) != null) {
+      streamed.add(target);
+    }
+    assertThat(streamed).hasSize(targets.size());
+    assertEquals(expected.getTargetList(), streamed);
+  }
+}
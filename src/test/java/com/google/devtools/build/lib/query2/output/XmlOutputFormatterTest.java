@@ -0,0 +1,137 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.common.options.Options;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.InputSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+/**
+ * Tests that {@link XmlOutputFormatter}, which streams one target at a time, prints exactly what
+ * serializing a single DOM document holding all of the targets prints.
+ */
+@RunWith(JUnit4.class)
+public class XmlOutputFormatterTest {
+
+  private final Scratch scratch = new Scratch("/workspace");
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final PackageFactoryApparatus packages = new PackageFactoryApparatus(events, scratch);
+
+  private List<Target> targets;
+
+  @Before
+  public final void createPackage() throws Exception {
+    Package pkg = packages.createPackage("pkg", scratch.file("pkg/BUILD",
+        "testing_dummy_rule(name = 'a', srcs = ['a.txt'], outs = ['a.out'])",
+        "testing_dummy_rule(name = 'b', srcs = [':a'],",
+        "    dummystrings = ['x < y & \"z\"', 'line\\nbreak\\ttab'])",
+        "exports_files(['c.txt'])"));
+    targets = new ArrayList<>(pkg.getTargets());
+  }
+
+  private static String format(Iterable<Target> targets) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes);
+    new XmlOutputFormatter().outputUnordered(
+        Options.getDefaults(QueryOptions.class), targets, out, new NullAspectResolver());
+    return new String(bytes.toByteArray(), UTF_8);
+  }
+
+  /**
+   * Returns the output of serializing the parsed document in one go, the way the formatter used
+   * to. The indentation is set explicitly, since its default differs between JDKs.
+   */
+  private static String reserialize(String xml) throws Exception {
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+        .parse(new InputSource(new ByteArrayInputStream(xml.getBytes(UTF_8))));
+    removeWhitespace(doc.getDocumentElement());
+    Transformer transformer = TransformerFactory.newInstance().newTransformer();
+    transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+    transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    transformer.transform(new DOMSource(doc), new StreamResult(bytes));
+    return new String(bytes.toByteArray(), UTF_8);
+  }
+
+  /** Removes the whitespace added by indentation, which the formatter's DOM tree did not have. */
+  private static void removeWhitespace(Node node) {
+    Node child = node.getFirstChild();
+    while (child != null) {
+      Node next = child.getNextSibling();
+      if (child.getNodeType() == Node.TEXT_NODE && child.getTextContent().trim().isEmpty()) {
+        node.removeChild(child);
+      } else {
+        removeWhitespace(child);
+      }
+      child = next;
+    }
+  }
+
+  @Test
+  public void noTargets() throws Exception {
+    String xml = format(ImmutableList.<Target>of());
+    assertThat(xml).startsWith("<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>");
+    assertThat(xml).contains("<query version=\"2\"/>");
+    assertEquals(reserialize(xml), xml);
+  }
+
+  @Test
+  public void oneTarget() throws Exception {
+    String xml = format(targets.subList(0, 1));
+    assertThat(xml).contains("<query version=\"2\">");
+    assertEquals(reserialize(xml), xml);
+  }
+
+  @Test
+  public void allTargets() throws Exception {
+    String xml = format(targets);
+    assertThat(xml).contains(
+        "<rule class=\"testing_dummy_rule\" location=\"/workspace/pkg/BUILD:1:1\"");
+    assertThat(xml).contains("x &lt; y &amp; &quot;z&quot;");
+    assertThat(xml).contains("line&#10;break&#9;tab");
+    assertThat(xml).contains("<source-file ");
+    assertThat(xml).contains("<generated-file ");
+    assertThat(xml.trim()).endsWith("</query>");
+    assertEquals(reserialize(xml), xml);
+  }
+}
@@ -0,0 +1,146 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.runtime;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests for {@link CommandLock}.
+ */
+@RunWith(JUnit4.class)
+public class CommandLockTest {
+
+  private static final long TIMEOUT_SECONDS = 10;
+  // How long to wait before concluding that a blocked call stays blocked.
+  private static final long BLOCKED_MILLIS = 100;
+
+  private CommandLock lock;
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    lock = new CommandLock();
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private Future<Boolean> acquireShared() {
+    return executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        boolean acquired = lock.acquireShared();
+        if (acquired) {
+          lock.releaseShared();
+        }
+        return acquired;
+      }
+    });
+  }
+
+  private Future<Boolean> acquireExclusive() {
+    return executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() {
+        boolean acquired = lock.acquireExclusive();
+        if (acquired) {
+          lock.releaseExclusive();
+        }
+        return acquired;
+      }
+    });
+  }
+
+  private static void assertBlocked(Future<?> future) throws Exception {
+    try {
+      future.get(BLOCKED_MILLIS, TimeUnit.MILLISECONDS);
+      throw new AssertionError("expected the call to block");
+    } catch (TimeoutException expected) {
+    }
+  }
+
+  @Test
+  public void sharedHoldersRunDuringExclusiveCommand() throws Exception {
+    // E.g. "info" while a build is running.
+    assertTrue(lock.acquireExclusive());
+    assertTrue(acquireShared().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    assertTrue(lock.acquireShared());
+    lock.releaseShared();
+    lock.releaseExclusive();
+  }
+
+  @Test
+  public void exclusiveHoldersAreSerialized() throws Exception {
+    assertTrue(lock.acquireExclusive());
+    Future<Boolean> second = acquireExclusive();
+    assertBlocked(second);
+    lock.releaseExclusive();
+    assertTrue(second.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void onlyExclusiveHoldersMakeTheLockHeldExclusively() throws Exception {
+    assertFalse(lock.isHeldExclusively());
+    assertTrue(lock.acquireShared());
+    assertFalse(lock.isHeldExclusively());
+    lock.releaseShared();
+    assertTrue(lock.acquireExclusive());
+    assertTrue(lock.isHeldExclusively());
+    lock.releaseExclusive();
+    assertFalse(lock.isHeldExclusively());
+  }
+
+  @Test
+  public void sharedHoldersDoNotDelayExclusiveCommand() throws Exception {
+    assertTrue(lock.acquireShared());
+    assertTrue(acquireExclusive().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    lock.releaseShared();
+  }
+
+  @Test
+  public void closeWaitsForHoldersAndRejectsLaterCommands() throws Exception {
+    assertTrue(lock.acquireShared());
+    Future<?> close = executor.submit(new Runnable() {
+      @Override
+      public void run() {
+        lock.close();
+      }
+    });
+    assertBlocked(close);
+    lock.releaseShared();
+    close.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+    assertFalse(lock.acquireShared());
+    assertFalse(lock.acquireExclusive());
+    // A failed exclusive acquisition must not leave the lock held.
+    assertFalse(acquireExclusive().get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+  }
+}
@@ -0,0 +1,231 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.server;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+import com.google.devtools.build.lib.unix.LocalClientSocket;
+import com.google.devtools.build.lib.unix.LocalSocketAddress;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.io.OutErr;
+import com.google.devtools.build.lib.util.io.StreamDemultiplexer;
+import com.google.devtools.build.lib.util.io.StreamMultiplexer;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.UnixFileSystem;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the round-trip latency of requests to a Blaze server through the
+ * local socket, for both client protocols of {@link RPCServer}: the original
+ * one with one connection per request, and the framed one, both with a
+ * connection per request and with a single kept-alive connection.
+ *
+ * <p>All requests are sent by Java clients in this process. The Blaze client
+ * is not involved, so its own startup and its handling of the output are not
+ * measured, and the numbers for the framed protocol do not apply to it, as it
+ * only speaks the original protocol.
+ *
+ * <p>Usage:
+ * <pre>
+ *   rpc_latency_benchmark [--iterations=N] --local
+ *   rpc_latency_benchmark [--iterations=N] SOCKET COMMAND...
+ * </pre>
+ * With {@code --local}, the requests go to an in-process server whose command
+ * only prints a few lines, which measures the protocol overhead alone.
+ * Otherwise they go to the server listening on {@code SOCKET} (usually
+ * {@code <output_base>/server/server.socket}), e.g. {@code info output_base}
+ * or {@code build //foo} for a null build.
+ *
+ * <p>This is intended for performance work and is not run as a test.
+ */
+class RPCLatencyBenchmark {
+
+  private static final int DEFAULT_ITERATIONS = 100;
+
+  // The server redirects System.out to the client of each request; an
+  // in-process server would swallow our results.
+  private static final PrintStream STDOUT = System.out;
+
+  private interface Client {
+    int execute(List<String> request) throws IOException;
+  }
+
+  private static final OutErr DISCARD =
+      OutErr.create(ByteStreams.nullOutputStream(), ByteStreams.nullOutputStream());
+
+  /**
+   * The original protocol, as spoken by the Blaze client, reimplemented here:
+   * one connection per request, NUL-separated words, then the multiplexed
+   * response until EOF.
+   */
+  private static Client legacyClient(final Path socketFile) {
+    return new Client() {
+      @Override
+      public int execute(List<String> request) throws IOException {
+        LocalClientSocket socket =
+            new LocalClientSocket(new LocalSocketAddress(socketFile.getPathFile()));
+        try {
+          OutputStream out = socket.getOutputStream();
+          out.write(Joiner.on('\0').join(request).getBytes(Charset.defaultCharset()));
+          out.flush();
+          socket.shutdownOutput();
+          ByteArrayOutputStream control = new ByteArrayOutputStream();
+          StreamDemultiplexer demultiplexer = new StreamDemultiplexer(
+              StreamMultiplexer.STDOUT_MARKER, ByteStreams.nullOutputStream(),
+              ByteStreams.nullOutputStream(), control);
+          ByteStreams.copy(socket.getInputStream(), demultiplexer);
+          demultiplexer.flush();
+          return Integer.parseInt(new String(control.toByteArray(), "UTF-8").trim());
+        } finally {
+          socket.close();
+        }
+      }
+    };
+  }
+
+  private static Client framedClient(final Path socketFile) {
+    return new Client() {
+      @Override
+      public int execute(List<String> request) throws IOException {
+        try (RPCClient client = RPCClient.connect(socketFile)) {
+          return client.execute(request, DISCARD);
+        }
+      }
+    };
+  }
+
+  private static Client keepAliveClient(Path socketFile) throws IOException {
+    final RPCClient client = RPCClient.connect(socketFile);
+    return new Client() {
+      @Override
+      public int execute(List<String> request) throws IOException {
+        return client.execute(request, DISCARD);
+      }
+    };
+  }
+
+  private static void measure(String name, Client client, List<String> request, int iterations)
+      throws IOException {
+    // Warm up both the server and this JVM.
+    for (int i = 0; i < Math.max(1, iterations / 10); i++) {
+      client.execute(request);
+    }
+    long[] micros = new long[iterations];
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      int exitCode = client.execute(request);
+      micros[i] = (System.nanoTime() - start) / 1000;
+      if (exitCode != 0) {
+        throw new IOException(name + ": request failed with exit code " + exitCode);
+      }
+    }
+    Arrays.sort(micros);
+    STDOUT.printf("%-40s min %8dus  median %8dus  p90 %8dus  max %8dus%n", name,
+        micros[0], micros[iterations / 2], micros[iterations * 9 / 10], micros[iterations - 1]);
+  }
+
+  /**
+   * Starts an in-process server whose only command prints its arguments a few
+   * times; "shutdown" stops it.
+   */
+  private static Path startLocalServer() throws Exception {
+    UnixFileSystem fileSystem = new UnixFileSystem();
+    Path serverDirectory = fileSystem.getPath(
+        System.getProperty("java.io.tmpdir")).getRelative("rpc_latency_benchmark");
+    FileSystemUtils.createDirectoryAndParents(serverDirectory);
+    ServerCommand command = new ServerCommand() {
+      private volatile boolean shutdown = false;
+
+      @Override
+      public int exec(List<String> args, OutErr outErr, long firstContactTime) {
+        if (args.equals(ImmutableList.of("shutdown"))) {
+          shutdown = true;
+          return 0;
+        }
+        for (int i = 0; i < 10; i++) {
+          outErr.printOutLn(Joiner.on(' ').join(args));
+        }
+        outErr.printErrLn("INFO: done");
+        return 0;
+      }
+
+      @Override
+      public boolean canRunConcurrently(List<String> args) {
+        return false;
+      }
+
+      @Override
+      public boolean shutdown() {
+        return shutdown;
+      }
+    };
+    final RPCServer server = RPCServer.newServerWith(BlazeClock.instance(), command,
+        serverDirectory, serverDirectory, /*maxIdleSeconds=*/3600);
+    Thread serverThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        server.serve();
+      }
+    }, "local-server");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    return server.getSocketPath();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = DEFAULT_ITERATIONS;
+    int argIndex = 0;
+    if (args.length > 0 && args[0].startsWith("--iterations=")) {
+      iterations = Integer.parseInt(args[0].substring("--iterations=".length()));
+      argIndex++;
+    }
+    if (argIndex >= args.length) {
+      System.err.println(
+          "Usage: rpc_latency_benchmark [--iterations=N] (--local | SOCKET COMMAND...)");
+      System.exit(2);
+    }
+
+    boolean local = args[argIndex].equals("--local");
+    Path socketFile;
+    List<String> request;
+    if (local) {
+      socketFile = startLocalServer();
+      request = ImmutableList.of("blaze", "info", "output_base");
+    } else {
+      socketFile = new UnixFileSystem().getPath(args[argIndex]);
+      request = ImmutableList.<String>builder()
+          .add("blaze")
+          .addAll(Arrays.asList(args).subList(argIndex + 1, args.length))
+          .build();
+    }
+
+    STDOUT.println("Request: " + Joiner.on(' ').join(request.subList(1, request.size())));
+    measure("Java client, original protocol", legacyClient(socketFile), request, iterations);
+    measure("Java client, framed, new connection", framedClient(socketFile), request, iterations);
+    measure("Java client, framed, kept-alive", keepAliveClient(socketFile), request, iterations);
+
+    if (local) {
+      framedClient(socketFile).execute(ImmutableList.of("blaze", "shutdown"));
+    }
+  }
+}
@@ -0,0 +1,155 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.unix.LocalClientSocket;
+import com.google.devtools.build.lib.unix.LocalSocketAddress;
+import com.google.devtools.build.lib.util.BlazeClock;
+import com.google.devtools.build.lib.util.io.OutErr;
+import com.google.devtools.build.lib.util.io.RecordingOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.UnixFileSystem;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Tests for {@link RPCServer}, run against an in-process server over a local socket.
+ */
+@RunWith(JUnit4.class)
+public class RPCServerTest {
+
+  private Path socketFile;
+
+  @Before
+  public final void startServer() throws Exception {
+    socketFile = startServer(32, 128);
+  }
+
+  private static Path startServer(int maxConnectionThreads, int maxPendingConnections)
+      throws Exception {
+    Path serverDirectory = new UnixFileSystem()
+        .getPath(System.getProperty("java.io.tmpdir"))
+        .getRelative("rpc_server_test_" + System.nanoTime());
+    FileSystemUtils.createDirectoryAndParents(serverDirectory);
+    ServerCommand command = new ServerCommand() {
+      private volatile boolean shutdown = false;
+
+      @Override
+      public int exec(List<String> args, OutErr outErr, long firstContactTime) {
+        if (args.equals(ImmutableList.of("shutdown"))) {
+          shutdown = true;
+          return 0;
+        }
+        outErr.printOutLn(Joiner.on(' ').join(args));
+        return 0;
+      }
+
+      @Override
+      public boolean canRunConcurrently(List<String> args) {
+        return false;
+      }
+
+      @Override
+      public boolean shutdown() {
+        return shutdown;
+      }
+    };
+    final RPCServer server = new RPCServer(BlazeClock.instance(), new RPCService(command),
+        /*maxIdleMillis=*/3600 * 1000L, /*statusCheckPeriodMillis=*/60 * 1000L, serverDirectory,
+        serverDirectory, maxConnectionThreads, maxPendingConnections);
+    Thread serverThread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        server.serve();
+      }
+    }, "rpc-server-test");
+    serverThread.setDaemon(true);
+    serverThread.start();
+    return server.getSocketPath();
+  }
+
+  @After
+  public final void stopServer() throws Exception {
+    stopServer(socketFile);
+  }
+
+  private static void stopServer(Path socketFile) throws Exception {
+    execute(socketFile, "blaze", "shutdown");
+  }
+
+  private int execute(String... request) throws Exception {
+    return execute(socketFile, request);
+  }
+
+  private static int execute(Path socketFile, String... request) throws Exception {
+    try (RPCClient client = RPCClient.connect(socketFile)) {
+      return client.execute(ImmutableList.copyOf(request), new RecordingOutErr());
+    }
+  }
+
+  private static LocalClientSocket connectSilently(Path socketFile) throws IOException {
+    return new LocalClientSocket(new LocalSocketAddress(socketFile.getPathFile()));
+  }
+
+  @Test(timeout = 60000)
+  public void silentClientDoesNotBlockOtherConnections() throws Exception {
+    // This client connects but never sends its request. Reading it must not keep the server from
+    // accepting and serving the next connection.
+    LocalClientSocket silent = connectSilently(socketFile);
+    try {
+      assertEquals(0, execute("blaze", "info"));
+      assertEquals(0, execute("blaze", "version"));
+    } finally {
+      silent.close();
+    }
+  }
+
+  @Test(timeout = 60000)
+  public void connectionsBeyondTheLimitAreRefused() throws Exception {
+    Path limitedSocketFile = startServer(/*maxConnectionThreads=*/1, /*maxPendingConnections=*/1);
+    // The first silent client holds the only connection thread, the second one waits for it.
+    LocalClientSocket reading = connectSilently(limitedSocketFile);
+    LocalClientSocket waiting = connectSilently(limitedSocketFile);
+    try {
+      execute(limitedSocketFile, "blaze", "info");
+      fail("Expected the connection to be refused");
+    } catch (IOException expected) {
+    }
+    reading.close();
+    waiting.close();
+    // Once the silent clients are gone, connections are served again.
+    while (true) {
+      try {
+        assertEquals(0, execute(limitedSocketFile, "blaze", "info"));
+        break;
+      } catch (IOException e) {
+        Thread.sleep(10);
+      }
+    }
+    stopServer(limitedSocketFile);
+  }
+}
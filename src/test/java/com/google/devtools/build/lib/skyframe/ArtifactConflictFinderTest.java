@@ -0,0 +1,115 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.ArtifactPrefixConflictException;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
+import com.google.devtools.build.lib.actions.Root;
+import com.google.devtools.build.lib.actions.util.ActionsTestUtil.NullAction;
+import com.google.devtools.build.lib.skyframe.SkyframeActionExecutor.ConflictException;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ArtifactConflictFinder}.
+ */
+@RunWith(JUnit4.class)
+public class ArtifactConflictFinderTest {
+
+  private final Scratch scratch = new Scratch();
+  private Root root;
+
+  @Before
+  public final void createRoot() throws Exception {
+    Path execRoot = scratch.dir("/exec");
+    root = Root.asDerivedRoot(execRoot, execRoot.getRelative("out"));
+  }
+
+  private Artifact artifact(String path) {
+    return new Artifact(new PathFragment(path), root);
+  }
+
+  private static ActionLookupValue value(Action... actions) {
+    return new ActionLookupValue(ImmutableList.copyOf(actions));
+  }
+
+  private static ImmutableMap<Action, ConflictException> findConflicts(
+      ActionLookupValue... values) throws Exception {
+    return ArtifactConflictFinder.findConflicts(ImmutableList.copyOf(values));
+  }
+
+  @Test
+  public void noValuesHaveNoConflicts() throws Exception {
+    assertThat(findConflicts()).isEmpty();
+  }
+
+  @Test
+  public void pathBeneathAnotherConflicts() throws Exception {
+    Action dir = new NullAction(artifact("dir"));
+    Action file = new NullAction(artifact("dir/sub/file"));
+    Action sibling = new NullAction(artifact("dirsibling"));
+    ImmutableMap<Action, ConflictException> conflicts =
+        findConflicts(value(dir), value(file, sibling));
+    assertThat(conflicts.keySet()).containsExactly(dir, file);
+    assertThat(conflicts.get(file).getCause()).isInstanceOf(ArtifactPrefixConflictException.class);
+  }
+
+  @Test
+  public void onlyConflictsWithTheOutermostPrefixAreReported() throws Exception {
+    Action dir = new NullAction(artifact("dir"));
+    Action subdir = new NullAction(artifact("dir/sub"));
+    Action file = new NullAction(artifact("dir/sub/file"));
+    ImmutableMap<Action, ConflictException> conflicts =
+        findConflicts(value(dir), value(subdir), value(file));
+    assertThat(conflicts.keySet()).containsExactly(dir, subdir, file);
+    assertThat(conflicts.get(subdir).getCause().getMessage()).contains("'out/dir' ");
+    assertThat(conflicts.get(file).getCause().getMessage()).contains("'out/dir' ");
+  }
+
+  @Test
+  public void actionsGeneratingTheSameArtifactConflict() throws Exception {
+    Artifact out = artifact("out");
+    Action action = new NullAction(out);
+    Action conflictingAction = new NullAction(out, artifact("other"));
+    ImmutableMap<Action, ConflictException> conflicts =
+        findConflicts(value(action), value(conflictingAction));
+    assertThat(conflicts).hasSize(1);
+    Action badAction = conflicts.keySet().iterator().next();
+    assertThat(conflicts.get(badAction).getCause()).isInstanceOf(ActionConflictException.class);
+  }
+
+  @Test
+  public void sharedActionsDoNotConflict() throws Exception {
+    Artifact dir = artifact("dir");
+    Action action = new NullAction(dir);
+    Action sharedAction = new NullAction(dir);
+    assertThat(findConflicts(value(action), value(sharedAction))).isEmpty();
+
+    Action file = new NullAction(artifact("dir/file"));
+    assertThat(findConflicts(value(action), value(sharedAction), value(file)))
+        .containsKey(file);
+  }
+}
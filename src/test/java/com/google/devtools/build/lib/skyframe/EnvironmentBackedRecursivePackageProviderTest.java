@@ -0,0 +1,212 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multiset;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.BuildFileContainsErrorsException;
+import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
+import com.google.devtools.build.lib.packages.NoSuchPackageException;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.skyframe.EvaluationResult;
+import com.google.devtools.build.skyframe.InMemoryMemoizingEvaluator;
+import com.google.devtools.build.skyframe.IntVersion;
+import com.google.devtools.build.skyframe.RecordingDifferencer;
+import com.google.devtools.build.skyframe.SkyFunction;
+import com.google.devtools.build.skyframe.SkyFunctionException;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.SkyValue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for {@link EnvironmentBackedRecursivePackageProvider#bulkGetPackages}, called from a
+ * function whose package values are computed by a simple fake function.
+ */
+@RunWith(JUnit4.class)
+public class EnvironmentBackedRecursivePackageProviderTest {
+
+  private static final SkyFunctionName BULK_GET_PACKAGES =
+      SkyFunctionName.computed("BULK_GET_PACKAGES");
+
+  private final Scratch scratch = new Scratch("/workspace");
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final PackageFactoryApparatus packages = new PackageFactoryApparatus(events, scratch);
+
+  private final Map<PackageIdentifier, Package> packagesById = new HashMap<>();
+  /** Packages that are loaded, but contain errors. */
+  private final Map<PackageIdentifier, Package> packagesWithErrors = new HashMap<>();
+  /** Number of times each function computed each key. */
+  private final Multiset<SkyKey> computations = ConcurrentHashMultiset.create();
+
+  /** The packages returned by {@link EnvironmentBackedRecursivePackageProvider#bulkGetPackages}. */
+  private static final class PackagesValue implements SkyValue {
+    private final Map<PackageIdentifier, Package> packages;
+
+    PackagesValue(Map<PackageIdentifier, Package> packages) {
+      this.packages = packages;
+    }
+  }
+
+  private static final class FakeFunctionException extends SkyFunctionException {
+    FakeFunctionException(NoSuchPackageException e) {
+      super(e, Transience.PERSISTENT);
+    }
+  }
+
+  private final SkyFunction packageFunction = new SkyFunction() {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws SkyFunctionException {
+      computations.add(skyKey);
+      PackageIdentifier pkgId = (PackageIdentifier) skyKey.argument();
+      if (packagesWithErrors.containsKey(pkgId)) {
+        throw new FakeFunctionException(
+            new BuildFileContainsErrorsException(packagesWithErrors.get(pkgId), "errors"));
+      }
+      if (!packagesById.containsKey(pkgId)) {
+        throw new FakeFunctionException(
+            new BuildFileNotFoundException(pkgId.toString(), "BUILD file not found"));
+      }
+      return new PackageValue(packagesById.get(pkgId));
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  };
+
+  /** Fetches the packages named by its key in one call. */
+  private final SkyFunction bulkGetPackagesFunction = new SkyFunction() {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) throws SkyFunctionException {
+      computations.add(skyKey);
+      List<PackageIdentifier> pkgIds = new ArrayList<>();
+      for (Object name : (List<?>) skyKey.argument()) {
+        pkgIds.add(PackageIdentifier.createInDefaultRepo((String) name));
+      }
+      try {
+        return new PackagesValue(new EnvironmentBackedRecursivePackageProvider(env)
+            .bulkGetPackages(events.reporter(), pkgIds));
+      } catch (EnvironmentBackedRecursivePackageProvider.MissingDepException e) {
+        return null;
+      } catch (NoSuchPackageException e) {
+        throw new FakeFunctionException(e);
+      }
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  };
+
+  @Before
+  public final void createPackages() throws Exception {
+    for (String name : ImmutableList.of("a", "b", "c")) {
+      Package pkg = packages.createPackage(name, scratch.file(name + "/BUILD",
+          "testing_dummy_rule(name = '" + name + "')"));
+      packagesById.put(pkg.getPackageIdentifier(), pkg);
+    }
+    events.setFailFast(false);
+    Package broken = packages.createPackage("broken", scratch.file("broken/BUILD",
+        "testing_dummy_rule(name = 'broken')",
+        "undefined_function()"));
+    assertTrue(broken.containsErrors());
+    packagesWithErrors.put(broken.getPackageIdentifier(), broken);
+  }
+
+  private static SkyKey key(String... pkgNames) {
+    return new SkyKey(BULK_GET_PACKAGES, ImmutableList.copyOf(pkgNames));
+  }
+
+  private EvaluationResult<PackagesValue> evaluate(SkyKey key) throws Exception {
+    InMemoryMemoizingEvaluator evaluator = new InMemoryMemoizingEvaluator(
+        ImmutableMap.of(SkyFunctions.PACKAGE, packageFunction,
+            BULK_GET_PACKAGES, bulkGetPackagesFunction),
+        new RecordingDifferencer());
+    return evaluator.evaluate(ImmutableList.of(key), new IntVersion(0), /*keepGoing=*/true, 1,
+        events.reporter());
+  }
+
+  private static List<String> names(Iterable<PackageIdentifier> pkgIds) {
+    List<String> result = new ArrayList<>();
+    for (PackageIdentifier pkgId : pkgIds) {
+      result.add(pkgId.getPackageFragment().getPathString());
+    }
+    return result;
+  }
+
+  @Test
+  public void missingPackagesCostASingleRestart() throws Exception {
+    SkyKey key = key("c", "a", "b");
+    EvaluationResult<PackagesValue> result = evaluate(key);
+    assertFalse(result.hasError());
+    Map<PackageIdentifier, Package> fetched = result.get(key).packages;
+    // The packages are returned in the order they were asked for.
+    assertThat(names(fetched.keySet())).containsExactly("c", "a", "b").inOrder();
+    for (Map.Entry<PackageIdentifier, Package> entry : fetched.entrySet()) {
+      assertEquals(packagesById.get(entry.getKey()), entry.getValue());
+    }
+    // The first computation finds all three packages missing at once.
+    assertEquals(2, computations.count(key));
+    for (PackageIdentifier pkgId : packagesById.keySet()) {
+      assertEquals(1, computations.count(PackageValue.key(pkgId)));
+    }
+  }
+
+  @Test
+  public void packageWithErrorsIsReturned() throws Exception {
+    SkyKey key = key("a", "broken");
+    // The package's error is still reported, alongside the value that used the package.
+    EvaluationResult<PackagesValue> result = evaluate(key);
+    Package broken = result.get(key).packages.get(
+        PackageIdentifier.createInDefaultRepo("broken"));
+    assertTrue(broken.containsErrors());
+    assertEquals(2, computations.count(key));
+  }
+
+  @Test
+  public void packageThatFailsToLoadFailsTheBatch() throws Exception {
+    SkyKey key = key("a", "nonexistent", "b");
+    EvaluationResult<PackagesValue> result = evaluate(key);
+    assertTrue(result.hasError());
+    Throwable exception = result.getError(key).getException();
+    assertThat(exception).isInstanceOf(BuildFileNotFoundException.class);
+    assertThat(exception.getMessage()).contains("nonexistent");
+    // The other packages of the batch were still requested in the same group.
+    assertEquals(1,
+        computations.count(PackageValue.key(PackageIdentifier.createInDefaultRepo("b"))));
+  }
+}
@@ -0,0 +1,137 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.testutil.TestUtils;
+import com.google.devtools.build.lib.vfs.ModifiedFileSet;
+import com.google.devtools.build.lib.vfs.PathFragment;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests for {@link LocalDiffAwareness}, run against a directory of the local file system.
+ */
+@RunWith(JUnit4.class)
+public class LocalDiffAwarenessTest {
+
+  /** How long to wait for the watch service to report a change. */
+  private static final long TIMEOUT_MILLIS = 30000;
+
+  private Path root;
+  private LocalDiffAwareness diffAwareness;
+
+  @Before
+  public final void createRoot() throws Exception {
+    root = Files.createTempDirectory(
+        new File(TestUtils.tmpDir()).getCanonicalFile().toPath(), "LocalDiffAwarenessTest");
+    Files.createDirectories(root.resolve("dir"));
+    Files.write(root.resolve("dir/old.txt"), "old".getBytes(UTF_8));
+  }
+
+  @After
+  public final void closeDiffAwareness() {
+    if (diffAwareness != null) {
+      diffAwareness.close();
+    }
+  }
+
+  private void createDiffAwareness(boolean watchInBackground) throws IOException {
+    diffAwareness = new LocalDiffAwareness(root.toString(),
+        FileSystems.getDefault().newWatchService(), watchInBackground);
+  }
+
+  /**
+   * Takes views until the given files are reported as modified, and returns all the files reported
+   * by then.
+   */
+  private Set<String> awaitModified(DiffAwareness.View firstView, String... files)
+      throws Exception {
+    Set<String> modified = new HashSet<>();
+    DiffAwareness.View oldView = firstView;
+    long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+    while (!modified.containsAll(Arrays.asList(files))) {
+      if (System.currentTimeMillis() > deadline) {
+        fail(Arrays.toString(files) + " were not reported as modified, only " + modified);
+      }
+      Thread.sleep(10);
+      DiffAwareness.View newView = diffAwareness.getCurrentView();
+      ModifiedFileSet diff = diffAwareness.getDiff(oldView, newView);
+      for (PathFragment path : diff.modifiedSourceFiles()) {
+        modified.add(path.getPathString());
+      }
+      oldView = newView;
+    }
+    return modified;
+  }
+
+  @Test
+  public void viewConsumesEventsNotPickedUpByTheWatcherThread() throws Exception {
+    // Without the watcher thread, only taking a view consumes the events of the watch service.
+    createDiffAwareness(/*watchInBackground=*/false);
+    DiffAwareness.View view = diffAwareness.getCurrentView();
+    Files.write(root.resolve("dir/old.txt"), "changed".getBytes(UTF_8));
+    Files.createDirectories(root.resolve("new/sub"));
+    Files.write(root.resolve("new/sub/file.txt"), "new".getBytes(UTF_8));
+
+    // The new tree is registered when its creation is seen, which finds the files within it.
+    awaitModified(view, "dir/old.txt", "new/sub/file.txt");
+  }
+
+  @Test
+  public void newTreeIsReportedByTheWatcherThread() throws Exception {
+    createDiffAwareness(/*watchInBackground=*/true);
+    DiffAwareness.View view = diffAwareness.getCurrentView();
+    Files.createDirectories(root.resolve("new/sub"));
+    Files.write(root.resolve("new/sub/file.txt"), "new".getBytes(UTF_8));
+    Set<String> modified = awaitModified(view, "new/sub/file.txt");
+    assertThat(modified).containsAllOf("new", "new/sub");
+
+    // The new directories are watched from then on.
+    DiffAwareness.View nextView = diffAwareness.getCurrentView();
+    Files.write(root.resolve("new/sub/other.txt"), "other".getBytes(UTF_8));
+    awaitModified(nextView, "new/sub/other.txt");
+  }
+
+  @Test
+  public void deathOfTheWatcherThreadBreaksTheNextView() throws Exception {
+    createDiffAwareness(/*watchInBackground=*/true);
+    diffAwareness.getCurrentView();
+    Thread watcherThread = diffAwareness.getWatcherThread();
+    watcherThread.interrupt();
+    watcherThread.join(TIMEOUT_MILLIS);
+    try {
+      diffAwareness.getCurrentView();
+      fail();
+    } catch (BrokenDiffAwarenessException e) {
+      assertThat(e.getMessage()).contains("interrupted");
+    }
+  }
+}
@@ -0,0 +1,174 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.cmdline.TargetParsingException;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
+import com.google.devtools.build.lib.packages.NoSuchPackageException;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.pkgcache.FilteringPolicies;
+import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.pkgcache.RecursivePackageProvider;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.RootedPath;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Tests that {@link RecursivePackageProviderBackedTargetPatternResolver} fetches the packages
+ * beneath a directory in a single batch.
+ */
+@RunWith(JUnit4.class)
+public class RecursivePackageProviderBackedTargetPatternResolverTest {
+
+  private final Scratch scratch = new Scratch("/workspace");
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final PackageFactoryApparatus packages = new PackageFactoryApparatus(events, scratch);
+
+  private final Map<PackageIdentifier, Package> packagesById = new LinkedHashMap<>();
+  /** Packages that fail to load. */
+  private final Set<PackageIdentifier> brokenPackages = new HashSet<>();
+  /** The names of the packages of each call to {@link RecursivePackageProvider#bulkGetPackages}. */
+  private final List<List<String>> bulkGetPackagesCalls = new ArrayList<>();
+
+  /** Knows the packages in {@link #packagesById}, and only fetches them in batches. */
+  private final RecursivePackageProvider provider = new RecursivePackageProvider() {
+    @Override
+    public Iterable<PathFragment> getPackagesUnderDirectory(RootedPath directory,
+        ImmutableSet<PathFragment> excludedSubdirectories) {
+      List<PathFragment> result = new ArrayList<>();
+      for (PackageIdentifier pkgId : packagesById.keySet()) {
+        PathFragment pkg = pkgId.getPackageFragment();
+        if (!pkg.startsWith(directory.getRelativePath())) {
+          continue;
+        }
+        boolean excluded = false;
+        for (PathFragment excludedSubdirectory : excludedSubdirectories) {
+          excluded |= pkg.startsWith(excludedSubdirectory);
+        }
+        if (!excluded) {
+          result.add(pkg);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public Map<PackageIdentifier, Package> bulkGetPackages(EventHandler eventHandler,
+        Iterable<PackageIdentifier> pkgIds) throws NoSuchPackageException {
+      List<String> names = new ArrayList<>();
+      Map<PackageIdentifier, Package> result = new LinkedHashMap<>();
+      for (PackageIdentifier pkgId : pkgIds) {
+        names.add(pkgId.getPackageFragment().getPathString());
+      }
+      bulkGetPackagesCalls.add(names);
+      for (PackageIdentifier pkgId : pkgIds) {
+        if (brokenPackages.contains(pkgId)) {
+          throw new BuildFileNotFoundException(pkgId.toString(), "broken");
+        }
+        result.put(pkgId, packagesById.get(pkgId));
+      }
+      return result;
+    }
+
+    @Override
+    public Package getPackage(EventHandler eventHandler, PackageIdentifier packageName) {
+      throw new AssertionError("Package " + packageName + " was fetched on its own");
+    }
+
+    @Override
+    public boolean isPackage(EventHandler eventHandler, String packageName) {
+      throw new AssertionError("Package " + packageName + " was looked up again");
+    }
+
+    @Override
+    public Target getTarget(EventHandler eventHandler, Label label) {
+      throw new AssertionError("Target " + label + " was fetched on its own");
+    }
+  };
+
+  private RecursivePackageProviderBackedTargetPatternResolver resolver;
+
+  @Before
+  public final void createPackages() throws Exception {
+    for (String name : ImmutableList.of("x", "x/y", "x/y/z", "other")) {
+      Package pkg = packages.createPackage(name, scratch.file(name + "/BUILD",
+          "testing_dummy_rule(name = 'r')"));
+      packagesById.put(pkg.getPackageIdentifier(), pkg);
+    }
+    resolver = new RecursivePackageProviderBackedTargetPatternResolver(provider,
+        events.reporter(), FilteringPolicies.NO_FILTER,
+        new PathPackageLocator(scratch.resolve("/workspace")));
+  }
+
+  private static List<String> labels(Iterable<Target> targets) {
+    List<String> result = new ArrayList<>();
+    for (Target target : targets) {
+      result.add(target.getLabel().toString());
+    }
+    return result;
+  }
+
+  @Test
+  public void packagesBeneathDirectoryAreFetchedInOneBatch() throws Exception {
+    Iterable<Target> targets = resolver.findTargetsBeneathDirectory("//x/...", "x",
+        /*rulesOnly=*/true, ImmutableSet.<String>of()).getTargets();
+    assertThat(labels(targets)).containsExactly("//x:r", "//x/y:r", "//x/y/z:r");
+    assertThat(bulkGetPackagesCalls).containsExactly(ImmutableList.of("x", "x/y", "x/y/z"));
+  }
+
+  @Test
+  public void excludedPackagesAreNotFetched() throws Exception {
+    Iterable<Target> targets = resolver.findTargetsBeneathDirectory("//x/...", "x",
+        /*rulesOnly=*/false, ImmutableSet.of("x/y")).getTargets();
+    assertThat(labels(targets)).containsExactly("//x:r", "//x:BUILD");
+    assertThat(bulkGetPackagesCalls).containsExactly(ImmutableList.of("x"));
+  }
+
+  @Test
+  public void packageThatFailsToLoadFailsThePattern() throws Exception {
+    brokenPackages.add(PackageIdentifier.createInDefaultRepo("x/y"));
+    try {
+      resolver.findTargetsBeneathDirectory("//x/...", "x", /*rulesOnly=*/true,
+          ImmutableSet.<String>of());
+      fail();
+    } catch (TargetParsingException e) {
+      assertThat(e.getMessage()).isEqualTo("while parsing '//x/...': package contains errors");
+      assertThat(e.getCause()).isInstanceOf(BuildFileNotFoundException.class);
+    }
+    assertThat(bulkGetPackagesCalls).containsExactly(ImmutableList.of("x", "x/y", "x/y/z"));
+  }
+}
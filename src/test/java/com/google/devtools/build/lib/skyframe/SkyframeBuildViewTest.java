@@ -0,0 +1,78 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.actions.Action;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.skyframe.EvaluationProgressReceiver;
+import com.google.devtools.build.skyframe.EvaluationProgressReceiver.EvaluationState;
+import com.google.devtools.build.skyframe.SkyKey;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.mockito.Mockito;
+
+/**
+ * Tests for the configured targets that {@link SkyframeBuildView} counts as recomputed or reused.
+ */
+@RunWith(JUnit4.class)
+public class SkyframeBuildViewTest {
+
+  private final SkyframeBuildView view = new SkyframeBuildView(/*factory=*/null,
+      /*artifactFactory=*/null, Mockito.mock(SkyframeExecutor.class),
+      /*legacyDataCleaner=*/null, /*binTools=*/null);
+  private final EvaluationProgressReceiver receiver = view.getInvalidationReceiver();
+
+  private static SkyKey key(String label) throws Exception {
+    return ConfiguredTargetValue.key(Label.parseAbsolute(label), /*configuration=*/null);
+  }
+
+  private static ConfiguredTargetValue value() {
+    return new ConfiguredTargetValue(/*configuredTarget=*/null,
+        ImmutableMap.<Artifact, Action>of());
+  }
+
+  @Test
+  public void builtAndCleanTargetsAreCountedApart() throws Exception {
+    receiver.evaluated(key("//a:built"), value(), EvaluationState.BUILT);
+    receiver.evaluated(key("//a:clean"), value(), EvaluationState.CLEAN);
+    receiver.evaluated(key("//a:other_clean"), value(), EvaluationState.CLEAN);
+    assertThat(view.getEvaluatedTargetKeys()).containsExactly(key("//a:built"));
+    assertEquals(2, view.getReusedTargetCount());
+  }
+
+  @Test
+  public void failedTargetsAndOtherValuesAreNotCounted() throws Exception {
+    receiver.evaluated(key("//a:failed"), /*value=*/null, EvaluationState.BUILT);
+    receiver.evaluated(PrecomputedValue.BUILD_ID.getKeyForTesting(), /*value=*/null,
+        EvaluationState.CLEAN);
+    assertThat(view.getEvaluatedTargetKeys()).isEmpty();
+    assertEquals(0, view.getReusedTargetCount());
+  }
+
+  @Test
+  public void resetClearsBothCounts() throws Exception {
+    receiver.evaluated(key("//a:built"), value(), EvaluationState.BUILT);
+    receiver.evaluated(key("//a:clean"), value(), EvaluationState.CLEAN);
+    view.resetEvaluatedConfiguredTargetKeysSet();
+    assertThat(view.getEvaluatedTargetKeys()).isEmpty();
+    assertEquals(0, view.getReusedTargetCount());
+  }
+}
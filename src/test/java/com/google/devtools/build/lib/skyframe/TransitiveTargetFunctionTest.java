@@ -0,0 +1,188 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.packages.Attribute.attr;
+import static com.google.devtools.build.lib.packages.Type.LABEL;
+
+import com.google.devtools.build.lib.analysis.BaseRuleClasses;
+import com.google.devtools.build.lib.analysis.ConfiguredRuleClassProvider;
+import com.google.devtools.build.lib.analysis.RuleDefinition;
+import com.google.devtools.build.lib.analysis.RuleDefinitionEnvironment;
+import com.google.devtools.build.lib.analysis.config.BuildConfiguration;
+import com.google.devtools.build.lib.analysis.config.ConfigurationFragmentFactory;
+import com.google.devtools.build.lib.bazel.rules.BazelConfiguration;
+import com.google.devtools.build.lib.bazel.rules.cpp.BazelCppRuleClasses;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.Attribute.LateBoundLabel;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageFactory;
+import com.google.devtools.build.lib.packages.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.RuleClass;
+import com.google.devtools.build.lib.packages.RuleClass.Builder;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.rules.cpp.CppConfiguration;
+import com.google.devtools.build.lib.syntax.Label;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
+import com.google.devtools.build.lib.testutil.UnknownRuleConfiguredTarget;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Tests for the configuration fragments that {@link TransitiveTargetFunction} collects for each
+ * rule.
+ */
+@RunWith(JUnit4.class)
+public class TransitiveTargetFunctionTest {
+
+  /**
+   * A rule that only requires the Bazel fragment itself, but whose late-bound C++ toolchain
+   * requires the C++ fragment.
+   */
+  public static final class LateBoundFragmentRule implements RuleDefinition {
+    @Override
+    public RuleClass build(Builder builder, RuleDefinitionEnvironment env) {
+      return builder
+          .setUndocumented()
+          .requiresConfigurationFragments(BazelConfiguration.class)
+          .add(attr(":cc_toolchain", LABEL).value(BazelCppRuleClasses.CC_TOOLCHAIN))
+          .build();
+    }
+
+    @Override
+    public Metadata getMetadata() {
+      return RuleDefinition.Metadata.builder()
+          .name("late_bound_fragment_rule")
+          .ancestors(BaseRuleClasses.RuleBase.class)
+          .factoryClass(UnknownRuleConfiguredTarget.class)
+          .build();
+    }
+  }
+
+  /**
+   * A rule that only requires the Bazel fragment itself, but has a late-bound default that does
+   * not declare the fragments it reads.
+   */
+  public static final class UndeclaredLateBoundFragmentRule implements RuleDefinition {
+    @Override
+    public RuleClass build(Builder builder, RuleDefinitionEnvironment env) {
+      return builder
+          .setUndocumented()
+          .requiresConfigurationFragments(BazelConfiguration.class)
+          .add(attr(":undeclared", LABEL).value(new LateBoundLabel<BuildConfiguration>() {
+            @Override
+            public Label getDefault(Rule rule, BuildConfiguration configuration) {
+              return null;
+            }
+          }))
+          .build();
+    }
+
+    @Override
+    public Metadata getMetadata() {
+      return RuleDefinition.Metadata.builder()
+          .name("undeclared_late_bound_fragment_rule")
+          .ancestors(BaseRuleClasses.RuleBase.class)
+          .factoryClass(UnknownRuleConfiguredTarget.class)
+          .build();
+    }
+  }
+
+  private final Scratch scratch = new Scratch("/workspace");
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+
+  private ConfiguredRuleClassProvider ruleClassProvider;
+  private TransitiveTargetFunction function;
+  private Package pkg;
+
+  @Before
+  public final void createPackage() throws Exception {
+    ConfiguredRuleClassProvider.Builder builder = new ConfiguredRuleClassProvider.Builder();
+    TestRuleClassProvider.addStandardRules(builder);
+    builder.addRuleDefinition(new LateBoundFragmentRule());
+    builder.addRuleDefinition(new UndeclaredLateBoundFragmentRule());
+    ruleClassProvider = builder.build();
+    function = new TransitiveTargetFunction(ruleClassProvider);
+    pkg = new PackageFactory(ruleClassProvider).createPackageForTesting(
+        PackageIdentifier.createInDefaultRepo("pkg"),
+        scratch.file("pkg/BUILD",
+            "cc_library(name = 'lib', srcs = ['lib.cc'])",
+            "cc_binary(name = 'bin', srcs = ['bin.cc'], deps = [':lib'])",
+            "cc_test(name = 'test', srcs = ['test.cc'])",
+            "sh_test(name = 'sh', srcs = ['sh.sh'])",
+            "filegroup(name = 'files', srcs = ['a.txt'])",
+            "test_suite(name = 'suite', tests = [':test'])",
+            "genrule(name = 'gen', outs = ['gen.txt'], cmd = 'touch $@')",
+            "late_bound_fragment_rule(name = 'late_bound')",
+            "undeclared_late_bound_fragment_rule(name = 'undeclared_late_bound')"),
+        new PackageFactoryApparatus(events, scratch).getPackageLocator(), events.reporter());
+  }
+
+  private Set<Class<?>> getRequiredConfigurationFragments(String name) throws Exception {
+    return function.getRequiredConfigurationFragments((Rule) pkg.getTarget(name));
+  }
+
+  @Test
+  public void ccRulesOnlyRequireTheCppFragment() throws Exception {
+    assertThat(getRequiredConfigurationFragments("lib")).containsExactly(CppConfiguration.class);
+    assertThat(getRequiredConfigurationFragments("bin")).containsExactly(CppConfiguration.class);
+    assertThat(getRequiredConfigurationFragments("test")).containsExactly(CppConfiguration.class);
+  }
+
+  @Test
+  public void rulesReadingNoFragmentOnlyRequireTheBazelFragment() throws Exception {
+    // The late-bound defaults of test rules, such as :run_under, only read the configuration.
+    assertThat(getRequiredConfigurationFragments("sh")).containsExactly(BazelConfiguration.class);
+    assertThat(getRequiredConfigurationFragments("files"))
+        .containsExactly(BazelConfiguration.class);
+    assertThat(getRequiredConfigurationFragments("suite"))
+        .containsExactly(BazelConfiguration.class);
+  }
+
+  @Test
+  public void lateBoundDefaultsAddTheirFragments() throws Exception {
+    assertThat(getRequiredConfigurationFragments("late_bound"))
+        .containsExactly(BazelConfiguration.class, CppConfiguration.class);
+  }
+
+  private Set<Class<?>> getAllFragments() {
+    Set<Class<?>> allFragments = new HashSet<>();
+    for (ConfigurationFragmentFactory factory : ruleClassProvider.getConfigurationFragments()) {
+      allFragments.add(factory.creates());
+    }
+    assertThat(allFragments).contains(CppConfiguration.class);
+    return allFragments;
+  }
+
+  @Test
+  public void rulesNotDeclaringFragmentsRequireAllOfThem() throws Exception {
+    assertThat(getRequiredConfigurationFragments("gen"))
+        .containsExactlyElementsIn(getAllFragments());
+  }
+
+  @Test
+  public void lateBoundDefaultsNotDeclaringFragmentsRequireAllOfThem() throws Exception {
+    assertThat(getRequiredConfigurationFragments("undeclared_late_bound"))
+        .containsExactlyElementsIn(getAllFragments());
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util.io;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test for {@link FramedStreamMultiplexer}.
+ */
+@RunWith(JUnit4.class)
+public class FramedStreamMultiplexerTest {
+
+  private ByteArrayOutputStream multiplexed;
+  private OutputStream out;
+  private OutputStream err;
+  private OutputStream ctl;
+
+  @Before
+  public void setUp() throws Exception {
+    multiplexed = new ByteArrayOutputStream();
+    FramedStreamMultiplexer multiplexer = new FramedStreamMultiplexer(multiplexed);
+    out = multiplexer.createStdout();
+    err = multiplexer.createStderr();
+    ctl = multiplexer.createControl();
+  }
+
+  /** Decodes the multiplexed stream into "marker:payload" strings, one per frame. */
+  private List<String> frames() throws IOException {
+    List<String> frames = new ArrayList<>();
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(multiplexed.toByteArray()));
+    while (in.available() > 0) {
+      char marker = (char) in.readByte();
+      byte[] payload = new byte[in.readInt()];
+      in.readFully(payload);
+      frames.add(marker + ":" + new String(payload, UTF_8));
+    }
+    return frames;
+  }
+
+  @Test
+  public void testEmptyWire() throws IOException {
+    out.flush();
+    err.flush();
+    ctl.flush();
+    assertEquals(0, multiplexed.size());
+  }
+
+  @Test
+  public void testManyLinesInOneFrame() throws IOException {
+    out.write("line 1\nline 2\nline 3\n".getBytes(UTF_8));
+    assertEquals(Arrays.asList("1:line 1\nline 2\nline 3\n"), frames());
+  }
+
+  @Test
+  public void testIncompleteLineWaitsForFlush() throws IOException {
+    err.write("Loading".getBytes(UTF_8));
+    err.write("...".getBytes(UTF_8));
+    assertEquals(0, multiplexed.size());
+    err.flush();
+    assertEquals(Arrays.asList("2:Loading..."), frames());
+  }
+
+  @Test
+  public void testInterleavedStreams() throws IOException {
+    out.write("out\n".getBytes(UTF_8));
+    err.write("err\n".getBytes(UTF_8));
+    ctl.write("0\n".getBytes(UTF_8));
+    assertEquals(Arrays.asList("1:out\n", "2:err\n", "3:0\n"), frames());
+  }
+
+  @Test
+  public void testLargeWriteIsChunked() throws IOException {
+    byte[] data = new byte[FramedStreamMultiplexer.MAX_CHUNK_SIZE * 2 + 10];
+    Arrays.fill(data, (byte) 'x');
+    out.write(data);
+    out.flush();
+    List<String> frames = frames();
+    assertEquals(3, frames.size());
+    assertEquals(FramedStreamMultiplexer.MAX_CHUNK_SIZE + 2, frames.get(0).length());
+    assertEquals(FramedStreamMultiplexer.MAX_CHUNK_SIZE + 2, frames.get(1).length());
+    assertEquals(10 + 2, frames.get(2).length());
+  }
+
+  @Test
+  public void testSingleByteWrites() throws IOException {
+    for (byte b : "ab\n".getBytes(UTF_8)) {
+      out.write(b);
+    }
+    assertEquals(Arrays.asList("1:ab\n"), frames());
+  }
+}
@@ -0,0 +1,285 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.collect.nestedset.NestedSet;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.collect.nestedset.Order;
+import com.google.devtools.build.lib.util.GroupedList.GroupedListHelper;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for {@link CompactInMemoryNodeEntry} and the ids of {@link CompactInMemoryGraph}.
+ */
+@RunWith(JUnit4.class)
+public class CompactInMemoryNodeEntryTest {
+
+  private static final SkyFunctionName NODE_TYPE = new SkyFunctionName("Type", false);
+  private static final NestedSet<TaggedEvents> NO_EVENTS =
+      NestedSetBuilder.<TaggedEvents>emptySet(Order.STABLE_ORDER);
+  private static final SkyValue VALUE = new SkyValue() {};
+
+  private CompactInMemoryGraph graph;
+
+  @Before
+  public void createGraph() {
+    graph = new CompactInMemoryGraph();
+  }
+
+  private SkyKey key(String name) {
+    SkyKey key = new SkyKey(NODE_TYPE, name);
+    graph.createIfAbsent(key);
+    return key;
+  }
+
+  private NodeEntry entry(SkyKey key) {
+    return graph.get(key);
+  }
+
+  private static void setValue(NodeEntry entry, long graphVersion) {
+    entry.setValue(ValueWithMetadata.normal(VALUE, null, NO_EVENTS), new IntVersion(graphVersion));
+  }
+
+  /** Builds the given node with the given groups of deps, signaling each dep. */
+  private static void build(NodeEntry entry, long graphVersion, List<List<SkyKey>> groups) {
+    for (List<SkyKey> group : groups) {
+      GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+      helper.startGroup();
+      for (SkyKey dep : group) {
+        helper.add(dep);
+      }
+      helper.endGroup();
+      entry.addTemporaryDirectDeps(helper);
+      for (int i = 0; i < group.size(); i++) {
+        entry.signalDep();
+      }
+    }
+    setValue(entry, graphVersion);
+  }
+
+  @Test
+  public void idsAreDenseAndStable() {
+    SkyKey a = key("a");
+    SkyKey b = key("b");
+    key("a");
+    assertEquals(0, graph.getId(a));
+    assertEquals(1, graph.getId(b));
+    assertEquals(a, graph.getKey(0));
+    assertEquals(b, graph.getKey(1));
+  }
+
+  @Test
+  public void groupedDirectDepsRoundTrip() {
+    List<SkyKey> deps = new ArrayList<>();
+    // Enough keys to span chunks of the id table, so that the deltas are large and of both signs.
+    for (int i = 0; i < 10000; i++) {
+      deps.add(key("dep" + i));
+    }
+    SkyKey parent = key("parent");
+    List<List<SkyKey>> groups = ImmutableList.<List<SkyKey>>of(
+        ImmutableList.of(deps.get(9999)),
+        ImmutableList.of(deps.get(3), deps.get(0), deps.get(5000), deps.get(4)),
+        ImmutableList.of(deps.get(7)));
+    NodeEntry entry = entry(parent);
+    entry.addReverseDepAndCheckIfDone(null);
+    build(entry, 0L, groups);
+
+    List<List<SkyKey>> storedGroups = new ArrayList<>();
+    for (Iterable<SkyKey> group : ((InMemoryNodeEntry) entry).getGroupedDirectDeps()) {
+      storedGroups.add(ImmutableList.copyOf(group));
+    }
+    assertEquals(groups, storedGroups);
+    assertThat(entry.getDirectDeps()).containsExactlyElementsIn(Iterables.concat(groups));
+  }
+
+  @Test
+  public void unchangedNodeCanBeMarkedClean() {
+    SkyKey dep1 = key("dep1");
+    SkyKey dep2 = key("dep2");
+    NodeEntry entry = entry(key("parent"));
+    entry.addReverseDepAndCheckIfDone(null);
+    List<List<SkyKey>> groups = ImmutableList.<List<SkyKey>>of(ImmutableList.of(dep2, dep1));
+    build(entry, 0L, groups);
+
+    entry.markDirty(/*isChanged=*/false);
+    entry.addReverseDepAndCheckIfDone(null);
+    assertThat(entry.getNextDirtyDirectDeps()).containsExactly(dep2, dep1).inOrder();
+    GroupedListHelper<SkyKey> helper = new GroupedListHelper<>();
+    helper.startGroup();
+    helper.add(dep2);
+    helper.add(dep1);
+    helper.endGroup();
+    entry.addTemporaryDirectDeps(helper);
+    entry.signalDep(new IntVersion(0L));
+    entry.signalDep(new IntVersion(0L));
+    assertEquals(NodeEntry.DirtyState.VERIFIED_CLEAN, entry.getDirtyState());
+    entry.markClean();
+    assertTrue(entry.isDone());
+    assertEquals(new IntVersion(0L), entry.getVersion());
+  }
+
+  @Test
+  public void reverseDeps() {
+    NodeEntry entry = entry(key("child"));
+    SkyKey first = key("first");
+    entry.addReverseDepAndCheckIfDone(first);
+    setValue(entry, 0L);
+    assertThat(entry.getReverseDeps()).containsExactly(first);
+
+    List<SkyKey> parents = new ArrayList<>();
+    parents.add(first);
+    for (int i = 0; i < 100; i++) {
+      SkyKey parent = key("parent" + i);
+      entry.addReverseDepAndCheckIfDone(parent);
+      parents.add(parent);
+    }
+    assertThat(entry.getReverseDeps()).containsExactlyElementsIn(parents);
+
+    // Removals are only consolidated when the reverse deps are next needed.
+    for (SkyKey parent : parents.subList(1, 100)) {
+      entry.removeReverseDep(parent);
+    }
+    assertThat(entry.getReverseDeps()).containsExactly(first, parents.get(100));
+    entry.removeReverseDep(first);
+    assertThat(entry.getReverseDeps()).containsExactly(parents.get(100));
+    entry.removeReverseDep(parents.get(100));
+    assertThat(entry.getReverseDeps()).isEmpty();
+  }
+
+  @Test
+  public void duplicateReverseDepIsRejected() {
+    NodeEntry entry = entry(key("child"));
+    SkyKey mother = key("mother");
+    SkyKey father = key("father");
+    entry.addReverseDepAndCheckIfDone(mother);
+    entry.addReverseDepAndCheckIfDone(father);
+    setValue(entry, 0L);
+    try {
+      entry.addReverseDepAndCheckIfDone(father);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void removedNodesKeepTheirIdsUntilEvaluationFinished() {
+    SkyKey child = key("child");
+    SkyKey parent = key("parent");
+    SkyKey other = key("other");
+    NodeEntry entry = entry(child);
+    entry.addReverseDepAndCheckIfDone(parent);
+    entry.addReverseDepAndCheckIfDone(other);
+    setValue(entry, 0L);
+    int parentId = graph.getId(parent);
+
+    // As when an in-flight parent is cleaned after a failed evaluation.
+    graph.remove(parent);
+    entry.removeReverseDep(parent);
+    assertEquals(parentId, graph.getId(parent));
+    assertThat(entry.getReverseDeps()).containsExactly(other);
+
+    graph.evaluationFinished();
+    try {
+      graph.getId(parent);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      graph.getKey(parentId);
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    // The id is free again, and given to the next new node.
+    SkyKey newNode = key("new node");
+    assertEquals(parentId, graph.getId(newNode));
+    assertEquals(newNode, graph.getKey(parentId));
+  }
+
+  @Test
+  public void allIdsOfANodeRemovedTwiceAreFreed() {
+    SkyKey node = key("node");
+    int firstId = graph.getId(node);
+    graph.remove(node);
+    // Added back during the same evaluation, so it cannot reuse its first id yet.
+    key("node");
+    int secondId = graph.getId(node);
+    assertTrue(secondId != firstId);
+    graph.remove(node);
+    assertEquals(secondId, graph.getId(node));
+    assertEquals(node, graph.getKey(firstId));
+
+    graph.evaluationFinished();
+    for (int id : new int[] {firstId, secondId}) {
+      try {
+        graph.getKey(id);
+        fail();
+      } catch (IllegalStateException expected) {
+      }
+    }
+    // Both ids are reused before any new one is allocated.
+    int a = graph.getId(key("a"));
+    int b = graph.getId(key("b"));
+    assertThat(ImmutableList.of(a, b)).containsExactly(firstId, secondId);
+    assertEquals(2, graph.getId(key("c")));
+  }
+
+  @Test
+  public void cloneIsAPlainEntryWithTheSameEdges() {
+    SkyKey dep1 = key("dep1");
+    SkyKey dep2 = key("dep2");
+    SkyKey dep3 = key("dep3");
+    SkyKey parent1 = key("parent1");
+    SkyKey parent2 = key("parent2");
+    NodeEntry entry = entry(key("node"));
+    entry.addReverseDepAndCheckIfDone(parent1);
+    entry.addReverseDepAndCheckIfDone(parent2);
+    List<List<SkyKey>> groups = ImmutableList.<List<SkyKey>>of(
+        ImmutableList.of(dep2), ImmutableList.of(dep1, dep3));
+    build(entry, 0L, groups);
+
+    InMemoryNodeEntry clone = ((InMemoryNodeEntry) entry).cloneNodeEntry();
+    assertEquals(InMemoryNodeEntry.class, clone.getClass());
+    assertEquals(new IntVersion(0L), clone.getVersion());
+    assertEquals(VALUE, clone.getValue());
+    assertThat(clone.getReverseDeps()).containsExactly(parent1, parent2);
+    List<List<SkyKey>> clonedGroups = new ArrayList<>();
+    for (Iterable<SkyKey> group : clone.getGroupedDirectDeps()) {
+      clonedGroups.add(ImmutableList.copyOf(group));
+    }
+    assertEquals(groups, clonedGroups);
+
+    // The clone does not depend on the ids of the graph.
+    graph.remove(parent1);
+    graph.remove(dep1);
+    graph.evaluationFinished();
+    key("reuses an id");
+    key("reuses another id");
+    assertThat(clone.getReverseDeps()).containsExactly(parent1, parent2);
+    assertThat(clone.getDirectDeps()).containsExactly(dep1, dep2, dep3);
+  }
+}
@@ -23,9 +23,11 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ConcurrentHashMultiset;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Multiset;
 import com.google.common.collect.Sets;
 import com.google.common.testing.GcFinalization;
 import com.google.devtools.build.lib.events.Reporter;
@@ -603,6 +605,34 @@ public class EagerInvalidatorTest {
       return InvalidationType.CHANGED;
     }
 
+    @Test
+    public void dirtiesWideFanOutOnce() throws Exception {
+      graph = new InMemoryGraph();
+      set("leaf", "leaf");
+      SkyKey top = skyKey("top");
+      // More reverse deps than fit in a chunk, so that they are dirtied by several threads.
+      for (int i = 0; i < 1000; i++) {
+        String mid = "mid" + i;
+        tester.getOrCreate(mid).addDependency("leaf").setComputedValue(CONCATENATE);
+        tester.getOrCreate(top).addDependency(mid);
+      }
+      tester.getOrCreate(top).setComputedValue(CONCATENATE);
+      eval(/*keepGoing=*/false, top);
+
+      final Multiset<SkyValue> invalidated = ConcurrentHashMultiset.create();
+      invalidateWithoutError(new TrackingInvalidationReceiver() {
+        @Override
+        public void invalidated(SkyValue value, InvalidationState state) {
+          invalidated.add(value);
+        }
+      }, skyKey("leaf"));
+      // The leaf and the mids all have the same value.
+      assertEquals(1001, invalidated.count(new StringValue("leaf")));
+      assertEquals(1002, invalidated.size());
+      assertTrue(graph.get(top).isDirty());
+      assertThat(dirtyKeyTracker.getDirtyKeys()).hasSize(1002);
+    }
+
     @Test
     public void dirtyKeyTrackerWorksWithDirtyingInvalidator() throws Exception {
       setupInvalidatableGraph();
@@ -0,0 +1,123 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Splitter;
+import com.google.common.primitives.Ints;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the overhead of the {@link ParallelEvaluator} by replaying an {@link EvaluationTrace}
+ * with no-op functions at several thread counts, and prints the throughput and the speedup over
+ * one thread. The single-threaded replay evaluates the nodes in a deterministic order.
+ *
+ * <p>Usage:
+ * <pre>
+ *   skyframe_replay_benchmark [--iterations=N] [--threads=1,2,4,...] [--nodes=N] [TRACE]
+ * </pre>
+ * Without {@code TRACE}, a file written by {@link EvaluationTrace#write}, replays a random trace
+ * of {@code --nodes} nodes (100000 by default). Traces of real evaluations are recorded by
+ * wrapping the functions of the evaluator with an {@link EvaluationTrace.Recorder}.
+ *
+ * <p>This is intended for performance work and is not run as a test.
+ */
+class EvaluationReplayBenchmark {
+
+  private static final int DEFAULT_ITERATIONS = 5;
+  private static final String DEFAULT_THREADS = "1,2,4,8,16,32";
+  private static final int DEFAULT_NODES = 100000;
+
+  private static long replay(EvaluationTrace trace, int threadCount) throws InterruptedException {
+    long start = System.nanoTime();
+    EvaluationResult<SkyValue> result = trace.replay(threadCount);
+    long nanos = System.nanoTime() - start;
+    if (result.hasError()) {
+      throw new IllegalStateException("Replay failed: " + result);
+    }
+    return nanos;
+  }
+
+  private static void measure(EvaluationTrace trace, List<Integer> threadCounts, int iterations)
+      throws InterruptedException {
+    System.out.printf("%d nodes, %d function calls%n", trace.getNodeCount(),
+        trace.getComputationCount());
+    // Warm up this JVM.
+    for (int i = 0; i < Math.max(1, iterations / 2); i++) {
+      replay(trace, threadCounts.get(threadCounts.size() - 1));
+      replay(trace, 1);
+    }
+    long baselineNanos = 0;
+    for (int threadCount : threadCounts) {
+      long[] nanos = new long[iterations];
+      for (int i = 0; i < iterations; i++) {
+        nanos[i] = replay(trace, threadCount);
+      }
+      Arrays.sort(nanos);
+      long median = nanos[iterations / 2];
+      if (baselineNanos == 0) {
+        baselineNanos = median;
+      }
+      System.out.printf("%3d threads: median %7dms  min %7dms  %10.0f calls/s  speedup %5.2f%n",
+          threadCount, median / 1000000, nanos[0] / 1000000,
+          trace.getComputationCount() * 1e9 / median, (double) baselineNanos / median);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int iterations = DEFAULT_ITERATIONS;
+    String threads = DEFAULT_THREADS;
+    int nodes = DEFAULT_NODES;
+    String traceFile = null;
+    for (String arg : args) {
+      if (arg.startsWith("--iterations=")) {
+        iterations = Integer.parseInt(arg.substring("--iterations=".length()));
+      } else if (arg.startsWith("--threads=")) {
+        threads = arg.substring("--threads=".length());
+      } else if (arg.startsWith("--nodes=")) {
+        nodes = Integer.parseInt(arg.substring("--nodes=".length()));
+      } else if (!arg.startsWith("--") && traceFile == null) {
+        traceFile = arg;
+      } else {
+        System.err.println("Usage: skyframe_replay_benchmark [--iterations=N] "
+            + "[--threads=1,2,4,...] [--nodes=N] [TRACE]");
+        System.exit(2);
+      }
+    }
+    List<Integer> threadCounts = new ArrayList<>();
+    for (String threadCount : Splitter.on(',').trimResults().split(threads)) {
+      threadCounts.add(Ints.checkedCast(Long.parseLong(threadCount)));
+    }
+
+    EvaluationTrace trace;
+    if (traceFile == null) {
+      trace = EvaluationTrace.synthetic(nodes, /*maxDeps=*/8, /*seed=*/0);
+    } else {
+      try (InputStream in = new BufferedInputStream(new FileInputStream(traceFile))) {
+        trace = EvaluationTrace.read(in);
+      } catch (IOException e) {
+        System.err.println("Cannot read " + traceFile + ": " + e.getMessage());
+        System.exit(1);
+        return;
+      }
+    }
+    measure(trace, threadCounts, iterations);
+  }
+}
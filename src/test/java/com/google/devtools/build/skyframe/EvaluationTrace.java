@@ -0,0 +1,433 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.primitives.Ints;
+import com.google.devtools.build.lib.events.EventHandler;
+import com.google.devtools.build.lib.events.NullEventHandler;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The shape of an evaluation: the nodes it computed, and for each call of their {@link
+ * SkyFunction}s, the batches of deps it requested, in order. Replaying a trace evaluates the same
+ * graph with no-op functions, so that its running time is that of the {@link ParallelEvaluator}
+ * alone: locking the nodes, handing them to the threads, signaling the parents, restarting the
+ * functions and collecting their (empty) events.
+ *
+ * <p>Nodes are numbered; the key of node {@code i} has the function name it had when recorded and
+ * argument {@code i}. The values are not recorded, since the replayed functions do not look at
+ * them, and the nodes in error are replayed as nodes with values.
+ */
+final class EvaluationTrace {
+
+  private static final int MAGIC = 0x736b7974; // "skyt"
+
+  private final ImmutableList<SkyFunctionName> functionNames;
+  // For each node, the index of its function name.
+  private final int[] functions;
+  // For each node, the batches of deps requested by each call of its function.
+  private final int[][][][] computations;
+  private final int[] roots;
+
+  private EvaluationTrace(ImmutableList<SkyFunctionName> functionNames, int[] functions,
+      int[][][][] computations, int[] roots) {
+    this.functionNames = functionNames;
+    this.functions = functions;
+    this.computations = computations;
+    this.roots = roots;
+  }
+
+  int getNodeCount() {
+    return functions.length;
+  }
+
+  /** Returns the number of calls of the functions when the trace is replayed. */
+  int getComputationCount() {
+    int count = 0;
+    for (int[][][] nodeComputations : computations) {
+      count += Math.max(1, nodeComputations.length);
+    }
+    return count;
+  }
+
+  SkyKey key(int node) {
+    return new SkyKey(functionNames.get(functions[node]), node);
+  }
+
+  /** Returns the keys of the deps of node {@code node}, in the order first requested. */
+  Set<SkyKey> getDeps(int node) {
+    Set<SkyKey> deps = new LinkedHashSet<>();
+    for (int[][] computation : computations[node]) {
+      for (int[] batch : computation) {
+        for (int dep : batch) {
+          deps.add(key(dep));
+        }
+      }
+    }
+    return deps;
+  }
+
+  List<SkyKey> getRoots() {
+    List<SkyKey> keys = new ArrayList<>(roots.length);
+    for (int root : roots) {
+      keys.add(key(root));
+    }
+    return keys;
+  }
+
+  /** The value of every replayed node. */
+  private static final SkyValue REPLAYED_VALUE = new SkyValue() {};
+
+  private static final class ReplayState implements SkyFunction.SkyKeyComputeState {
+    private int nextComputation = 0;
+  }
+
+  private final SkyFunction replayFunction = new SkyFunction() {
+    @Override
+    public SkyValue compute(SkyKey skyKey, Environment env) {
+      int[][][] nodeComputations = computations[(Integer) skyKey.argument()];
+      ReplayState state = env.getState(new Supplier<ReplayState>() {
+        @Override
+        public ReplayState get() {
+          return new ReplayState();
+        }
+      });
+      // Each call picks up where the recorded function was restarted. If a dep that was missing
+      // when recording is already done, the next recorded call is replayed at once.
+      for (; state.nextComputation < nodeComputations.length; state.nextComputation++) {
+        for (int[] batch : nodeComputations[state.nextComputation]) {
+          List<SkyKey> keys = new ArrayList<>(batch.length);
+          for (int dep : batch) {
+            keys.add(key(dep));
+          }
+          env.getValues(keys);
+        }
+        if (env.valuesMissing()) {
+          state.nextComputation++;
+          return null;
+        }
+      }
+      return REPLAYED_VALUE;
+    }
+
+    @Override
+    public String extractTag(SkyKey skyKey) {
+      return null;
+    }
+  };
+
+  /** Evaluates the roots of the trace in an empty graph, with no-op functions. */
+  EvaluationResult<SkyValue> replay(int threadCount, EventHandler eventHandler)
+      throws InterruptedException {
+    ImmutableMap.Builder<SkyFunctionName, SkyFunction> replayFunctions = ImmutableMap.builder();
+    for (SkyFunctionName functionName : functionNames) {
+      replayFunctions.put(functionName, replayFunction);
+    }
+    ParallelEvaluator evaluator = new ParallelEvaluator(new InMemoryGraph(), new IntVersion(0),
+        replayFunctions.build(), eventHandler, new MemoizingEvaluator.EmittedEventState(),
+        /*keepGoing=*/true, threadCount, /*progressReceiver=*/null, new DirtyKeyTrackerImpl());
+    return evaluator.eval(getRoots());
+  }
+
+  EvaluationResult<SkyValue> replay(int threadCount) throws InterruptedException {
+    return replay(threadCount, NullEventHandler.INSTANCE);
+  }
+
+  void write(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(functionNames.size());
+    for (SkyFunctionName functionName : functionNames) {
+      data.writeUTF(functionName.toString());
+      data.writeBoolean(functionName.isComputed());
+    }
+    data.writeInt(functions.length);
+    for (int node = 0; node < functions.length; node++) {
+      data.writeInt(functions[node]);
+      data.writeInt(computations[node].length);
+      for (int[][] computation : computations[node]) {
+        data.writeInt(computation.length);
+        for (int[] batch : computation) {
+          writeInts(data, batch);
+        }
+      }
+    }
+    writeInts(data, roots);
+    data.flush();
+  }
+
+  static EvaluationTrace read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != MAGIC) {
+      throw new IOException("not an evaluation trace");
+    }
+    ImmutableList.Builder<SkyFunctionName> functionNames = ImmutableList.builder();
+    for (int i = data.readInt(); i > 0; i--) {
+      functionNames.add(new SkyFunctionName(data.readUTF(), data.readBoolean()));
+    }
+    int nodeCount = data.readInt();
+    int[] functions = new int[nodeCount];
+    int[][][][] computations = new int[nodeCount][][][];
+    for (int node = 0; node < nodeCount; node++) {
+      functions[node] = data.readInt();
+      computations[node] = new int[data.readInt()][][];
+      for (int i = 0; i < computations[node].length; i++) {
+        computations[node][i] = new int[data.readInt()][];
+        for (int j = 0; j < computations[node][i].length; j++) {
+          computations[node][i][j] = readInts(data);
+        }
+      }
+    }
+    return new EvaluationTrace(functionNames.build(), functions, computations, readInts(data));
+  }
+
+  private static void writeInts(DataOutputStream data, int[] ints) throws IOException {
+    data.writeInt(ints.length);
+    for (int i : ints) {
+      data.writeInt(i);
+    }
+  }
+
+  private static int[] readInts(DataInputStream data) throws IOException {
+    int[] ints = new int[data.readInt()];
+    for (int i = 0; i < ints.length; i++) {
+      ints[i] = data.readInt();
+    }
+    return ints;
+  }
+
+  /**
+   * Returns the trace of a random evaluation of {@code nodeCount} nodes, each of which requests up
+   * to {@code maxDeps} nodes of higher numbers in up to three calls of its function. Node 0 is the
+   * root and requests all nodes that no other node requests.
+   */
+  static EvaluationTrace synthetic(int nodeCount, int maxDeps, long seed) {
+    Preconditions.checkArgument(nodeCount > 0 && maxDeps > 0);
+    Random random = new Random(seed);
+    SkyFunctionName functionName = SkyFunctionName.computed("SYNTHETIC");
+    int[][][][] computations = new int[nodeCount][][][];
+    boolean[] requested = new boolean[nodeCount];
+    for (int node = nodeCount - 1; node > 0; node--) {
+      int depCount = Math.min(nodeCount - node - 1, random.nextInt(maxDeps + 1));
+      Set<Integer> deps = new LinkedHashSet<>();
+      for (int i = 0; i < depCount; i++) {
+        // Mostly nearby nodes, so that the graph is deep.
+        int dep = node + 1 + Math.min(nodeCount - node - 2, (int) Math.abs(
+            random.nextGaussian() * maxDeps * 4));
+        deps.add(dep);
+        requested[dep] = true;
+      }
+      computations[node] = split(Ints.toArray(deps), 1 + random.nextInt(3), random);
+    }
+    List<Integer> unrequested = new ArrayList<>();
+    for (int node = 1; node < nodeCount; node++) {
+      if (!requested[node]) {
+        unrequested.add(node);
+      }
+    }
+    int[] rootDeps = Ints.toArray(unrequested);
+    computations[0] = new int[][][] {{rootDeps}};
+    return new EvaluationTrace(ImmutableList.of(functionName), new int[nodeCount], computations,
+        new int[] {0});
+  }
+
+  /** Splits {@code deps} into up to {@code callCount} calls of one batch each. */
+  private static int[][][] split(int[] deps, int callCount, Random random) {
+    if (deps.length == 0) {
+      return new int[0][][];
+    }
+    callCount = Math.min(callCount, deps.length);
+    int[][][] calls = new int[callCount][][];
+    int start = 0;
+    for (int i = 0; i < callCount; i++) {
+      int end = i == callCount - 1
+          ? deps.length
+          : start + 1 + random.nextInt(deps.length - start - (callCount - i - 1));
+      int[] batch = new int[end - start];
+      System.arraycopy(deps, start, batch, 0, batch.length);
+      calls[i] = new int[][] {batch};
+      start = end;
+    }
+    return calls;
+  }
+
+  /**
+   * Records the trace of evaluations whose {@link SkyFunction}s are wrapped by {@link #wrap}. The
+   * functions must request their deps through an environment of the {@link ParallelEvaluator}.
+   */
+  static final class Recorder {
+    // The calls of the function of each computed node. Each node is computed by one thread at a
+    // time, and the evaluation is over before the trace is built.
+    private final ConcurrentMap<SkyKey, List<List<List<SkyKey>>>> computations =
+        new ConcurrentHashMap<>();
+
+    ImmutableMap<SkyFunctionName, SkyFunction> wrap(
+        Map<? extends SkyFunctionName, ? extends SkyFunction> skyFunctions) {
+      ImmutableMap.Builder<SkyFunctionName, SkyFunction> wrapped = ImmutableMap.builder();
+      for (Map.Entry<? extends SkyFunctionName, ? extends SkyFunction> entry
+          : skyFunctions.entrySet()) {
+        wrapped.put(entry.getKey(), new RecordingFunction(entry.getValue()));
+      }
+      return wrapped.build();
+    }
+
+    /**
+     * Returns the trace of the evaluations so far. Nodes that were requested but not computed,
+     * such as injected ones, are replayed as nodes without deps.
+     */
+    EvaluationTrace getTrace(Iterable<SkyKey> roots) {
+      // Numbers the nodes in the order they are reached from the roots.
+      Map<SkyKey, Integer> ids = new HashMap<>();
+      List<SkyKey> keys = new ArrayList<>();
+      Map<SkyFunctionName, Integer> functionIds = new LinkedHashMap<>();
+      List<SkyKey> rootList = ImmutableList.copyOf(roots);
+      int[] rootArray = new int[rootList.size()];
+      for (int i = 0; i < rootArray.length; i++) {
+        rootArray[i] = id(rootList.get(i), ids, keys);
+      }
+      List<int[][][]> nodeComputations = new ArrayList<>();
+      List<Integer> functions = new ArrayList<>();
+      for (int node = 0; node < keys.size(); node++) {
+        SkyKey key = keys.get(node);
+        Integer functionId = functionIds.get(key.functionName());
+        if (functionId == null) {
+          functionId = functionIds.size();
+          functionIds.put(key.functionName(), functionId);
+        }
+        functions.add(functionId);
+        List<List<List<SkyKey>>> calls = computations.get(key);
+        if (calls == null) {
+          nodeComputations.add(new int[0][][]);
+          continue;
+        }
+        int[][][] recorded = new int[calls.size()][][];
+        for (int i = 0; i < recorded.length; i++) {
+          List<List<SkyKey>> batches = calls.get(i);
+          recorded[i] = new int[batches.size()][];
+          for (int j = 0; j < recorded[i].length; j++) {
+            List<SkyKey> batch = batches.get(j);
+            recorded[i][j] = new int[batch.size()];
+            for (int k = 0; k < batch.size(); k++) {
+              recorded[i][j][k] = id(batch.get(k), ids, keys);
+            }
+          }
+        }
+        nodeComputations.add(recorded);
+      }
+      int[] functionArray = new int[functions.size()];
+      for (int i = 0; i < functionArray.length; i++) {
+        functionArray[i] = functions.get(i);
+      }
+      return new EvaluationTrace(ImmutableList.copyOf(functionIds.keySet()), functionArray,
+          nodeComputations.toArray(new int[0][][][]), rootArray);
+    }
+
+    private static int id(SkyKey key, Map<SkyKey, Integer> ids, List<SkyKey> keys) {
+      Integer id = ids.get(key);
+      if (id == null) {
+        id = keys.size();
+        ids.put(key, id);
+        keys.add(key);
+      }
+      return id;
+    }
+
+    private final class RecordingFunction implements SkyFunction {
+      private final SkyFunction delegate;
+
+      private RecordingFunction(SkyFunction delegate) {
+        this.delegate = delegate;
+      }
+
+      @Override
+      public SkyValue compute(SkyKey skyKey, Environment env)
+          throws SkyFunctionException, InterruptedException {
+        List<List<List<SkyKey>>> calls = computations.get(skyKey);
+        if (calls == null) {
+          calls = new ArrayList<>();
+          List<List<List<SkyKey>>> previous = computations.putIfAbsent(skyKey, calls);
+          if (previous != null) {
+            calls = previous;
+          }
+        }
+        List<List<SkyKey>> batches = new ArrayList<>();
+        calls.add(batches);
+        return delegate.compute(skyKey,
+            new RecordingEnvironment((AbstractSkyFunctionEnvironment) env, batches));
+      }
+
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return delegate.extractTag(skyKey);
+      }
+    }
+  }
+
+  private static final class RecordingEnvironment extends AbstractSkyFunctionEnvironment {
+    private final AbstractSkyFunctionEnvironment delegate;
+    private final List<List<SkyKey>> batches;
+
+    private RecordingEnvironment(AbstractSkyFunctionEnvironment delegate,
+        List<List<SkyKey>> batches) {
+      this.delegate = delegate;
+      this.batches = batches;
+    }
+
+    @Override
+    protected Map<SkyKey, ValueOrUntypedException> getValueOrUntypedExceptions(
+        Iterable<SkyKey> depKeys) {
+      batches.add(ImmutableList.copyOf(depKeys));
+      return delegate.getValueOrUntypedExceptions(depKeys);
+    }
+
+    @Override
+    public boolean valuesMissing() {
+      return delegate.valuesMissing();
+    }
+
+    @Override
+    public <T extends SkyFunction.SkyKeyComputeState> T getState(Supplier<T> stateSupplier) {
+      return delegate.getState(stateSupplier);
+    }
+
+    @Override
+    public EventHandler getListener() {
+      return delegate.getListener();
+    }
+
+    @Override
+    public boolean inErrorBubblingForTesting() {
+      return delegate.inErrorBubblingForTesting();
+    }
+  }
+}
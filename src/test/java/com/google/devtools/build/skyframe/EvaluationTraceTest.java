@@ -0,0 +1,92 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Tests for {@link EvaluationTrace}.
+ */
+@RunWith(JUnit4.class)
+public class EvaluationTraceTest {
+
+  private static byte[] toBytes(EvaluationTrace trace) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    trace.write(out);
+    return out.toByteArray();
+  }
+
+  @Test
+  public void recordedTraceIsReplayed() throws Exception {
+    GraphTester tester = new GraphTester();
+    tester.set("c", new GraphTester.StringValue("c"));
+    tester.set("b", new GraphTester.StringValue("b"));
+    tester.getOrCreate("a").addDependency("c").setComputedValue(CONCATENATE);
+    tester.getOrCreate("top").addDependency("a").addDependency("b")
+        .setComputedValue(CONCATENATE);
+    SkyKey top = GraphTester.toSkyKey("top");
+
+    EvaluationTrace.Recorder recorder = new EvaluationTrace.Recorder();
+    ParallelEvaluator evaluator = new ParallelEvaluator(new InMemoryGraph(), new IntVersion(0),
+        recorder.wrap(ImmutableMap.of(GraphTester.NODE_TYPE, tester.createDelegatingFunction())),
+        NullEventHandler.INSTANCE, new MemoizingEvaluator.EmittedEventState(),
+        /*keepGoing=*/false, 1, null, new DirtyKeyTrackerImpl());
+    assertEquals("cb", evaluator.<GraphTester.StringValue>eval(ImmutableList.of(top)).get(top)
+        .getValue());
+
+    EvaluationTrace trace = EvaluationTrace.read(
+        new ByteArrayInputStream(toBytes(recorder.getTrace(ImmutableList.of(top)))));
+    assertEquals(4, trace.getNodeCount());
+    // "top" and "a" are restarted once: the GraphTester functions request one dep at a time.
+    assertEquals(6, trace.getComputationCount());
+    assertThat(trace.getRoots()).containsExactly(trace.key(0));
+    assertThat(trace.getDeps(0)).containsExactly(trace.key(1), trace.key(2)).inOrder();
+    assertThat(trace.getDeps(1)).containsExactly(trace.key(3));
+    assertThat(trace.getDeps(2)).isEmpty();
+
+    for (int threadCount : new int[] {1, 4}) {
+      EvaluationResult<SkyValue> result = trace.replay(threadCount);
+      assertFalse(result.hasError());
+      assertNotNull(result.get(trace.key(0)));
+    }
+  }
+
+  @Test
+  public void syntheticTraceIsDeterministicAndReplays() throws Exception {
+    EvaluationTrace trace = EvaluationTrace.synthetic(1000, 5, 42);
+    assertArrayEquals(toBytes(trace), toBytes(EvaluationTrace.synthetic(1000, 5, 42)));
+    assertEquals(1000, trace.getNodeCount());
+    for (int threadCount : new int[] {1, 8}) {
+      EvaluationResult<SkyValue> result = trace.replay(threadCount);
+      assertFalse(result.hasError());
+      assertNotNull(result.get(trace.key(0)));
+    }
+  }
+}
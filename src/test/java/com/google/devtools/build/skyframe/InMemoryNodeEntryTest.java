@@ -226,6 +226,21 @@ public class InMemoryNodeEntryTest {
     assertEquals(new IntVersion(1L), entry.getVersion());
   }
 
+  @Test
+  public void invalidationClaimsLastUntilDone() {
+    NodeEntry entry = new InMemoryNodeEntry();
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/0L);
+    assertTrue(entry.claimForInvalidation(/*isChanged=*/false));
+    assertFalse(entry.claimForInvalidation(/*isChanged=*/false));
+    assertTrue(entry.claimForInvalidation(/*isChanged=*/true));
+    assertFalse(entry.claimForInvalidation(/*isChanged=*/true));
+    entry.markDirty(/*isChanged=*/true);
+    entry.addReverseDepAndCheckIfDone(null); // Start evaluation.
+    setValue(entry, new SkyValue() {}, /*errorInfo=*/null, /*graphVersion=*/1L);
+    assertTrue(entry.claimForInvalidation(/*isChanged=*/false));
+  }
+
   @Test
   public void markDirtyThenChanged() {
     NodeEntry entry = new InMemoryNodeEntry();
@@ -645,6 +660,30 @@ public class InMemoryNodeEntryTest {
     assertThat(clone2.getReverseDeps()).containsExactly(key("parent1"), key("parent2"));
   }
 
+  @Test
+  public void evictedValueIsRestoredBeforeCloning() {
+    InMemoryNodeEntry entry = new InMemoryNodeEntry();
+    IntegerValue value = new IntegerValue(42);
+    addTemporaryDirectDep(entry, key("child"));
+    entry.signalDep();
+    entry.setValue(value, new IntVersion(0L));
+    InMemoryNodeEntry.ValueRecomputer recomputer = new InMemoryNodeEntry.ValueRecomputer() {
+      @Override
+      public SkyValue recompute(SkyKey key, InMemoryNodeEntry node) {
+        assertThat(node.getDirectDeps()).containsExactly(key("child"));
+        return new IntegerValue(42);
+      }
+    };
+    assertFalse(entry.evictValueIfCold(key("node"), recomputer));
+    assertTrue(entry.evictValueIfCold(key("node"), recomputer));
+    assertThat(entry.toString()).contains("<evicted>");
+
+    InMemoryNodeEntry clone = entry.cloneNodeEntry();
+    assertThat(clone.toString()).doesNotContain("<evicted>");
+    assertThat(clone.getValue()).isEqualTo(value);
+    assertThat(entry.getValue()).isEqualTo(value);
+  }
+
   @Test
   public void getGroupedDirectDeps() {
     InMemoryNodeEntry entry = new InMemoryNodeEntry();
@@ -28,6 +28,7 @@ import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -59,6 +60,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -70,6 +74,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.DeflaterOutputStream;
 
 import javax.annotation.Nullable;
 
@@ -82,7 +87,7 @@ public class MemoizingEvaluatorTest {
   private MemoizingEvaluatorTester tester;
   private EventCollector eventCollector;
   private EventHandler reporter;
-  private MemoizingEvaluator.EmittedEventState emittedEventState;
+  protected MemoizingEvaluator.EmittedEventState emittedEventState;
 
   // Knobs that control the size / duration of larger tests.
   private static final int TEST_NODE_COUNT = 100;
@@ -110,6 +115,13 @@ public class MemoizingEvaluatorTest {
     tester.resetPlayedEvents();
   }
 
+  protected MemoizingEvaluator getMemoizingEvaluator(
+      Map<SkyFunctionName, ? extends SkyFunction> functions, Differencer differencer,
+      EvaluationProgressReceiver invalidationReceiver) {
+    return new InMemoryMemoizingEvaluator(functions, differencer, invalidationReceiver,
+        emittedEventState, true);
+  }
+
   protected static SkyKey toSkyKey(String name) {
     return new SkyKey(NODE_TYPE, name);
   }
@@ -2981,6 +2993,187 @@ public class MemoizingEvaluatorTest {
     memoizingEvaluator.setGraphForTesting(notifyingInMemoryGraph);
   }
 
+  /** A {@link ValueComputer} that concatenates the values of the deps and counts its calls. */
+  private static final class CountingConcatenate implements ValueComputer {
+    private final AtomicInteger computations = new AtomicInteger();
+
+    @Override
+    public SkyValue compute(Map<SkyKey, SkyValue> deps, SkyFunction.Environment env)
+        throws InterruptedException {
+      computations.incrementAndGet();
+      return CONCATENATE.compute(deps, env);
+    }
+  }
+
+  @Test
+  public void skyFunctionStatisticsAreOffByDefault() throws Exception {
+    tester.getOrCreate("top").setConstantValue(new StringValue("top"));
+    tester.evalAndGet("top");
+    assertThat(tester.graph.getSkyFunctionStatistics().getCounters()).isEmpty();
+
+    tester.graph.getSkyFunctionStatistics().setEnabled(true);
+    tester.getOrCreate("other").setConstantValue(new StringValue("other"));
+    tester.evalAndGet("other");
+    assertThat(tester.graph.getSkyFunctionStatistics().getCounters().get(NODE_TYPE)
+        .getComputations()).isEqualTo(1);
+  }
+
+  @Test
+  public void evictedValueIsRecomputedFromItsDeps() throws Exception {
+    SkyKey mid = skyKey("mid");
+    CountingConcatenate midComputer = new CountingConcatenate();
+    CountingConcatenate leafComputer = new CountingConcatenate();
+    tester.getOrCreate("leaf").setComputedValue(leafComputer);
+    tester.getOrCreate("mid").addDependency("leaf").setComputedValue(midComputer);
+    tester.getOrCreate("top").addDependency("mid").setComputedValue(CONCATENATE);
+    tester.getOrCreate("other").addDependency("mid").setComputedValue(CONCATENATE);
+    tester.graph.getSkyFunctionStatistics().setEnabled(true);
+    assertEquals(new StringValue(""), tester.evalAndGet("top"));
+
+    // Values are given a second chance.
+    assertEquals(0, tester.evictColdValues(Predicates.equalTo(mid)));
+    assertEquals(1, tester.evictColdValues(Predicates.equalTo(mid)));
+    assertEquals(0, tester.evictColdValues(Predicates.equalTo(mid)));
+
+    assertEquals(new StringValue(""), tester.evalAndGet("other"));
+    assertEquals(2, midComputer.computations.get());
+    assertEquals(1, leafComputer.computations.get());
+    assertEquals(new StringValue(""), tester.getExistingValue("mid"));
+    assertEquals(2, midComputer.computations.get());
+    assertThat(tester.graph.getSkyFunctionStatistics().getCounters().get(NODE_TYPE)
+        .getRecomputations()).isEqualTo(1);
+
+    // A value that was used is not evicted by the next sweep.
+    assertEquals(0, tester.evictColdValues(Predicates.equalTo(mid)));
+  }
+
+  @Test
+  public void evictedValueIsRecomputedWhenReadOutsideOfAnEvaluation() throws Exception {
+    SkyKey mid = skyKey("mid");
+    CountingConcatenate midComputer = new CountingConcatenate();
+    tester.set("leaf", new StringValue("leaf"));
+    tester.getOrCreate("mid").addDependency("leaf").setComputedValue(midComputer);
+    tester.getOrCreate("top").addDependency("mid").setComputedValue(CONCATENATE);
+    tester.evalAndGet("top");
+    tester.evictColdValues(Predicates.equalTo(mid));
+    assertEquals(1, tester.evictColdValues(Predicates.equalTo(mid)));
+
+    assertEquals(new StringValue("leaf"), tester.getExistingValue("mid"));
+    assertEquals(new StringValue("leaf"), tester.graph.getDoneValues().get(mid));
+    assertNull(tester.graph.getExistingErrorForTesting(mid));
+    assertEquals(2, midComputer.computations.get());
+  }
+
+  @Test
+  public void evictedValueOfCleanNodeIsRestoredWithoutRebuildingItsParents() throws Exception {
+    SkyKey mid = skyKey("mid");
+    CountingConcatenate midComputer = new CountingConcatenate();
+    CountingConcatenate topComputer = new CountingConcatenate();
+    tester.set("leaf", new StringValue("leaf"));
+    tester.getOrCreate("mid").addDependency("leaf").setComputedValue(midComputer);
+    tester.getOrCreate("top").addDependency("mid").setComputedValue(topComputer);
+    assertEquals(new StringValue("leaf"), tester.evalAndGet("top"));
+    tester.evictColdValues(Predicates.equalTo(mid));
+    assertEquals(1, tester.evictColdValues(Predicates.equalTo(mid)));
+
+    // The node is found clean and its value is restored, but its parent is pruned.
+    tester.set("leaf", new StringValue("leaf"));
+    tester.invalidate();
+    assertEquals(new StringValue("leaf"), tester.evalAndGet("top"));
+    assertEquals(2, midComputer.computations.get());
+    assertEquals(1, topComputer.computations.get());
+    assertEquals(new StringValue("leaf"), tester.getExistingValue("mid"));
+    assertEquals(2, midComputer.computations.get());
+  }
+
+  @Test
+  public void errorOfRecomputationOfEvictedValueIsStoredInItsNode() throws Exception {
+    SkyKey mid = skyKey("mid");
+    tester.set("leaf", new StringValue("leaf"));
+    tester.getOrCreate("mid").addDependency("leaf").setComputedValue(CONCATENATE);
+    tester.getOrCreate("top").addDependency("mid").setComputedValue(CONCATENATE);
+    tester.evalAndGet("top");
+    tester.evictColdValues(Predicates.equalTo(mid));
+    assertEquals(1, tester.evictColdValues(Predicates.equalTo(mid)));
+
+    // A SkyFunction that does not compute equal values from equal deps.
+    tester.getOrCreate("mid").setHasError(true);
+    assertNull(tester.getExistingValue("mid"));
+    ErrorInfo errorInfo = tester.graph.getExistingErrorForTesting(mid);
+    assertThat(errorInfo.getException()).isInstanceOf(SomeErrorException.class);
+    assertThat(errorInfo.getRootCauses()).containsExactly(mid);
+  }
+
+  @Test
+  public void evictedValueIsRebuiltWhenItsDepsChange() throws Exception {
+    SkyKey mid = skyKey("mid");
+    tester.set("leaf", new StringValue("leaf"));
+    tester.getOrCreate("mid").addDependency("leaf").setComputedValue(CONCATENATE);
+    tester.getOrCreate("top").addDependency("mid").setComputedValue(CONCATENATE);
+    assertEquals(new StringValue("leaf"), tester.evalAndGet("top"));
+    tester.evictColdValues(Predicates.equalTo(mid));
+    assertEquals(1, tester.evictColdValues(Predicates.equalTo(mid)));
+
+    tester.set("leaf", new StringValue("changed"));
+    tester.invalidate();
+    assertEquals(new StringValue("changed"), tester.evalAndGet("top"));
+    assertEquals(new StringValue("changed"), tester.getExistingValue("mid"));
+  }
+
+  @Test
+  public void valuesWithEventsAreNotEvicted() throws Exception {
+    tester.getOrCreate("top").setConstantValue(new StringValue("top")).setWarning("warning");
+    tester.evalAndGet("top");
+    tester.evictColdValues(Predicates.equalTo(skyKey("top")));
+    assertEquals(0, tester.evictColdValues(Predicates.equalTo(skyKey("top"))));
+    assertEquals(new StringValue("top"), tester.getExistingValue("top"));
+  }
+
+  @Test
+  public void graphDumpCountsNodesAndEdges() throws Exception {
+    tester.getOrCreate("leaf").setConstantValue(new StringValue("leaf"));
+    tester.getOrCreate("mid1").addDependency("leaf").setComputedValue(COPY);
+    tester.getOrCreate("mid2").addDependency("leaf").setComputedValue(COPY);
+    tester.getOrCreate("top").addDependency("mid1").addDependency("mid2")
+        .setComputedValue(CONCATENATE);
+    tester.evalAndGet("top");
+
+    ByteArrayOutputStream dump = new ByteArrayOutputStream();
+    tester.graph.dumpGraph(dump);
+    GraphDump.Analysis analysis =
+        GraphDump.analyze(new ByteArrayInputStream(dump.toByteArray()), 1);
+    GraphDump.FunctionSummary function = null;
+    for (GraphDump.FunctionSummary summary : analysis.getFunctions()) {
+      if (summary.getFunctionName().equals(NODE_TYPE.toString())) {
+        function = summary;
+      }
+    }
+    assertEquals(4, function.getNodes());
+    assertEquals(4, function.getDoneNodes());
+    assertEquals(0, function.getErrors());
+    assertEquals(4, function.getDirectDeps());
+    assertEquals(4, function.getReverseDeps());
+    assertThat(function.getValueBytes()).isGreaterThan(0L);
+    assertEquals(skyKey("leaf").argument().toString(),
+        Iterables.getOnlyElement(analysis.getMostDependedOn()).getArgument());
+    assertEquals(2, Iterables.getOnlyElement(analysis.getMostDependedOn()).getReverseDeps());
+    assertEquals(skyKey("top").argument().toString(),
+        Iterables.getOnlyElement(analysis.getMostDeps()).getArgument());
+  }
+
+  @Test
+  public void graphDumpAnalysisRejectsOtherFiles() throws Exception {
+    ByteArrayOutputStream notADump = new ByteArrayOutputStream();
+    try (DeflaterOutputStream out = new DeflaterOutputStream(notADump)) {
+      out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8});
+    }
+    try {
+      GraphDump.analyze(new ByteArrayInputStream(notADump.toByteArray()), 1);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
   private static final class PassThroughSelected implements ValueComputer {
     private final SkyKey key;
 
@@ -3005,9 +3198,9 @@ public class MemoizingEvaluatorTest {
 
     public void initialize() {
       this.differencer = new RecordingDifferencer();
-      this.graph = new InMemoryMemoizingEvaluator(
+      this.graph = getMemoizingEvaluator(
           ImmutableMap.of(NODE_TYPE, createDelegatingFunction()), differencer,
-          invalidationReceiver, emittedEventState, true);
+          invalidationReceiver);
       this.driver = new SequentialBuildDriver(graph);
     }
 
@@ -3030,6 +3223,10 @@ public class MemoizingEvaluatorTest {
       graph.delete(Predicates.equalTo(GraphTester.skyKey(key)));
     }
 
+    public int evictColdValues(Predicate<SkyKey> evictable) {
+      return graph.evictColdValues(evictable);
+    }
+
     public void resetPlayedEvents() {
       emittedEventState.clear();
     }
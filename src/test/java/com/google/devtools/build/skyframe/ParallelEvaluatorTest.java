@@ -25,6 +25,7 @@ import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.base.Supplier;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -56,6 +57,7 @@ import org.junit.runners.JUnit4;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -134,6 +136,104 @@ public class ParallelEvaluatorTest {
     JunitTestUtils.assertNoEvents(eventCollector);
   }
 
+  private static final class CountingState implements SkyFunction.SkyKeyComputeState {
+    private int computations = 0;
+  }
+
+  @Test
+  public void computeStateIsKeptAcrossRestarts() throws Exception {
+    graph = new InMemoryGraph();
+    final SkyKey a = GraphTester.toSkyKey("a");
+    final SkyKey b = GraphTester.toSkyKey("b");
+    SkyKey top = GraphTester.toSkyKey("top");
+    set("a", "a");
+    set("b", "b");
+    tester.getOrCreate(top).setBuilder(new SkyFunction() {
+      @Override
+      public SkyValue compute(SkyKey skyKey, Environment env) {
+        CountingState state = env.getState(new Supplier<CountingState>() {
+          @Override
+          public CountingState get() {
+            return new CountingState();
+          }
+        });
+        state.computations++;
+        // Requested one at a time, so that the function is restarted twice.
+        if (env.getValue(a) == null || env.getValue(b) == null) {
+          return null;
+        }
+        return new StringValue(Integer.toString(state.computations));
+      }
+
+      @Override
+      public String extractTag(SkyKey skyKey) {
+        return null;
+      }
+    });
+    SkyFunctionStatistics statistics = new SkyFunctionStatistics();
+    ParallelEvaluator evaluator = new ParallelEvaluator(graph, graphVersion,
+        ImmutableMap.of(GraphTester.NODE_TYPE, tester.createDelegatingFunction()), reporter,
+        new MemoizingEvaluator.EmittedEventState(), /*keepGoing=*/false, 150,
+        revalidationReceiver, new DirtyKeyTrackerImpl(), statistics);
+    EvaluationResult<StringValue> result = evaluator.eval(ImmutableList.of(top));
+    assertEquals("3", result.get(top).getValue());
+
+    SkyFunctionStatistics.Counters counters = statistics.getCounters().get(GraphTester.NODE_TYPE);
+    assertEquals(5, counters.getComputations());
+    assertEquals(2, counters.getRestarts());
+    assertEquals(2, counters.getResumptions());
+    assertTrue(counters.getRestartCpuNanos() <= counters.getCpuNanos());
+  }
+
+  @Test
+  public void evaluationPriorityIsInheritedByDeps() throws Exception {
+    graph = new InMemoryGraph();
+    SkyKey top = GraphTester.toSkyKey("top");
+    final SkyKey critical = GraphTester.toSkyKey("critical");
+    SkyKey leaf = GraphTester.toSkyKey("leaf");
+    set("leaf", "leaf");
+    tester.getOrCreate(critical).addDependency(leaf).setComputedValue(CONCATENATE);
+    List<SkyKey> fillers = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      SkyKey filler = GraphTester.toSkyKey("filler" + i);
+      set(filler.argument().toString(), "filler");
+      tester.getOrCreate(top).addDependency(filler);
+      fillers.add(filler);
+    }
+    tester.getOrCreate(top).addDependency(critical).setConstantValue(new StringValue("top"));
+    final List<SkyKey> evaluated = Collections.synchronizedList(new ArrayList<SkyKey>());
+    EvaluationProgressReceiver receiver = new EvaluationProgressReceiver() {
+      @Override
+      public void invalidated(SkyValue value, InvalidationState state) {}
+
+      @Override
+      public void enqueueing(SkyKey skyKey) {}
+
+      @Override
+      public void evaluated(SkyKey skyKey, SkyValue value, EvaluationState state) {
+        evaluated.add(skyKey);
+      }
+    };
+    EvaluationPriority priority = new EvaluationPriority() {
+      @Override
+      public int getPriority(SkyKey key) {
+        return key.equals(critical) ? 10 : 0;
+      }
+    };
+    // A single thread, so that the ready nodes are evaluated one at a time in priority order.
+    ParallelEvaluator evaluator = new ParallelEvaluator(graph, graphVersion,
+        ImmutableMap.of(GraphTester.NODE_TYPE, tester.createDelegatingFunction()), reporter,
+        new MemoizingEvaluator.EmittedEventState(), /*keepGoing=*/false, 1, receiver,
+        new DirtyKeyTrackerImpl(), null, priority);
+    assertEquals("top",
+        evaluator.<StringValue>eval(ImmutableList.of(top)).get(top).getValue());
+
+    // Although the critical node is requested last, it and its dep are evaluated before the fillers.
+    assertThat(evaluated.subList(0, 2)).containsExactly(leaf, critical).inOrder();
+    assertThat(evaluated.subList(2, 12)).containsExactlyElementsIn(fillers);
+    assertEquals(top, evaluated.get(12));
+  }
+
   /**
    * Test interruption handling when a long-running SkyFunction gets interrupted.
    */
@@ -0,0 +1,128 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+import com.google.devtools.build.skyframe.SkyFunctionStatistics.Counters;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+/**
+ * Tests for {@link SkyFunctionStatistics}.
+ */
+@RunWith(JUnit4.class)
+public class SkyFunctionStatisticsTest {
+
+  private static final SkyFunctionName FAST = new SkyFunctionName("FAST", false);
+  private static final SkyFunctionName SLOW = new SkyFunctionName("SLOW", false);
+
+  private final SkyFunctionStatistics statistics = new SkyFunctionStatistics();
+
+  @Test
+  public void countsComputationsAndRestarts() {
+    statistics.recordComputation(FAST, 3000, 2000, 2, false, null);
+    statistics.recordRestart(FAST, 2000);
+    statistics.recordComputation(FAST, 5000, 4000, 1, true, new StringValue("done"));
+
+    Counters counters = statistics.getCounters().get(FAST);
+    assertThat(counters.getComputations()).isEqualTo(2);
+    assertThat(counters.getRestarts()).isEqualTo(1);
+    assertThat(counters.getResumptions()).isEqualTo(1);
+    assertThat(counters.getWallNanos()).isEqualTo(8000);
+    assertThat(counters.getCpuNanos()).isEqualTo(6000);
+    assertThat(counters.getRestartCpuNanos()).isEqualTo(2000);
+    assertThat(counters.getDepsRequested()).isEqualTo(3);
+    assertThat(counters.getValues()).isEqualTo(1);
+    assertThat(counters.getValueBytes()).isGreaterThan(0L);
+    assertThat(statistics.getCounters()).doesNotContainKey(SLOW);
+
+    statistics.clear();
+    assertThat(statistics.getCounters()).isEmpty();
+  }
+
+  @Test
+  public void countsFromManyThreads() throws Exception {
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          for (int j = 0; j < 1000; j++) {
+            statistics.recordComputation(FAST, 1, 1, 1, false, null);
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertThat(statistics.getCounters().get(FAST).getComputations()).isEqualTo(8000);
+  }
+
+  @Test
+  public void encodeAndDecode() {
+    statistics.recordComputation(FAST, 3000, 2000, 2, false, new StringValue("done"));
+    Counters counters = statistics.getCounters().get(FAST);
+    Counters decoded = Counters.decode(counters.encode());
+    for (SkyFunctionStatistics.Metric metric : SkyFunctionStatistics.Metric.values()) {
+      assertThat(decoded.get(metric)).isEqualTo(counters.get(metric));
+    }
+    // Profiles written before a metric was added lack its count.
+    Counters truncated = Counters.decode("4,1");
+    assertThat(truncated.getComputations()).isEqualTo(4);
+    assertThat(truncated.getRestarts()).isEqualTo(1);
+    assertThat(truncated.getValueBytes()).isEqualTo(0);
+  }
+
+  @Test
+  public void sinceAndPlus() {
+    statistics.recordComputation(FAST, 3000, 2000, 2, false, null);
+    Counters before = statistics.getCounters().get(FAST);
+    statistics.recordComputation(FAST, 5000, 4000, 1, false, null);
+    Counters after = statistics.getCounters().get(FAST);
+
+    Counters delta = after.since(before);
+    assertThat(delta.getComputations()).isEqualTo(1);
+    assertThat(delta.getCpuNanos()).isEqualTo(4000);
+    assertThat(after.since(null)).isSameAs(after);
+    assertThat(delta.plus(before).getCpuNanos()).isEqualTo(after.getCpuNanos());
+  }
+
+  @Test
+  public void printsMostCpuIntensiveFirst() throws Exception {
+    statistics.recordComputation(FAST, 1000000, 1000000, 0, false, null);
+    statistics.recordComputation(SLOW, 9000000, 9000000, 0, false, null);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    PrintStream out = new PrintStream(bytes, true, "UTF-8");
+    SkyFunctionStatistics.printTable(statistics.getCounters(), 1, out);
+    String table = new String(bytes.toByteArray(), "UTF-8");
+    assertThat(table).contains("SLOW");
+    assertThat(table).doesNotContain("FAST");
+
+    ImmutableMap<SkyFunctionName, Counters> counters = statistics.getCounters();
+    bytes.reset();
+    SkyFunctionStatistics.printTable(counters, counters.size(), out);
+    table = new String(bytes.toByteArray(), "UTF-8");
+    assertThat(table.indexOf("SLOW")).isLessThan(table.indexOf("FAST"));
+  }
+}
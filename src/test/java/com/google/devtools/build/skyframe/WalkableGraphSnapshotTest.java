@@ -0,0 +1,116 @@
+// Copyright 2015 Google Inc. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.skyframe.GraphTester.CONCATENATE;
+import static com.google.devtools.build.skyframe.GraphTester.skyKey;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.skyframe.GraphTester.StringValue;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link WalkableGraphSnapshot}.
+ */
+@RunWith(JUnit4.class)
+public class WalkableGraphSnapshotTest {
+
+  private final GraphTester tester = new GraphTester();
+  private final RecordingDifferencer differencer = new RecordingDifferencer();
+  private InMemoryMemoizingEvaluator evaluator;
+  private int version = 0;
+
+  @Before
+  public final void createEvaluator() {
+    evaluator = new InMemoryMemoizingEvaluator(
+        ImmutableMap.of(GraphTester.NODE_TYPE, tester.getFunction()), differencer);
+  }
+
+  private WalkableGraph evaluate(String... roots) throws InterruptedException {
+    EvaluationResult<SkyValue> result = evaluator.evaluate(
+        ImmutableList.copyOf(GraphTester.toSkyKeys(roots)), new IntVersion(version++),
+        /*keepGoing=*/true, 1, NullEventHandler.INSTANCE);
+    return result.getWalkableGraph();
+  }
+
+  @Test
+  public void copiesTheNodesReachableFromTheRoots() throws Exception {
+    tester.getOrCreate("top").setComputedValue(CONCATENATE).addDependency("mid");
+    tester.getOrCreate("mid").setComputedValue(CONCATENATE).addDependency("leaf");
+    tester.getOrCreate("other").setComputedValue(CONCATENATE).addDependency("leaf");
+    tester.set("leaf", new StringValue("leaf"));
+    WalkableGraph graph = evaluate("top", "other");
+
+    WalkableGraphSnapshot snapshot =
+        WalkableGraphSnapshot.copyOf(graph, ImmutableList.of(skyKey("top"), skyKey("missing")));
+    assertEquals(3, snapshot.size());
+    assertTrue(snapshot.exists(skyKey("mid")));
+    assertFalse(snapshot.exists(skyKey("other")));
+    assertEquals(new StringValue("leaf"), snapshot.getValue(skyKey("top")));
+    assertThat(snapshot.getDirectDeps(skyKey("mid"))).containsExactly(skyKey("leaf"));
+    // "other" also depends on "leaf" in the graph, but it is not part of the snapshot.
+    assertThat(graph.getReverseDeps(skyKey("leaf"))).containsExactly(skyKey("mid"),
+        skyKey("other"));
+    assertThat(snapshot.getReverseDeps(skyKey("leaf"))).containsExactly(skyKey("mid"));
+    assertThat(snapshot.getReverseDeps(skyKey("top"))).isEmpty();
+  }
+
+  @Test
+  public void doesNotChangeWhenTheGraphIsReevaluated() throws Exception {
+    tester.getOrCreate("top").setComputedValue(CONCATENATE).addDependency("leaf");
+    tester.set("leaf", new StringValue("old"));
+    WalkableGraph graph = evaluate("top");
+    WalkableGraphSnapshot snapshot = WalkableGraphSnapshot.copyOf(graph,
+        ImmutableList.of(skyKey("top")));
+
+    tester.getOrCreate("top").removeDependency("leaf").addDependency("newLeaf");
+    tester.set("newLeaf", new StringValue("new"));
+    differencer.invalidate(ImmutableList.of(skyKey("top")));
+    graph = evaluate("top");
+
+    assertEquals(new StringValue("new"), graph.getValue(skyKey("top")));
+    assertEquals(new StringValue("old"), snapshot.getValue(skyKey("top")));
+    assertThat(snapshot.getDirectDeps(skyKey("top"))).containsExactly(skyKey("leaf"));
+    assertFalse(snapshot.exists(skyKey("newLeaf")));
+  }
+
+  @Test
+  public void copiesErrors() throws Exception {
+    tester.getOrCreate("top").setComputedValue(CONCATENATE).addDependency("bad")
+        .addDependency("good");
+    tester.getOrCreate("bad").setHasError(true);
+    tester.set("good", new StringValue("good"));
+    WalkableGraph graph = evaluate("top");
+
+    WalkableGraphSnapshot snapshot = WalkableGraphSnapshot.copyOf(graph,
+        ImmutableList.of(skyKey("top")));
+    assertNull(snapshot.getValue(skyKey("bad")));
+    assertNotNull(snapshot.getException(skyKey("bad")));
+    assertNull(snapshot.getException(skyKey("good")));
+    assertThat(snapshot.getSuccessfulValues(ImmutableList.of(skyKey("bad"), skyKey("good"),
+        skyKey("missing"))).keySet()).containsExactly(skyKey("good"));
+  }
+}